@@ -0,0 +1,108 @@
+package org.ggp.base.util.statemachine.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.files.FileUtils;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.SamplePropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+
+import external.JSON.JSONObject;
+
+/**
+ * The games and state machines the benchmarks are run over.
+ *
+ * Games are named by a key of the form "test:name", for a rulesheet in
+ * games/test, or "local:name", for a game in games/games. The rulesheets are
+ * read straight from disk rather than through LocalGameRepository, so that
+ * forked benchmark JVMs do not each start a repository server.
+ */
+public final class BenchmarkGames
+{
+    /** The state machine implementations that can be benchmarked. */
+    public enum Implementation {
+        PROVER,
+        CACHED_PROVER,
+        PROPNET,
+        COMPILED_PROPNET;
+
+        public StateMachine create()
+        {
+            switch (this) {
+            case PROVER:
+                return new ProverStateMachine();
+            case CACHED_PROVER:
+                return new CachedStateMachine(new ProverStateMachine());
+            case PROPNET:
+                return new SamplePropNetStateMachine();
+            case COMPILED_PROPNET:
+                return new CompiledPropNetStateMachine();
+            default:
+                throw new IllegalStateException();
+            }
+        }
+    }
+
+    private BenchmarkGames()
+    {
+    }
+
+    /** Returns the keys of all bundled games, in a stable order. */
+    public static List<String> getGameKeys()
+    {
+        List<String> keys = new ArrayList<String>();
+        for (File file : listFiles(new File("games/test"))) {
+            if (file.getName().endsWith(".kif")) {
+                keys.add("test:" + file.getName().replace(".kif", ""));
+            }
+        }
+        for (File directory : listFiles(new File("games/games"))) {
+            if (new File(directory, "METADATA").isFile()) {
+                keys.add("local:" + directory.getName());
+            }
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    /** Returns the rules of the game with the given key. */
+    public static List<Gdl> getRules(String key)
+    {
+        String rulesheet;
+        if (key.startsWith("test:")) {
+            rulesheet = FileUtils.readFileAsString(new File("games/test", key.substring(5) + ".kif"));
+        } else if (key.startsWith("local:")) {
+            File directory = new File("games/games", key.substring(6));
+            try {
+                JSONObject metadata = new JSONObject(FileUtils.readFileAsString(new File(directory, "METADATA")));
+                rulesheet = FileUtils.readFileAsString(new File(directory, metadata.getString("rulesheet")));
+            } catch (Exception e) {
+                throw new IllegalArgumentException("Cannot read the metadata of " + key, e);
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown game key " + key);
+        }
+        if (rulesheet == null) {
+            throw new IllegalArgumentException("Cannot read the rulesheet of " + key);
+        }
+        return Game.createEphemeralGame(Game.preprocessRulesheet(rulesheet)).getRules();
+    }
+
+    private static List<File> listFiles(File directory)
+    {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return Collections.emptyList();
+        }
+        List<File> list = new ArrayList<File>();
+        Collections.addAll(list, files);
+        return list;
+    }
+}
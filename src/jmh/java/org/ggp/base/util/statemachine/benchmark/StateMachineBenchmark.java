@@ -0,0 +1,145 @@
+package org.ggp.base.util.statemachine.benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the throughput of the basic operations of a state machine, and
+ * of full random depth charges, for one game and one implementation.
+ *
+ * The single state operations are run over a fixed sample of states that
+ * were reached by random play, cycling through them so that a cache cannot
+ * answer every call from a single entry but the work is the same for every
+ * implementation. Each game and implementation is set up once per fork;
+ * the game list is normally supplied by {@link StateMachineBenchmarks}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StateMachineBenchmark
+{
+    private static final int NUM_SAMPLED_STATES = 256;
+
+    @Param({"test:ticTacToe"})
+    public String game;
+
+    @Param({"PROVER", "CACHED_PROVER", "PROPNET", "COMPILED_PROPNET"})
+    public String implementation;
+
+    private StateMachine stateMachine;
+    private List<Role> roles;
+    private MachineState initialState;
+    private List<MachineState> states;
+    private List<List<Move>> jointMoves;
+    private List<MachineState> terminalStates;
+    private int next;
+    private int nextTerminal;
+
+    @Setup(Level.Trial)
+    public void setUp() throws TransitionDefinitionException, MoveDefinitionException
+    {
+        stateMachine = BenchmarkGames.Implementation.valueOf(implementation).create();
+        stateMachine.initialize(BenchmarkGames.getRules(game));
+        roles = stateMachine.getRoles();
+        initialState = stateMachine.getInitialState();
+
+        // Sample non-terminal states, each with a legal joint move, and the
+        // terminal states the random games end in.
+        Random random = new Random(0);
+        states = new ArrayList<MachineState>(NUM_SAMPLED_STATES);
+        jointMoves = new ArrayList<List<Move>>(NUM_SAMPLED_STATES);
+        terminalStates = new ArrayList<MachineState>();
+        MachineState state = initialState;
+        while (states.size() < NUM_SAMPLED_STATES) {
+            if (stateMachine.isTerminal(state)) {
+                terminalStates.add(state);
+                state = initialState;
+                continue;
+            }
+            List<List<Move>> legalJointMoves = stateMachine.getLegalJointMoves(state);
+            List<Move> jointMove = legalJointMoves.get(random.nextInt(legalJointMoves.size()));
+            states.add(state);
+            jointMoves.add(jointMove);
+            state = stateMachine.getNextState(state, jointMove);
+        }
+        if (terminalStates.isEmpty()) {
+            terminalStates.add(stateMachine.performDepthCharge(initialState, null));
+        }
+    }
+
+    private int nextIndex()
+    {
+        int index = next;
+        next = (next + 1) % NUM_SAMPLED_STATES;
+        return index;
+    }
+
+    private MachineState nextTerminalState()
+    {
+        nextTerminal = (nextTerminal + 1) % terminalStates.size();
+        return terminalStates.get(nextTerminal);
+    }
+
+    @Benchmark
+    public void getLegalMoves(Blackhole blackhole) throws MoveDefinitionException
+    {
+        MachineState state = states.get(nextIndex());
+        for (Role role : roles) {
+            blackhole.consume(stateMachine.getLegalMoves(state, role));
+        }
+    }
+
+    @Benchmark
+    public MachineState getNextState() throws TransitionDefinitionException
+    {
+        int index = nextIndex();
+        return stateMachine.getNextState(states.get(index), jointMoves.get(index));
+    }
+
+    @Benchmark
+    public boolean isTerminal()
+    {
+        return stateMachine.isTerminal(states.get(nextIndex()));
+    }
+
+    @Benchmark
+    public void getGoal(Blackhole blackhole) throws GoalDefinitionException
+    {
+        MachineState state = nextTerminalState();
+        for (Role role : roles) {
+            blackhole.consume(stateMachine.getGoal(state, role));
+        }
+    }
+
+    @Benchmark
+    public MachineState depthCharge() throws TransitionDefinitionException, MoveDefinitionException
+    {
+        return stateMachine.performDepthCharge(initialState, null);
+    }
+}
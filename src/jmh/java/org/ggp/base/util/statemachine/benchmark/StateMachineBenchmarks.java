@@ -0,0 +1,64 @@
+package org.ggp.base.util.statemachine.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the state machine benchmarks over every bundled game, and writes the
+ * results in JMH's JSON format to build/reports/jmh/results.json, so that
+ * the results of different builds can be compared.
+ *
+ * The arguments are passed on to JMH, so for instance
+ * "-p game=local:connectFour -p implementation=PROVER,COMPILED_PROPNET"
+ * restricts the run to one game and two implementations, and "-rff"
+ * writes the results elsewhere. Games that the prover cannot initialize,
+ * such as the deliberately invalid test games, are left out.
+ */
+public final class StateMachineBenchmarks
+{
+    private static final String DEFAULT_RESULT_FILE = "build/reports/jmh/results.json";
+
+    public static void main(String[] args) throws Exception
+    {
+        CommandLineOptions commandLineOptions = new CommandLineOptions(args);
+        OptionsBuilder options = new OptionsBuilder();
+        options.parent(commandLineOptions);
+
+        if (!commandLineOptions.getParameter("game").hasValue()) {
+            List<String> games = getValidGameKeys();
+            options.param("game", games.toArray(new String[games.size()]));
+        }
+        if (!commandLineOptions.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLineOptions.getResult().hasValue()) {
+            new File(DEFAULT_RESULT_FILE).getParentFile().mkdirs();
+            options.result(DEFAULT_RESULT_FILE);
+        }
+        new Runner(options.build()).run();
+    }
+
+    private static List<String> getValidGameKeys()
+    {
+        List<String> keys = new ArrayList<String>();
+        for (String key : BenchmarkGames.getGameKeys()) {
+            try {
+                StateMachine stateMachine = new ProverStateMachine();
+                stateMachine.initialize(BenchmarkGames.getRules(key));
+                stateMachine.getInitialState();
+                keys.add(key);
+            } catch (Exception e) {
+                System.err.println("Skipping " + key + ", which cannot be initialized: " + e);
+            }
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,56 @@
+package org.ggp.base.util.statemachine.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures how long initialize() takes for one game and one state machine
+ * implementation. Every call initializes a fresh state machine, which is
+ * what a player pays during the metagame, so this runs in single shot mode
+ * rather than averaging over a hot loop.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class StateMachineInitializeBenchmark
+{
+    @Param({"test:ticTacToe"})
+    public String game;
+
+    @Param({"PROVER", "CACHED_PROVER", "PROPNET", "COMPILED_PROPNET"})
+    public String implementation;
+
+    private List<Gdl> rules;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        rules = BenchmarkGames.getRules(game);
+    }
+
+    @Benchmark
+    public StateMachine initialize()
+    {
+        StateMachine stateMachine = BenchmarkGames.Implementation.valueOf(implementation).create();
+        stateMachine.initialize(rules);
+        return stateMachine;
+    }
+}
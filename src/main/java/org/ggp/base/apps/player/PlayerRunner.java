@@ -1,5 +1,6 @@
 package org.ggp.base.apps.player;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -7,6 +8,7 @@ import java.util.List;
 
 import org.ggp.base.player.GamePlayer;
 import org.ggp.base.player.gamer.Gamer;
+import org.ggp.base.util.propnet.factory.PropNetCache;
 import org.ggp.base.util.reflection.ProjectSearcher;
 
 /**
@@ -38,6 +40,8 @@ public final class PlayerRunner
             System.out.println("Could not find player class with that name. Available choices are: " + Arrays.toString(availableGamers.toArray()));
             return;
         }
+        // Keep built propnets across matches, in the working directory
+        PropNetCache.setDefaultDirectory(new File("propnets"));
         Gamer gamer = (Gamer) chosenGamerClass.newInstance();
         new GamePlayer(port, gamer).start();
     }
@@ -0,0 +1,53 @@
+package org.ggp.base.apps.player.config;
+
+import java.awt.GridBagConstraints;
+import java.awt.GridBagLayout;
+import java.awt.Insets;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+import javax.swing.JComboBox;
+import javax.swing.JLabel;
+
+import org.ggp.base.player.gamer.statemachine.sample.MCTSGamer;
+import org.ggp.base.player.gamer.statemachine.sample.MCTSPlayoutPolicy;
+import org.ggp.base.player.gamer.statemachine.sample.MCTSSelectionPolicy;
+
+/**
+ * Lets the selection and playout policies of an {@link MCTSGamer} be chosen.
+ * A change takes effect from the next match the gamer starts.
+ */
+@SuppressWarnings("serial")
+public final class MCTSConfigPanel extends ConfigPanel
+{
+    private final JComboBox<MCTSSelectionPolicy.Type> selectionPolicyBox;
+    private final JComboBox<MCTSPlayoutPolicy.Type> playoutPolicyBox;
+
+    public MCTSConfigPanel(final MCTSGamer gamer)
+    {
+        super(new GridBagLayout());
+
+        selectionPolicyBox = new JComboBox<MCTSSelectionPolicy.Type>(MCTSSelectionPolicy.Type.values());
+        selectionPolicyBox.setSelectedItem(gamer.getSelectionPolicy());
+        selectionPolicyBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                gamer.setSelectionPolicy((MCTSSelectionPolicy.Type) selectionPolicyBox.getSelectedItem());
+            }
+        });
+
+        playoutPolicyBox = new JComboBox<MCTSPlayoutPolicy.Type>(MCTSPlayoutPolicy.Type.values());
+        playoutPolicyBox.setSelectedItem(gamer.getPlayoutPolicy());
+        playoutPolicyBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                gamer.setPlayoutPolicy((MCTSPlayoutPolicy.Type) playoutPolicyBox.getSelectedItem());
+            }
+        });
+
+        this.add(new JLabel("Selection policy:"), new GridBagConstraints(0, 0, 1, 1, 0.0, 0.0, GridBagConstraints.EAST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 5, 5));
+        this.add(selectionPolicyBox, new GridBagConstraints(1, 0, 1, 1, 1.0, 0.0, GridBagConstraints.WEST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 5, 5));
+        this.add(new JLabel("Playout policy:"), new GridBagConstraints(0, 1, 1, 1, 0.0, 1.0, GridBagConstraints.NORTHEAST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 5, 5));
+        this.add(playoutPolicyBox, new GridBagConstraints(1, 1, 1, 1, 1.0, 1.0, GridBagConstraints.NORTHWEST, GridBagConstraints.NONE, new Insets(5, 5, 5, 5), 5, 5));
+    }
+}
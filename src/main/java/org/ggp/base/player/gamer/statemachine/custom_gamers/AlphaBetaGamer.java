@@ -8,13 +8,17 @@ import java.util.Random;
 import java.lang.Math;
 
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.util.statemachine.JointMoveIds;
 import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
 
 /**
  * AlphaBetaGamer implements minimax with alpha-beta pruning
@@ -24,6 +28,14 @@ public final class AlphaBetaGamer extends SampleGamer
 
     int upperThreshold = 100;
     int lowerThreshold = 0;
+    List<JointMoveIds> legalMoveIds = new ArrayList<JointMoveIds>(); // one per search depth
+
+    // The compiled propnet bounds goals by its latches, which lets the search cut off early
+    @Override
+    public StateMachine getInitialStateMachine() {
+        return new CachedStateMachine(new CompiledPropNetStateMachine());
+    }
+
     /**
      * This function is called at the start of each round
      * You are required to return the Move your player will play
@@ -52,42 +64,49 @@ public final class AlphaBetaGamer extends SampleGamer
     // Returns the best move for the supplied role given a set of possible moves
     private Move bestMove(Role role, MachineState state) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException 
     {
-        List<Move> moves = getStateMachine().findLegals(role, state);
-        Move best = moves.get(0);
+        StateMachine machine = getStateMachine();
+        int roleIndex = machine.getRoleIndices().get(role);
+        JointMoveIds legal = getLegalMoveIds(0);
+        machine.getLegalMoveIds(state, legal);
+        int best = legal.getMoveId(roleIndex, 0);
         int score = 0;
         //int alpha = lowerThreshold;
         int alpha = -upperThreshold;
         int beta = upperThreshold + 1;
 
-        for(int i = 0; i < moves.size(); i++) {
-            int result = minScore(role, moves.get(i), state, alpha, beta);
-            if(result == upperThreshold) return moves.get(i);
+        for(int i = 0; i < legal.getNumMoves(roleIndex); i++) {
+            int move = legal.getMoveId(roleIndex, i);
+            int result = minScore(role, roleIndex, move, state, legal, 0, alpha, beta);
+            if(result == upperThreshold) return machine.getMoveFromId(roleIndex, move);
             if(result > score) {
                 score = result;
-                best = moves.get(i);
+                best = move;
             }
         }
-        return best;
+        return machine.getMoveFromId(roleIndex, best);
     }
 
-    private int minScore(Role role, Move move, MachineState state, int alpha, int beta) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
-    {   
-        int myIndex = -1;
-        List<Role> opponents = getStateMachine().findRoles();
-        for(int i = 0; i < opponents.size(); i++) {
-            if(role.equals(opponents.get(i))) {
-                myIndex = i;
-            }
+    // Returns the legal moves buffer of the given search depth, so that the
+    // joint moves of a state are gone through without allocating any
+    private JointMoveIds getLegalMoveIds(int depth)
+    {
+        int numRoles = getStateMachine().getRoles().size();
+        if(!legalMoveIds.isEmpty() && legalMoveIds.get(0).getNumRoles() != numRoles) {
+            legalMoveIds.clear(); // left over from a match of another game
         }
+        while(legalMoveIds.size() <= depth) {
+            legalMoveIds.add(new JointMoveIds(numRoles));
+        }
+        return legalMoveIds.get(depth);
+    }
 
-        List<List<Move>> allMoveCombos = getStateMachine().getLegalJointMoves(state, role, move);
-
-        //System.out.println(allMoveCombos);
+    private int minScore(Role role, int roleIndex, int move, MachineState state, JointMoveIds legal, int depth, int alpha, int beta) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {   
         // decide best future state given all move combinations
-        for(int i = 0; i < allMoveCombos.size(); i++) {
-            MachineState candidateState = getStateMachine().findNext(allMoveCombos.get(i), state);
+        for(legal.reset(roleIndex, move); legal.next(); ) {
+            MachineState candidateState = getStateMachine().getNextState(state, legal.getJointMove());
             //pick highest candidateState
-            int result = maxScore(role, candidateState, alpha, beta);
+            int result = maxScore(role, roleIndex, candidateState, depth + 1, alpha, beta);
             beta = Math.min(beta, result);
             if(beta <= alpha) {
                 return alpha;
@@ -96,17 +115,30 @@ public final class AlphaBetaGamer extends SampleGamer
         return beta;
     }
 
-    private int maxScore(Role role, MachineState state, int alpha, int beta) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    private int maxScore(Role role, int roleIndex, MachineState state, int depth, int alpha, int beta) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
     {
         if(getStateMachine().findTerminalp(state)) {
             return getStateMachine().findReward(role, state);
         }
 
-        List<Move> moves = 
-            getStateMachine().findLegals(role, state);
+        // Stop early if the latched parts of the state already decide the
+        // outcome, or keep it out of the alpha-beta window
+        int[] bounds = getStateMachine().getGoalBounds(state, role);
+        if(bounds[0] == bounds[1]) {
+            return bounds[0];
+        }
+        if(bounds[1] <= alpha) {
+            return alpha;
+        }
+        if(bounds[0] >= beta) {
+            return beta;
+        }
+
+        JointMoveIds legal = getLegalMoveIds(depth);
+        getStateMachine().getLegalMoveIds(state, legal);
 
-        for(int i = 0; i < moves.size(); i++) {
-            int result = minScore(role, moves.get(i), state, alpha, beta);
+        for(int i = 0; i < legal.getNumMoves(roleIndex); i++) {
+            int result = minScore(role, roleIndex, legal.getMoveId(roleIndex, i), state, legal, depth, alpha, beta);
             alpha = Math.max(alpha, result);
             if(alpha >= beta) {
                 return beta;
@@ -17,7 +17,10 @@ import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.MachineState;
 
 /**
- * AlphaBetaGamer implements minimax with alpha-beta pruning
+ * BoundedDepthGamer implements minimax with alpha-beta pruning down to
+ * maxDepth, and scores the states it cuts off at with a static heuristic
+ * (see evalFn) rather than with depth charges. Unlike MCSGamer it has no
+ * Monte Carlo leaf evaluations, so it does not use a RolloutPool.
  */
 public final class BoundedDepthGamer extends SampleGamer
 {
@@ -0,0 +1,142 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.PropNetFactorization;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FactorStateMachine;
+
+/**
+ * FactoredMCSGamer is a Monte Carlo search gamer that searches each factor
+ * of the game separately, with a {@link FactorStateMachine} per factor.
+ * Depth charges from a move only play moves of its own factor, so a game
+ * that is a sum of smaller games is searched with the branching factor of
+ * its largest subgame instead of their product. The move choices of the
+ * factors are combined by playing the move with the best average score,
+ * whatever its factor. A game with a single factor is searched as a whole.
+ * A factor may not be able to end the game by itself, so its depth charges
+ * are cut off after a fixed number of moves, and scored with the goals that
+ * the whole game gives in the state they reached.
+ */
+public final class FactoredMCSGamer extends SampleGamer
+{
+    // Time kept aside to return the move before the timeout
+    long timeoutMargin = 1000;
+    // Moves after which a depth charge is cut off
+    int maxPlayOutDepth = 500;
+
+    CompiledPropNetStateMachine propNetStateMachine = null;
+    PropNetFactorization factorization = null;
+    List<FactorStateMachine> factorMachines = null;
+
+    @Override
+    public StateMachine getInitialStateMachine() {
+        propNetStateMachine = new CompiledPropNetStateMachine();
+        return new CachedStateMachine(propNetStateMachine);
+    }
+
+    @Override
+    public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        long start = System.currentTimeMillis();
+        factorization = new PropNetFactorization(propNetStateMachine.getCompiledPropNet());
+        factorMachines = FactorStateMachine.forEachFactor(factorization);
+        GamerLogger.log("GamePlayer", "Found " + factorization + " in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public Move stateMachineSelectMove(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        long start = System.currentTimeMillis();
+
+        List<Move> moves = getStateMachine().findLegals(getRole(), getCurrentState());
+
+        Move selection = moves.get(0);
+
+        //only do search if there is more than one move to choose from
+        if (moves.size() > 1)
+            selection = bestMove(getRole(), getCurrentState(), moves, timeout - timeoutMargin);
+
+        long stop = System.currentTimeMillis();
+
+        notifyObservers(new GamerSelectedMoveEvent(moves, selection, stop - start));
+        return selection;
+    }
+
+    // Plays depth charges from each move in the machine of its factor, round
+    // robin until the deadline, and returns the move with the best average
+    private Move bestMove(Role role, MachineState state, List<Move> moves, long deadline) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        int roleIndex = getStateMachine().getRoleIndices().get(role);
+        StateMachine[] machines = new StateMachine[moves.size()];
+        for (int i = 0; i < moves.size(); i++) {
+            // a move that changes nothing is played out in the whole game
+            int factor = factorization.getFactorOfMove(roleIndex, moves.get(i));
+            machines[i] = (factor < 0) ? getStateMachine() : factorMachines.get(factor);
+        }
+
+        long[] totals = new long[moves.size()];
+        int[] counts = new int[moves.size()];
+        do {
+            for (int i = 0; i < moves.size(); i++) {
+                StateMachine machine = machines[i];
+                List<Move> jointMove = machine.getRandomJointMove(state, role, moves.get(i));
+                MachineState next = machine.getNextState(state, jointMove);
+                List<Integer> goals = playOut(machine, next);
+                totals[i] += goals.get(roleIndex);
+                counts[i]++;
+            }
+        } while (System.currentTimeMillis() < deadline);
+
+        int best = 0;
+        for (int i = 1; i < moves.size(); i++) {
+            if (counts[i] > 0 && (counts[best] == 0 || totals[i] * counts[best] > totals[best] * counts[i])) {
+                best = i;
+            }
+        }
+        return moves.get(best);
+    }
+
+    // Plays random moves to a terminal state and returns its goals, or scores
+    // the state it reached after maxPlayOutDepth moves, since a factor may
+    // never reach one
+    private List<Integer> playOut(StateMachine machine, MachineState state) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        List<Integer> goals;
+        for (int depth = 0; (goals = machine.getGoalsIfTerminal(state)) == null; depth++) {
+            if (depth == maxPlayOutDepth) {
+                return scoreCutOff(state);
+            }
+            state = machine.getNextState(state, machine.getRandomJointMove(state));
+        }
+        return goals;
+    }
+
+    // Returns the goals that the whole game gives in a state that is not
+    // terminal, or the middle of its goal bounds for a role without one
+    private List<Integer> scoreCutOff(MachineState state)
+    {
+        StateMachine machine = getStateMachine();
+        List<Integer> goals = new ArrayList<Integer>();
+        for (Role role : machine.getRoles()) {
+            try {
+                goals.add(machine.getGoal(state, role));
+            } catch (GoalDefinitionException e) {
+                int[] bounds = machine.getGoalBounds(state, role);
+                goals.add((bounds[0] + bounds[1]) / 2);
+            }
+        }
+        return goals;
+    }
+}
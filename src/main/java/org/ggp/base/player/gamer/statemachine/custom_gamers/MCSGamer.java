@@ -15,6 +15,11 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.rollout.BitParallelRollouts;
+import org.ggp.base.util.statemachine.rollout.RolloutPool;
 
 /**
  * MCSGamer
@@ -24,12 +29,51 @@ public final class MCSGamer extends SampleGamer
 
     // Hyperparameters - change based on gameplay
     int maxLevels = 1;
-    int nProbes = 2;
+    // A batch of bit-parallel depth charges costs about as much as two single ones
+    int nProbes = BitParallelRollouts.NUM_LANES;
 
     //Constants
     int upperThreshold = 100;
     int lowerThreshold = 0;
 
+    // Depth charges run on a pool of workers, each with its own state machine
+    CompiledPropNetStateMachine propNetStateMachine = null;
+    RolloutPool rolloutPool = null;
+
+    @Override
+    public StateMachine getInitialStateMachine() {
+        propNetStateMachine = new CompiledPropNetStateMachine();
+        return new CachedStateMachine(propNetStateMachine);
+    }
+
+    @Override
+    public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        shutdownRolloutPool();
+        List<StateMachine> workerStateMachines = new ArrayList<StateMachine>();
+        for (int i = 0; i < Runtime.getRuntime().availableProcessors(); i++) {
+            workerStateMachines.add(new CompiledPropNetStateMachine(propNetStateMachine.getCompiledPropNet()));
+        }
+        rolloutPool = new RolloutPool(workerStateMachines);
+    }
+
+    @Override
+    public void stateMachineStop() {
+        shutdownRolloutPool();
+    }
+
+    @Override
+    public void stateMachineAbort() {
+        shutdownRolloutPool();
+    }
+
+    private void shutdownRolloutPool() {
+        if (rolloutPool != null) {
+            rolloutPool.shutdown();
+            rolloutPool = null;
+        }
+    }
+
     /*
      * This function is called at the start of each round
      * You are required to return the Move your player will play
@@ -118,29 +162,11 @@ public final class MCSGamer extends SampleGamer
 
     private double monteCarlo(Role role, MachineState state) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
     {
-        double totalScore = 0;
-        for (int i = 0; i < nProbes; i++) {
-            totalScore += depthCharge(role, state);
+        try {
+            return rolloutPool.rollout(state, nProbes).getAverageScore(getStateMachine().getRoleIndices().get(role));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return 0;
         }
-        return totalScore / nProbes;
-    }
-
-    private int depthCharge(Role role, MachineState state) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
-    {
-        if(getStateMachine().findTerminalp(state)) {
-            return getStateMachine().findReward(role, state);
-        }
-
-        List<Role> roles = getStateMachine().getRoles();
-        ArrayList<Move> randomMoves = new ArrayList<Move>(roles.size());
-        for (int i = 0; i < roles.size(); i++) {
-            List<Move> moves = getStateMachine().findLegals(roles.get(i), state);
-            int randIndex = new Random().nextInt(moves.size());
-            Move randomMove = moves.get(randIndex);
-            randomMoves.add(randomMove);
-        }
-
-        MachineState newState = getStateMachine().getNextState(state, randomMoves);
-        return depthCharge(role, newState);
     }
 }
\ No newline at end of file
@@ -1,15 +1,18 @@
 package org.ggp.base.player.gamer.statemachine.sample;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.List;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
 import java.lang.Math;
 
+import org.ggp.base.apps.player.config.ConfigPanel;
+import org.ggp.base.apps.player.config.MCTSConfigPanel;
 import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.JointMoveIds;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
 import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
@@ -18,65 +21,42 @@ import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
 import org.ggp.base.util.statemachine.Role;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine.PropagationMode;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetMachineState;
+import org.ggp.base.util.statemachine.rollout.BitParallelRollouts;
 
 /**
  * MCTSGamer
+ *
+ * The search graph lives in an {@link MCTSNodePool} of fixed capacity.
+ * Nodes are shared between all paths that reach the same state, so the
+ * graph is a DAG rather than a tree, and every simulation backpropagates
+ * along the path it actually selected. When the root advances, everything
+ * no longer reachable from it is reclaimed; when the pool runs short during
+ * a search, the least visited leaves are pruned.
+ *
+ * How children are selected and how playouts pick their moves is left to an
+ * {@link MCTSSelectionPolicy} and an {@link MCTSPlayoutPolicy}, which can be
+ * chosen per match through the config panel. After every move the number of
+ * simulations per second is logged together with the policies, and with the
+ * share of the time spent in playouts, so that the cost of a policy can be
+ * weighed against the quality of the moves it finds.
+ *
+ * Random playouts that record nothing are played 64 at a time by the
+ * {@link BitParallelRollouts} of the propnet, from the same leaf, and every
+ * one of them is backpropagated; a batch costs about as much as a couple
+ * of single playouts.
  */
 public final class MCTSGamer extends SampleGamer
 {
-    class TreeNode {
-        private MachineState state;
-        private List<TreeNode> children;
-        private int visits;
-        private TreeNode parent;
-        private double totalUtility;
-        private boolean ourTurn;
-
-        // constructor
-        public TreeNode(MachineState state, TreeNode parent) {
-          this.state = state;
-          this.visits = 0;
-          this.totalUtility = 0.0;
-          this.children = new ArrayList<TreeNode>();
-          this.parent = parent;
-        }
-
-        // getter
-        public MachineState getState() { return state; }
-        public List<TreeNode> getChildren() { return children; }
-        public TreeNode getParent() { return parent; }
-        public int getVisits() { return visits; }
-        public double getUtility() {
-            if (visits == 0) return 0;
-            return totalUtility / visits; 
-        }
-        public boolean getOurTurn() { return ourTurn; }
-
-        // setter
-        public void incrementVisits() { this.visits++; }
-        public void incrementUtility(double val) { this.totalUtility += val; }
-        public void setParent(TreeNode parent) {this.parent = parent; }
-        public void addChild(TreeNode child) { 
-            this.children.add(child); 
-        }
-        public void setOurTurn(boolean ourTurn) { this.ourTurn = ourTurn; }
-
-        // overrides 
-        @Override
-        public boolean equals(Object object) {
-            return this.state.equals(((TreeNode)object).getState());
-        }
-        @Override
-        public int hashCode() {
-            return this.state.hashCode();
-        }
-    }
-
     // Constants
     int upperThreshold = 100;
     int lowerThreshold = 0;
     long minPlayTimeLeft = PREFERRED_PLAY_BUFFER;
     long minMetagameTimeLeft = PREFERRED_METAGAME_BUFFER;
+    int nodePoolCapacity = 500000;
+    int edgePoolCapacity = 4 * nodePoolCapacity;
 
     // Game Type Enum - allows for special-casing, which good player like Sancho do
     public enum GameType {
@@ -95,8 +75,75 @@ public final class MCTSGamer extends SampleGamer
     List<Role> roles = null;
     int numRoles = 0;
     GameType gameType; // describes type of game
-    TreeNode currRootNode = null; 
+    int currRootNode = MCTSNodePool.NONE;
     int ourTurnIndex = -1;
+    MCTSNodePool nodePool = null;
+    int[] path = new int[64]; // nodes selected by the current simulation
+    int[] pathEdges = new int[64]; // edges from each node of path to the next
+    int[] pathGenerations = null; // by node, the generation of the last path it was put on
+    int pathGeneration = 0; // generation of the current path
+
+    // Policies - the types may be changed at any time, and are applied when a match starts
+    volatile MCTSSelectionPolicy.Type selectionPolicyType;
+    volatile MCTSPlayoutPolicy.Type playoutPolicyType;
+    MCTSSelectionPolicy selectionPolicy = null;
+    MCTSPlayoutPolicy playoutPolicy = null;
+    MCTSMoveTable moveTable = null;
+    Random random = new Random();
+    int[] playoutMoveIds = new int[256]; // move ids of the current playout, numRoles per step
+    int[] jointMoveIds = new int[256]; // scratch space for expansion
+    JointMoveIds legalMoveIds = null; // legal moves of the node being expanded
+    List<MachineState> childStates = new ArrayList<MachineState>(); // children of the node being expanded
+    BitParallelRollouts rollouts = null; // null unless the state machine is a compiled propnet
+    int[][] laneGoals = null; // goals of each playout of a batch
+    int[] playoutGoals = null; // goals of a playout that is not batched
+    int[] laneDepths = new int[BitParallelRollouts.NUM_LANES];
+    long playoutNanos = 0;
+
+    public MCTSGamer()
+    {
+        this(MCTSSelectionPolicy.Type.UCB1, MCTSPlayoutPolicy.Type.RANDOM);
+    }
+
+    public MCTSGamer(MCTSSelectionPolicy.Type selectionPolicyType, MCTSPlayoutPolicy.Type playoutPolicyType)
+    {
+        this.selectionPolicyType = selectionPolicyType;
+        this.playoutPolicyType = playoutPolicyType;
+    }
+
+    public MCTSSelectionPolicy.Type getSelectionPolicy()
+    {
+        return selectionPolicyType;
+    }
+
+    public void setSelectionPolicy(MCTSSelectionPolicy.Type selectionPolicyType)
+    {
+        this.selectionPolicyType = selectionPolicyType;
+    }
+
+    public MCTSPlayoutPolicy.Type getPlayoutPolicy()
+    {
+        return playoutPolicyType;
+    }
+
+    public void setPlayoutPolicy(MCTSPlayoutPolicy.Type playoutPolicyType)
+    {
+        this.playoutPolicyType = playoutPolicyType;
+    }
+
+    @Override
+    public ConfigPanel getConfigPanel()
+    {
+        return new MCTSConfigPanel(this);
+    }
+
+    // The node pool already shares work between transpositions, so the
+    // state machine is not wrapped in a cache, which would only fill up
+    // with the states of rollouts.
+    @Override
+    public StateMachine getInitialStateMachine() {
+        return new CompiledPropNetStateMachine(PropagationMode.DIFFERENTIAL);
+    }
 
     @Override
     public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
@@ -117,14 +164,26 @@ public final class MCTSGamer extends SampleGamer
             }
         }
 
+        // set up the policies chosen for this match
+        moveTable = new MCTSMoveTable(sharedStateMachine);
+        legalMoveIds = new JointMoveIds(numRoles);
+        rollouts = (sharedStateMachine instanceof CompiledPropNetStateMachine)
+                ? ((CompiledPropNetStateMachine) sharedStateMachine).getBitParallelRollouts() : null;
+        laneGoals = new int[BitParallelRollouts.NUM_LANES][numRoles];
+        playoutGoals = new int[numRoles];
+        selectionPolicy = MCTSSelectionPolicy.create(selectionPolicyType);
+        playoutPolicy = MCTSPlayoutPolicy.create(playoutPolicyType, moveTable);
+
         // get initial state
         MachineState initialState = sharedStateMachine.findInits();
-        currRootNode = new TreeNode(initialState, null);
+        nodePool = new MCTSNodePool(nodePoolCapacity, edgePoolCapacity, numRoles);
+        pathGenerations = new int[nodePoolCapacity];
+        currRootNode = nodePool.allocateNode(initialState, stateHash(initialState), sharedStateMachine.findTerminalp(initialState), true);
 
         // set game type
         if (numRoles == 1) {
             gameType = GameType.SINGLE_PLAYER_GAME;
-            currRootNode.setOurTurn(true); // one player case, always 0
+            nodePool.setOurTurn(currRootNode, true); // one player case, always 0
         } else if (numRoles == 2) {
             int otherIndex = 1;
             if (ourTurnIndex == 1) {
@@ -133,23 +192,23 @@ public final class MCTSGamer extends SampleGamer
             List<Move> randomJointMove = sharedStateMachine.getRandomJointMove(initialState);
             if (randomJointMove.get(ourTurnIndex).toString().equals("noop") && !randomJointMove.get(otherIndex).toString().equals("noop")) {
                 gameType = GameType.TWO_PLAYER_ALTERNATING_GAME;
-                currRootNode.setOurTurn(false);
+                nodePool.setOurTurn(currRootNode, false);
             } else if (!randomJointMove.get(ourTurnIndex).toString().equals("noop") && randomJointMove.get(otherIndex).toString().equals("noop")) {
                 gameType = GameType.TWO_PLAYER_ALTERNATING_GAME;
-                currRootNode.setOurTurn(true);
+                nodePool.setOurTurn(currRootNode, true);
             }  else {
                 gameType = GameType.TWO_PLAYER_SIMULTANEOUS_GAME;
-                currRootNode.setOurTurn(true);
+                nodePool.setOurTurn(currRootNode, true);
             }
         } else {
             gameType = GameType.MULTI_PLAYER_GAME;
             List<Move> randomJointMove = sharedStateMachine.getRandomJointMove(initialState);
-            currRootNode.setOurTurn(!randomJointMove.get(ourTurnIndex).toString().equals("noop"));
+            nodePool.setOurTurn(currRootNode, !randomJointMove.get(ourTurnIndex).toString().equals("noop"));
         }
         // expand MCTS tree if we still have time
         int numSimulations = 0;
         while (System.currentTimeMillis() < metagameStopTime) {
-            MCTS(currRootNode, metagameStopTime);
+            MCTS(currRootNode);
             numSimulations++;
         }
         System.out.println("Metagame simulations completed: " + numSimulations);
@@ -165,16 +224,17 @@ public final class MCTSGamer extends SampleGamer
         List<Move> moves = sharedStateMachine.findLegals(getRole(), currState);
         Move selection = moves.get(0);
 
-        // currRootNode will be a child of currRootnode whose state is equal to current state
-        if (!currState.equals(sharedStateMachine.findInits())) {
-            for (TreeNode child : currRootNode.getChildren()) {
-                if (child.getState().equals(currState)) {
-                    currRootNode = child;
-                    currRootNode.setParent(null);
-                    break;
-                }
-            }
+        // currRootNode becomes the node for the current state, reusing its statistics if it was searched,
+        // and everything that can no longer be reached from it is reclaimed
+        nodePool.resetStatistics();
+        playoutNanos = 0;
+        currRootNode = getOrCreateNode(currState);
+        if (currRootNode == MCTSNodePool.NONE) {
+            nodePool.clear();
+            currRootNode = getOrCreateNode(currState);
         }
+        nodePool.retainReachableFrom(currRootNode);
+        long numReclaimed = nodePool.getNumReclaimed();
 
         Map<MachineState, Move> jointMoveMap = new HashMap<MachineState, Move>();
         List<List<Move>> jointMoves = sharedStateMachine.getLegalJointMoves(currState);
@@ -183,23 +243,25 @@ public final class MCTSGamer extends SampleGamer
             jointMoveMap.put(nextState, jointMove.get(ourTurnIndex));
         }
 
-        TreeNode bestChild = null;
         int numDepthCharges = 0;
         while (System.currentTimeMillis() < stopTime) {
-            TreeNode tempBestChild = MCTS(currRootNode, stopTime);
-            if (tempBestChild != null) {
-                numDepthCharges++;
-                bestChild = tempBestChild;
-            } else {
-                break;
-            }
+            MCTS(currRootNode);
+            numDepthCharges++;
         }
+        long searchTime = Math.max(1, System.currentTimeMillis() - start);
         System.out.println("Simulations completed: " + numDepthCharges);
-        System.out.println("Expected utility: " + currRootNode.getUtility());
-
-        if (bestChild != null) {
-            List<MachineState> nextStates = sharedStateMachine.getNextStates(currRootNode.getState());
-            selection = jointMoveMap.get(bestChild.getState());
+        System.out.println("Expected utility: " + nodePool.getUtility(currRootNode));
+        GamerLogger.log("GamePlayer", String.format("%s/%s: %d simulations (%d/s), %.1f%% of the time in playouts",
+                selectionPolicy.getType(), playoutPolicy.getType(), numDepthCharges, 1000L * numDepthCharges / searchTime,
+                playoutNanos / (searchTime * 10000.0)));
+        GamerLogger.log("GamePlayer", String.format("Node pool: %.1f%% hit rate, %.1f%% occupied, %d of %d nodes and %d of %d edges in use, %d reclaimed, %d pruned",
+                100 * nodePool.getHitRate(), 100 * nodePool.getOccupancy(),
+                nodePool.getNumNodes(), nodePool.getNodeCapacity(), nodePool.getNumEdges(), nodePool.getEdgeCapacity(),
+                numReclaimed, nodePool.getNumPruned()));
+
+        int bestChild = bestChild(currRootNode);
+        if (bestChild != MCTSNodePool.NONE) {
+            selection = jointMoveMap.get(nodePool.getState(bestChild));
         }
 
         long stop = System.currentTimeMillis();
@@ -207,121 +269,255 @@ public final class MCTSGamer extends SampleGamer
         return selection;
     }
 
-    // returns the best next node from the current node 
-    private TreeNode MCTS(TreeNode node, long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    // returns the child of node with the best utility, or NONE if it has no children yet
+    private int bestChild(int node)
     {
-        TreeNode selectedNode = selection(node);
-
-        TreeNode expandedNode = expansion(selectedNode);
-
-        if (expandedNode != null) {
-            performSimulation(selectedNode);
-            int bestUtility = -1;
-            TreeNode bestChild = null;
-            for (int i = 0; i < node.getChildren().size(); i++) {
-                if (node.getChildren().get(i).getUtility() > bestUtility) {
-                    bestChild = node.getChildren().get(i);
-                    bestUtility = (int)(node.getChildren().get(i).getUtility());
-                }
+        int bestChild = MCTSNodePool.NONE;
+        double bestUtility = -1;
+        for (int e = nodePool.getFirstEdge(node); e != MCTSNodePool.NONE; e = nodePool.getNextEdge(e)) {
+            int child = nodePool.getEdgeChild(e);
+            if (child != MCTSNodePool.NONE && nodePool.getUtility(child) > bestUtility) {
+                bestChild = child;
+                bestUtility = nodePool.getUtility(child);
             }
-            return bestChild;
         }
+        return bestChild;
+    }
 
-        System.out.println("Error completing MCTS, returning null");
-        return null;
+    // runs one simulation from the root
+    private void MCTS(int root) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        ensureCapacity(root);
+        int depth = selection(root);
+        performSimulation(path[depth - 1], depth);
     }
 
-    private TreeNode selection(TreeNode node) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    // prunes the least visited leaves if the pool is running short
+    private void ensureCapacity(int root)
     {
-        if (node.getVisits() == 0 || sharedStateMachine.findTerminalp(node.getState())) {
-            return node;
+        if (nodePool.getNumFreeNodes() < nodePool.getNodeCapacity() / 100 + 1
+                || nodePool.getNumFreeEdges() < nodePool.getEdgeCapacity() / 20 + 1) {
+            nodePool.pruneLeaves(root, nodePool.getNodeCapacity() / 10 + 1);
         }
+    }
 
-        for (int i = 0; i < node.getChildren().size(); i++) {
-            if (node.getChildren().get(i).getVisits() == 0) {
-                return node.getChildren().get(i);
+    // fills path from node down to the node to simulate from, and returns its length;
+    // since transpositions share nodes, a repeated state closes a cycle, so the path
+    // stops before a node that is already on it
+    private int selection(int node) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        if (++pathGeneration == 0) {
+            Arrays.fill(pathGenerations, 0);
+            pathGeneration = 1;
+        }
+        int depth = 0;
+        path[depth++] = node;
+        pathGenerations[node] = pathGeneration;
+        while (nodePool.getVisits(node) > 0 && !nodePool.isTerminal(node)) {
+            if (!expansion(node)) {
+                break;
+            }
+            int edge = selectEdge(node);
+            if (edge == MCTSNodePool.NONE || pathGenerations[nodePool.getEdgeChild(edge)] == pathGeneration) {
+                break;
             }
+            if (depth == path.length) {
+                int[] longerPath = new int[2 * path.length];
+                System.arraycopy(path, 0, longerPath, 0, path.length);
+                path = longerPath;
+                int[] longerPathEdges = new int[2 * pathEdges.length];
+                System.arraycopy(pathEdges, 0, longerPathEdges, 0, pathEdges.length);
+                pathEdges = longerPathEdges;
+            }
+            pathEdges[depth - 1] = edge;
+            node = nodePool.getEdgeChild(edge);
+            path[depth++] = node;
+            pathGenerations[node] = pathGeneration;
         }
+        return depth;
+    }
 
-        TreeNode selectedNode = node;
-        int maxScore = Integer.MIN_VALUE;
-        int minScore = Integer.MAX_VALUE;
-        for (int i = 0; i < node.getChildren().size(); i++) {
-            int score = (int) selectfn(node.getChildren().get(i));
-            if (gameType == GameType.SINGLE_PLAYER_GAME 
-                || gameType == GameType.TWO_PLAYER_SIMULTANEOUS_GAME) {
-                if (score > maxScore) {
-                    maxScore = score;
-                    selectedNode = node.getChildren().get(i);
-                }
-            } else if (gameType == GameType.TWO_PLAYER_ALTERNATING_GAME || gameType == GameType.MULTI_PLAYER_GAME) {
-                if (node.getOurTurn()) {
-                    if (score > maxScore) {
-                        maxScore = score;
-                        selectedNode = node.getChildren().get(i);
-                    }
-                } else {
-                    if (score < minScore) {
-                        minScore = score;
-                        selectedNode = node.getChildren().get(i);
-                    }
+    // returns the edge to descend through, or NONE if the pool has no room for its child
+    private int selectEdge(int node) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        for (int e = nodePool.getFirstEdge(node); e != MCTSNodePool.NONE; e = nodePool.getNextEdge(e)) {
+            int child = nodePool.getEdgeChild(e);
+            if (child == MCTSNodePool.NONE) {
+                child = getOrCreateNode(nodePool.getEdgeState(e));
+                if (child == MCTSNodePool.NONE) {
+                    return MCTSNodePool.NONE;
                 }
+                nodePool.setEdgeChild(e, child);
+            }
+            if (nodePool.getVisits(child) == 0) {
+                return e;
             }
         }
-        return selection(selectedNode);
+
+        // in alternating and multi player games, the opponents minimize our score when they move
+        boolean maximizing = nodePool.isOurTurn(node)
+                || gameType == GameType.SINGLE_PLAYER_GAME
+                || gameType == GameType.TWO_PLAYER_SIMULTANEOUS_GAME;
+        int selectedEdge = nodePool.getFirstEdge(node);
+        double maxValue = Double.NEGATIVE_INFINITY;
+        for (int e = nodePool.getFirstEdge(node); e != MCTSNodePool.NONE; e = nodePool.getNextEdge(e)) {
+            double value = selectionPolicy.evaluate(nodePool, node, e, nodePool.getEdgeChild(e), maximizing);
+            if (value > maxValue) {
+                maxValue = value;
+                selectedEdge = e;
+            }
+        }
+        return selectedEdge;
     }
 
-    private double selectfn(TreeNode node) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    // expands node if needed, and returns whether it has its children
+    private boolean expansion(int node) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
     {
-        return node.getUtility() + Math.sqrt(2 * Math.log(node.getParent().getVisits()/node.getVisits()));
+        if (nodePool.isExpanded(node)) {
+            return true;
+        }
+        // joint moves are gone through as move ids, without building Move lists
+        MachineState state = nodePool.getState(node);
+        sharedStateMachine.getLegalMoveIds(state, legalMoveIds);
+        int numJointMoves = legalMoveIds.getNumJointMoves();
+        if (jointMoveIds.length < numJointMoves * numRoles) {
+            jointMoveIds = new int[2 * numJointMoves * numRoles];
+        }
+        childStates.clear();
+        for (legalMoveIds.reset(); legalMoveIds.next(); ) {
+            int[] jointMove = legalMoveIds.getJointMove();
+            System.arraycopy(jointMove, 0, jointMoveIds, childStates.size() * numRoles, numRoles);
+            childStates.add(sharedStateMachine.getNextState(state, jointMove));
+        }
+        return nodePool.expand(node, childStates, jointMoveIds);
     }
 
-    private TreeNode expansion(TreeNode node) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    // looks up the node for a state, creating it if it is missing; NONE if the pool is full
+    private int getOrCreateNode(MachineState state) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
     {
-        if (sharedStateMachine.findTerminalp(node.getState())) {
+        long hash = stateHash(state);
+        int node = nodePool.findNode(state, hash);
+        if (node != MCTSNodePool.NONE) {
             return node;
         }
-        List<MachineState> nextStates = sharedStateMachine.getNextStates(node.getState());
-        for (MachineState state : nextStates) {
-            TreeNode nextNode = new TreeNode(state, node);
-            if (!sharedStateMachine.findTerminalp(nextNode.getState())) {
-                List<Move> moves = sharedStateMachine.getRandomJointMove(nextNode.getState());
-                nextNode.setOurTurn(!moves.get(ourTurnIndex).toString().equals("noop"));
-            }
-            node.addChild(nextNode);
+        boolean terminal = sharedStateMachine.findTerminalp(state);
+        boolean ourTurn = false;
+        if (!terminal) {
+            List<Move> moves = sharedStateMachine.getRandomJointMove(state);
+            ourTurn = !moves.get(ourTurnIndex).toString().equals("noop");
         }
-        return node.getChildren().get(new Random().nextInt(node.getChildren().size()));
+        return nodePool.allocateNode(state, hash, terminal, ourTurn);
     }
 
-    private int performSimulation(TreeNode node) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    // 64-bit hash of the base propositions of a state, maintained by the propnet state machine
+    private static long stateHash(MachineState state)
     {
-        TreeNode currNode = node;
-        TreeNode nextNode = null;
-        while (!sharedStateMachine.findTerminalp(currNode.getState())) {
-            List<Move> randomJointMove = sharedStateMachine.getRandomJointMove(currNode.getState());
-            nextNode = new TreeNode(sharedStateMachine.getNextState(currNode.getState(), randomJointMove), currNode);
-            currNode = nextNode;
+        if (state instanceof PropNetMachineState) {
+            return ((PropNetMachineState) state).getZobristHash();
         }
+        return state.hashCode() * 0x9E3779B97F4A7C15L;
+    }
 
-        if (currNode != null && sharedStateMachine.findTerminalp(currNode.getState())) {
-            int score = sharedStateMachine.findReward(ourRole, currNode.getState());
-            if (gameType == GameType.SINGLE_PLAYER_GAME && score == 100) {
-                score = Integer.MAX_VALUE; // scale weight of winning score
+    // plays out the game from node, at the end of a path of the given length, and backpropagates the result
+    private int performSimulation(int node, int depth) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        long playoutStart = System.nanoTime();
+        if (!nodePool.isTerminal(node)) {
+            // no need to play out a game whose outcome for us is already decided
+            int[] bounds = sharedStateMachine.getGoalBounds(nodePool.getState(node), ourRole);
+            if (bounds[0] == bounds[1]) {
+                playoutNanos += System.nanoTime() - playoutStart;
+                backpropagation(depth, bounds[0]);
+                return bounds[0];
+            }
+        }
+        if (!selectionPolicy.usesAmaf() && !playoutPolicy.usesMoveStatistics() && rollouts != null && !nodePool.isTerminal(node)) {
+            rollouts.rollout(((CompiledPropNetStateMachine) sharedStateMachine).toPropNetState(nodePool.getState(node)), laneGoals, laneDepths);
+            int total = 0;
+            for (int l = 0; l < BitParallelRollouts.NUM_LANES; l++) {
+                backpropagation(depth, laneGoals[l][ourTurnIndex]);
+                total += laneGoals[l][ourTurnIndex];
             }
-            backpropagation(currNode, score);
+            playoutNanos += System.nanoTime() - playoutStart;
+            return total / BitParallelRollouts.NUM_LANES;
+        }
+        if (!selectionPolicy.usesAmaf() && !playoutPolicy.usesMoveStatistics()) {
+            sharedStateMachine.performDepthCharge(nodePool.getState(node), null, playoutGoals);
+            int score = playoutGoals[ourTurnIndex];
+            playoutNanos += System.nanoTime() - playoutStart;
+            backpropagation(depth, score);
             return score;
-        } 
+        }
 
-        return 0;
+        // play out move by move, so that the moves can be recorded
+        MachineState state = nodePool.getState(node);
+        List<Move> jointMove = new ArrayList<Move>(numRoles);
+        int numSteps = 0;
+        List<Integer> scores;
+        while ((scores = sharedStateMachine.getGoalsIfTerminal(state)) == null) {
+            if (playoutMoveIds.length < (numSteps + 1) * numRoles) {
+                int[] longerPlayout = new int[2 * playoutMoveIds.length];
+                System.arraycopy(playoutMoveIds, 0, longerPlayout, 0, playoutMoveIds.length);
+                playoutMoveIds = longerPlayout;
+            }
+            jointMove.clear();
+            for (int r = 0; r < numRoles; r++) {
+                Move move = playoutPolicy.selectMove(sharedStateMachine, state, roles.get(r), r, random);
+                jointMove.add(move);
+                playoutMoveIds[numSteps * numRoles + r] = moveTable.getId(r, move);
+            }
+            state = sharedStateMachine.getNextState(state, jointMove);
+            numSteps++;
+        }
+        playoutNanos += System.nanoTime() - playoutStart;
+
+        int score = scores.get(ourTurnIndex);
+        backpropagation(depth, score);
+        if (selectionPolicy.usesAmaf()) {
+            amafBackpropagation(depth, numSteps, score);
+        }
+        if (playoutPolicy.usesMoveStatistics()) {
+            for (int i = 0; i < depth - 1; i++) {
+                for (int r = 0; r < numRoles; r++) {
+                    moveTable.update(r, nodePool.getEdgeMoveId(pathEdges[i], r), scores.get(r));
+                }
+            }
+            for (int i = 0; i < numSteps * numRoles; i++) {
+                moveTable.update(i % numRoles, playoutMoveIds[i], scores.get(i % numRoles));
+            }
+        }
+        return score;
     }
 
+    private void backpropagation(int depth, int score)
+    {
+        for (int i = 0; i < depth; i++) {
+            nodePool.update(path[i], score);
+        }
+    }
 
-    private void backpropagation(TreeNode node, int score) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    // updates the AMAF statistics of every edge out of the path whose joint move was played further down
+    private void amafBackpropagation(int depth, int numPlayoutSteps, int score)
     {
-        node.incrementVisits();
-        node.incrementUtility(score);
-        if(node.getParent() != null) {
-            backpropagation(node.getParent(), score);
+        moveTable.clearMarks();
+        for (int i = 0; i < numPlayoutSteps * numRoles; i++) {
+            moveTable.mark(i % numRoles, playoutMoveIds[i]);
+        }
+        for (int i = depth - 1; i >= 0; i--) {
+            if (i < depth - 1) {
+                for (int r = 0; r < numRoles; r++) {
+                    moveTable.mark(r, nodePool.getEdgeMoveId(pathEdges[i], r));
+                }
+            }
+            for (int e = nodePool.getFirstEdge(path[i]); e != MCTSNodePool.NONE; e = nodePool.getNextEdge(e)) {
+                boolean played = true;
+                for (int r = 0; r < numRoles && played; r++) {
+                    played = moveTable.isMarked(r, nodePool.getEdgeMoveId(e, r));
+                }
+                if (played) {
+                    nodePool.updateAmaf(e, score);
+                }
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,98 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+import java.util.Arrays;
+
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+
+/**
+ * MCTSMoveTable keeps statistics per move in plain arrays, indexed by the
+ * move ids of the state machine of the match, and keeps the
+ * statistics that are shared by the whole search rather than stored in
+ * the nodes: the average score each role got after playing a move anywhere
+ * in a simulation, used by MAST playouts, and the marks that RAVE uses to
+ * tell which moves were played during the current simulation.
+ *
+ * Moves of different roles are numbered separately, so the same move can
+ * have different ids for different roles. The arrays grow with the largest
+ * id seen, and a move that was never seen has no statistics.
+ */
+public final class MCTSMoveTable
+{
+    private final StateMachine machine;
+    private double[][] totalScores;
+    private int[][] counts;
+    private int[][] marks;
+    private int currentMark = 1;
+
+    public MCTSMoveTable(StateMachine machine)
+    {
+        this.machine = machine;
+        int numRoles = machine.getRoles().size();
+        totalScores = new double[numRoles][16];
+        counts = new int[numRoles][16];
+        marks = new int[numRoles][16];
+    }
+
+    /** Returns the id of the move of the role in the state machine. */
+    public int getId(int role, Move move)
+    {
+        return machine.getMoveId(role, move);
+    }
+
+    public Move getMove(int role, int id)
+    {
+        return machine.getMoveFromId(role, id);
+    }
+
+    private void ensureCapacity(int role, int id)
+    {
+        if (id >= counts[role].length) {
+            int length = Math.max(2 * counts[role].length, id + 1);
+            totalScores[role] = Arrays.copyOf(totalScores[role], length);
+            counts[role] = Arrays.copyOf(counts[role], length);
+            marks[role] = Arrays.copyOf(marks[role], length);
+        }
+    }
+
+    // ==== Move averages ====
+
+    /** Counts a simulation in which the role played the move and got the score. */
+    public void update(int role, int id, double score)
+    {
+        ensureCapacity(role, id);
+        totalScores[role][id] += score;
+        counts[role][id]++;
+    }
+
+    public int getCount(int role, int id)
+    {
+        return (id < counts[role].length) ? counts[role][id] : 0;
+    }
+
+    /** Returns the average score of the role after playing the move, or the given default if it was never played. */
+    public double getAverageScore(int role, int id, double unplayed)
+    {
+        return (getCount(role, id) == 0) ? unplayed : totalScores[role][id] / counts[role][id];
+    }
+
+    // ==== Marks ====
+
+    /** Unmarks every move. */
+    public void clearMarks()
+    {
+        currentMark++;
+    }
+
+    public void mark(int role, int id)
+    {
+        ensureCapacity(role, id);
+        marks[role][id] = currentMark;
+    }
+
+    /** Returns whether the move was marked since the last call to {@link #clearMarks()}. */
+    public boolean isMarked(int role, int id)
+    {
+        return id < marks[role].length && marks[role][id] == currentMark;
+    }
+}
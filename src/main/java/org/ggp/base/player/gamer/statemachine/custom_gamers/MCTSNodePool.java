@@ -0,0 +1,420 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.statemachine.MachineState;
+
+/**
+ * MCTSNodePool holds the search graph of {@link MCTSGamer} in preallocated
+ * primitive arrays, so that growing and shrinking the graph never allocates.
+ *
+ * Nodes and edges are int indices into parallel arrays with a fixed
+ * capacity. A node keeps its state, statistics and the head of its list of
+ * outgoing edges; an edge keeps the joint move it stands for (as one move
+ * id per role, see {@link MCTSMoveTable}), the state it leads to, the node
+ * for that state once one has been created (or NONE), its AMAF statistics
+ * and the next edge of the same parent. Since a node can be reached through
+ * several edges, the graph is a DAG, and nodes are found again through an
+ * open-addressed index from 64-bit state hashes to nodes.
+ *
+ * Space is reclaimed in two ways: {@link #retainReachableFrom(int)} frees
+ * every node that can no longer be reached once the root advances, and
+ * {@link #pruneLeaves(int, int)} frees the least visited leaves when the
+ * pool runs short, unlinking them from their parents so that they are
+ * simply created afresh if the search comes back to them. Freed nodes and
+ * edges go back to free lists.
+ */
+public final class MCTSNodePool
+{
+    public static final int NONE = -1;
+
+    private final int nodeCapacity;
+    private final int edgeCapacity;
+    private final int numRoles;
+
+    // Nodes
+    private final MachineState[] states;
+    private final long[] hashes;
+    private final int[] visits;
+    private final double[] totalUtility;
+    private final double[] totalSquaredUtility;
+    private final boolean[] terminal;
+    private final boolean[] ourTurn;
+    private final boolean[] expanded;
+    private final boolean[] inUse;
+    private final int[] firstEdge; // for free nodes, the next free node
+    private int freeNodes;
+    private int numNodes;
+
+    // Edges
+    private final MachineState[] edgeStates;
+    private final int[] edgeChild;
+    private final int[] edgeMoveIds;
+    private final int[] amafVisits;
+    private final double[] amafUtility;
+    private final int[] edgeNext; // for free edges, the next free edge
+    private int freeEdges;
+    private int numEdges;
+
+    // Index from state hashes to nodes, with linear probing
+    private final long[] indexKeys;
+    private final int[] indexNodes;
+    private final int indexMask;
+
+    // Scratch space for reachability and pruning
+    private final int[] stack;
+    private final boolean[] marked;
+    private final long[] leaves;
+
+    // Statistics
+    private long hits;
+    private long misses;
+    private long numReclaimed;
+    private long numPruned;
+
+    public MCTSNodePool(int nodeCapacity, int edgeCapacity, int numRoles)
+    {
+        this.nodeCapacity = nodeCapacity;
+        this.edgeCapacity = edgeCapacity;
+        this.numRoles = numRoles;
+
+        states = new MachineState[nodeCapacity];
+        hashes = new long[nodeCapacity];
+        visits = new int[nodeCapacity];
+        totalUtility = new double[nodeCapacity];
+        totalSquaredUtility = new double[nodeCapacity];
+        terminal = new boolean[nodeCapacity];
+        ourTurn = new boolean[nodeCapacity];
+        expanded = new boolean[nodeCapacity];
+        inUse = new boolean[nodeCapacity];
+        firstEdge = new int[nodeCapacity];
+
+        edgeStates = new MachineState[edgeCapacity];
+        edgeChild = new int[edgeCapacity];
+        edgeMoveIds = new int[edgeCapacity * numRoles];
+        amafVisits = new int[edgeCapacity];
+        amafUtility = new double[edgeCapacity];
+        edgeNext = new int[edgeCapacity];
+
+        int indexCapacity = Integer.highestOneBit(Math.max(2, nodeCapacity) * 4 - 1);
+        indexKeys = new long[indexCapacity];
+        indexNodes = new int[indexCapacity];
+        indexMask = indexCapacity - 1;
+
+        stack = new int[nodeCapacity];
+        marked = new boolean[nodeCapacity];
+        leaves = new long[nodeCapacity];
+
+        clear();
+    }
+
+    /** Frees every node and edge. */
+    public void clear()
+    {
+        Arrays.fill(states, null);
+        Arrays.fill(inUse, false);
+        for (int n = 0; n < nodeCapacity; n++) {
+            firstEdge[n] = n + 1 < nodeCapacity ? n + 1 : NONE;
+        }
+        freeNodes = nodeCapacity > 0 ? 0 : NONE;
+        numNodes = 0;
+
+        Arrays.fill(edgeStates, null);
+        for (int e = 0; e < edgeCapacity; e++) {
+            edgeNext[e] = e + 1 < edgeCapacity ? e + 1 : NONE;
+        }
+        freeEdges = edgeCapacity > 0 ? 0 : NONE;
+        numEdges = 0;
+
+        Arrays.fill(indexNodes, NONE);
+    }
+
+    // ==== Nodes ====
+
+    /**
+     * Returns the node for the state, or NONE if the pool holds none. The
+     * state is compared, so colliding hashes cannot be confused.
+     */
+    public int findNode(MachineState state, long hash)
+    {
+        for (int i = indexSlot(hash); indexNodes[i] != NONE; i = (i + 1) & indexMask) {
+            if (indexKeys[i] == hash && states[indexNodes[i]].equals(state)) {
+                hits++;
+                return indexNodes[i];
+            }
+        }
+        misses++;
+        return NONE;
+    }
+
+    /** Allocates a node for the state, or returns NONE if the pool is full. */
+    public int allocateNode(MachineState state, long hash, boolean isTerminal, boolean isOurTurn)
+    {
+        int n = freeNodes;
+        if (n == NONE) {
+            return NONE;
+        }
+        freeNodes = firstEdge[n];
+        numNodes++;
+
+        states[n] = state;
+        hashes[n] = hash;
+        visits[n] = 0;
+        totalUtility[n] = 0;
+        totalSquaredUtility[n] = 0;
+        terminal[n] = isTerminal;
+        ourTurn[n] = isOurTurn;
+        expanded[n] = false;
+        inUse[n] = true;
+        firstEdge[n] = NONE;
+
+        int i = indexSlot(hash);
+        while (indexNodes[i] != NONE) {
+            i = (i + 1) & indexMask;
+        }
+        indexKeys[i] = hash;
+        indexNodes[i] = n;
+        return n;
+    }
+
+    private void freeNode(int n)
+    {
+        for (int e = firstEdge[n]; e != NONE; ) {
+            int next = edgeNext[e];
+            edgeStates[e] = null;
+            edgeNext[e] = freeEdges;
+            freeEdges = e;
+            numEdges--;
+            e = next;
+        }
+        indexRemove(hashes[n], n);
+        states[n] = null;
+        inUse[n] = false;
+        firstEdge[n] = freeNodes;
+        freeNodes = n;
+        numNodes--;
+    }
+
+    public MachineState getState(int n) { return states[n]; }
+    public int getVisits(int n) { return visits[n]; }
+    public boolean isTerminal(int n) { return terminal[n]; }
+    public boolean isOurTurn(int n) { return ourTurn[n]; }
+    public void setOurTurn(int n, boolean isOurTurn) { ourTurn[n] = isOurTurn; }
+    public boolean isExpanded(int n) { return expanded[n]; }
+
+    public double getUtility(int n)
+    {
+        return (visits[n] == 0) ? 0 : totalUtility[n] / visits[n];
+    }
+
+    /** Returns the mean of the squared scores of the node. */
+    public double getSquaredUtility(int n)
+    {
+        return (visits[n] == 0) ? 0 : totalSquaredUtility[n] / visits[n];
+    }
+
+    /** Counts a visit to the node with the given score. */
+    public void update(int n, double score)
+    {
+        visits[n]++;
+        totalUtility[n] += score;
+        totalSquaredUtility[n] += score * score;
+    }
+
+    // ==== Edges ====
+
+    /**
+     * Gives the node one outgoing edge per child state. The move ids of the
+     * joint move leading to the i-th child state are at [i * numRoles,
+     * (i + 1) * numRoles) in jointMoveIds. Returns false, and leaves the
+     * node unexpanded, if there are not enough free edges.
+     */
+    public boolean expand(int n, List<MachineState> childStates, int[] jointMoveIds)
+    {
+        if (edgeCapacity - numEdges < childStates.size()) {
+            return false;
+        }
+        int last = NONE;
+        for (int i = 0; i < childStates.size(); i++) {
+            int e = freeEdges;
+            freeEdges = edgeNext[e];
+            numEdges++;
+            edgeStates[e] = childStates.get(i);
+            edgeChild[e] = NONE;
+            edgeNext[e] = NONE;
+            System.arraycopy(jointMoveIds, i * numRoles, edgeMoveIds, e * numRoles, numRoles);
+            amafVisits[e] = 0;
+            amafUtility[e] = 0;
+            if (last == NONE) {
+                firstEdge[n] = e;
+            } else {
+                edgeNext[last] = e;
+            }
+            last = e;
+        }
+        expanded[n] = true;
+        return true;
+    }
+
+    public int getFirstEdge(int n) { return firstEdge[n]; }
+    public int getNextEdge(int e) { return edgeNext[e]; }
+    public MachineState getEdgeState(int e) { return edgeStates[e]; }
+    public int getEdgeChild(int e) { return edgeChild[e]; }
+    public void setEdgeChild(int e, int child) { edgeChild[e] = child; }
+    public int getEdgeMoveId(int e, int role) { return edgeMoveIds[e * numRoles + role]; }
+    public int getAmafVisits(int e) { return amafVisits[e]; }
+
+    public double getAmafUtility(int e)
+    {
+        return (amafVisits[e] == 0) ? 0 : amafUtility[e] / amafVisits[e];
+    }
+
+    /** Counts a simulation in which the joint move of the edge was played at or below its parent. */
+    public void updateAmaf(int e, double score)
+    {
+        amafVisits[e]++;
+        amafUtility[e] += score;
+    }
+
+    // ==== Reclaiming space ====
+
+    /** Frees every node that cannot be reached from the root. */
+    public void retainReachableFrom(int root)
+    {
+        Arrays.fill(marked, false);
+        int top = 0;
+        marked[root] = true;
+        stack[top++] = root;
+        while (top > 0) {
+            int n = stack[--top];
+            for (int e = firstEdge[n]; e != NONE; e = edgeNext[e]) {
+                int child = edgeChild[e];
+                if (child != NONE && !marked[child]) {
+                    marked[child] = true;
+                    stack[top++] = child;
+                }
+            }
+        }
+        for (int n = 0; n < nodeCapacity; n++) {
+            if (inUse[n] && !marked[n]) {
+                freeNode(n);
+                numReclaimed++;
+            }
+        }
+    }
+
+    /**
+     * Frees up to the given number of least visited leaves other than the
+     * root, and unlinks them from their parents.
+     */
+    public void pruneLeaves(int root, int count)
+    {
+        Arrays.fill(marked, false);
+        for (int n = 0; n < nodeCapacity; n++) {
+            if (inUse[n]) {
+                for (int e = firstEdge[n]; e != NONE; e = edgeNext[e]) {
+                    if (edgeChild[e] != NONE) {
+                        marked[n] = true; // n has a child, so it is not a leaf
+                        break;
+                    }
+                }
+            }
+        }
+        int numLeaves = 0;
+        for (int n = 0; n < nodeCapacity; n++) {
+            if (inUse[n] && !marked[n] && n != root) {
+                leaves[numLeaves++] = ((long) visits[n] << 32) | n;
+            }
+        }
+        Arrays.sort(leaves, 0, numLeaves);
+        int toPrune = Math.min(count, numLeaves);
+
+        Arrays.fill(marked, false);
+        for (int k = 0; k < toPrune; k++) {
+            marked[(int) leaves[k]] = true;
+        }
+        for (int n = 0; n < nodeCapacity; n++) {
+            if (inUse[n] && !marked[n]) {
+                for (int e = firstEdge[n]; e != NONE; e = edgeNext[e]) {
+                    if (edgeChild[e] != NONE && marked[edgeChild[e]]) {
+                        edgeChild[e] = NONE;
+                    }
+                }
+            }
+        }
+        for (int k = 0; k < toPrune; k++) {
+            freeNode((int) leaves[k]);
+        }
+        numPruned += toPrune;
+    }
+
+    // ==== Index ====
+
+    private int indexSlot(long hash)
+    {
+        long h = hash * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & indexMask;
+    }
+
+    /** Removes the entry for the node, shifting later entries back to fill the gap. */
+    private void indexRemove(long hash, int n)
+    {
+        int i = indexSlot(hash);
+        while (indexNodes[i] != n) {
+            if (indexNodes[i] == NONE) {
+                return;
+            }
+            i = (i + 1) & indexMask;
+        }
+        int j = i;
+        while (true) {
+            j = (j + 1) & indexMask;
+            if (indexNodes[j] == NONE) {
+                break;
+            }
+            int home = indexSlot(indexKeys[j]);
+            // Move the entry at j into the gap at i unless its home slot
+            // lies cyclically in (i, j].
+            boolean homeBetween = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+            if (!homeBetween) {
+                indexKeys[i] = indexKeys[j];
+                indexNodes[i] = indexNodes[j];
+                i = j;
+            }
+        }
+        indexNodes[i] = NONE;
+    }
+
+    // ==== Statistics ====
+
+    public int getNodeCapacity() { return nodeCapacity; }
+    public int getNumNodes() { return numNodes; }
+    public int getNumFreeNodes() { return nodeCapacity - numNodes; }
+    public int getEdgeCapacity() { return edgeCapacity; }
+    public int getNumEdges() { return numEdges; }
+    public int getNumFreeEdges() { return edgeCapacity - numEdges; }
+    public long getNumReclaimed() { return numReclaimed; }
+    public long getNumPruned() { return numPruned; }
+
+    /** Returns the fraction of the node and edge capacity in use, whichever is fuller. */
+    public double getOccupancy()
+    {
+        return Math.max((double) numNodes / Math.max(1, nodeCapacity), (double) numEdges / Math.max(1, edgeCapacity));
+    }
+
+    /** Returns the fraction of node lookups that found an existing node. */
+    public double getHitRate()
+    {
+        long lookups = hits + misses;
+        return (lookups == 0) ? 0 : (double) hits / lookups;
+    }
+
+    public void resetStatistics()
+    {
+        hits = 0;
+        misses = 0;
+        numReclaimed = 0;
+        numPruned = 0;
+    }
+}
@@ -0,0 +1,127 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+
+/**
+ * MCTSPlayoutPolicy picks the moves of the playouts that {@link MCTSGamer}
+ * runs from the leaves of its search graph, one role at a time.
+ */
+public abstract class MCTSPlayoutPolicy
+{
+    public enum Type {
+        RANDOM,
+        MAST
+    }
+
+    /** Returns a new policy of the given type, reading move statistics from the table. */
+    public static MCTSPlayoutPolicy create(Type type, MCTSMoveTable moveTable)
+    {
+        switch (type) {
+        case RANDOM:
+            return new RandomPlayout();
+        case MAST:
+            return new MastPlayout(moveTable);
+        default:
+            throw new IllegalArgumentException("Unknown playout policy " + type);
+        }
+    }
+
+    public abstract Type getType();
+
+    /**
+     * Returns whether the policy needs the move statistics of the move
+     * table. If it does not, playouts are left to the state machine's own
+     * depth charge, which is faster.
+     */
+    public boolean usesMoveStatistics()
+    {
+        return false;
+    }
+
+    /** Returns the move of the role, the index-th role of the game, in a playout through the state. */
+    public abstract Move selectMove(StateMachine stateMachine, MachineState state, Role role, int index, Random random) throws MoveDefinitionException;
+
+    /** Picks uniformly random moves. */
+    static final class RandomPlayout extends MCTSPlayoutPolicy
+    {
+        @Override
+        public Type getType()
+        {
+            return Type.RANDOM;
+        }
+
+        @Override
+        public Move selectMove(StateMachine stateMachine, MachineState state, Role role, int index, Random random) throws MoveDefinitionException
+        {
+            List<Move> moves = stateMachine.getLegalMoves(state, role);
+            return moves.get(random.nextInt(moves.size()));
+        }
+    }
+
+    /**
+     * Move-Average Sampling: moves are drawn from a Gibbs distribution over
+     * the average score the role got in all simulations in which it played
+     * the move, regardless of where. Moves that were never played count as
+     * wins, so that every move gets tried.
+     */
+    static final class MastPlayout extends MCTSPlayoutPolicy
+    {
+        // Temperature of the Gibbs distribution, in goal value points.
+        private static final double TEMPERATURE = 10;
+
+        private final MCTSMoveTable moveTable;
+        private double[] weights = new double[16];
+
+        MastPlayout(MCTSMoveTable moveTable)
+        {
+            this.moveTable = moveTable;
+        }
+
+        @Override
+        public Type getType()
+        {
+            return Type.MAST;
+        }
+
+        @Override
+        public boolean usesMoveStatistics()
+        {
+            return true;
+        }
+
+        @Override
+        public Move selectMove(StateMachine stateMachine, MachineState state, Role role, int index, Random random) throws MoveDefinitionException
+        {
+            List<Move> moves = stateMachine.getLegalMoves(state, role);
+            int numMoves = moves.size();
+            if (numMoves == 1) {
+                return moves.get(0);
+            }
+            if (weights.length < numMoves) {
+                weights = new double[2 * numMoves];
+            }
+            double total = 0;
+            for (int i = 0; i < numMoves; i++) {
+                double average = moveTable.getAverageScore(index, moveTable.getId(index, moves.get(i)), 100);
+                // Relative to the best possible score, so that the weights cannot overflow.
+                weights[i] = Math.exp((average - 100) / TEMPERATURE);
+                total += weights[i];
+            }
+            double choice = random.nextDouble() * total;
+            for (int i = 0; i < numMoves - 1; i++) {
+                choice -= weights[i];
+                if (choice < 0) {
+                    return moves.get(i);
+                }
+            }
+            return moves.get(numMoves - 1);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+/**
+ * MCTSSelectionPolicy decides which child the tree policy of
+ * {@link MCTSGamer} descends into. Every child of a node is given a value,
+ * and the child with the highest value is selected; children that have
+ * never been visited are always tried first, so values are only asked for
+ * children with at least one visit.
+ *
+ * Scores in the node pool are goal values from 0 to 100 for our role. A
+ * value is computed for the player choosing at the parent: for a node at
+ * which an opponent moves, the score is taken as 100 minus our score.
+ */
+public abstract class MCTSSelectionPolicy
+{
+    public enum Type {
+        UCB1,
+        UCB1_TUNED,
+        RAVE
+    }
+
+    /** Returns a new policy of the given type. */
+    public static MCTSSelectionPolicy create(Type type)
+    {
+        switch (type) {
+        case UCB1:
+            return new Ucb1();
+        case UCB1_TUNED:
+            return new Ucb1Tuned();
+        case RAVE:
+            return new Rave();
+        default:
+            throw new IllegalArgumentException("Unknown selection policy " + type);
+        }
+    }
+
+    public abstract Type getType();
+
+    /**
+     * Returns the value of descending from parent through edge into child.
+     * maximizing is false when the player choosing at parent is an opponent.
+     */
+    public abstract double evaluate(MCTSNodePool pool, int parent, int edge, int child, boolean maximizing);
+
+    /** Returns whether the policy reads the AMAF statistics of edges, which are only gathered when it does. */
+    public boolean usesAmaf()
+    {
+        return false;
+    }
+
+    // Mean score of the node in [0, 1], from the point of view of the player choosing at its parent.
+    static double mean(MCTSNodePool pool, int node, boolean maximizing)
+    {
+        double mean = pool.getUtility(node) / 100;
+        return maximizing ? mean : 1 - mean;
+    }
+
+    /** UCT, with the exploration constant of UCB1. */
+    static final class Ucb1 extends MCTSSelectionPolicy
+    {
+        private static final double C = Math.sqrt(2);
+
+        @Override
+        public Type getType()
+        {
+            return Type.UCB1;
+        }
+
+        @Override
+        public double evaluate(MCTSNodePool pool, int parent, int edge, int child, boolean maximizing)
+        {
+            double logParentVisits = Math.log(pool.getVisits(parent));
+            return mean(pool, child, maximizing) + C * Math.sqrt(logParentVisits / pool.getVisits(child));
+        }
+    }
+
+    /**
+     * UCB1-Tuned, which bounds the exploration term by an upper confidence
+     * bound on the variance of the scores of the child, so that children
+     * whose scores barely vary are explored less.
+     */
+    static final class Ucb1Tuned extends MCTSSelectionPolicy
+    {
+        @Override
+        public Type getType()
+        {
+            return Type.UCB1_TUNED;
+        }
+
+        @Override
+        public double evaluate(MCTSNodePool pool, int parent, int edge, int child, boolean maximizing)
+        {
+            double logParentVisits = Math.log(pool.getVisits(parent));
+            int visits = pool.getVisits(child);
+            double mean = pool.getUtility(child) / 100;
+            double variance = pool.getSquaredUtility(child) / 10000 - mean * mean;
+            double varianceBound = variance + Math.sqrt(2 * logParentVisits / visits);
+            return mean(pool, child, maximizing) + Math.sqrt(logParentVisits / visits * Math.min(0.25, varianceBound));
+        }
+    }
+
+    /**
+     * Rapid Action Value Estimation: the mean score of the child is blended
+     * with the AMAF score of its edge, that is the mean score of all
+     * simulations through the parent in which the joint move of the edge was
+     * played at any later point. The AMAF score dominates while the child has
+     * few visits, and fades out as its own mean becomes reliable.
+     */
+    static final class Rave extends MCTSSelectionPolicy
+    {
+        // Number of visits at which both scores are weighted equally.
+        private static final double EQUIVALENCE = 500;
+        private static final double C = 0.4;
+
+        @Override
+        public Type getType()
+        {
+            return Type.RAVE;
+        }
+
+        @Override
+        public boolean usesAmaf()
+        {
+            return true;
+        }
+
+        @Override
+        public double evaluate(MCTSNodePool pool, int parent, int edge, int child, boolean maximizing)
+        {
+            int visits = pool.getVisits(child);
+            double mean = mean(pool, child, maximizing);
+            if (pool.getAmafVisits(edge) > 0) {
+                double amafMean = pool.getAmafUtility(edge) / 100;
+                if (!maximizing) {
+                    amafMean = 1 - amafMean;
+                }
+                double beta = Math.sqrt(EQUIVALENCE / (3 * visits + EQUIVALENCE));
+                mean = (1 - beta) * mean + beta * amafMean;
+            }
+            return mean + C * Math.sqrt(Math.log(pool.getVisits(parent)) / visits);
+        }
+    }
+}
@@ -0,0 +1,416 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.ggp.base.player.gamer.event.GamerSelectedMoveEvent;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine.PropagationMode;
+
+/**
+ * ParallelMCTSGamer runs Monte Carlo tree search on several worker threads at
+ * once. Every worker owns a {@link CompiledPropNetStateMachine} over the
+ * propnet compiled for the match, so workers never contend on a state
+ * machine, and all of them grow a single shared tree.
+ *
+ * The tree uses decoupled UCT: at each node every role picks its own move
+ * from per-role move statistics, which handles alternating and simultaneous
+ * games alike. Statistics are only ever updated with atomic operations. A
+ * worker counts its visit to a move on the way down and adds the score on
+ * the way back up, so until its playout finishes the moves it chose look
+ * like losses to the other workers (virtual loss), which spreads the workers
+ * over the tree instead of piling them onto the same leaf.
+ *
+ * The number of simulations per second is logged after every search, so
+ * the scaling with the number of threads can be checked in the logs.
+ */
+public final class ParallelMCTSGamer extends SampleGamer
+{
+    private static final double EXPLORATION = Math.sqrt(2);
+
+    private final int numThreads;
+    private CompiledPropNetStateMachine propNetStateMachine;
+    private ExecutorService executor;
+    private List<Worker> workers;
+    private int ourRoleIndex;
+    private Node root;
+
+    public ParallelMCTSGamer()
+    {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public ParallelMCTSGamer(int numThreads)
+    {
+        if (numThreads < 1) {
+            throw new IllegalArgumentException("At least one worker thread is needed, got " + numThreads);
+        }
+        this.numThreads = numThreads;
+    }
+
+    @Override
+    public StateMachine getInitialStateMachine()
+    {
+        propNetStateMachine = new CompiledPropNetStateMachine();
+        return new CachedStateMachine(propNetStateMachine);
+    }
+
+    @Override
+    public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        StateMachine stateMachine = getStateMachine();
+        ourRoleIndex = stateMachine.getRoleIndices().get(getRole());
+
+        shutdownWorkers();
+        executor = Executors.newFixedThreadPool(numThreads);
+        workers = new ArrayList<Worker>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            workers.add(new Worker(new CompiledPropNetStateMachine(propNetStateMachine.getCompiledPropNet(), PropagationMode.DIFFERENTIAL)));
+        }
+
+        root = new Node(stateMachine.getInitialState(), stateMachine);
+        search(timeout - PREFERRED_METAGAME_BUFFER);
+    }
+
+    @Override
+    public Move stateMachineSelectMove(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        long start = System.currentTimeMillis();
+        StateMachine stateMachine = getStateMachine();
+        MachineState currentState = getCurrentState();
+        List<Move> moves = stateMachine.getLegalMoves(currentState, getRole());
+
+        root = findRoot(currentState, stateMachine);
+        search(timeout - PREFERRED_PLAY_BUFFER);
+        Move selection = root.getMostVisitedMove(ourRoleIndex);
+
+        long stop = System.currentTimeMillis();
+        notifyObservers(new GamerSelectedMoveEvent(moves, selection, stop - start));
+        return selection;
+    }
+
+    @Override
+    public void stateMachineStop()
+    {
+        shutdownWorkers();
+    }
+
+    @Override
+    public void stateMachineAbort()
+    {
+        shutdownWorkers();
+    }
+
+    private void shutdownWorkers()
+    {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        workers = null;
+        root = null;
+    }
+
+    /**
+     * Reuses the subtree of the previous root that matches the current
+     * state, if the search reached it.
+     */
+    private Node findRoot(MachineState currentState, StateMachine stateMachine) throws MoveDefinitionException, GoalDefinitionException
+    {
+        if (root != null) {
+            if (root.state.equals(currentState)) {
+                return root;
+            }
+            for (Node child : root.children.values()) {
+                if (child.state.equals(currentState)) {
+                    return child;
+                }
+            }
+        }
+        return new Node(currentState, stateMachine);
+    }
+
+    /**
+     * Runs every worker on the shared tree until the stop time, and logs the
+     * resulting throughput.
+     */
+    private void search(final long stopTime) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        long start = System.currentTimeMillis();
+        List<Callable<Long>> tasks = new ArrayList<Callable<Long>>(workers.size());
+        for (final Worker worker : workers) {
+            tasks.add(new Callable<Long>() {
+                @Override
+                public Long call() throws Exception {
+                    return worker.run(root, stopTime);
+                }
+            });
+        }
+
+        long numSimulations = 0;
+        try {
+            for (Future<Long> future : executor.invokeAll(tasks)) {
+                numSimulations += future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            rethrow(e.getCause());
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - start);
+        double perSecond = 1000.0 * numSimulations / elapsed;
+        GamerLogger.log("GamePlayer", String.format("ParallelMCTS: %d simulations in %d ms on %d threads: %.0f simulations/s, %.0f per thread; expected score %.1f",
+                numSimulations, elapsed, workers.size(), perSecond, perSecond / workers.size(), root.getExpectedScore(ourRoleIndex)));
+    }
+
+    private static void rethrow(Throwable t) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        if (t instanceof TransitionDefinitionException) {
+            throw (TransitionDefinitionException) t;
+        } else if (t instanceof MoveDefinitionException) {
+            throw (MoveDefinitionException) t;
+        } else if (t instanceof GoalDefinitionException) {
+            throw (GoalDefinitionException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException(t);
+    }
+
+    /**
+     * A node of the shared search tree. Everything but the statistics and
+     * the children is fixed when the node is created.
+     */
+    static final class Node
+    {
+        final MachineState state;
+        final boolean terminal;
+        final int[] goals;
+        final Move[][] legalMoves;
+        final int[] moveOffsets;
+        final AtomicInteger visits = new AtomicInteger();
+        final AtomicIntegerArray moveVisits;
+        final AtomicLongArray moveScores;
+        final ConcurrentMap<Long, Node> children = new ConcurrentHashMap<Long, Node>();
+
+        Node(MachineState state, StateMachine stateMachine) throws MoveDefinitionException, GoalDefinitionException
+        {
+            List<Role> roles = stateMachine.getRoles();
+            List<Integer> terminalGoals = stateMachine.getGoalsIfTerminal(state);
+            this.state = state;
+            this.terminal = (terminalGoals != null);
+            this.legalMoves = new Move[roles.size()][];
+            this.moveOffsets = new int[roles.size() + 1];
+            if (terminal) {
+                this.goals = toArray(terminalGoals);
+                for (int r = 0; r < roles.size(); r++) {
+                    legalMoves[r] = new Move[0];
+                }
+            } else {
+                this.goals = null;
+                for (int r = 0; r < roles.size(); r++) {
+                    List<Move> moves = stateMachine.getLegalMoves(state, roles.get(r));
+                    legalMoves[r] = moves.toArray(new Move[moves.size()]);
+                    moveOffsets[r + 1] = moveOffsets[r] + moves.size();
+                }
+            }
+            this.moveVisits = new AtomicIntegerArray(moveOffsets[roles.size()]);
+            this.moveScores = new AtomicLongArray(moveOffsets[roles.size()]);
+        }
+
+        /**
+         * Picks a move for every role by UCT, and counts a visit for each
+         * of them right away so that other workers see a virtual loss.
+         */
+        int[] select(Random random)
+        {
+            int[] choice = new int[legalMoves.length];
+            double logVisits = Math.log(Math.max(1, visits.get()));
+            for (int r = 0; r < legalMoves.length; r++) {
+                int best = 0;
+                if (legalMoves[r].length > 1) {
+                    double bestValue = Double.NEGATIVE_INFINITY;
+                    for (int i = 0; i < legalMoves[r].length; i++) {
+                        int index = moveOffsets[r] + i;
+                        int n = moveVisits.get(index);
+                        double value;
+                        if (n == 0) {
+                            value = Double.MAX_VALUE * random.nextDouble();
+                        } else {
+                            value = moveScores.get(index) / (100.0 * n) + EXPLORATION * Math.sqrt(logVisits / n);
+                        }
+                        if (value > bestValue) {
+                            bestValue = value;
+                            best = i;
+                        }
+                    }
+                }
+                choice[r] = best;
+                moveVisits.incrementAndGet(moveOffsets[r] + best);
+            }
+            return choice;
+        }
+
+        /** Adds the scores of a finished playout to the moves it went through. */
+        void update(int[] choice, int[] scores)
+        {
+            for (int r = 0; r < choice.length; r++) {
+                moveScores.addAndGet(moveOffsets[r] + choice[r], scores[r]);
+            }
+        }
+
+        long getChildKey(int[] choice)
+        {
+            long key = 0;
+            for (int r = 0; r < choice.length; r++) {
+                key = key * legalMoves[r].length + choice[r];
+            }
+            return key;
+        }
+
+        List<Move> getJointMove(int[] choice)
+        {
+            List<Move> jointMove = new ArrayList<Move>(choice.length);
+            for (int r = 0; r < choice.length; r++) {
+                jointMove.add(legalMoves[r][choice[r]]);
+            }
+            return jointMove;
+        }
+
+        /**
+         * Adds a child unless another worker got there first, and returns
+         * the child that ended up in the tree.
+         */
+        Node addChild(long key, Node child)
+        {
+            Node existing = children.putIfAbsent(key, child);
+            return (existing == null) ? child : existing;
+        }
+
+        Move getMostVisitedMove(int role)
+        {
+            Move best = null;
+            int bestVisits = -1;
+            for (int i = 0; i < legalMoves[role].length; i++) {
+                int n = moveVisits.get(moveOffsets[role] + i);
+                if (n > bestVisits) {
+                    bestVisits = n;
+                    best = legalMoves[role][i];
+                }
+            }
+            return best;
+        }
+
+        double getExpectedScore(int role)
+        {
+            if (terminal) {
+                return goals[role];
+            }
+            long n = 0;
+            long score = 0;
+            for (int index = moveOffsets[role]; index < moveOffsets[role + 1]; index++) {
+                n += moveVisits.get(index);
+                score += moveScores.get(index);
+            }
+            return (n == 0) ? 0 : (double) score / n;
+        }
+    }
+
+    /**
+     * A search thread's private state: its own state machine and random
+     * number generator.
+     */
+    static final class Worker
+    {
+        private final StateMachine stateMachine;
+        private final Random random = new Random();
+
+        Worker(StateMachine stateMachine)
+        {
+            this.stateMachine = stateMachine;
+        }
+
+        /** Runs simulations from the root until the stop time, and returns how many. */
+        long run(Node root, long stopTime) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+        {
+            long numSimulations = 0;
+            List<Node> path = new ArrayList<Node>();
+            List<int[]> choices = new ArrayList<int[]>();
+            while (System.currentTimeMillis() < stopTime && !Thread.currentThread().isInterrupted()) {
+                simulate(root, path, choices);
+                path.clear();
+                choices.clear();
+                numSimulations++;
+            }
+            return numSimulations;
+        }
+
+        private void simulate(Node root, List<Node> path, List<int[]> choices) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+        {
+            Node node = root;
+            int[] scores;
+            while (true) {
+                node.visits.incrementAndGet();
+                if (node.terminal) {
+                    scores = node.goals;
+                    break;
+                }
+                int[] choice = node.select(random);
+                path.add(node);
+                choices.add(choice);
+                long key = node.getChildKey(choice);
+                Node child = node.children.get(key);
+                if (child == null) {
+                    MachineState next = stateMachine.getNextState(node.state, node.getJointMove(choice));
+                    child = node.addChild(key, new Node(next, stateMachine));
+                    child.visits.incrementAndGet();
+                    scores = child.terminal ? child.goals : playout(child.state);
+                    break;
+                }
+                node = child;
+            }
+            for (int i = 0; i < path.size(); i++) {
+                path.get(i).update(choices.get(i), scores);
+            }
+        }
+
+        private int[] playout(MachineState state) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+        {
+            int[] goals = new int[stateMachine.getRoles().size()];
+            stateMachine.performDepthCharge(state, null, goals);
+            return goals;
+        }
+    }
+
+    private static int[] toArray(List<Integer> values)
+    {
+        int[] array = new int[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i);
+        }
+        return array;
+    }
+}
@@ -33,6 +33,11 @@ public final class TestPropNetGamer extends SampleGamer
 {
     private StateMachine sharedStateMachine = null;
 
+    @Override
+    public StateMachine getInitialStateMachine() {
+        return new CachedStateMachine(new CompiledPropNetStateMachine());
+    }
+
     // just initialize state machine
     @Override
     public void stateMachineMetaGame(long timeout) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
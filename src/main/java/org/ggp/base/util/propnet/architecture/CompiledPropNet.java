@@ -0,0 +1,574 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetMachineState;
+
+/**
+ * The CompiledPropNet class is an immutable, int-indexed view of a PropNet.
+ *
+ * The components of the PropNet are sorted topologically once, with the
+ * edges from transitions into base propositions cut, and then flattened into
+ * primitive arrays: a type per component, and compressed input and output
+ * adjacency lists. A full forward propagation is then a single linear pass
+ * over the components, in index order, with no recursion and no iteration
+ * over sets.
+ *
+ * Components are laid out as follows:
+ *
+ *  [0, numBases)              base propositions, in base order
+ *  [numBases, numSources)     input propositions, the init proposition,
+ *                             constants and any other input-less propositions
+ *  [numSources, size)         gates, transitions and view propositions, in
+ *                             topological order
+ *
+ * Sources are never evaluated: their values are set from the outside (or,
+ * for constants, once at creation time). Every other component is one of
+ * TYPE_AND, TYPE_OR or TYPE_NOT; propositions and transitions, which simply
+ * copy their single input, are represented as single-input ORs.
+ *
+ * A CompiledPropNet holds no component values, so a single instance can be
+ * shared by any number of state machines, including across threads.
+ */
+public final class CompiledPropNet
+{
+    public static final byte TYPE_SOURCE = 0;
+    public static final byte TYPE_AND = 1;
+    public static final byte TYPE_OR = 2;
+    public static final byte TYPE_NOT = 3;
+
+    private final PropNet propNet;
+    private final List<Role> roles;
+
+    private final Component[] components;
+    private final byte[] types;
+    private final int[] inputOffsets;
+    private final int[] inputs;
+    private final int[] outputOffsets;
+    private final int[] outputs;
+    private final boolean[] sourceValues;
+
+    private final int numBases;
+    private final int numSources;
+
+    private final GdlSentence[] baseSentences;
+    private final Map<GdlSentence, Integer> baseIndices;
+    private final long[] zobristKeys;
+    private final int[] transitions;
+
+    private final int[][] legals;
+    private final Move[][] legalMoves;
+    private final int[][] goals;
+    private final int[][] goalValues;
+    private final Move[][] inputMoves;
+    private final List<Map<Move, Integer>> inputIndices;
+    private final int terminal;
+    private final int init;
+    private final boolean[] initialBases;
+    private final int[] inputCone;
+
+    /**
+     * Sorts and flattens the given PropNet. The PropNet must not be modified
+     * afterwards, since the CompiledPropNet keeps references to its components.
+     *
+     * @throws IllegalStateException if the PropNet contains a cycle that
+     * does not pass through a transition.
+     */
+    public CompiledPropNet(PropNet propNet)
+    {
+        this.propNet = propNet;
+        this.roles = propNet.getRoles();
+
+        // Lay out the sources first: bases, then inputs, then everything
+        // else that has no inputs (init, constants, orphaned propositions).
+        List<Component> order = new ArrayList<Component>(propNet.getSize());
+        List<Proposition> baseProps = new ArrayList<Proposition>(propNet.getBasePropositions().values());
+        List<Proposition> inputProps = new ArrayList<Proposition>(propNet.getInputPropositions().values());
+        order.addAll(baseProps);
+        order.addAll(inputProps);
+        Map<Component, Integer> indices = new HashMap<Component, Integer>();
+        for (Component c : order) {
+            indices.put(c, indices.size());
+        }
+        for (Component c : propNet.getComponents()) {
+            if (!indices.containsKey(c) && c.getInputs().isEmpty() && isSource(c)) {
+                indices.put(c, order.size());
+                order.add(c);
+            }
+        }
+        this.numBases = baseProps.size();
+        this.numSources = order.size();
+
+        // Kahn's algorithm over the remaining components. Base propositions
+        // have already been emitted, which cuts every transition edge.
+        Map<Component, Integer> pendingInputs = new HashMap<Component, Integer>();
+        Queue<Component> ready = new LinkedList<Component>();
+        for (Component c : propNet.getComponents()) {
+            if (indices.containsKey(c)) {
+                continue;
+            }
+            pendingInputs.put(c, c.getInputs().size());
+            if (c.getInputs().isEmpty()) {
+                ready.add(c);
+            }
+        }
+        for (Component source : new ArrayList<Component>(order)) {
+            release(source, pendingInputs, ready);
+        }
+        while (!ready.isEmpty()) {
+            Component c = ready.remove();
+            indices.put(c, order.size());
+            order.add(c);
+            release(c, pendingInputs, ready);
+        }
+        if (order.size() != propNet.getSize()) {
+            throw new IllegalStateException("PropNet contains a cycle that does not pass through a transition: sorted "
+                    + order.size() + " of " + propNet.getSize() + " components");
+        }
+
+        // Flatten types and adjacency lists.
+        int size = order.size();
+        this.components = order.toArray(new Component[size]);
+        this.types = new byte[size];
+        this.sourceValues = new boolean[size];
+        this.inputOffsets = new int[size + 1];
+        this.outputOffsets = new int[size + 1];
+        for (int i = 0; i < size; i++) {
+            inputOffsets[i + 1] = inputOffsets[i] + (i < numSources ? 0 : components[i].getInputs().size());
+            outputOffsets[i + 1] = outputOffsets[i] + components[i].getOutputs().size();
+        }
+        this.inputs = new int[inputOffsets[size]];
+        this.outputs = new int[outputOffsets[size]];
+        for (int i = 0; i < size; i++) {
+            Component c = components[i];
+            if (i < numSources) {
+                types[i] = TYPE_SOURCE;
+                sourceValues[i] = (c.getType() == Component.CmpType.CONSTANT) && c.getValue();
+            } else if (c.getType() == Component.CmpType.AND) {
+                types[i] = TYPE_AND;
+            } else if (c.getType() == Component.CmpType.NOT) {
+                types[i] = TYPE_NOT;
+            } else {
+                types[i] = TYPE_OR;
+            }
+            if (i >= numSources) {
+                int k = inputOffsets[i];
+                for (Component input : c.getInputs()) {
+                    inputs[k++] = indices.get(input);
+                }
+            }
+            int k = outputOffsets[i];
+            for (Component output : c.getOutputs()) {
+                outputs[k++] = indices.get(output);
+            }
+        }
+
+        // Index the base propositions and their transitions.
+        this.baseSentences = new GdlSentence[numBases];
+        this.baseIndices = new HashMap<GdlSentence, Integer>();
+        this.transitions = new int[numBases];
+        for (int i = 0; i < numBases; i++) {
+            Proposition base = baseProps.get(i);
+            baseSentences[i] = base.getName();
+            baseIndices.put(base.getName(), i);
+            transitions[i] = indices.get(base.getSingleInput());
+        }
+        this.zobristKeys = PropNetMachineState.createZobristKeys(numBases);
+
+        // Index the role-specific propositions.
+        int numRoles = roles.size();
+        this.legals = new int[numRoles][];
+        this.legalMoves = new Move[numRoles][];
+        this.goals = new int[numRoles][];
+        this.goalValues = new int[numRoles][];
+        this.inputMoves = new Move[numRoles][];
+        this.inputIndices = new ArrayList<Map<Move, Integer>>(numRoles);
+        for (int r = 0; r < numRoles; r++) {
+            Role role = roles.get(r);
+
+            List<Proposition> legalProps = listOf(propNet.getLegalPropositions().get(role));
+            legals[r] = new int[legalProps.size()];
+            legalMoves[r] = new Move[legalProps.size()];
+            for (int j = 0; j < legalProps.size(); j++) {
+                legals[r][j] = indices.get(legalProps.get(j));
+                legalMoves[r][j] = new Move(legalProps.get(j).getName().get(1));
+            }
+
+            List<Proposition> goalProps = listOf(propNet.getGoalPropositions().get(role));
+            goals[r] = new int[goalProps.size()];
+            goalValues[r] = new int[goalProps.size()];
+            for (int j = 0; j < goalProps.size(); j++) {
+                goals[r][j] = indices.get(goalProps.get(j));
+                goalValues[r][j] = getGoalValue(goalProps.get(j));
+            }
+
+            Map<Move, Integer> roleInputs = new HashMap<Move, Integer>();
+            List<Move> roleMoves = new ArrayList<Move>();
+            for (Proposition input : inputProps) {
+                GdlRelation does = (GdlRelation) input.getName();
+                if (does.get(0).equals(role.getName())) {
+                    Move move = new Move(does.get(1));
+                    roleInputs.put(move, indices.get(input));
+                    roleMoves.add(move);
+                }
+            }
+            inputIndices.add(roleInputs);
+            inputMoves[r] = roleMoves.toArray(new Move[roleMoves.size()]);
+        }
+
+        this.terminal = indexOf(propNet.getTerminalProposition(), indices);
+        this.init = indexOf(propNet.getInitProposition(), indices);
+        this.initialBases = computeInitialBases();
+        this.inputCone = computeInputCone(numBases, numBases + inputProps.size());
+    }
+
+    /**
+     * Lists, in topological order, the non-source components that can be
+     * reached from the input propositions, which lie between the given
+     * indices. In GDL, only transitions depend on inputs, so these are the
+     * only components to re-evaluate after marking the moves of a state
+     * whose bases were already propagated.
+     */
+    private int[] computeInputCone(int firstInput, int endInputs)
+    {
+        boolean[] reached = new boolean[types.length];
+        LinkedList<Integer> stack = new LinkedList<Integer>();
+        for (int i = firstInput; i < endInputs; i++) {
+            stack.push(i);
+        }
+        int count = 0;
+        while (!stack.isEmpty()) {
+            int c = stack.pop();
+            for (int k = outputOffsets[c]; k < outputOffsets[c + 1]; k++) {
+                int output = outputs[k];
+                if (!reached[output]) {
+                    reached[output] = true;
+                    count++;
+                    stack.push(output);
+                }
+            }
+        }
+        int[] cone = new int[count];
+        int next = 0;
+        for (int i = numSources; i < types.length; i++) {
+            if (reached[i]) {
+                cone[next++] = i;
+            }
+        }
+        return cone;
+    }
+
+    /**
+     * OptimizingPropNetFactory wires the init proposition into the transitions
+     * of the initial bases through ORs with the regular next circuits, so
+     * propagating with init set would also leak in the successors of the empty
+     * state. Instead, a base is initial iff its transition can be reached from
+     * init through ORs and copies alone.
+     */
+    private boolean[] computeInitialBases()
+    {
+        boolean[] initialBases = new boolean[numBases];
+        if (init < 0) {
+            return initialBases;
+        }
+        boolean[] reached = new boolean[types.length];
+        LinkedList<Integer> stack = new LinkedList<Integer>();
+        stack.push(init);
+        while (!stack.isEmpty()) {
+            int c = stack.pop();
+            for (int k = outputOffsets[c]; k < outputOffsets[c + 1]; k++) {
+                int output = outputs[k];
+                if (output < numBases) {
+                    initialBases[output] = true;
+                } else if (types[output] == TYPE_OR && !reached[output]) {
+                    reached[output] = true;
+                    stack.push(output);
+                }
+            }
+        }
+        return initialBases;
+    }
+
+    private static boolean isSource(Component c)
+    {
+        Component.CmpType type = c.getType();
+        return type == Component.CmpType.CONSTANT
+                || type == Component.CmpType.INIT_PROP
+                || c instanceof Proposition;
+    }
+
+    private static void release(Component c, Map<Component, Integer> pendingInputs, Queue<Component> ready)
+    {
+        for (Component output : c.getOutputs()) {
+            Integer pending = pendingInputs.get(output);
+            if (pending == null) {
+                continue;
+            }
+            pendingInputs.put(output, pending - 1);
+            if (pending == 1) {
+                ready.add(output);
+            }
+        }
+    }
+
+    private static List<Proposition> listOf(Set<Proposition> props)
+    {
+        if (props == null) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<Proposition>(props);
+    }
+
+    private static int indexOf(Component c, Map<Component, Integer> indices)
+    {
+        if (c == null) {
+            return -1;
+        }
+        return indices.get(c);
+    }
+
+    private static int getGoalValue(Proposition goalProposition)
+    {
+        GdlRelation relation = (GdlRelation) goalProposition.getName();
+        GdlConstant constant = (GdlConstant) relation.get(1);
+        return Integer.parseInt(constant.toString());
+    }
+
+    /**
+     * Computes every non-source component of the given marking from its
+     * inputs, in a single pass in topological order. The values of the
+     * sources must already be set.
+     */
+    public void propagate(boolean[] values)
+    {
+        for (int i = numSources; i < types.length; i++) {
+            values[i] = evaluate(values, i);
+        }
+    }
+
+    /**
+     * Re-evaluates only the given components, which must be listed in
+     * topological order, such as those of {@link #getInputCone()}.
+     */
+    public void propagate(boolean[] values, int[] components)
+    {
+        for (int i : components) {
+            values[i] = evaluate(values, i);
+        }
+    }
+
+    private boolean evaluate(boolean[] values, int i)
+    {
+        final int[] inputs = this.inputs;
+        int start = inputOffsets[i];
+        int end = inputOffsets[i + 1];
+        switch (types[i]) {
+        case TYPE_AND:
+            for (int k = start; k < end; k++) {
+                if (!values[inputs[k]]) {
+                    return false;
+                }
+            }
+            return true;
+        case TYPE_NOT:
+            return !values[inputs[start]];
+        default:
+            for (int k = start; k < end; k++) {
+                if (values[inputs[k]]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Returns a new marking with every source false except for the true
+     * constants. Nothing is propagated.
+     */
+    public boolean[] createValues()
+    {
+        return sourceValues.clone();
+    }
+
+    public PropNet getPropNet()
+    {
+        return propNet;
+    }
+
+    public List<Role> getRoles()
+    {
+        return roles;
+    }
+
+    /** Returns the number of components. */
+    public int getSize()
+    {
+        return types.length;
+    }
+
+    public int getNumBases()
+    {
+        return numBases;
+    }
+
+    /** Returns the number of leading components that are never evaluated. */
+    public int getNumSources()
+    {
+        return numSources;
+    }
+
+    /** Returns the components, in index order. */
+    public Component[] getComponents()
+    {
+        return components;
+    }
+
+    public byte[] getTypes()
+    {
+        return types;
+    }
+
+    /**
+     * Returns the offsets into {@link #getInputs()}: the inputs of component i
+     * are stored from inputOffsets[i] (inclusive) to inputOffsets[i+1]. Sources
+     * are recorded as having no inputs.
+     */
+    public int[] getInputOffsets()
+    {
+        return inputOffsets;
+    }
+
+    public int[] getInputs()
+    {
+        return inputs;
+    }
+
+    /** Returns the offsets into {@link #getOutputs()}, as for inputs. */
+    public int[] getOutputOffsets()
+    {
+        return outputOffsets;
+    }
+
+    public int[] getOutputs()
+    {
+        return outputs;
+    }
+
+    /** Returns the sentences of the base propositions, in base order. */
+    public GdlSentence[] getBaseSentences()
+    {
+        return baseSentences;
+    }
+
+    /** Returns the index of the given base sentence, or null if it has no base proposition. */
+    public Integer getBaseIndex(GdlSentence sentence)
+    {
+        return baseIndices.get(sentence);
+    }
+
+    /**
+     * Returns a random 64-bit key for each base, in base order, for Zobrist
+     * hashing of states. The keys are drawn once, so every state machine
+     * sharing this propnet hashes states the same way.
+     */
+    public long[] getZobristKeys()
+    {
+        return zobristKeys;
+    }
+
+    /** Returns, for each base, the index of the transition into it. */
+    public int[] getTransitions()
+    {
+        return transitions;
+    }
+
+    /** Returns the indices of the legal propositions of each role. */
+    public int[][] getLegals()
+    {
+        return legals;
+    }
+
+    /** Returns the moves corresponding to {@link #getLegals()}. */
+    public Move[][] getLegalMoves()
+    {
+        return legalMoves;
+    }
+
+    /** Returns the indices of the goal propositions of each role. */
+    public int[][] getGoals()
+    {
+        return goals;
+    }
+
+    /** Returns the values corresponding to {@link #getGoals()}. */
+    public int[][] getGoalValues()
+    {
+        return goalValues;
+    }
+
+    /** Returns the moves of each role that have an input proposition. */
+    public Move[][] getInputMoves()
+    {
+        return inputMoves;
+    }
+
+    /**
+     * Returns the index of the input proposition for the given role making
+     * the given move, or -1 if the move has no input proposition.
+     */
+    public int getInputIndex(int role, Move move)
+    {
+        Integer index = inputIndices.get(role).get(move);
+        return (index == null) ? -1 : index;
+    }
+
+    /** Returns the index of the terminal proposition, or -1 if the game has none. */
+    public int getTerminal()
+    {
+        return terminal;
+    }
+
+    /**
+     * Returns whether the terminal proposition is true in the given marking.
+     * A game without a terminal proposition is never over.
+     */
+    public boolean isTerminal(boolean[] values)
+    {
+        return terminal >= 0 && values[terminal];
+    }
+
+    /** Returns, for each base, whether it is true in the initial state. */
+    public boolean[] getInitialBases()
+    {
+        return initialBases;
+    }
+
+    /**
+     * Returns the non-source components that depend on some input
+     * proposition, in topological order.
+     */
+    public int[] getInputCone()
+    {
+        return inputCone;
+    }
+
+    /** Returns the index of the init proposition, or -1 if there is none. */
+    public int getInit()
+    {
+        return init;
+    }
+}
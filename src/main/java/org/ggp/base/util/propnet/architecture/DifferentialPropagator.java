@@ -0,0 +1,189 @@
+package org.ggp.base.util.propnet.architecture;
+
+/**
+ * The DifferentialPropagator keeps a marking of a {@link CompiledPropNet}
+ * consistent incrementally: when a source changes value, only the components
+ * downstream of that change are re-evaluated, instead of the whole network.
+ *
+ * Each non-source component keeps a count of its true inputs, so evaluating
+ * a component is O(1) regardless of its fan-in. Changed components are
+ * processed in index order, which is a topological order, so every component
+ * is evaluated at most once per propagation and never sees a transient value.
+ *
+ * The marking starts out inconsistent (as with the consistent flag on
+ * {@link Component}); the first call to {@link #propagate(boolean[])} after
+ * construction or {@link #invalidate()} performs a full propagation and
+ * counts the true inputs, and later calls only push changes forward.
+ *
+ * A DifferentialPropagator belongs to a single marking and is not
+ * thread-safe.
+ */
+public final class DifferentialPropagator
+{
+    private final CompiledPropNet net;
+    private final byte[] types;
+    private final int[] inputOffsets;
+    private final int[] outputOffsets;
+    private final int[] outputs;
+
+    private final int[] trueInputs;
+    private final boolean[] queued;
+    private final int[] heap;
+    private int heapSize;
+    private boolean consistent;
+
+    public DifferentialPropagator(CompiledPropNet net)
+    {
+        this.net = net;
+        this.types = net.getTypes();
+        this.inputOffsets = net.getInputOffsets();
+        this.outputOffsets = net.getOutputOffsets();
+        this.outputs = net.getOutputs();
+        this.trueInputs = new int[types.length];
+        this.queued = new boolean[types.length];
+        this.heap = new int[types.length];
+        this.consistent = false;
+    }
+
+    /**
+     * Forgets the counts, so that the next propagation is a full one. This
+     * must be called if the marking is modified other than through
+     * {@link #setSource(boolean[], int, boolean)}.
+     */
+    public void invalidate()
+    {
+        consistent = false;
+    }
+
+    public boolean isConsistent()
+    {
+        return consistent;
+    }
+
+    /**
+     * Sets the value of a source in the marking, scheduling its outputs for
+     * re-evaluation if the value changed.
+     */
+    public void setSource(boolean[] values, int source, boolean value)
+    {
+        if (values[source] == value) {
+            return;
+        }
+        values[source] = value;
+        if (consistent) {
+            pushChange(source, value);
+        }
+    }
+
+    /**
+     * Brings every non-source component of the marking up to date with its
+     * sources, and returns the number of components that were evaluated.
+     */
+    public int propagate(boolean[] values)
+    {
+        if (!consistent) {
+            return propagateFully(values);
+        }
+        int touched = 0;
+        while (heapSize > 0) {
+            int c = pop();
+            queued[c] = false;
+            touched++;
+            int count = trueInputs[c];
+            boolean value;
+            switch (types[c]) {
+            case CompiledPropNet.TYPE_AND:
+                value = (count == inputOffsets[c + 1] - inputOffsets[c]);
+                break;
+            case CompiledPropNet.TYPE_NOT:
+                value = (count == 0);
+                break;
+            default:
+                value = (count > 0);
+                break;
+            }
+            if (value != values[c]) {
+                values[c] = value;
+                pushChange(c, value);
+            }
+        }
+        return touched;
+    }
+
+    private int propagateFully(boolean[] values)
+    {
+        net.propagate(values);
+        int[] inputs = net.getInputs();
+        int numSources = net.getNumSources();
+        for (int c = numSources; c < types.length; c++) {
+            int count = 0;
+            for (int k = inputOffsets[c]; k < inputOffsets[c + 1]; k++) {
+                if (values[inputs[k]]) {
+                    count++;
+                }
+            }
+            trueInputs[c] = count;
+        }
+        while (heapSize > 0) {
+            queued[pop()] = false;
+        }
+        consistent = true;
+        return types.length - numSources;
+    }
+
+    private void pushChange(int c, boolean value)
+    {
+        int delta = value ? 1 : -1;
+        for (int k = outputOffsets[c]; k < outputOffsets[c + 1]; k++) {
+            int output = outputs[k];
+            if (types[output] == CompiledPropNet.TYPE_SOURCE) {
+                // Transitions feed base propositions, which are set from the state.
+                continue;
+            }
+            trueInputs[output] += delta;
+            if (!queued[output]) {
+                queued[output] = true;
+                push(output);
+            }
+        }
+    }
+
+    private void push(int c)
+    {
+        int i = heapSize++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (heap[parent] <= c) {
+                break;
+            }
+            heap[i] = heap[parent];
+            i = parent;
+        }
+        heap[i] = c;
+    }
+
+    private int pop()
+    {
+        int top = heap[0];
+        int last = heap[--heapSize];
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) {
+                break;
+            }
+            if (child + 1 < heapSize && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= last) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        if (heapSize > 0) {
+            heap[i] = last;
+        }
+        return top;
+    }
+}
@@ -0,0 +1,383 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.statemachine.Move;
+
+/**
+ * The LatchAnalysis finds the base propositions of a {@link CompiledPropNet}
+ * that can never change back once they have a given value:
+ *
+ * - a positive latch stays true once it is true,
+ * - a negative latch stays false once it is false,
+ * - a constant base keeps its initial value in every reachable state.
+ *
+ * Candidates are found cheaply by random simulation: a base that was seen
+ * to change in some direction cannot be a latch in that direction. Every
+ * candidate is then proven, or dropped, by three-valued propagation, in
+ * which the bases and inputs that are not assumed to have a value are
+ * unknown. A base is a positive latch if its transition is true whenever
+ * the base is true, whatever the unknown sources are, and conversely for
+ * negative latches. Constant bases are proven together, as the largest set
+ * of candidates whose values imply themselves in the next state; since they
+ * hold in the initial state, they hold in every reachable state. The
+ * analysis is sound but not complete: every reported latch is one, but some
+ * latches may be missed.
+ *
+ * Knowing the latches of a state bounds the goals that can still be reached
+ * from it, see {@link #getGoalBounds(long[], int, byte[])}, which lets a
+ * search recognise that its outcome is already decided.
+ *
+ * A LatchAnalysis is immutable once built, and can be shared across threads;
+ * the buffer that goal bounds are computed in is passed by the caller.
+ */
+public final class LatchAnalysis
+{
+    public static final int DEFAULT_NUM_SIMULATIONS = 100;
+    public static final int MAX_SIMULATION_DEPTH = 500;
+
+    private static final byte FALSE = 0;
+    private static final byte TRUE = 1;
+    private static final byte UNKNOWN = 2;
+
+    private final CompiledPropNet net;
+    private final boolean[] positiveLatches;
+    private final boolean[] negativeLatches;
+    private final boolean[] constants;
+    private final int numLatches;
+    // The values of the sources when nothing is known about the state
+    private final byte[] unknownSources;
+
+    public LatchAnalysis(CompiledPropNet net)
+    {
+        this(net, DEFAULT_NUM_SIMULATIONS, new Random(0));
+    }
+
+    public LatchAnalysis(CompiledPropNet net, int numSimulations, Random random)
+    {
+        this.net = net;
+        int numBases = net.getNumBases();
+        this.unknownSources = computeUnknownSources(net);
+
+        boolean[] becameFalse = new boolean[numBases];
+        boolean[] becameTrue = new boolean[numBases];
+        simulate(numSimulations, random, becameFalse, becameTrue);
+
+        boolean[] initialBases = net.getInitialBases();
+        this.constants = new boolean[numBases];
+        for (int b = 0; b < numBases; b++) {
+            constants[b] = !becameFalse[b] && !becameTrue[b];
+        }
+        proveConstants(initialBases);
+
+        this.positiveLatches = new boolean[numBases];
+        this.negativeLatches = new boolean[numBases];
+        byte[] values = new byte[net.getSize()];
+        int[] transitions = net.getTransitions();
+        int latches = 0;
+        for (int b = 0; b < numBases; b++) {
+            if (constants[b]) {
+                positiveLatches[b] = initialBases[b];
+                negativeLatches[b] = !initialBases[b];
+            } else {
+                if (!becameFalse[b]) {
+                    assumeConstants(values, initialBases);
+                    values[b] = TRUE;
+                    propagate(values);
+                    positiveLatches[b] = (transitions[b] >= 0 && values[transitions[b]] == TRUE);
+                }
+                if (!becameTrue[b]) {
+                    assumeConstants(values, initialBases);
+                    values[b] = FALSE;
+                    propagate(values);
+                    negativeLatches[b] = (transitions[b] < 0 || values[transitions[b]] == FALSE);
+                }
+            }
+            if (positiveLatches[b] || negativeLatches[b]) {
+                latches++;
+            }
+        }
+        this.numLatches = latches;
+    }
+
+    private static byte[] computeUnknownSources(CompiledPropNet net)
+    {
+        byte[] sources = new byte[net.getNumSources()];
+        Component[] components = net.getComponents();
+        boolean[] sourceValues = net.createValues();
+        for (int i = 0; i < sources.length; i++) {
+            if (i < net.getNumBases()) {
+                sources[i] = UNKNOWN;
+            } else if (components[i] instanceof Constant) {
+                sources[i] = sourceValues[i] ? TRUE : FALSE;
+            } else {
+                // The init proposition, and propositions that nothing sets
+                sources[i] = FALSE;
+            }
+        }
+        Move[][] inputMoves = net.getInputMoves();
+        for (int r = 0; r < inputMoves.length; r++) {
+            for (Move move : inputMoves[r]) {
+                int input = net.getInputIndex(r, move);
+                if (input >= 0) {
+                    sources[input] = UNKNOWN;
+                }
+            }
+        }
+        return sources;
+    }
+
+    /**
+     * Plays random games, recording the bases that were seen to go from
+     * true to false, and from false to true.
+     */
+    private void simulate(int numSimulations, Random random, boolean[] becameFalse, boolean[] becameTrue)
+    {
+        int numBases = net.getNumBases();
+        int[] transitions = net.getTransitions();
+        int[][] legals = net.getLegals();
+        Move[][] legalMoves = net.getLegalMoves();
+        int terminal = net.getTerminal();
+        boolean[] values = net.createValues();
+        boolean[] bases = new boolean[numBases];
+        int[] legalIndices = new int[net.getSize()];
+
+        for (int s = 0; s < numSimulations; s++) {
+            System.arraycopy(net.getInitialBases(), 0, bases, 0, numBases);
+            for (int depth = 0; depth < MAX_SIMULATION_DEPTH; depth++) {
+                boolean[] fresh = net.createValues();
+                System.arraycopy(fresh, numBases, values, numBases, net.getNumSources() - numBases);
+                System.arraycopy(bases, 0, values, 0, numBases);
+                net.propagate(values);
+                if (terminal >= 0 && values[terminal]) {
+                    break;
+                }
+                int[] inputs = new int[legals.length];
+                boolean stuck = false;
+                for (int r = 0; r < legals.length; r++) {
+                    int numLegal = 0;
+                    for (int k = 0; k < legals[r].length; k++) {
+                        if (values[legals[r][k]]) {
+                            legalIndices[numLegal++] = k;
+                        }
+                    }
+                    if (numLegal == 0) {
+                        stuck = true;
+                        break;
+                    }
+                    inputs[r] = net.getInputIndex(r, legalMoves[r][legalIndices[random.nextInt(numLegal)]]);
+                }
+                if (stuck) {
+                    break;
+                }
+                for (int input : inputs) {
+                    if (input >= 0) {
+                        values[input] = true;
+                    }
+                }
+                net.propagate(values);
+                for (int b = 0; b < numBases; b++) {
+                    boolean next = transitions[b] >= 0 && values[transitions[b]];
+                    if (bases[b] && !next) {
+                        becameFalse[b] = true;
+                    } else if (!bases[b] && next) {
+                        becameTrue[b] = true;
+                    }
+                    bases[b] = next;
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the constant candidates whose transitions do not keep their
+     * value when every remaining candidate has its initial value, until the
+     * remaining set implies itself.
+     */
+    private void proveConstants(boolean[] initialBases)
+    {
+        int[] transitions = net.getTransitions();
+        byte[] values = new byte[net.getSize()];
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            assumeConstants(values, initialBases);
+            propagate(values);
+            for (int b = 0; b < constants.length; b++) {
+                if (constants[b]) {
+                    byte next = (transitions[b] >= 0) ? values[transitions[b]] : FALSE;
+                    if (next != (initialBases[b] ? TRUE : FALSE)) {
+                        constants[b] = false;
+                        changed = true;
+                    }
+                }
+            }
+        }
+    }
+
+    private void assumeConstants(byte[] values, boolean[] initialBases)
+    {
+        System.arraycopy(unknownSources, 0, values, 0, unknownSources.length);
+        for (int b = 0; b < constants.length; b++) {
+            if (constants[b]) {
+                values[b] = initialBases[b] ? TRUE : FALSE;
+            }
+        }
+    }
+
+    /**
+     * Computes every non-source component from its inputs in three-valued
+     * logic, in topological order, as {@link CompiledPropNet#propagate}.
+     */
+    private void propagate(byte[] values)
+    {
+        byte[] types = net.getTypes();
+        int[] inputOffsets = net.getInputOffsets();
+        int[] inputs = net.getInputs();
+        for (int i = net.getNumSources(); i < types.length; i++) {
+            int start = inputOffsets[i];
+            int end = inputOffsets[i + 1];
+            byte value;
+            switch (types[i]) {
+            case CompiledPropNet.TYPE_AND:
+                value = TRUE;
+                for (int k = start; k < end && value != FALSE; k++) {
+                    byte input = values[inputs[k]];
+                    if (input != TRUE) {
+                        value = input;
+                    }
+                }
+                break;
+            case CompiledPropNet.TYPE_NOT:
+                value = values[inputs[start]];
+                if (value != UNKNOWN) {
+                    value = (value == TRUE) ? FALSE : TRUE;
+                }
+                break;
+            default:
+                value = FALSE;
+                for (int k = start; k < end && value != TRUE; k++) {
+                    byte input = values[inputs[k]];
+                    if (input != FALSE) {
+                        value = input;
+                    }
+                }
+                break;
+            }
+            values[i] = value;
+        }
+    }
+
+    /** Returns whether the base stays true once it is true. */
+    public boolean isPositiveLatch(int base)
+    {
+        return positiveLatches[base];
+    }
+
+    /** Returns whether the base stays false once it is false. */
+    public boolean isNegativeLatch(int base)
+    {
+        return negativeLatches[base];
+    }
+
+    /** Returns whether the base has its initial value in every reachable state. */
+    public boolean isConstant(int base)
+    {
+        return constants[base];
+    }
+
+    /** Returns the number of bases that are positive or negative latches, including constants. */
+    public int getNumLatches()
+    {
+        return numLatches;
+    }
+
+    public int getNumConstants()
+    {
+        int count = 0;
+        for (boolean constant : constants) {
+            if (constant) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /** Returns a buffer for {@link #getGoalBounds(long[], int, byte[])}. */
+    public byte[] createValues()
+    {
+        return new byte[net.getSize()];
+    }
+
+    /**
+     * Returns the smallest and largest goal values that the role can get in
+     * any state reachable from the given one (a bitset over the bases, as in
+     * a {@link org.ggp.base.util.statemachine.implementation.propnet.PropNetMachineState}),
+     * given the bases that are latched in it. If both are equal, the role's
+     * goal is already decided.
+     */
+    public int[] getGoalBounds(long[] state, int role)
+    {
+        return getGoalBounds(state, role, createValues());
+    }
+
+    /**
+     * Returns the goal bounds as {@link #getGoalBounds(long[], int)} does,
+     * propagating in the given buffer from {@link #createValues()} rather
+     * than allocating one. Without any latch, nothing is known about the
+     * states to come, and every goal is left possible without propagating.
+     */
+    public int[] getGoalBounds(long[] state, int role, byte[] values)
+    {
+        if (numLatches == 0) {
+            return new int[] {0, 100};
+        }
+        System.arraycopy(unknownSources, 0, values, 0, unknownSources.length);
+        boolean[] initialBases = net.getInitialBases();
+        for (int b = 0; b < constants.length; b++) {
+            boolean value = (state[b >>> 6] & (1L << b)) != 0;
+            if (constants[b]) {
+                values[b] = initialBases[b] ? TRUE : FALSE;
+            } else if (value && positiveLatches[b]) {
+                values[b] = TRUE;
+            } else if (!value && negativeLatches[b]) {
+                values[b] = FALSE;
+            }
+        }
+        propagate(values);
+
+        int[] goals = net.getGoals()[role];
+        int[] goalValues = net.getGoalValues()[role];
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        boolean decided = false;
+        for (int i = 0; i < goals.length; i++) {
+            byte value = values[goals[i]];
+            if (value == FALSE || (decided && value != TRUE)) {
+                continue;
+            }
+            if (value == TRUE && !decided) {
+                // A goal that is true from now on is the only possible one
+                decided = true;
+                min = Integer.MAX_VALUE;
+                max = Integer.MIN_VALUE;
+            }
+            min = Math.min(min, goalValues[i]);
+            max = Math.max(max, goalValues[i]);
+        }
+        if (min > max) {
+            // No goal can be reached at all; the game is ill-formed
+            return new int[] {0, 100};
+        }
+        return new int[] {min, max};
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LatchAnalysis(" + numLatches + " latches, " + getNumConstants() + " constants, of "
+                + net.getNumBases() + " bases: " + Arrays.toString(net.getBaseSentences()) + ")";
+    }
+}
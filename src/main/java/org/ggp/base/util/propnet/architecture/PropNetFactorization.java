@@ -0,0 +1,288 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.statemachine.Move;
+
+/**
+ * The PropNetFactorization partitions a {@link CompiledPropNet} into
+ * independent subgames, following "Factoring General Games using
+ * Propositional Automata" by Evan Cox et al.
+ *
+ * Two sources are dependent if one of them feeds the transition of a base
+ * that the other also feeds, or the legal proposition of a move whose input
+ * the other also feeds. The goal and terminal propositions are deliberately
+ * left out, since they are what combines the subgames into one game. The
+ * bases and inputs are then grouped into the connected components of this
+ * dependency relation:
+ *
+ * - A component with at least one input is a {@link Factor}: its moves only
+ *   change its own bases, and whether they are legal only depends on its
+ *   own bases. A game that is a disjoint sum of smaller games, such as
+ *   several boards played in parallel, has one factor per board.
+ * - The bases of the components without inputs, such as a step counter,
+ *   evolve by themselves whatever the players do. They are uncontrolled,
+ *   and belong to no factor.
+ * - The inputs of the components without bases, such as a noop that is
+ *   always legal, change nothing, and belong to no factor either.
+ *
+ * The init proposition and constants are not dependencies, since they are
+ * the same in every state. Most turn-taking games have a control base that
+ * every move depends on, and form a single factor.
+ */
+public final class PropNetFactorization
+{
+    private final CompiledPropNet net;
+    private final List<Factor> factors;
+    // The factor of each source, or -1 for uncontrolled bases and for
+    // sources that are not bases or inputs
+    private final int[] factorOfSource;
+
+    public PropNetFactorization(CompiledPropNet net)
+    {
+        this.net = net;
+        int size = net.getSize();
+        int numSources = net.getNumSources();
+        int numBases = net.getNumBases();
+
+        // Only the backward cones of the transitions and legals matter
+        boolean[] relevant = new boolean[size];
+        List<Integer> toVisit = new ArrayList<Integer>();
+        for (int transition : net.getTransitions()) {
+            toVisit.add(transition);
+        }
+        for (int[] legals : net.getLegals()) {
+            for (int legal : legals) {
+                toVisit.add(legal);
+            }
+        }
+        int[] inputOffsets = net.getInputOffsets();
+        int[] inputs = net.getInputs();
+        while (!toVisit.isEmpty()) {
+            int c = toVisit.remove(toVisit.size() - 1);
+            if (relevant[c]) {
+                continue;
+            }
+            relevant[c] = true;
+            for (int k = inputOffsets[c]; k < inputOffsets[c + 1]; k++) {
+                toVisit.add(inputs[k]);
+            }
+        }
+
+        // A component is connected to its inputs, except for the sources
+        // that are the same in every state
+        boolean[] isStateSource = new boolean[numSources];
+        Arrays.fill(isStateSource, 0, numBases, true);
+        Move[][] inputMoves = net.getInputMoves();
+        for (int r = 0; r < inputMoves.length; r++) {
+            for (Move move : inputMoves[r]) {
+                int input = net.getInputIndex(r, move);
+                if (input >= 0) {
+                    isStateSource[input] = true;
+                }
+            }
+        }
+        int[] parents = new int[size];
+        for (int i = 0; i < size; i++) {
+            parents[i] = i;
+        }
+        for (int c = numSources; c < size; c++) {
+            if (!relevant[c]) {
+                continue;
+            }
+            for (int k = inputOffsets[c]; k < inputOffsets[c + 1]; k++) {
+                int input = inputs[k];
+                if (input >= numSources || isStateSource[input]) {
+                    union(parents, c, input);
+                }
+            }
+        }
+        int[] transitions = net.getTransitions();
+        for (int b = 0; b < numBases; b++) {
+            union(parents, b, transitions[b]);
+        }
+        int[][] legals = net.getLegals();
+        Move[][] legalMoves = net.getLegalMoves();
+        for (int r = 0; r < legals.length; r++) {
+            for (int k = 0; k < legals[r].length; k++) {
+                int input = net.getInputIndex(r, legalMoves[r][k]);
+                if (input >= 0) {
+                    union(parents, legals[r][k], input);
+                }
+            }
+        }
+
+        // Group the bases and inputs by component
+        Map<Integer, List<Integer>> basesByRoot = new HashMap<Integer, List<Integer>>();
+        Map<Integer, List<Integer>> inputsByRoot = new HashMap<Integer, List<Integer>>();
+        List<Integer> roots = new ArrayList<Integer>();
+        for (int s = 0; s < numSources; s++) {
+            if (!isStateSource[s]) {
+                continue;
+            }
+            int root = find(parents, s);
+            if (!basesByRoot.containsKey(root)) {
+                basesByRoot.put(root, new ArrayList<Integer>());
+                inputsByRoot.put(root, new ArrayList<Integer>());
+                roots.add(root);
+            }
+            (s < numBases ? basesByRoot : inputsByRoot).get(root).add(s);
+        }
+        this.factorOfSource = new int[numSources];
+        Arrays.fill(factorOfSource, -1);
+        List<Factor> factors = new ArrayList<Factor>();
+        for (int root : roots) {
+            List<Integer> factorInputs = inputsByRoot.get(root);
+            if (factorInputs.isEmpty() || basesByRoot.get(root).isEmpty()) {
+                continue;
+            }
+            Factor factor = new Factor(factors.size(), toArray(basesByRoot.get(root)), toArray(factorInputs));
+            for (int b : factor.bases) {
+                factorOfSource[b] = factor.index;
+            }
+            for (int i : factor.inputs) {
+                factorOfSource[i] = factor.index;
+            }
+            factors.add(factor);
+        }
+        this.factors = Collections.unmodifiableList(factors);
+    }
+
+    private static int find(int[] parents, int i)
+    {
+        while (parents[i] != i) {
+            parents[i] = parents[parents[i]];
+            i = parents[i];
+        }
+        return i;
+    }
+
+    private static void union(int[] parents, int a, int b)
+    {
+        int rootA = find(parents, a);
+        int rootB = find(parents, b);
+        if (rootA != rootB) {
+            // Keep the smaller index as the root, so that roots are stable
+            parents[Math.max(rootA, rootB)] = Math.min(rootA, rootB);
+        }
+    }
+
+    private static int[] toArray(List<Integer> list)
+    {
+        int[] array = new int[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        return array;
+    }
+
+    public CompiledPropNet getCompiledPropNet()
+    {
+        return net;
+    }
+
+    /** Returns the factors, ordered by their first base or input. */
+    public List<Factor> getFactors()
+    {
+        return factors;
+    }
+
+    /** Returns whether the game has more than one factor. */
+    public boolean isFactored()
+    {
+        return factors.size() > 1;
+    }
+
+    /** Returns the factor of the given base, or -1 if it is uncontrolled. */
+    public int getFactorOfBase(int base)
+    {
+        return factorOfSource[base];
+    }
+
+    /**
+     * Returns the factor of the given role's move, or -1 if the move has no
+     * input proposition or changes no base.
+     */
+    public int getFactorOfMove(int role, Move move)
+    {
+        int input = net.getInputIndex(role, move);
+        return (input < 0) ? -1 : factorOfSource[input];
+    }
+
+    /** Returns the number of bases that belong to no factor. */
+    public int getNumUncontrolledBases()
+    {
+        int count = 0;
+        for (int b = 0; b < net.getNumBases(); b++) {
+            if (factorOfSource[b] < 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(factors.size()).append(factors.size() == 1 ? " factor" : " factors");
+        for (Factor factor : factors) {
+            sb.append(", ").append(factor);
+        }
+        sb.append(", and ").append(getNumUncontrolledBases()).append(" uncontrolled bases");
+        return sb.toString();
+    }
+
+    /**
+     * A set of bases, and of the inputs that are the only ones that can
+     * change them.
+     */
+    public final class Factor
+    {
+        private final int index;
+        private final int[] bases;
+        private final int[] inputs;
+
+        private Factor(int index, int[] bases, int[] inputs)
+        {
+            this.index = index;
+            this.bases = bases;
+            this.inputs = inputs;
+        }
+
+        public int getIndex()
+        {
+            return index;
+        }
+
+        /** Returns the indices of the bases of the factor, in increasing order. */
+        public int[] getBases()
+        {
+            return bases;
+        }
+
+        /** Returns the indices of the inputs of the factor, in increasing order. */
+        public int[] getInputs()
+        {
+            return inputs;
+        }
+
+        public boolean containsBase(int base)
+        {
+            return factorOfSource[base] == index;
+        }
+
+        @Override
+        public String toString()
+        {
+            // Name the first base, so that the logs show what the factor is about
+            return "factor " + index + " (" + bases.length + " bases such as " + net.getBaseSentences()[bases[0]]
+                    + ", " + inputs.length + " inputs)";
+        }
+    }
+}
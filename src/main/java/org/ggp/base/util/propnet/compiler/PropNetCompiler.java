@@ -0,0 +1,374 @@
+package org.ggp.base.util.propnet.compiler;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javassist.CannotCompileException;
+import javassist.ClassClassPath;
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.CtMethod;
+import javassist.CtNewConstructor;
+import javassist.CtNewMethod;
+import javassist.NotFoundException;
+import javassist.bytecode.CodeAttribute;
+
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+
+/**
+ * PropNetCompiler turns a {@link CompiledPropNet} into a game-specific
+ * subclass of {@link PropNetEvaluator}, generated with javassist and loaded
+ * through a class loader of its own, so that the class can be unloaded
+ * along with the evaluator once the match is over.
+ *
+ * Every gate that a method needs becomes an expression over its inputs.
+ * Values are 0 or 1 in a long, and gates are computed with the bitwise
+ * operators &, | and ^, so the generated code has no branches at all. A
+ * gate that is used exactly once is inlined into the expression
+ * of its user, up to a bounded expression size and nesting depth, so that
+ * javassist's recursive parser is never handed an arbitrarily deep
+ * expression; any other gate is stored
+ * once in the values array and read from there. The statements of a method
+ * are split over as many private chunk methods as it takes to keep each
+ * chunk well below the size at which HotSpot stops compiling methods, and
+ * the public method calls the chunks in order.
+ *
+ * If some method still exceeds the maximum code length after splitting, or
+ * if the class cannot be generated at all, even because javassist ran out
+ * of stack, compile() throws an IllegalStateException, and the caller
+ * should fall back to interpreting the propnet.
+ */
+public final class PropNetCompiler
+{
+    /** The maximum length of the code of a method allowed by the JVM. */
+    public static final int MAX_CODE_LENGTH = 65535;
+
+    // Estimated bytecode length per chunk, and per statement and operand,
+    // used to split methods before compiling them.
+    private static final int CHUNK_LENGTH = 8000;
+    private static final int STATEMENT_LENGTH = 12;
+    private static final int OPERAND_LENGTH = 16;
+    // Maximum number of operands of an inlined expression.
+    private static final int MAX_INLINED_OPERANDS = 32;
+    // Maximum number of gates nested in an inlined expression.
+    private static final int MAX_INLINED_DEPTH = 16;
+
+    private static final String BASE_CLASS = PropNetEvaluator.class.getName();
+    private static final AtomicInteger nextClassId = new AtomicInteger();
+
+    private final CompiledPropNet net;
+    private final int maxCodeLength;
+    private final byte[] types;
+    private final int[] inputOffsets;
+    private final int[] inputs;
+    private final int numBases;
+    private final int numInputs;
+    private final int numSources;
+    private final boolean[] sourceValues;
+
+    private PropNetCompiler(CompiledPropNet net, int maxCodeLength)
+    {
+        this.net = net;
+        this.maxCodeLength = maxCodeLength;
+        this.types = net.getTypes();
+        this.inputOffsets = net.getInputOffsets();
+        this.inputs = net.getInputs();
+        this.numBases = net.getNumBases();
+        this.numSources = net.getNumSources();
+        this.sourceValues = net.createValues();
+        int numInputs = 0;
+        for (int r = 0; r < net.getRoles().size(); r++) {
+            numInputs += net.getInputMoves()[r].length;
+        }
+        this.numInputs = numInputs;
+    }
+
+    /** Compiles the propnet into a new evaluator. */
+    public static PropNetEvaluator compile(CompiledPropNet net)
+    {
+        return compile(net, MAX_CODE_LENGTH);
+    }
+
+    /**
+     * Compiles the propnet into a new evaluator, failing if the code of any
+     * method would be longer than maxCodeLength.
+     *
+     * @throws IllegalStateException if the propnet cannot be compiled.
+     */
+    public static PropNetEvaluator compile(CompiledPropNet net, int maxCodeLength)
+    {
+        try {
+            return new PropNetCompiler(net, maxCodeLength).compile();
+        } catch (StackOverflowError e) {
+            throw new IllegalStateException("Propnet is too deep to compile");
+        }
+    }
+
+    private PropNetEvaluator compile()
+    {
+        List<Output> nextState = new ArrayList<Output>();
+        int[] transitions = net.getTransitions();
+        for (int i = 0; i < transitions.length; i++) {
+            nextState.add(new Output(transitions[i], i));
+        }
+        List<Output> legals = flatten(net.getLegals());
+        List<Output> goals = flatten(net.getGoals());
+        List<Output> terminal = new ArrayList<Output>();
+        if (net.getTerminal() >= 0) {
+            terminal.add(new Output(net.getTerminal(), 0));
+        }
+
+        List<List<String>> methods = new ArrayList<List<String>>();
+        methods.add(generateStatements(nextState));
+        methods.add(generateStatements(legals));
+        methods.add(generateStatements(goals));
+        methods.add(generateStatements(terminal));
+
+        // Split into smaller chunks whenever a method turns out too long.
+        for (int chunkLength = CHUNK_LENGTH; ; chunkLength /= 4) {
+            try {
+                return generateClass(methods, chunkLength);
+            } catch (MethodTooLongException e) {
+                if (chunkLength <= STATEMENT_LENGTH) {
+                    throw new IllegalStateException("Propnet is too large to compile: " + e.getMessage());
+                }
+            } catch (CannotCompileException e) {
+                throw new IllegalStateException("Propnet could not be compiled", e);
+            } catch (NotFoundException e) {
+                throw new IllegalStateException("Propnet could not be compiled", e);
+            }
+        }
+    }
+
+    /** A component whose value sets the bit with the given index of the output. */
+    private static final class Output
+    {
+        final int component;
+        final int bit;
+
+        Output(int component, int bit)
+        {
+            this.component = component;
+            this.bit = bit;
+        }
+    }
+
+    private static List<Output> flatten(int[][] componentsByRole)
+    {
+        List<Output> outputs = new ArrayList<Output>();
+        for (int[] components : componentsByRole) {
+            for (int component : components) {
+                outputs.add(new Output(component, outputs.size()));
+            }
+        }
+        return outputs;
+    }
+
+    /**
+     * Generates the statements that evaluate the gates the outputs depend
+     * on, in topological order, followed by the statements that set the
+     * output bits.
+     */
+    private List<String> generateStatements(List<Output> outputs)
+    {
+        // Find the cone of the outputs, and count the uses of every gate in it.
+        int size = types.length;
+        int[] uses = new int[size];
+        boolean[] inCone = new boolean[size];
+        List<Integer> stack = new ArrayList<Integer>();
+        for (Output output : outputs) {
+            uses[output.component]++;
+            stack.add(output.component);
+        }
+        while (!stack.isEmpty()) {
+            int c = stack.remove(stack.size() - 1);
+            if (c < numSources || inCone[c]) {
+                continue;
+            }
+            inCone[c] = true;
+            for (int k = inputOffsets[c]; k < inputOffsets[c + 1]; k++) {
+                uses[inputs[k]]++;
+                stack.add(inputs[k]);
+            }
+        }
+
+        String[] expressions = new String[size];
+        int[] operands = new int[size];
+        int[] depths = new int[size];
+        List<String> statements = new ArrayList<String>();
+        for (int c = numSources; c < size; c++) {
+            if (!inCone[c]) {
+                continue;
+            }
+            StringBuilder expression = new StringBuilder();
+            int numOperands = 0;
+            int depth = 0;
+            int start = inputOffsets[c];
+            int end = inputOffsets[c + 1];
+            if (types[c] == CompiledPropNet.TYPE_NOT) {
+                expression.append(reference(inputs[start], expressions)).append(" ^ 1L");
+                numOperands = operandsOf(inputs[start], operands);
+                depth = depths[inputs[start]];
+            } else {
+                String operator = (types[c] == CompiledPropNet.TYPE_AND) ? " & " : " | ";
+                if (start == end) {
+                    expression.append(types[c] == CompiledPropNet.TYPE_AND ? "1L" : "0L");
+                }
+                for (int k = start; k < end; k++) {
+                    if (k > start) {
+                        expression.append(operator);
+                    }
+                    expression.append(reference(inputs[k], expressions));
+                    numOperands += operandsOf(inputs[k], operands);
+                    depth = Math.max(depth, depths[inputs[k]]);
+                }
+            }
+            if (uses[c] == 1 && numOperands <= MAX_INLINED_OPERANDS && depth < MAX_INLINED_DEPTH) {
+                expressions[c] = "(" + expression + ")";
+                operands[c] = numOperands;
+                depths[c] = depth + 1;
+            } else {
+                statements.add("v[" + c + "] = " + expression + ";");
+                operands[c] = 0;
+            }
+        }
+        for (Output output : outputs) {
+            String word = "o[" + (output.bit >>> 6) + "]";
+            statements.add(word + " = " + word + " | " + shift(reference(output.component, expressions), "<<", output.bit) + ";");
+        }
+        return statements;
+    }
+
+    private String reference(int c, String[] expressions)
+    {
+        if (c < numBases) {
+            return "(" + shift("s[" + (c >>> 6) + "]", ">>>", c) + " & 1L)";
+        } else if (c < numBases + numInputs) {
+            int i = c - numBases;
+            return "(" + shift("in[" + (i >>> 6) + "]", ">>>", i) + " & 1L)";
+        } else if (c < numSources) {
+            return sourceValues[c] ? "1L" : "0L";
+        } else if (expressions[c] != null) {
+            return expressions[c];
+        }
+        return "v[" + c + "]";
+    }
+
+    private int operandsOf(int c, int[] operands)
+    {
+        return (c < numSources) ? 1 : Math.max(1, operands[c]);
+    }
+
+    private static String shift(String operand, String operator, int bit)
+    {
+        return ((bit & 63) == 0) ? operand : "(" + operand + " " + operator + " " + (bit & 63) + ")";
+    }
+
+    private static int estimateLength(String statement)
+    {
+        int numOperands = 1;
+        for (int i = statement.indexOf('['); i >= 0; i = statement.indexOf('[', i + 1)) {
+            numOperands++;
+        }
+        return STATEMENT_LENGTH + OPERAND_LENGTH * numOperands;
+    }
+
+    private static final class MethodTooLongException extends Exception
+    {
+        private static final long serialVersionUID = 1L;
+
+        MethodTooLongException(String message)
+        {
+            super(message);
+        }
+    }
+
+    private PropNetEvaluator generateClass(List<List<String>> methods, int chunkLength) throws CannotCompileException, NotFoundException, MethodTooLongException
+    {
+        ClassPool pool = new ClassPool(true);
+        pool.appendClassPath(new ClassClassPath(PropNetEvaluator.class));
+        String simpleName = "GeneratedPropNetEvaluator" + nextClassId.incrementAndGet();
+        String name = PropNetCompiler.class.getPackage().getName() + "." + simpleName;
+        CtClass generated = pool.makeClass(name, pool.get(BASE_CLASS));
+        try {
+            generated.addConstructor(CtNewConstructor.make("public " + simpleName + "() { super(" + types.length + "); }", generated));
+
+            String nextStateCalls = addChunks(generated, "nextState", "long[] s, long[] in, long[] v, long[] o", "s, in, v, o", methods.get(0), chunkLength);
+            String legalsCalls = addChunks(generated, "legals", "long[] s, long[] v, long[] o", "s, v, o", methods.get(1), chunkLength);
+            String goalsCalls = addChunks(generated, "goals", "long[] s, long[] v, long[] o", "s, v, o", methods.get(2), chunkLength);
+            String terminalCalls = addChunks(generated, "terminal", "long[] s, long[] v, long[] o", "s, v, o", methods.get(3), chunkLength);
+
+            addMethod(generated, "public void computeNextState(long[] s, long[] in, long[] o) { long[] v = this.values; " + nextStateCalls + "}");
+            addMethod(generated, "public void computeLegals(long[] s, long[] o) { long[] v = this.values; " + legalsCalls + "}");
+            addMethod(generated, "public void computeGoals(long[] s, long[] o) { long[] v = this.values; " + goalsCalls + "}");
+            addMethod(generated, "public void computeTerminal(long[] s, long[] o) { long[] v = this.values; " + terminalCalls + "}");
+
+            byte[] bytecode = generated.toBytecode();
+            Class<?> evaluatorClass = new EvaluatorClassLoader(PropNetEvaluator.class.getClassLoader()).define(name, bytecode);
+            return (PropNetEvaluator) evaluatorClass.newInstance();
+        } catch (java.io.IOException e) {
+            throw new CannotCompileException(e);
+        } catch (InstantiationException e) {
+            throw new CannotCompileException(e);
+        } catch (IllegalAccessException e) {
+            throw new CannotCompileException(e);
+        } catch (LinkageError e) {
+            throw new CannotCompileException(e);
+        } finally {
+            generated.detach();
+        }
+    }
+
+    /**
+     * Adds chunk methods that together run the statements, and returns the
+     * statements that call them in order.
+     */
+    private String addChunks(CtClass generated, String prefix, String parameters, String arguments, List<String> statements, int chunkLength) throws CannotCompileException, MethodTooLongException
+    {
+        StringBuilder calls = new StringBuilder();
+        StringBuilder body = new StringBuilder();
+        int length = 0;
+        int numChunks = 0;
+        for (int i = 0; i <= statements.size(); i++) {
+            if (i == statements.size() || (length > 0 && length + estimateLength(statements.get(i)) > chunkLength)) {
+                if (length > 0) {
+                    String chunk = prefix + numChunks++;
+                    addMethod(generated, "private void " + chunk + "(" + parameters + ") { " + body + "}");
+                    calls.append(chunk).append('(').append(arguments).append("); ");
+                }
+                body.setLength(0);
+                length = 0;
+                if (i == statements.size()) {
+                    break;
+                }
+            }
+            body.append(statements.get(i)).append(' ');
+            length += estimateLength(statements.get(i));
+        }
+        return calls.toString();
+    }
+
+    private void addMethod(CtClass generated, String source) throws CannotCompileException, MethodTooLongException
+    {
+        CtMethod method = CtNewMethod.make(source, generated);
+        CodeAttribute code = method.getMethodInfo().getCodeAttribute();
+        if (code != null && code.getCodeLength() > maxCodeLength) {
+            throw new MethodTooLongException(method.getName() + " is " + code.getCodeLength() + " bytes long");
+        }
+        generated.addMethod(method);
+    }
+
+    private static final class EvaluatorClassLoader extends ClassLoader
+    {
+        EvaluatorClassLoader(ClassLoader parent)
+        {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytecode)
+        {
+            return defineClass(name, bytecode, 0, bytecode.length);
+        }
+    }
+}
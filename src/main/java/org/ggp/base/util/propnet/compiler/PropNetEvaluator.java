@@ -0,0 +1,39 @@
+package org.ggp.base.util.propnet.compiler;
+
+/**
+ * PropNetEvaluator is the superclass of the game-specific classes generated
+ * by {@link PropNetCompiler}. Each method evaluates only the components that
+ * its outputs depend on, as straight-line code, reading base propositions
+ * from a bitset in the base order of the {@link
+ * org.ggp.base.util.propnet.architecture.CompiledPropNet} and writing its
+ * outputs to another bitset. Output bitsets must be cleared by the caller.
+ *
+ * Bits are numbered as in the compiled propnet: bases by base index, inputs
+ * by component index minus the number of bases, and legal and goal
+ * propositions by their position when the per-role arrays of
+ * getLegals() and getGoals() are laid out one role after another.
+ *
+ * An evaluator keeps intermediate values in an array of its own, as 0 or 1,
+ * so it is not thread-safe.
+ */
+public abstract class PropNetEvaluator
+{
+    protected final long[] values;
+
+    protected PropNetEvaluator(int size)
+    {
+        this.values = new long[size];
+    }
+
+    /** Sets in next the bits of the bases that are true after the inputs are played in the state. */
+    public abstract void computeNextState(long[] state, long[] inputs, long[] next);
+
+    /** Sets in legals the bits of the legal propositions that are true in the state. */
+    public abstract void computeLegals(long[] state, long[] legals);
+
+    /** Sets in goals the bits of the goal propositions that are true in the state. */
+    public abstract void computeGoals(long[] state, long[] goals);
+
+    /** Sets the first bit of terminal if the state is terminal. */
+    public abstract void computeTerminal(long[] state, long[] terminal);
+}
@@ -1,6 +1,7 @@
 package org.ggp.base.util.propnet.factory;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -12,6 +13,11 @@ import java.util.Map.Entry;
 import java.util.Queue;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.ggp.base.util.Pair;
 import org.ggp.base.util.concurrency.ConcurrencyUtils;
@@ -46,6 +52,7 @@ import org.ggp.base.util.gdl.transforms.DeORer;
 import org.ggp.base.util.gdl.transforms.GdlCleaner;
 import org.ggp.base.util.gdl.transforms.Relationizer;
 import org.ggp.base.util.gdl.transforms.VariableConstrainer;
+import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.propnet.architecture.Component;
 import org.ggp.base.util.propnet.architecture.PropNet;
 import org.ggp.base.util.propnet.architecture.components.And;
@@ -56,6 +63,7 @@ import org.ggp.base.util.propnet.architecture.components.Proposition;
 import org.ggp.base.util.propnet.architecture.components.Transition;
 import org.ggp.base.util.statemachine.Role;
 
+import com.google.common.base.Throwables;
 import com.google.common.collect.HashMultiset;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
@@ -114,9 +122,25 @@ public class OptimizingPropNetFactory {
     }
 
     public static PropNet create(List<Gdl> description, boolean verbose) throws InterruptedException {
+        return create(description, verbose, 1);
+    }
+
+    /**
+     * Creates a PropNet for the game with the given description, using up to
+     * numThreads threads to enumerate the rule assignments of independent
+     * sentence forms. The PropNet does not depend on the number of threads.
+     * The wall time of each phase is written to the "StateMachine" log.
+     *
+     * @throws InterruptedException if the thread is interrupted during
+     * PropNet creation.
+     */
+    public static PropNet create(List<Gdl> description, boolean verbose, int numThreads) throws InterruptedException {
         System.out.println("Building propnet...");
 
         long startTime = System.currentTimeMillis();
+        long enumerationTime = 0;
+        long wiringTime = 0;
+        long completionTime = 0;
 
         description = GdlCleaner.run(description);
         description = DeORer.run(description);
@@ -124,7 +148,7 @@ public class OptimizingPropNetFactory {
         description = Relationizer.run(description);
 
         description = CondensationIsolator.run(description);
-
+        long transformsEnd = System.currentTimeMillis();
 
         if(verbose)
             for(Gdl gdl : description)
@@ -137,11 +161,13 @@ public class OptimizingPropNetFactory {
         //See chinesecheckers4's "count" relation for an example of why this
         //could be useful.
         model = SentenceDomainModelOptimizer.restrictDomainsToUsefulValues(model);
+        long modelEnd = System.currentTimeMillis();
 
         if(verbose)
             System.out.println("Setting constants...");
 
         ConstantChecker constantChecker = ConstantCheckerFactory.createWithForwardChaining(model);
+        long constantsEnd = System.currentTimeMillis();
         if(verbose)
             System.out.println("Done setting constants");
 
@@ -163,6 +189,7 @@ public class OptimizingPropNetFactory {
         List<SentenceForm> topologicalOrdering = getTopologicalOrdering(model.getSentenceForms(), dependencyGraph, usingBase, usingInput);
         if(verbose)
             System.out.println("done");
+        long formsStart = System.currentTimeMillis();
 
         List<Role> roles = Role.computeRoles(description);
         Map<GdlSentence, Component> components = new HashMap<GdlSentence, Component>();
@@ -171,54 +198,89 @@ public class OptimizingPropNetFactory {
         Constant falseComponent = new Constant(false);
         Map<SentenceForm, FunctionInfo> functionInfoMap = new HashMap<SentenceForm, FunctionInfo>();
         Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues = new HashMap<SentenceForm, Collection<GdlSentence>>();
-        for(SentenceForm form : topologicalOrdering) {
-            ConcurrencyUtils.checkForInterruption();
-
-            if(verbose) {
-                System.out.print("Adding sentence form " + form);
-                System.out.flush();
-            }
-            if(constantChecker.isConstantForm(form)) {
-                if(verbose)
-                    System.out.println(" (constant)");
-                //Only add it if it's important
-                if(form.getName().equals(LEGAL)
-                        || form.getName().equals(GOAL)
-                        || form.getName().equals(INIT)
-                        || form.getName().equals(NEXT)
-                        || form.getName().equals(TERMINAL)) {
-                    //Add it
-                    for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
-                        Proposition trueProp = new Proposition(trueSentence);
-                        trueProp.addInput(trueComponent);
-                        trueComponent.addOutput(trueProp);
-                        components.put(trueSentence, trueComponent);
+        //Forms in the same layer don't depend on one another, so the
+        //assignments for their rules can be enumerated in parallel. The
+        //components are then wired one form at a time.
+        List<List<SentenceForm>> layers = getDependencyLayers(topologicalOrdering, dependencyGraph, usingBase, usingInput);
+        ExecutorService executor = numThreads > 1 ? Executors.newFixedThreadPool(numThreads) : null;
+        try {
+            for(List<SentenceForm> layer : layers) {
+                List<SentenceForm> nonConstantForms = new ArrayList<SentenceForm>(layer.size());
+                for(SentenceForm form : layer) {
+                    ConcurrencyUtils.checkForInterruption();
+
+                    if(!constantChecker.isConstantForm(form)) {
+                        nonConstantForms.add(form);
+                        continue;
+                    }
+                    if(verbose)
+                        System.out.println("Adding sentence form " + form + " (constant)");
+                    //Only add it if it's important
+                    if(form.getName().equals(LEGAL)
+                            || form.getName().equals(GOAL)
+                            || form.getName().equals(INIT)
+                            || form.getName().equals(NEXT)
+                            || form.getName().equals(TERMINAL)) {
+                        //Add it
+                        for (GdlSentence trueSentence : constantChecker.getTrueSentences(form)) {
+                            Proposition trueProp = new Proposition(trueSentence);
+                            trueProp.addInput(trueComponent);
+                            trueComponent.addOutput(trueProp);
+                            components.put(trueSentence, trueComponent);
+                        }
                     }
+
+                    if(verbose)
+                        System.out.println("Checking whether " + form + " is a functional constant...");
+                    addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
+                    addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
                 }
 
-                if(verbose)
-                    System.out.println("Checking whether " + form + " is a functional constant...");
-                addConstantsToFunctionInfo(form, constantChecker, functionInfoMap);
-                addFormToCompletedValues(form, completedSentenceFormValues, constantChecker);
+                for(SentenceForm form : nonConstantForms) {
+                    addAlwaysTrueSentences(form, model, components, negations, trueComponent, falseComponent);
+                }
 
-                continue;
+                long enumerationStart = System.currentTimeMillis();
+                List<Callable<List<GroundRule>>> enumerations = new ArrayList<Callable<List<GroundRule>>>(nonConstantForms.size());
+                for(SentenceForm form : nonConstantForms) {
+                    enumerations.add(new GroundRuleEnumeration(form, model, components, negations, falseComponent, usingBase, usingInput, functionInfoMap, constantChecker, completedSentenceFormValues));
+                }
+                List<List<GroundRule>> groundRules = invokeAll(executor, enumerations);
+                enumerationTime += System.currentTimeMillis() - enumerationStart;
+
+                long wiringStart = System.currentTimeMillis();
+                for(int i = 0; i < nonConstantForms.size(); i++) {
+                    SentenceForm form = nonConstantForms.get(i);
+                    if(verbose)
+                        System.out.println("Adding sentence form " + form);
+                    //TODO: Adjust "recursive forms" appropriately
+                    //Add a temporary sentence form thingy? ...
+                    Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
+                    Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
+                    addSentenceForm(form, groundRules.get(i), model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, constantChecker);
+                    //TODO: Pass these over groups of multiple sentence forms
+                    if(verbose && !temporaryComponents.isEmpty())
+                        System.out.println("Processing temporary components...");
+                    processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
+                }
+                wiringTime += System.currentTimeMillis() - wiringStart;
+
+                long completionStart = System.currentTimeMillis();
+                List<Callable<Collection<GdlSentence>>> completions = new ArrayList<Callable<Collection<GdlSentence>>>(nonConstantForms.size());
+                for(SentenceForm form : nonConstantForms) {
+                    completions.add(new CompletedValuesCollection(form, components));
+                }
+                List<Collection<GdlSentence>> completedValues = invokeAll(executor, completions);
+                for(int i = 0; i < nonConstantForms.size(); i++) {
+                    completedSentenceFormValues.put(nonConstantForms.get(i), completedValues.get(i));
+                }
+                completionTime += System.currentTimeMillis() - completionStart;
             }
-            if(verbose)
-                System.out.println();
-            //TODO: Adjust "recursive forms" appropriately
-            //Add a temporary sentence form thingy? ...
-            Map<GdlSentence, Component> temporaryComponents = new HashMap<GdlSentence, Component>();
-            Map<GdlSentence, Component> temporaryNegations = new HashMap<GdlSentence, Component>();
-            addSentenceForm(form, model, components, negations, trueComponent, falseComponent, usingBase, usingInput, Collections.singleton(form), temporaryComponents, temporaryNegations, functionInfoMap, constantChecker, completedSentenceFormValues);
-            //TODO: Pass these over groups of multiple sentence forms
-            if(verbose && !temporaryComponents.isEmpty())
-                System.out.println("Processing temporary components...");
-            processTemporaryComponents(temporaryComponents, temporaryNegations, components, negations, trueComponent, falseComponent);
-            addFormToCompletedValues(form, completedSentenceFormValues, components);
-            //if(verbose)
-            //TODO: Add this, but with the correct total number of components (not just Propositions)
-            //System.out.println("  "+completedSentenceFormValues.get(form).size() + " components added");
+        } finally {
+            if(executor != null)
+                executor.shutdownNow();
         }
+        long formsEnd = System.currentTimeMillis();
         //Connect "next" to "true"
         if(verbose)
             System.out.println("Adding transitions...");
@@ -242,7 +304,20 @@ public class OptimizingPropNetFactory {
         //Make it look the same as the PropNetFactory results, until we decide
         //how we want it to look
         normalizePropositions(componentSet);
+        long finishingEnd = System.currentTimeMillis();
         PropNet propnet = new PropNet(roles, componentSet);
+        long endTime = System.currentTimeMillis();
+        GamerLogger.log("StateMachine", "Built propnet with " + numThreads + " thread(s) in " + (endTime - startTime) + " ms: "
+                + "transforms " + (transformsEnd - startTime) + " ms, "
+                + "domain model " + (modelEnd - transformsEnd) + " ms, "
+                + "constants " + (constantsEnd - modelEnd) + " ms, "
+                + "ordering " + (formsStart - constantsEnd) + " ms, "
+                + "sentence forms " + (formsEnd - formsStart) + " ms ("
+                + "assignments " + enumerationTime + " ms, "
+                + "wiring " + wiringTime + " ms, "
+                + "completed values " + completionTime + " ms), "
+                + "transitions and cleanup " + (finishingEnd - formsEnd) + " ms, "
+                + "propnet object " + (endTime - finishingEnd) + " ms");
         if(verbose) {
             System.out.println("Done setting up propnet; took " + (System.currentTimeMillis() - startTime) + "ms, has " + componentSet.size() + " components and " + propnet.getNumLinks() + " links");
             System.out.println("Propnet has " +propnet.getNumAnds()+" ands; "+propnet.getNumOrs()+" ors; "+propnet.getNumNots()+" nots");
@@ -306,22 +381,62 @@ public class OptimizingPropNetFactory {
     }
 
 
-    private static void addFormToCompletedValues(
-            SentenceForm form,
-            Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues,
-            Map<GdlSentence, Component> components) throws InterruptedException {
-        //Kind of inefficient. Could do better by collecting these as we go,
-        //then adding them back into the CSFV map once the sentence forms are complete.
-        //completedSentenceFormValues.put(form, new ArrayList<GdlSentence>());
-        List<GdlSentence> sentences = new ArrayList<GdlSentence>();
-        for(GdlSentence sentence : components.keySet()) {
-            ConcurrencyUtils.checkForInterruption();
-            if(form.matches(sentence)) {
-                //The sentence has a node associated with it
-                sentences.add(sentence);
+    /**
+     * Collects the sentences of a completed sentence form that have a node
+     * associated with them. Only reads the components, so the forms of a
+     * layer can be collected in parallel.
+     */
+    private static class CompletedValuesCollection implements Callable<Collection<GdlSentence>> {
+        private final SentenceForm form;
+        private final Map<GdlSentence, Component> components;
+
+        public CompletedValuesCollection(SentenceForm form, Map<GdlSentence, Component> components) {
+            this.form = form;
+            this.components = components;
+        }
+
+        @Override
+        public Collection<GdlSentence> call() throws InterruptedException {
+            //Kind of inefficient. Could do better by collecting these as we go,
+            //then adding them back into the CSFV map once the sentence forms are complete.
+            List<GdlSentence> sentences = new ArrayList<GdlSentence>();
+            for(GdlSentence sentence : components.keySet()) {
+                ConcurrencyUtils.checkForInterruption();
+                if(form.matches(sentence)) {
+                    //The sentence has a node associated with it
+                    sentences.add(sentence);
+                }
             }
+            return sentences;
+        }
+    }
+
+    /**
+     * Runs the tasks on the executor, or on this thread if it is null, and
+     * returns their results in order.
+     */
+    private static <T> List<T> invokeAll(ExecutorService executor, List<Callable<T>> tasks) throws InterruptedException {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            if(executor == null || tasks.size() < 2) {
+                for(Callable<T> task : tasks)
+                    results.add(task.call());
+                return results;
+            }
+            List<Future<T>> futures = new ArrayList<Future<T>>(tasks.size());
+            for(Callable<T> task : tasks)
+                futures.add(executor.submit(task));
+            for(Future<T> future : futures)
+                results.add(future.get());
+            return results;
+        } catch(ExecutionException e) {
+            Throwables.propagateIfInstanceOf(e.getCause(), InterruptedException.class);
+            throw Throwables.propagate(e.getCause());
+        } catch(InterruptedException e) {
+            throw e;
+        } catch(Exception e) {
+            throw Throwables.propagate(e);
         }
-        completedSentenceFormValues.put(form, sentences);
     }
 
 
@@ -830,26 +945,208 @@ public class OptimizingPropNetFactory {
         return ordering;
     }
 
-    private static void addSentenceForm(SentenceForm form, SentenceDomainModel model,
-            Map<GdlSentence, Component> components,
-            Map<GdlSentence, Component> negations,
-            Constant trueComponent, Constant falseComponent,
-            boolean usingBase, boolean usingInput,
-            Set<SentenceForm> recursionForms,
-            Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
-            Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
-            Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) throws InterruptedException {
-        //This is the meat of it (along with the entire Assignments class).
-        //We need to enumerate the possible propositions in the sentence form...
-        //We also need to hook up the sentence form to the inputs that can make it true.
-        //We also try to optimize as we go, which means possibly removing the
-        //proposition if it isn't actually possible, or replacing it with
-        //true/false if it's a constant.
+    /**
+     * Splits the topological ordering into layers, such that every sentence
+     * form only depends on forms in earlier layers (or on itself). Within a
+     * layer, forms keep their topological order.
+     */
+    private static List<List<SentenceForm>> getDependencyLayers(
+            List<SentenceForm> topologicalOrdering,
+            Multimap<SentenceForm, SentenceForm> dependencyGraph, boolean usingBase, boolean usingInput) {
+        Map<SentenceForm, Integer> layerIndices = new HashMap<SentenceForm, Integer>();
+        List<List<SentenceForm>> layers = new ArrayList<List<SentenceForm>>();
+        for(SentenceForm form : topologicalOrdering) {
+            List<SentenceForm> dependencies = new ArrayList<SentenceForm>(dependencyGraph.get(form));
+            //The same extra constraints as in the topological ordering
+            if(usingBase && (form.getName().equals(TRUE) || form.getName().equals(NEXT) || form.getName().equals(INIT)))
+                dependencies.add(form.withName(BASE));
+            if(usingInput && (form.getName().equals(DOES) || form.getName().equals(LEGAL)))
+                dependencies.add(form.withName(INPUT));
+            int layerIndex = 0;
+            for(SentenceForm dependency : dependencies) {
+                Integer dependencyLayer = layerIndices.get(dependency);
+                if(!dependency.equals(form) && dependencyLayer != null)
+                    layerIndex = Math.max(layerIndex, dependencyLayer + 1);
+            }
+            layerIndices.put(form, layerIndex);
+            if(layerIndex == layers.size())
+                layers.add(new ArrayList<SentenceForm>());
+            layers.get(layerIndex).add(form);
+        }
+        return layers;
+    }
 
-        Set<GdlSentence> alwaysTrueSentences = model.getSentencesListedAsTrue(form);
-        Set<GdlRule> rules = model.getRules(form);
+    /**
+     * A rule with its variables replaced according to one assignment,
+     * keeping only the conjuncts whose sentence forms are not constant.
+     */
+    private static class GroundRule {
+        private final GdlSentence head;
+        private final GdlSentence[] conjuncts;
+        private final boolean[] negated;
+
+        public GroundRule(GdlSentence head, GdlSentence[] conjuncts, boolean[] negated) {
+            this.head = head;
+            this.conjuncts = conjuncts;
+            this.negated = negated;
+        }
+    }
 
-        for(GdlSentence alwaysTrueSentence : alwaysTrueSentences) {
+    /**
+     * Enumerates the assignments to the rules of a sentence form that could
+     * make its head true, given the components of the forms it depends on.
+     * Only reads the components and negations, so the forms of a layer can
+     * be enumerated in parallel while nothing else touches them.
+     */
+    private static class GroundRuleEnumeration implements Callable<List<GroundRule>> {
+        private final SentenceForm form;
+        private final SentenceDomainModel model;
+        private final Map<GdlSentence, Component> components;
+        private final Map<GdlSentence, Component> negations;
+        private final Constant falseComponent;
+        private final boolean usingBase;
+        private final boolean usingInput;
+        private final Map<SentenceForm, FunctionInfo> functionInfoMap;
+        private final ConstantChecker constantChecker;
+        private final Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues;
+
+        public GroundRuleEnumeration(SentenceForm form, SentenceDomainModel model,
+                Map<GdlSentence, Component> components,
+                Map<GdlSentence, Component> negations,
+                Constant falseComponent,
+                boolean usingBase, boolean usingInput,
+                Map<SentenceForm, FunctionInfo> functionInfoMap, ConstantChecker constantChecker,
+                Map<SentenceForm, Collection<GdlSentence>> completedSentenceFormValues) {
+            this.form = form;
+            this.model = model;
+            this.components = components;
+            this.negations = negations;
+            this.falseComponent = falseComponent;
+            this.usingBase = usingBase;
+            this.usingInput = usingInput;
+            this.functionInfoMap = functionInfoMap;
+            this.constantChecker = constantChecker;
+            this.completedSentenceFormValues = completedSentenceFormValues;
+        }
+
+        @Override
+        public List<GroundRule> call() throws InterruptedException {
+            List<GroundRule> groundRules = new ArrayList<GroundRule>();
+            //For does/true, nodes are made based on input/base, if available
+            if((usingInput && form.getName().equals(DOES))
+                    || (usingBase && form.getName().equals(TRUE))) {
+                return groundRules;
+            }
+            Set<SentenceForm> recursionForms = Collections.singleton(form);
+
+            for(GdlRule rule : model.getRules(form)) {
+                Assignments assignments = AssignmentsFactory.getAssignmentsForRule(rule, model, functionInfoMap, completedSentenceFormValues);
+
+                //Calculate vars in live (non-constant, non-distinct) conjuncts
+                Set<GdlVariable> varsInLiveConjuncts = getVarsInLiveConjuncts(rule, constantChecker.getConstantSentenceForms());
+                varsInLiveConjuncts.addAll(GdlUtils.getVariables(rule.getHead()));
+                Set<GdlVariable> varsInRule = new HashSet<GdlVariable>(GdlUtils.getVariables(rule));
+                boolean preventDuplicatesFromConstants =
+                        (varsInRule.size() > varsInLiveConjuncts.size());
+
+                //Do we just pass those to the Assignments class in that case?
+                for(AssignmentIterator asnItr = assignments.getIterator(); asnItr.hasNext(); ) {
+                    Map<GdlVariable, GdlConstant> assignment = asnItr.next();
+                    if(assignment == null) continue; //Not sure if this will ever happen
+
+                    ConcurrencyUtils.checkForInterruption();
+
+                    GdlSentence sentence = CommonTransforms.replaceVariables(rule.getHead(), assignment);
+
+                    //Now we go through the conjuncts as before, but we wait to hook them up.
+                    List<GdlSentence> conjuncts = new ArrayList<GdlSentence>(rule.arity());
+                    boolean[] negated = new boolean[rule.arity()];
+                    boolean possible = true;
+                    for(GdlLiteral literal : rule.getBody()) {
+                        if(literal instanceof GdlSentence) {
+                            //Get the sentence post-substitutions
+                            GdlSentence transformed = CommonTransforms.replaceVariables((GdlSentence) literal, assignment);
+
+                            //Check for constant-ness
+                            SentenceForm conjunctForm = model.getSentenceForm(transformed);
+                            if(constantChecker.isConstantForm(conjunctForm)) {
+                                if(!constantChecker.isTrueConstant(transformed)) {
+                                    List<GdlVariable> varsToChange = getVarsInConjunct(literal);
+                                    asnItr.changeOneInNext(varsToChange, assignment);
+                                    possible = false;
+                                }
+                                continue;
+                            }
+
+                            Component conj = components.get(transformed);
+                            //If conj is null and this is a sentence form we're still handling,
+                            //it will be hooked up to a temporary sentence form
+                            boolean impossible = (conj == null)
+                                    ? !SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)
+                                    : isThisConstant(conj, falseComponent);
+                            //Let's say this is false; we want to backtrack and change the right variable
+                            if(impossible) {
+                                List<GdlVariable> varsInConjunct = getVarsInConjunct(literal);
+                                asnItr.changeOneInNext(varsInConjunct, assignment);
+                                possible = false;
+                                continue; //look at all the other restrictions we'll face
+                            }
+
+                            conjuncts.add(transformed);
+                        } else if(literal instanceof GdlNot) {
+                            //Look up the negation
+                            GdlSentence internal = (GdlSentence) ((GdlNot) literal).getBody();
+                            GdlSentence transformed = CommonTransforms.replaceVariables(internal, assignment);
+
+                            //Add constant-checking here...
+                            SentenceForm conjunctForm = model.getSentenceForm(transformed);
+                            if(constantChecker.isConstantForm(conjunctForm)) {
+                                if(constantChecker.isTrueConstant(transformed)) {
+                                    List<GdlVariable> varsToChange = getVarsInConjunct(literal);
+                                    asnItr.changeOneInNext(varsToChange, assignment);
+                                    possible = false;
+                                }
+                                continue;
+                            }
+
+                            Component conj = negations.get(transformed);
+                            if(isThisConstant(conj, falseComponent)) {
+                                //We need to change one of the variables inside
+                                List<GdlVariable> varsInConjunct = getVarsInConjunct(internal);
+                                asnItr.changeOneInNext(varsInConjunct, assignment);
+                                possible = false;
+                                continue;
+                            }
+
+                            negated[conjuncts.size()] = true;
+                            conjuncts.add(transformed);
+                        } else if(literal instanceof GdlDistinct) {
+                            //Already handled; ignore
+                        } else {
+                            throw new RuntimeException("Unwanted GdlLiteral type");
+                        }
+                    }
+                    if(possible) {
+                        groundRules.add(new GroundRule(sentence,
+                                conjuncts.toArray(new GdlSentence[conjuncts.size()]),
+                                Arrays.copyOf(negated, conjuncts.size())));
+                        //We'll want to make sure at least one of the non-constant
+                        //components is changing
+                        if(preventDuplicatesFromConstants) {
+                            asnItr.changeOneInNext(varsInLiveConjuncts, assignment);
+                        }
+                    }
+                }
+            }
+            return groundRules;
+        }
+    }
+
+    private static void addAlwaysTrueSentences(SentenceForm form, SentenceDomainModel model,
+            Map<GdlSentence, Component> components,
+            Map<GdlSentence, Component> negations,
+            Constant trueComponent, Constant falseComponent) {
+        for(GdlSentence alwaysTrueSentence : model.getSentencesListedAsTrue(form)) {
             //We add the sentence as a constant
             if(alwaysTrueSentence.getName().equals(LEGAL)
                     || alwaysTrueSentence.getName().equals(NEXT)
@@ -864,8 +1161,25 @@ public class OptimizingPropNetFactory {
             //Assign as true
             components.put(alwaysTrueSentence, trueComponent);
             negations.put(alwaysTrueSentence, falseComponent);
-            continue;
         }
+    }
+
+    private static void addSentenceForm(SentenceForm form, List<GroundRule> groundRules,
+            SentenceDomainModel model,
+            Map<GdlSentence, Component> components,
+            Map<GdlSentence, Component> negations,
+            Constant trueComponent, Constant falseComponent,
+            boolean usingBase, boolean usingInput,
+            Set<SentenceForm> recursionForms,
+            Map<GdlSentence, Component> temporaryComponents, Map<GdlSentence, Component> temporaryNegations,
+            ConstantChecker constantChecker) throws InterruptedException {
+        //This is the meat of it (along with the entire Assignments class).
+        //The possible propositions in the sentence form have been enumerated
+        //by the GroundRuleEnumeration; now we hook up the sentence form to the
+        //inputs that can make it true.
+        //We also try to optimize as we go, which means possibly removing the
+        //proposition if it isn't actually possible, or replacing it with
+        //true/false if it's a constant.
 
         //For does/true, make nodes based on input/base, if available
         if(usingInput && form.getName().equals(DOES)) {
@@ -889,166 +1203,106 @@ public class OptimizingPropNetFactory {
         }
 
         Map<GdlSentence, Set<Component>> inputsToOr = new HashMap<GdlSentence, Set<Component>>();
-        for(GdlRule rule : rules) {
-            Assignments assignments = AssignmentsFactory.getAssignmentsForRule(rule, model, functionInfoMap, completedSentenceFormValues);
-
-            //Calculate vars in live (non-constant, non-distinct) conjuncts
-            Set<GdlVariable> varsInLiveConjuncts = getVarsInLiveConjuncts(rule, constantChecker.getConstantSentenceForms());
-            varsInLiveConjuncts.addAll(GdlUtils.getVariables(rule.getHead()));
-            Set<GdlVariable> varsInRule = new HashSet<GdlVariable>(GdlUtils.getVariables(rule));
-            boolean preventDuplicatesFromConstants =
-                    (varsInRule.size() > varsInLiveConjuncts.size());
-
-            //Do we just pass those to the Assignments class in that case?
-            for(AssignmentIterator asnItr = assignments.getIterator(); asnItr.hasNext(); ) {
-                Map<GdlVariable, GdlConstant> assignment = asnItr.next();
-                if(assignment == null) continue; //Not sure if this will ever happen
-
-                ConcurrencyUtils.checkForInterruption();
+        for(GroundRule groundRule : groundRules) {
+            ConcurrencyUtils.checkForInterruption();
 
-                GdlSentence sentence = CommonTransforms.replaceVariables(rule.getHead(), assignment);
-
-                //Now we go through the conjuncts as before, but we wait to hook them up.
-                List<Component> componentsToConnect = new ArrayList<Component>(rule.arity());
-                for(GdlLiteral literal : rule.getBody()) {
-                    if(literal instanceof GdlSentence) {
-                        //Get the sentence post-substitutions
-                        GdlSentence transformed = CommonTransforms.replaceVariables((GdlSentence) literal, assignment);
-
-                        //Check for constant-ness
-                        SentenceForm conjunctForm = model.getSentenceForm(transformed);
-                        if(constantChecker.isConstantForm(conjunctForm)) {
-                            if(!constantChecker.isTrueConstant(transformed)) {
-                                List<GdlVariable> varsToChange = getVarsInConjunct(literal);
-                                asnItr.changeOneInNext(varsToChange, assignment);
-                                componentsToConnect.add(null);
-                            }
-                            continue;
-                        }
+            GdlSentence sentence = groundRule.head;
+            List<Component> componentsToConnect = new ArrayList<Component>(groundRule.conjuncts.length);
+            for(int i = 0; i < groundRule.conjuncts.length; i++) {
+                GdlSentence transformed = groundRule.conjuncts[i];
+                if(!groundRule.negated[i]) {
+                    Component conj = components.get(transformed);
+                    //If conj is null and this is a sentence form we're still handling,
+                    //hook up to a temporary sentence form
+                    if(conj == null) {
+                        conj = temporaryComponents.get(transformed);
+                    }
+                    if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
+                        //Set up a temporary component
+                        Proposition tempProp = new Proposition(transformed);
+                        temporaryComponents.put(transformed, tempProp);
+                        conj = tempProp;
+                    }
+                    //Let's say this is false; ignore this rule
+                    if(conj == null || isThisConstant(conj, falseComponent)) {
+                        componentsToConnect.add(null);
+                        continue;
+                    }
 
-                        Component conj = components.get(transformed);
-                        //If conj is null and this is a sentence form we're still handling,
-                        //hook up to a temporary sentence form
-                        if(conj == null) {
-                            conj = temporaryComponents.get(transformed);
+                    componentsToConnect.add(conj);
+                } else {
+                    //Add a "not" if necessary
+                    //Look up the negation
+                    Component conj = negations.get(transformed);
+                    if(isThisConstant(conj, falseComponent)) {
+                        //ignore this rule
+                        componentsToConnect.add(null);
+                        continue;
+                    }
+                    if(conj == null) {
+                        conj = temporaryNegations.get(transformed);
+                    }
+                    //Check for the recursive case:
+                    if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
+                        Component positive = components.get(transformed);
+                        if(positive == null) {
+                            positive = temporaryComponents.get(transformed);
                         }
-                        if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
-                            //Set up a temporary component
+                        if(positive == null) {
+                            //Make the temporary proposition
                             Proposition tempProp = new Proposition(transformed);
                             temporaryComponents.put(transformed, tempProp);
-                            conj = tempProp;
-                        }
-                        //Let's say this is false; we want to backtrack and change the right variable
-                        if(conj == null || isThisConstant(conj, falseComponent)) {
-                            List<GdlVariable> varsInConjunct = getVarsInConjunct(literal);
-                            asnItr.changeOneInNext(varsInConjunct, assignment);
-                            //These last steps just speed up the process
-                            //telling the factory to ignore this rule
-                            componentsToConnect.add(null);
-                            continue; //look at all the other restrictions we'll face
+                            positive = tempProp;
                         }
+                        //Positive is now set and in temporaryComponents
+                        //Evidently, wasn't in temporaryNegations
+                        //So we add the "not" gate and set it in temporaryNegations
+                        Not not = new Not();
+                        //Add positive as input
+                        not.addInput(positive);
+                        positive.addOutput(not);
+                        temporaryNegations.put(transformed, not);
+                        conj = not;
+                    }
+                    if(conj == null) {
+                        Component positive = components.get(transformed);
+                        //No, because then that will be attached to "negations", which could be bad
 
-                        componentsToConnect.add(conj);
-                    } else if(literal instanceof GdlNot) {
-                        //Add a "not" if necessary
-                        //Look up the negation
-                        GdlSentence internal = (GdlSentence) ((GdlNot) literal).getBody();
-                        GdlSentence transformed = CommonTransforms.replaceVariables(internal, assignment);
-
-                        //Add constant-checking here...
-                        SentenceForm conjunctForm = model.getSentenceForm(transformed);
-                        if(constantChecker.isConstantForm(conjunctForm)) {
-                            if(constantChecker.isTrueConstant(transformed)) {
-                                List<GdlVariable> varsToChange = getVarsInConjunct(literal);
-                                asnItr.changeOneInNext(varsToChange, assignment);
-                                componentsToConnect.add(null);
-                            }
-                            continue;
-                        }
+                        if(positive == null) {
+                            //So the positive can't possibly be true (unless we have recurstion)
+                            //and so this would be positive always
+                            //We want to just skip this conjunct, so we continue to the next
 
-                        Component conj = negations.get(transformed);
-                        if(isThisConstant(conj, falseComponent)) {
-                            //We need to change one of the variables inside
-                            List<GdlVariable> varsInConjunct = getVarsInConjunct(internal);
-                            asnItr.changeOneInNext(varsInConjunct, assignment);
-                            //ignore this rule
-                            componentsToConnect.add(null);
-                            continue;
-                        }
-                        if(conj == null) {
-                            conj = temporaryNegations.get(transformed);
+                            continue; //to the next conjunct
                         }
-                        //Check for the recursive case:
-                        if(conj == null && SentenceModelUtils.inSentenceFormGroup(transformed, recursionForms)) {
-                            Component positive = components.get(transformed);
-                            if(positive == null) {
-                                positive = temporaryComponents.get(transformed);
-                            }
-                            if(positive == null) {
-                                //Make the temporary proposition
-                                Proposition tempProp = new Proposition(transformed);
-                                temporaryComponents.put(transformed, tempProp);
-                                positive = tempProp;
-                            }
-                            //Positive is now set and in temporaryComponents
-                            //Evidently, wasn't in temporaryNegations
-                            //So we add the "not" gate and set it in temporaryNegations
-                            Not not = new Not();
-                            //Add positive as input
-                            not.addInput(positive);
-                            positive.addOutput(not);
-                            temporaryNegations.put(transformed, not);
-                            conj = not;
-                        }
-                        if(conj == null) {
-                            Component positive = components.get(transformed);
-                            //No, because then that will be attached to "negations", which could be bad
 
-                            if(positive == null) {
-                                //So the positive can't possibly be true (unless we have recurstion)
-                                //and so this would be positive always
-                                //We want to just skip this conjunct, so we continue to the next
-
-                                continue; //to the next conjunct
-                            }
-
-                            //Check if we're sharing a component with another sentence with a negation
-                            //(i.e. look for "nots" in our outputs and use those instead)
-                            Not existingNotOutput = getNotOutput(positive);
-                            if(existingNotOutput != null) {
-                                componentsToConnect.add(existingNotOutput);
-                                negations.put(transformed, existingNotOutput);
-                                continue; //to the next conjunct
-                            }
-
-                            Not not = new Not();
-                            not.addInput(positive);
-                            positive.addOutput(not);
-                            negations.put(transformed, not);
-                            conj = not;
+                        //Check if we're sharing a component with another sentence with a negation
+                        //(i.e. look for "nots" in our outputs and use those instead)
+                        Not existingNotOutput = getNotOutput(positive);
+                        if(existingNotOutput != null) {
+                            componentsToConnect.add(existingNotOutput);
+                            negations.put(transformed, existingNotOutput);
+                            continue; //to the next conjunct
                         }
-                        componentsToConnect.add(conj);
-                    } else if(literal instanceof GdlDistinct) {
-                        //Already handled; ignore
-                    } else {
-                        throw new RuntimeException("Unwanted GdlLiteral type");
+
+                        Not not = new Not();
+                        not.addInput(positive);
+                        positive.addOutput(not);
+                        negations.put(transformed, not);
+                        conj = not;
                     }
+                    componentsToConnect.add(conj);
                 }
-                if(!componentsToConnect.contains(null)) {
-                    //Connect all the components
-                    Proposition andComponent = new Proposition(TEMP);
-
-                    andify(componentsToConnect, andComponent, trueComponent);
-                    if(!isThisConstant(andComponent, falseComponent)) {
-                        if(!inputsToOr.containsKey(sentence))
-                            inputsToOr.put(sentence, new HashSet<Component>());
-                        inputsToOr.get(sentence).add(andComponent);
-                        //We'll want to make sure at least one of the non-constant
-                        //components is changing
-                        if(preventDuplicatesFromConstants) {
-                            asnItr.changeOneInNext(varsInLiveConjuncts, assignment);
-                        }
-                    }
+            }
+            if(!componentsToConnect.contains(null)) {
+                //Connect all the components
+                Proposition andComponent = new Proposition(TEMP);
+
+                andify(componentsToConnect, andComponent, trueComponent);
+                if(!isThisConstant(andComponent, falseComponent)) {
+                    if(!inputsToOr.containsKey(sentence))
+                        inputsToOr.put(sentence, new HashSet<Component>());
+                    inputsToOr.get(sentence).add(andComponent);
                 }
             }
         }
@@ -0,0 +1,437 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.crypto.BaseHashing;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlProposition;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+import org.ggp.base.util.statemachine.Role;
+
+/**
+ * PropNetCache keeps the propnets built by {@link OptimizingPropNetFactory}
+ * and optimized by {@link PropNetOptimizer} on disk, so that a game that is
+ * played again does not have to be built again. Propnets are stored in a cache directory, one file per game, named
+ * after the SHA1 hash of the canonicalized rules: the roles in order, then
+ * every rule, sorted, so that reordering the rules does not change the key.
+ *
+ * A file holds a compact binary form of the propnet: a table of the
+ * constants used in sentences, the roles, and then the components, each
+ * with its type, its sentence (for propositions) or value (for constants),
+ * and the indices of its inputs. The base, input, legal, goal, init and
+ * terminal propositions are found again from their sentences when the
+ * PropNet is rebuilt, as they are for a freshly built one. Files are read
+ * through a memory-mapped buffer.
+ *
+ * A file that cannot be read is rebuilt and overwritten, and files are
+ * written to a temporary file first and then moved into place, so several
+ * players can share a cache directory.
+ *
+ * A cache without a directory builds every propnet afresh and never
+ * touches the disk. The default cache is one until a player opts in with
+ * {@link #setDefaultDirectory(File)}, so that tests and tools do not leave
+ * files behind in their working directory.
+ */
+public final class PropNetCache
+{
+    // Bump whenever the file format or the output of the factory changes,
+    // so that older files are no longer found.
+    private static final int VERSION = 3;
+    private static final int MAGIC = 0x504e4331; // "PNC1"
+
+    private static final byte PROPOSITION = 0;
+    private static final byte AND = 1;
+    private static final byte OR = 2;
+    private static final byte NOT = 3;
+    private static final byte TRANSITION = 4;
+    private static final byte CONSTANT = 5;
+
+    private static final byte TERM_CONSTANT = 0;
+    private static final byte TERM_FUNCTION = 1;
+    private static final byte TERM_VARIABLE = 2;
+    private static final byte SENTENCE_PROPOSITION = 0;
+    private static final byte SENTENCE_RELATION = 1;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static volatile PropNetCache defaultCache = new PropNetCache(null);
+
+    private final File directory;
+
+    /** Creates a cache in the given directory, or one that only builds propnets if it is null. */
+    public PropNetCache(File directory)
+    {
+        this.directory = directory;
+    }
+
+    /**
+     * Returns the cache used by the state machines that build propnets,
+     * which has no directory unless one was set.
+     */
+    public static PropNetCache getDefault()
+    {
+        return defaultCache;
+    }
+
+    /** Makes the default cache keep propnets in the given directory, or in none if it is null. */
+    public static void setDefaultDirectory(File directory)
+    {
+        defaultCache = new PropNetCache(directory);
+    }
+
+    /** Returns the directory of the cache, or null if it does not keep propnets on disk. */
+    public File getDirectory()
+    {
+        return directory;
+    }
+
+    /**
+     * Returns the propnet for the game, loading it from the cache if it was
+     * built before, and building and caching it otherwise.
+     */
+    public PropNet create(List<Gdl> description) throws InterruptedException
+    {
+        if (directory == null) {
+            PropNet propNet = OptimizingPropNetFactory.create(description, false, Runtime.getRuntime().availableProcessors());
+            PropNetOptimizer.optimize(propNet);
+            return propNet;
+        }
+        String key = getKey(description);
+        File file = new File(directory, key + ".propnet");
+        if (file.isFile()) {
+            long start = System.currentTimeMillis();
+            try {
+                PropNet propNet = read(file);
+                GamerLogger.log("StateMachine", "Loaded propnet " + key + " from the cache in "
+                        + (System.currentTimeMillis() - start) + " ms (" + propNet.getSize() + " components)");
+                return propNet;
+            } catch (IOException | RuntimeException e) {
+                GamerLogger.log("StateMachine", "Could not load propnet " + key + " from the cache, rebuilding it: " + e);
+            }
+        }
+
+        long start = System.currentTimeMillis();
+        PropNet propNet = OptimizingPropNetFactory.create(description, false, Runtime.getRuntime().availableProcessors());
+        PropNetOptimizer.optimize(propNet);
+        long built = System.currentTimeMillis();
+        try {
+            write(propNet, file);
+            GamerLogger.log("StateMachine", "Built propnet " + key + " in " + (built - start) + " ms (" + propNet.getSize()
+                    + " components), and saved it to the cache in " + (System.currentTimeMillis() - built) + " ms");
+        } catch (IOException e) {
+            GamerLogger.log("StateMachine", "Built propnet " + key + " in " + (built - start) + " ms, but could not save it to the cache: " + e);
+        }
+        return propNet;
+    }
+
+    /** Returns the key under which the propnet for the game is cached. */
+    public static String getKey(List<Gdl> description)
+    {
+        List<String> rules = new ArrayList<String>(description.size());
+        StringBuilder canonical = new StringBuilder();
+        canonical.append(VERSION).append('\n');
+        for (Gdl gdl : description) {
+            rules.add(gdl.toString());
+            if (gdl instanceof GdlSentence && ((GdlSentence) gdl).getName().equals(GdlPool.ROLE)) {
+                // The order of the roles matters, so record it apart from the sorted rules.
+                canonical.append(gdl).append('\n');
+            }
+        }
+        Collections.sort(rules);
+        for (String rule : rules) {
+            canonical.append(rule).append('\n');
+        }
+        return BaseHashing.computeSHA1Hash(canonical.toString());
+    }
+
+    // ==== Writing ====
+
+    /** Writes the propnet to the file, replacing it atomically. */
+    public static void write(PropNet propNet, File file) throws IOException
+    {
+        File directory = file.getAbsoluteFile().getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary), 1 << 16));
+            try {
+                write(propNet, out);
+            } finally {
+                out.close();
+            }
+            Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporary.delete();
+        }
+    }
+
+    private static void write(PropNet propNet, DataOutputStream out) throws IOException
+    {
+        List<Component> components = new ArrayList<Component>(propNet.getComponents());
+        Map<Component, Integer> indices = new HashMap<Component, Integer>();
+        for (Component c : components) {
+            indices.put(c, indices.size());
+        }
+
+        // Collect the constants first, so that they can be written as a table.
+        Map<GdlConstant, Integer> constants = new HashMap<GdlConstant, Integer>();
+        List<GdlConstant> constantTable = new ArrayList<GdlConstant>();
+        for (Role role : propNet.getRoles()) {
+            addConstant(role.getName(), constants, constantTable);
+        }
+        for (Component c : components) {
+            if (c instanceof Proposition) {
+                collectConstants(((Proposition) c).getName(), constants, constantTable);
+            }
+        }
+
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(constantTable.size());
+        for (GdlConstant constant : constantTable) {
+            writeString(constant.getValue(), out);
+        }
+        out.writeInt(propNet.getRoles().size());
+        for (Role role : propNet.getRoles()) {
+            out.writeInt(constants.get(role.getName()));
+        }
+        out.writeInt(components.size());
+        for (Component c : components) {
+            if (c instanceof Proposition) {
+                out.writeByte(PROPOSITION);
+                writeSentence(((Proposition) c).getName(), constants, out);
+            } else if (c instanceof And) {
+                out.writeByte(AND);
+            } else if (c instanceof Or) {
+                out.writeByte(OR);
+            } else if (c instanceof Not) {
+                out.writeByte(NOT);
+            } else if (c instanceof Transition) {
+                out.writeByte(TRANSITION);
+            } else if (c instanceof Constant) {
+                out.writeByte(CONSTANT);
+                out.writeBoolean(c.getValue());
+            } else {
+                throw new IOException("Cannot write component of " + c.getClass());
+            }
+            out.writeInt(c.getInputs().size());
+            for (Component input : c.getInputs()) {
+                out.writeInt(indices.get(input));
+            }
+        }
+    }
+
+    private static void addConstant(GdlConstant constant, Map<GdlConstant, Integer> constants, List<GdlConstant> constantTable)
+    {
+        if (!constants.containsKey(constant)) {
+            constants.put(constant, constantTable.size());
+            constantTable.add(constant);
+        }
+    }
+
+    private static void collectConstants(GdlSentence sentence, Map<GdlConstant, Integer> constants, List<GdlConstant> constantTable)
+    {
+        addConstant(sentence.getName(), constants, constantTable);
+        for (GdlTerm term : sentence.getBody()) {
+            collectConstants(term, constants, constantTable);
+        }
+    }
+
+    private static void collectConstants(GdlTerm term, Map<GdlConstant, Integer> constants, List<GdlConstant> constantTable)
+    {
+        if (term instanceof GdlConstant) {
+            addConstant((GdlConstant) term, constants, constantTable);
+        } else if (term instanceof GdlFunction) {
+            GdlFunction function = (GdlFunction) term;
+            addConstant(function.getName(), constants, constantTable);
+            for (GdlTerm argument : function.getBody()) {
+                collectConstants(argument, constants, constantTable);
+            }
+        }
+    }
+
+    private static void writeSentence(GdlSentence sentence, Map<GdlConstant, Integer> constants, DataOutputStream out) throws IOException
+    {
+        if (sentence instanceof GdlProposition) {
+            out.writeByte(SENTENCE_PROPOSITION);
+            out.writeInt(constants.get(sentence.getName()));
+        } else {
+            out.writeByte(SENTENCE_RELATION);
+            out.writeInt(constants.get(sentence.getName()));
+            out.writeInt(sentence.arity());
+            for (GdlTerm term : sentence.getBody()) {
+                writeTerm(term, constants, out);
+            }
+        }
+    }
+
+    private static void writeTerm(GdlTerm term, Map<GdlConstant, Integer> constants, DataOutputStream out) throws IOException
+    {
+        if (term instanceof GdlConstant) {
+            out.writeByte(TERM_CONSTANT);
+            out.writeInt(constants.get(term));
+        } else if (term instanceof GdlFunction) {
+            GdlFunction function = (GdlFunction) term;
+            out.writeByte(TERM_FUNCTION);
+            out.writeInt(constants.get(function.getName()));
+            out.writeInt(function.arity());
+            for (GdlTerm argument : function.getBody()) {
+                writeTerm(argument, constants, out);
+            }
+        } else {
+            out.writeByte(TERM_VARIABLE);
+            writeString(((GdlVariable) term).getName(), out);
+        }
+    }
+
+    private static void writeString(String string, DataOutputStream out) throws IOException
+    {
+        byte[] bytes = string.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // ==== Reading ====
+
+    /**
+     * Reads a propnet written by {@link #write(PropNet, File)}.
+     *
+     * @throws IOException if the file cannot be read or is not a propnet
+     * of the current version.
+     */
+    public static PropNet read(File file) throws IOException
+    {
+        ByteBuffer in;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            channel.close();
+        }
+        if (in.getInt() != MAGIC || in.getInt() != VERSION) {
+            throw new IOException(file + " is not a propnet of version " + VERSION);
+        }
+
+        GdlConstant[] constants = new GdlConstant[in.getInt()];
+        for (int i = 0; i < constants.length; i++) {
+            constants[i] = GdlPool.getConstant(readString(in));
+        }
+        int numRoles = in.getInt();
+        List<Role> roles = new ArrayList<Role>(numRoles);
+        for (int r = 0; r < numRoles; r++) {
+            roles.add(new Role(constants[in.getInt()]));
+        }
+
+        Component[] components = new Component[in.getInt()];
+        int[][] inputs = new int[components.length][];
+        for (int i = 0; i < components.length; i++) {
+            byte type = in.get();
+            switch (type) {
+            case PROPOSITION:
+                components[i] = new Proposition(readSentence(in, constants));
+                break;
+            case AND:
+                components[i] = new And();
+                break;
+            case OR:
+                components[i] = new Or();
+                break;
+            case NOT:
+                components[i] = new Not();
+                break;
+            case TRANSITION:
+                components[i] = new Transition();
+                break;
+            case CONSTANT:
+                components[i] = new Constant(in.get() != 0);
+                break;
+            default:
+                throw new IOException("Unknown component type " + type + " in " + file);
+            }
+            inputs[i] = new int[in.getInt()];
+            for (int k = 0; k < inputs[i].length; k++) {
+                inputs[i][k] = in.getInt();
+            }
+        }
+
+        Set<Component> componentSet = new HashSet<Component>(components.length * 2);
+        for (int i = 0; i < components.length; i++) {
+            for (int input : inputs[i]) {
+                components[i].addInput(components[input]);
+                components[input].addOutput(components[i]);
+            }
+            componentSet.add(components[i]);
+        }
+        return new PropNet(roles, componentSet);
+    }
+
+    private static GdlSentence readSentence(ByteBuffer in, GdlConstant[] constants)
+    {
+        byte type = in.get();
+        GdlConstant name = constants[in.getInt()];
+        if (type == SENTENCE_PROPOSITION) {
+            return GdlPool.getProposition(name);
+        }
+        GdlTerm[] body = new GdlTerm[in.getInt()];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = readTerm(in, constants);
+        }
+        return GdlPool.getRelation(name, body);
+    }
+
+    private static GdlTerm readTerm(ByteBuffer in, GdlConstant[] constants)
+    {
+        byte type = in.get();
+        if (type == TERM_CONSTANT) {
+            return constants[in.getInt()];
+        } else if (type == TERM_FUNCTION) {
+            GdlConstant name = constants[in.getInt()];
+            GdlTerm[] body = new GdlTerm[in.getInt()];
+            for (int i = 0; i < body.length; i++) {
+                body[i] = readTerm(in, constants);
+            }
+            return GdlPool.getFunction(name, body);
+        }
+        return GdlPool.getVariable(readString(in));
+    }
+
+    private static String readString(ByteBuffer in)
+    {
+        byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
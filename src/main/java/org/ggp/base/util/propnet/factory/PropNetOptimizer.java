@@ -0,0 +1,341 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.ArrayList;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.LatchAnalysis;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Constant;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.ggp.base.util.propnet.architecture.components.Transition;
+
+/**
+ * PropNetOptimizer shrinks an already-built propnet without changing what it
+ * computes, so that every propagation has fewer components to evaluate:
+ *
+ * - Propositions with no special meaning in GDL (view propositions) are
+ *   spliced out, connecting their single input directly to their outputs.
+ * - ANDs and ORs with a single input are spliced out in the same way, and
+ *   NOT(NOT(x)) is replaced by x.
+ * - An AND (or OR) that is the only output of another AND (or OR) absorbs
+ *   that gate's inputs.
+ * - Gates are hash-consed: gates of the same type with the same inputs are
+ *   merged into one.
+ * - Constants are propagated through gates: an AND with a false input is
+ *   false, true inputs are dropped from ANDs, and symmetrically for ORs and
+ *   NOTs. Gates fed by the init proposition are left alone, since the
+ *   initial state is read off the ORs between init and the transitions.
+ * - Bases that a {@link LatchAnalysis} proves constant are replaced by
+ *   constants in the circuits that read them, which lets the rewrites above
+ *   fold those circuits away. Always-false bases also lose the circuit
+ *   computing their next value. This only preserves the behavior of the
+ *   propnet in reachable states, which are the only ones a game visits.
+ * - Components that cannot affect a transition into a base proposition or a
+ *   legal, goal or terminal proposition are removed.
+ *
+ * Base, input, legal, goal, terminal and init propositions are always kept,
+ * so the propnet still describes the same game to every state machine.
+ */
+public final class PropNetOptimizer
+{
+    private PropNetOptimizer() {
+    }
+
+    /**
+     * Optimizes the propnet in place, and logs its size before and after.
+     */
+    public static void optimize(PropNet pn) throws InterruptedException {
+        long start = System.currentTimeMillis();
+        String before = describe(pn);
+
+        Set<Component> special = getSpecialPropositions(pn);
+        Map<Boolean, Constant> constants = new HashMap<Boolean, Constant>();
+        simplifyGates(pn, special, constants);
+        removeUselessComponents(pn);
+        if (foldConstantBases(pn, constants)) {
+            simplifyGates(pn, special, constants);
+            removeUselessComponents(pn);
+        }
+
+        GamerLogger.log("StateMachine", "Optimized propnet in " + (System.currentTimeMillis() - start) + " ms, from "
+                + before + " to " + describe(pn));
+    }
+
+    private static String describe(PropNet pn) {
+        return pn.getSize() + " components (" + pn.getNumAnds() + " ands, " + pn.getNumOrs() + " ors, "
+                + pn.getNumNots() + " nots) and " + pn.getNumLinks() + " links";
+    }
+
+    private static Set<Component> getSpecialPropositions(PropNet pn) {
+        Set<Component> special = new HashSet<Component>();
+        special.addAll(pn.getBasePropositions().values());
+        special.addAll(pn.getInputPropositions().values());
+        for (Set<Proposition> legals : pn.getLegalPropositions().values()) {
+            special.addAll(legals);
+        }
+        for (Set<Proposition> goals : pn.getGoalPropositions().values()) {
+            special.addAll(goals);
+        }
+        special.add(pn.getTerminalProposition());
+        special.add(pn.getInitProposition());
+        return special;
+    }
+
+    /**
+     * Returns the constant of the given value, adding it to the propnet the
+     * first time it is needed.
+     */
+    private static Constant getConstant(PropNet pn, Map<Boolean, Constant> constants, boolean value) {
+        Constant constant = constants.get(value);
+        if (constant == null) {
+            constant = new Constant(value);
+            constant.setType(Component.CmpType.CONSTANT);
+            pn.addComponent(constant);
+            constants.put(value, constant);
+        }
+        return constant;
+    }
+
+    /**
+     * Rewires the readers of every base that the latch analysis proves
+     * constant to a constant instead, and returns whether any base was.
+     */
+    private static boolean foldConstantBases(PropNet pn, Map<Boolean, Constant> constants) {
+        // Unused constants were removed along with the rest of the useless components
+        constants.clear();
+        CompiledPropNet net = new CompiledPropNet(pn);
+        LatchAnalysis latches = new LatchAnalysis(net);
+        Component[] components = net.getComponents();
+        boolean[] initialBases = net.getInitialBases();
+        boolean folded = false;
+        for (int b = 0; b < net.getNumBases(); b++) {
+            if (!latches.isConstant(b)) {
+                continue;
+            }
+            Component base = components[b];
+            Constant constant = getConstant(pn, constants, initialBases[b]);
+            for (Component output : new ArrayList<Component>(base.getOutputs())) {
+                output.removeInput(base);
+                output.addInput(constant);
+                constant.addOutput(output);
+            }
+            base.removeAllOutputs();
+            // The transitions of always-true bases are how their initial
+            // value is found, so only always-false ones can be cut off.
+            if (!initialBases[b]) {
+                Component transition = base.getSingleInput();
+                for (Component input : transition.getInputs()) {
+                    input.removeOutput(transition);
+                }
+                transition.removeAllInputs();
+                transition.addInput(constant);
+                constant.addOutput(transition);
+            }
+            folded = true;
+        }
+        GamerLogger.log("StateMachine", "Folded " + latches.getNumConstants() + " constant bases; "
+                + latches.getNumLatches() + " of " + net.getNumBases() + " bases are latches");
+        return folded;
+    }
+
+    /**
+     * Applies the local rewrites until none applies. Whenever a component is
+     * rewritten, its outputs are queued again, since their inputs changed.
+     */
+    private static void simplifyGates(PropNet pn, Set<Component> special, Map<Boolean, Constant> constants) throws InterruptedException {
+        Queue<Component> queue = new ArrayDeque<Component>(pn.getComponents());
+        Set<Component> queued = new HashSet<Component>(pn.getComponents());
+        Map<GateKey, Component> gates = new HashMap<GateKey, Component>();
+        Set<Component> removed = new HashSet<Component>();
+
+        while (!queue.isEmpty()) {
+            Component c = queue.remove();
+            queued.remove(c);
+            if (removed.contains(c) || c instanceof Transition || c instanceof Constant || special.contains(c)) {
+                continue;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+
+            List<Component> changed = new ArrayList<Component>(c.getOutputs());
+            Component replacement = null;
+            boolean fedByInit = c.getInputs().contains(pn.getInitProposition());
+            if (c instanceof Proposition || c instanceof And || c instanceof Or) {
+                if (c instanceof And || c instanceof Or) {
+                    absorbSameTypeInputs(pn, c, removed);
+                    if (!fedByInit) {
+                        replacement = foldConstantInputs(pn, c, constants);
+                    }
+                }
+                if (replacement == null && c.getInputs().size() == 1) {
+                    replacement = c.getSingleInput();
+                }
+            } else if (c instanceof Not) {
+                Component input = c.getSingleInput();
+                if (input instanceof Not) {
+                    replacement = input.getSingleInput();
+                } else if (input instanceof Constant) {
+                    replacement = getConstant(pn, constants, !input.getValue());
+                }
+            }
+
+            if (replacement == null && !(c instanceof Proposition)) {
+                GateKey key = new GateKey(c);
+                Component existing = gates.get(key);
+                if (existing != null && existing != c && !removed.contains(existing) && key.equals(new GateKey(existing))) {
+                    replacement = existing;
+                } else {
+                    gates.put(key, c);
+                    continue;
+                }
+            }
+            if (replacement == null) {
+                continue;
+            }
+
+            // Connect the outputs of c to its replacement, and remove c
+            for (Component output : changed) {
+                output.removeInput(c);
+                output.addInput(replacement);
+                replacement.addOutput(output);
+            }
+            c.removeAllOutputs();
+            List<Component> inputs = new ArrayList<Component>(c.getInputs());
+            pn.removeComponent(c);
+            removed.add(c);
+            // A gate that only fed c may now be useless, or absorbable
+            for (Component input : inputs) {
+                changed.add(input);
+            }
+            for (Component component : changed) {
+                if (queued.add(component)) {
+                    queue.add(component);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the inputs of an AND (or OR) that are true (or false) constants,
+     * and returns the constant that the gate is equal to, if any: false (or
+     * true) if one of its inputs is, or true (or false) if it has no inputs
+     * left.
+     */
+    private static Component foldConstantInputs(PropNet pn, Component c, Map<Boolean, Constant> constants) {
+        boolean neutral = (c instanceof And);
+        for (Component input : new ArrayList<Component>(c.getInputs())) {
+            if (input instanceof Constant) {
+                if (input.getValue() != neutral) {
+                    return getConstant(pn, constants, !neutral);
+                }
+                c.removeInput(input);
+                input.removeOutput(c);
+            }
+        }
+        if (c.getInputs().isEmpty()) {
+            return getConstant(pn, constants, neutral);
+        }
+        return null;
+    }
+
+    /**
+     * Moves into c the inputs of every input gate of the same type as c that
+     * has c as its only output, and removes those gates.
+     */
+    private static void absorbSameTypeInputs(PropNet pn, Component c, Set<Component> removed) {
+        boolean absorbed = true;
+        while (absorbed) {
+            absorbed = false;
+            for (Component input : new ArrayList<Component>(c.getInputs())) {
+                if (input.getClass() == c.getClass() && input.getOutputs().size() == 1) {
+                    for (Component inner : input.getInputs()) {
+                        inner.removeOutput(input);
+                        inner.addOutput(c);
+                        c.addInput(inner);
+                    }
+                    input.removeAllInputs();
+                    pn.removeComponent(input);
+                    removed.add(input);
+                    absorbed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes the components from which no transition, legal, goal or
+     * terminal proposition can be reached. Base, input and init propositions
+     * are kept even if nothing depends on them.
+     */
+    private static void removeUselessComponents(PropNet pn) {
+        Set<Component> useful = new HashSet<Component>();
+        List<Component> toVisit = new ArrayList<Component>();
+        for (Proposition base : pn.getBasePropositions().values()) {
+            toVisit.add(base);
+        }
+        for (Set<Proposition> legals : pn.getLegalPropositions().values()) {
+            toVisit.addAll(legals);
+        }
+        for (Set<Proposition> goals : pn.getGoalPropositions().values()) {
+            toVisit.addAll(goals);
+        }
+        if (pn.getTerminalProposition() != null) {
+            toVisit.add(pn.getTerminalProposition());
+        }
+        while (!toVisit.isEmpty()) {
+            Component c = toVisit.remove(toVisit.size() - 1);
+            if (useful.add(c)) {
+                toVisit.addAll(c.getInputs());
+            }
+        }
+        useful.addAll(pn.getInputPropositions().values());
+        useful.add(pn.getInitProposition());
+
+        for (Component c : new ArrayList<Component>(pn.getComponents())) {
+            if (!useful.contains(c)) {
+                pn.removeComponent(c);
+            }
+        }
+    }
+
+    /**
+     * Identifies a gate by its type and its set of inputs.
+     */
+    private static final class GateKey {
+        private final Class<?> type;
+        private final Set<Component> inputs;
+
+        public GateKey(Component gate) {
+            this.type = gate.getClass();
+            this.inputs = Collections.unmodifiableSet(new HashSet<Component>(gate.getInputs()));
+        }
+
+        @Override
+        public int hashCode() {
+            return type.hashCode() * 31 + inputs.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof GateKey)) {
+                return false;
+            }
+            GateKey other = (GateKey) o;
+            return type == other.type && inputs.equals(other.inputs);
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.ggp.base.util.prover;
 
+import java.util.List;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.GdlSentence;
@@ -9,4 +10,11 @@ public interface Prover
     public abstract Set<GdlSentence> askAll(GdlSentence query, Set<GdlSentence> context);
     public abstract GdlSentence askOne(GdlSentence query, Set<GdlSentence> context);
     public abstract boolean prove(GdlSentence query, Set<GdlSentence> context);
+
+    /**
+     * Answers every query in the same context, like {@link #askAll(GdlSentence, Set)}
+     * would answer each of them, but sets the context up once, and lets the
+     * queries share the answers of their subgoals.
+     */
+    public abstract List<Set<GdlSentence>> askAll(List<GdlSentence> queries, Set<GdlSentence> context);
 }
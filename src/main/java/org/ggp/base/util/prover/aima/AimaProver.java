@@ -6,6 +6,7 @@ import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.ggp.base.util.gdl.GdlUtils;
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -18,7 +19,15 @@ import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.gdl.model.SentenceDomainModel;
+import org.ggp.base.util.gdl.model.SentenceDomainModelFactory;
+import org.ggp.base.util.gdl.model.SentenceForm;
+import org.ggp.base.util.gdl.transforms.ConstantChecker;
+import org.ggp.base.util.gdl.transforms.ConstantCheckerFactory;
+import org.ggp.base.util.gdl.transforms.DeORer;
 import org.ggp.base.util.gdl.transforms.DistinctAndNotMover;
+import org.ggp.base.util.gdl.transforms.VariableConstrainer;
+import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.prover.Prover;
 import org.ggp.base.util.prover.aima.cache.ProverCache;
 import org.ggp.base.util.prover.aima.knowledge.KnowledgeBase;
@@ -26,6 +35,10 @@ import org.ggp.base.util.prover.aima.renamer.VariableRenamer;
 import org.ggp.base.util.prover.aima.substituter.Substituter;
 import org.ggp.base.util.prover.aima.substitution.Substitution;
 import org.ggp.base.util.prover.aima.unifier.Unifier;
+import org.ggp.base.util.prover.trail.TrailProver;
+import org.ggp.base.validator.BasesInputsValidator;
+import org.ggp.base.validator.StaticValidator;
+import org.ggp.base.validator.ValidatorException;
 
 import com.google.common.collect.HashMultimap;
 import com.google.common.collect.Lists;
@@ -33,6 +46,25 @@ import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
 
 
+/**
+ * The AimaProver answers queries by backward chaining over the rules, with
+ * tabling of subgoals.
+ *
+ * Relations that do not depend on true or does sentences, such as board
+ * adjacency or successor relations, have the same answers in every state.
+ * Unless told otherwise, the prover computes all their true sentences once
+ * when it is built, by forward chaining with a {@link ConstantChecker}, and
+ * answers subgoals of those relations by looking them up in an indexed
+ * table instead of resolving them again in each query. The counts returned
+ * by {@link #getNumSentenceQueries()} and {@link #getNumStaticTableHits()}
+ * tell how many subgoals the tables served.
+ *
+ * The tables only serve the users of the AimaProver itself, such as the
+ * {@link BasesInputsValidator}. The ProverStateMachine runs on the
+ * {@link TrailProver}, which has no such tables, but keeps the answers of
+ * subgoals that do not depend on true or does sentences across queries,
+ * so that constant relations are resolved once per game there as well.
+ */
 public final class AimaProver implements Prover
 {
 
@@ -40,19 +72,129 @@ public final class AimaProver implements Prover
 
     private final ProverCache fixedAnswerCache = ProverCache.createMultiThreadedCache();
 
+    // The relations whose sentences are all of constant forms, and their true sentences
+    private final Set<GdlConstant> staticRelations;
+    private final KnowledgeBase staticTable;
+
+    private final AtomicLong numSentenceQueries = new AtomicLong();
+    private final AtomicLong numStaticTableHits = new AtomicLong();
+
     public AimaProver(List<Gdl> description)
+    {
+        this(description, computeConstantChecker(description));
+    }
+
+    /**
+     * Creates a prover that looks up the sentences of the constant forms of
+     * the given ConstantChecker in tables. The ConstantChecker must have been
+     * computed from the same description, and may be null, in which case
+     * every subgoal is resolved with the rules.
+     */
+    public AimaProver(List<Gdl> description, ConstantChecker constantChecker)
     {
         description = DistinctAndNotMover.run(description);
         knowledgeBase = new KnowledgeBase(Sets.newHashSet(description));
+
+        staticRelations = new HashSet<GdlConstant>();
+        Set<GdlSentence> staticSentences = new HashSet<GdlSentence>();
+        if (constantChecker != null)
+        {
+            Set<GdlConstant> dynamicRelations = new HashSet<GdlConstant>();
+            for (SentenceForm form : constantChecker.getSentenceFormModel().getSentenceForms())
+            {
+                if (constantChecker.isConstantForm(form))
+                {
+                    staticRelations.add(form.getName());
+                    staticSentences.addAll(constantChecker.getTrueSentences(form));
+                }
+                else
+                {
+                    dynamicRelations.add(form.getName());
+                }
+            }
+            staticRelations.removeAll(dynamicRelations);
+            staticRelations.remove(GdlPool.TRUE);
+            staticRelations.remove(GdlPool.DOES);
+        }
+        Set<GdlSentence> staticFacts = new HashSet<GdlSentence>();
+        for (GdlSentence sentence : staticSentences)
+        {
+            if (staticRelations.contains(sentence.getName()))
+            {
+                staticFacts.add(sentence);
+            }
+        }
+        staticTable = new KnowledgeBase(staticFacts);
+    }
+
+    // Finds the true sentences of the constant forms of the game, or returns
+    // null if the prover should go without tables. Forward chaining only
+    // agrees with resolution on valid descriptions: an unsafe rule, say, can
+    // give answers to a query with its variables bound that no forward
+    // chaining would derive.
+    private static ConstantChecker computeConstantChecker(List<Gdl> description)
+    {
+        try
+        {
+            StaticValidator.validateDescription(description);
+            description = DeORer.run(description);
+            description = VariableConstrainer.replaceFunctionValuedVariables(description);
+            SentenceDomainModel model = SentenceDomainModelFactory.createWithCartesianDomains(description);
+            return ConstantCheckerFactory.createWithForwardChaining(model);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        catch (ValidatorException e)
+        {
+            GamerLogger.log("StateMachine", "Not building tables of constant relations for an invalid description: " + e.getMessage());
+            return null;
+        }
+        catch (RuntimeException e)
+        {
+            GamerLogger.logError("StateMachine", "Could not build tables of constant relations, resolving them with the rules instead");
+            GamerLogger.logStackTrace("StateMachine", e);
+            return null;
+        }
+        catch (StackOverflowError e)
+        {
+            GamerLogger.logError("StateMachine", "Could not build tables of constant relations, resolving them with the rules instead");
+            GamerLogger.logStackTrace("StateMachine", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the number of sentence subgoals asked so far, over all queries.
+     */
+    public long getNumSentenceQueries()
+    {
+        return numSentenceQueries.get();
+    }
+
+    /**
+     * Returns the number of sentence subgoals that were answered from the
+     * tables of constant relations, rather than with the rules.
+     */
+    public long getNumStaticTableHits()
+    {
+        return numStaticTableHits.get();
     }
 
     private Set<GdlSentence> ask(GdlSentence query, Set<GdlSentence> context, boolean askOne)
+    {
+        return ask(query, new KnowledgeBase(context), ProverCache.createSingleThreadedCache(), askOne);
+    }
+
+    private Set<GdlSentence> ask(GdlSentence query, KnowledgeBase context, ProverCache cache, boolean askOne)
     {
         LinkedList<GdlLiteral> goals = new LinkedList<GdlLiteral>();
         goals.add(query);
 
         Set<Substitution> answers = new HashSet<Substitution>();
-        ask(goals, new KnowledgeBase(context), new Substitution(), ProverCache.createSingleThreadedCache(),
+        ask(goals, context, new Substitution(), cache,
                 new VariableRenamer(), askOne, answers, new RecursionHandler(), new IsConstant());
 
         Set<GdlSentence> results = new HashSet<GdlSentence>();
@@ -108,6 +250,20 @@ public final class AimaProver implements Prover
         return ask(query, context, false);
     }
 
+    @Override
+    public List<Set<GdlSentence>> askAll(List<GdlSentence> queries, Set<GdlSentence> context)
+    {
+        // The answers cached for one query hold in the same context for the others
+        KnowledgeBase contextBase = new KnowledgeBase(context);
+        ProverCache cache = ProverCache.createSingleThreadedCache();
+        List<Set<GdlSentence>> results = new ArrayList<Set<GdlSentence>>(queries.size());
+        for (GdlSentence query : queries)
+        {
+            results.add(ask(query, contextBase, cache, false));
+        }
+        return results;
+    }
+
     private void askDistinct(GdlDistinct distinct, LinkedList<GdlLiteral> goals, KnowledgeBase context, Substitution theta, ProverCache cache, VariableRenamer renamer, boolean askOne, Set<Substitution> results, RecursionHandler recursionHandler, IsConstant isConstant)
     {
         if (!distinct.getArg1().equals(distinct.getArg2()))
@@ -183,6 +339,14 @@ public final class AimaProver implements Prover
             KnowledgeBase context, Substitution theta,
             ProverCache cache, VariableRenamer renamer, RecursionHandler recursionHandler,
             IsConstant isConstantRet) {
+        numSentenceQueries.incrementAndGet();
+        if (staticRelations.contains(sentence.getName()))
+        {
+            numStaticTableHits.incrementAndGet();
+            isConstantRet.value = true;
+            return lookUpStaticSentence(sentence, context);
+        }
+
         GdlSentence varRenamedSentence = new VariableRenamer().rename(sentence);
         if (!fixedAnswerCache.contains(varRenamedSentence) && !cache.contains(varRenamedSentence))
         {
@@ -282,6 +446,30 @@ public final class AimaProver implements Prover
         return cachedResults;
     }
 
+    // Answers a sentence of a constant relation from its table, and from any
+    // facts of that relation in the context
+    private Collection<Substitution> lookUpStaticSentence(GdlSentence sentence, KnowledgeBase context)
+    {
+        Set<Substitution> results = new HashSet<Substitution>();
+        for (GdlRule fact : staticTable.fetch(sentence))
+        {
+            Substitution result = Unifier.unify(sentence, fact.getHead());
+            if (result != null)
+            {
+                results.add(result);
+            }
+        }
+        for (GdlRule rule : context.fetch(sentence))
+        {
+            Substitution result = Unifier.unify(sentence, rule.getHead());
+            if (result != null && rule.arity() == 0)
+            {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
     private Collection<Substitution> filterSentenceResults(
             GdlSentence sentence, Set<Substitution> sentenceResults) {
         Set<GdlVariable> varsInSentence = GdlUtils.getVariablesSet(sentence);
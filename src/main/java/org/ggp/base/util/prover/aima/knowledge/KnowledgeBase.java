@@ -1,49 +1,287 @@
 package org.ggp.base.util.prover.aima.knowledge;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
 import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
 import org.ggp.base.util.gdl.grammar.GdlPool;
 import org.ggp.base.util.gdl.grammar.GdlRule;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
 
-
+/**
+ * The KnowledgeBase returns the rules whose heads could unify with a
+ * sentence. Rules are indexed by a trie over the leading symbols of their
+ * heads, read in preorder: the relation name and arity, then each argument,
+ * where a function counts as its name and arity followed by its own
+ * arguments. The head (true (cell 1 2 b)) thus reads as true/1, cell/3, 1,
+ * 2 and b, so that the context facts of a query about a single cell are
+ * found without trying every cell.
+ *
+ * A variable in a head matches anything from there on, so a rule is stored
+ * under the symbols that precede its first variable, and is also returned
+ * for every sentence that reaches that point. A sentence stops its walk
+ * down the trie at its own first variable, and gets every rule below.
+ * Either way, rules are returned in the order of the description. Only the
+ * first few symbols are indexed, which is enough to tell facts apart in
+ * most games without blowing up the trie.
+ *
+ * The trie is built once and never changes, so fetches need no lock, and
+ * provers on several threads can share one KnowledgeBase. Symbols are
+ * compared by identity, which is sound since the {@link GdlPool} interns
+ * them.
+ */
 public final class KnowledgeBase
 {
-    private final Map<GdlConstant, List<GdlRule>> contents;
+    // The number of leading symbols of a head that are indexed
+    private static final int MAX_INDEXED_SYMBOLS = 5;
+
+    private final Node root;
 
     public KnowledgeBase(Set<? extends Gdl> description)
     {
-        contents = new HashMap<GdlConstant, List<GdlRule>>();
+        List<IndexedRule> rules = new ArrayList<IndexedRule>();
         for (Gdl gdl : description)
         {
             GdlRule rule = (gdl instanceof GdlRule) ? (GdlRule) gdl : GdlPool.getRule((GdlSentence) gdl);
-            GdlConstant key = rule.getHead().getName();
+            rules.add(new IndexedRule(rule));
+        }
+        root = new Node(rules, 0);
+    }
+
+    /**
+     * Returns the rules whose heads could unify with the given sentence,
+     * which are a superset of those that do. The list must not be modified.
+     */
+    public List<GdlRule> fetch(GdlSentence sentence)
+    {
+        Node node = root.getFunctionChild(sentence.getName(), sentence.arity());
+        for (int i = 0; i < sentence.arity(); i++)
+        {
+            node = node.descend(sentence.get(i));
+        }
+        return node.rules;
+    }
+
+    /** A rule along with the leading symbols of its head. */
+    private static final class IndexedRule
+    {
+        private final GdlRule rule;
+        // Each symbol is a GdlConstant, or a FunctionSymbol
+        private final List<Object> symbols = new ArrayList<Object>();
+
+        private IndexedRule(GdlRule rule)
+        {
+            this.rule = rule;
+            GdlSentence head = rule.getHead();
+            symbols.add(new FunctionSymbol(head.getName(), head.arity()));
+            for (int i = 0; i < head.arity(); i++)
+            {
+                if (!addSymbols(head.get(i)))
+                {
+                    break;
+                }
+            }
+        }
 
-            if (!contents.containsKey(key))
+        // Adds the symbols of the term, and returns false if it reached a variable
+        private boolean addSymbols(GdlTerm term)
+        {
+            if (symbols.size() == MAX_INDEXED_SYMBOLS)
+            {
+                return false;
+            }
+            if (term instanceof GdlConstant)
+            {
+                symbols.add(term);
+                return true;
+            }
+            if (term instanceof GdlFunction)
             {
-                contents.put(key, new ArrayList<GdlRule>());
+                GdlFunction function = (GdlFunction) term;
+                symbols.add(new FunctionSymbol(function.getName(), function.arity()));
+                for (int i = 0; i < function.arity(); i++)
+                {
+                    if (!addSymbols(function.get(i)))
+                    {
+                        return false;
+                    }
+                }
+                return true;
             }
-            contents.get(key).add(rule);
+            return false;
         }
     }
 
-    public synchronized List<GdlRule> fetch(GdlSentence sentence)
+    private static final class FunctionSymbol
     {
-        GdlConstant key = sentence.getName();
+        private final GdlConstant name;
+        private final int arity;
+
+        private FunctionSymbol(GdlConstant name, int arity)
+        {
+            this.name = name;
+            this.arity = arity;
+        }
 
-        if (contents.containsKey(key))
+        @Override
+        public boolean equals(Object o)
         {
-            return contents.get(key);
+            return (o instanceof FunctionSymbol) && ((FunctionSymbol) o).name == name && ((FunctionSymbol) o).arity == arity;
         }
-        else
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * name.hashCode() + arity;
+        }
+    }
+
+    /**
+     * A node of the trie, reached by the symbols of a path from the root.
+     * It holds the rules that could unify with a sentence whose walk stops
+     * there. A leaf gives the same rules whatever follows.
+     */
+    private static final class Node
+    {
+        private final List<GdlRule> rules;
+        // The children reached by the next symbol, when it is a constant or
+        // a function of a given name, indexed by arity. Null in a leaf.
+        private final Map<GdlConstant, Node> constantChildren;
+        private final Map<GdlConstant, Node[]> functionChildren;
+        // The leaf reached by a symbol without a child, and the one reached by a variable
+        private final Node otherwise;
+        private final Node stop;
+
+        private Node(List<GdlRule> rules)
         {
-            return new ArrayList<GdlRule>();
+            this.rules = rules;
+            constantChildren = null;
+            functionChildren = null;
+            otherwise = this;
+            stop = this;
+        }
+
+        private Node(List<IndexedRule> indexedRules, int depth)
+        {
+            this.rules = toRules(indexedRules);
+            // The root is always split, so that relations are told apart
+            if (depth == MAX_INDEXED_SYMBOLS || (depth > 0 && indexedRules.size() <= 1))
+            {
+                constantChildren = null;
+                functionChildren = null;
+                otherwise = this;
+                stop = this;
+                return;
+            }
+
+            Map<Object, List<IndexedRule>> bySymbol = new LinkedHashMap<Object, List<IndexedRule>>();
+            for (IndexedRule rule : indexedRules)
+            {
+                if (rule.symbols.size() > depth && !bySymbol.containsKey(rule.symbols.get(depth)))
+                {
+                    bySymbol.put(rule.symbols.get(depth), new ArrayList<IndexedRule>());
+                }
+            }
+            // The rules with a variable here may unify with any symbol, so they
+            // go to every child, in description order with the rules of its symbol
+            List<IndexedRule> wildcards = new ArrayList<IndexedRule>();
+            for (IndexedRule rule : indexedRules)
+            {
+                if (rule.symbols.size() <= depth)
+                {
+                    wildcards.add(rule);
+                    for (List<IndexedRule> childRules : bySymbol.values())
+                    {
+                        childRules.add(rule);
+                    }
+                }
+                else
+                {
+                    bySymbol.get(rule.symbols.get(depth)).add(rule);
+                }
+            }
+
+            constantChildren = new HashMap<GdlConstant, Node>();
+            functionChildren = new HashMap<GdlConstant, Node[]>();
+            for (Map.Entry<Object, List<IndexedRule>> entry : bySymbol.entrySet())
+            {
+                Node child = new Node(entry.getValue(), depth + 1);
+                if (entry.getKey() instanceof GdlConstant)
+                {
+                    constantChildren.put((GdlConstant) entry.getKey(), child);
+                }
+                else
+                {
+                    FunctionSymbol symbol = (FunctionSymbol) entry.getKey();
+                    Node[] byArity = functionChildren.get(symbol.name);
+                    if (byArity == null || byArity.length <= symbol.arity)
+                    {
+                        Node[] longer = new Node[symbol.arity + 1];
+                        if (byArity != null)
+                        {
+                            System.arraycopy(byArity, 0, longer, 0, byArity.length);
+                        }
+                        byArity = longer;
+                        functionChildren.put(symbol.name, byArity);
+                    }
+                    byArity[symbol.arity] = child;
+                }
+            }
+            otherwise = new Node(toRules(wildcards));
+            stop = new Node(rules);
+        }
+
+        private static List<GdlRule> toRules(List<IndexedRule> indexedRules)
+        {
+            List<GdlRule> rules = new ArrayList<GdlRule>(indexedRules.size());
+            for (IndexedRule rule : indexedRules)
+            {
+                rules.add(rule.rule);
+            }
+            return Collections.unmodifiableList(rules);
+        }
+
+        private Node getFunctionChild(GdlConstant name, int arity)
+        {
+            Node[] byArity = functionChildren.get(name);
+            if (byArity == null || byArity.length <= arity || byArity[arity] == null)
+            {
+                return otherwise;
+            }
+            return byArity[arity];
+        }
+
+        // Returns the node reached after the symbols of the term
+        private Node descend(GdlTerm term)
+        {
+            if (constantChildren == null)
+            {
+                return this;
+            }
+            if (term instanceof GdlConstant)
+            {
+                Node child = constantChildren.get(term);
+                return (child == null) ? otherwise : child;
+            }
+            if (term instanceof GdlFunction)
+            {
+                GdlFunction function = (GdlFunction) term;
+                Node node = getFunctionChild(function.getName(), function.arity());
+                for (int i = 0; i < function.arity(); i++)
+                {
+                    node = node.descend(function.get(i));
+                }
+                return node;
+            }
+            return stop;
         }
     }
-}
\ No newline at end of file
+}
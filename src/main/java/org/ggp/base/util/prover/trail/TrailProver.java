@@ -0,0 +1,1107 @@
+package org.ggp.base.util.prover.trail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlDistinct;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
+import org.ggp.base.util.gdl.grammar.GdlNot;
+import org.ggp.base.util.gdl.grammar.GdlOr;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlProposition;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.gdl.transforms.DistinctAndNotMover;
+import org.ggp.base.util.prover.Prover;
+import org.ggp.base.util.prover.aima.AimaProver;
+
+/**
+ * The TrailProver answers the same queries as the {@link AimaProver}, with
+ * the same tabling of subgoals and the same handling of recursion, but
+ * without allocating maps and sentences at every resolution step.
+ *
+ * Rules are compiled once into a flat int encoding of their terms, with
+ * the variables of each rule numbered from 0. Applying a rule reserves a
+ * frame of binding slots for its variables on a stack, and unification
+ * binds slots to terms in place, recording every binding on a trail.
+ * Backtracking pops the trail to undo the bindings, instead of copying
+ * substitutions. Terms are shared rather than copied: a slot is bound to
+ * a term along with the frame its variables belong to.
+ *
+ * Every subgoal with rules is tabled, like in the AimaProver: its ground
+ * answers are computed once per query, keyed by the subgoal with its
+ * variables renamed, and kept across queries when they do not depend on
+ * true or does sentences. A subgoal that is asked while it is being
+ * computed gets the answers found so far, and is computed again until it
+ * finds no new answer. Relations that only have facts, including the true
+ * and does sentences of the query context, are not tabled, but matched
+ * directly.
+ *
+ * Only the tables and their answers are allocated, and they are kept in
+ * int arrays too. Queries are serialized, so one prover can be shared.
+ */
+public final class TrailProver implements Prover
+{
+    // Every term is encoded as words whose two lowest bits are a tag. A
+    // constant is its symbol. A variable is its index in its rule. A
+    // function or sentence is a header with its symbol and arity, then the
+    // number of words of the whole term, then its arguments. As in the
+    // AimaProver, a proposition is a constant, so it does not unify with a
+    // relation of arity 0.
+    private static final int TAG_MASK = 3;
+    private static final int TAG_CONSTANT = 0;
+    private static final int TAG_FUNCTION = 1;
+    private static final int TAG_VARIABLE = 2;
+    // A variable left unbound in an answer, by an unsafe rule; it matches anything
+    private static final int TAG_ANY = 3;
+    private static final int MAX_ARITY = 0xFF;
+    private static final int UNBOUND = Integer.MIN_VALUE;
+    // The bit of the positions in the query heap
+    private static final int QUERY = 1 << 30;
+
+    private final Map<GdlConstant, Integer> symbolIds = new HashMap<GdlConstant, Integer>();
+    private final List<GdlConstant> symbols = new ArrayList<GdlConstant>();
+    private final Map<Integer, Relation> relations = new HashMap<Integer, Relation>();
+    // The relations that have facts in the context of the current query
+    private final List<Relation> contextRelations = new ArrayList<Relation>();
+
+    // Terms live in one of two heaps, and a position stands for a word of the
+    // query heap if it has the QUERY bit, and of the program heap otherwise.
+    // The program heap holds the rules and the answers kept across queries;
+    // the query heap holds the context, and the tables of a query.
+    private final Heap program = new Heap();
+    private final Heap query = new Heap();
+
+    // The binding of each slot: the position of a term and the frame of its
+    // variables, or UNBOUND
+    private int[] bindingPositions = new int[256];
+    private int[] bindingFrames = new int[256];
+    private int numSlots = 0;
+    private int[] trail = new int[256];
+    private int trailSize = 0;
+
+    private final TableMap persistentTables = new TableMap();
+    private final TableMap queryTables = new TableMap();
+    // The number of tables being computed that were asked again meanwhile
+    private int numRecursive = 0;
+    // The key of the subgoal being looked up, and the slots of its variables
+    private int[] key = new int[64];
+    private int keySize;
+    private int[] keySlots = new int[16];
+    private int numKeySlots;
+
+    public TrailProver(List<Gdl> description)
+    {
+        description = DistinctAndNotMover.run(description);
+        for (Gdl gdl : description)
+        {
+            if (gdl instanceof GdlRule)
+            {
+                addRule((GdlRule) gdl);
+            }
+            else if (gdl instanceof GdlSentence)
+            {
+                addRule(GdlPool.getRule((GdlSentence) gdl));
+            }
+        }
+    }
+
+    @Override
+    public Set<GdlSentence> askAll(GdlSentence query, Set<GdlSentence> context)
+    {
+        return ask(query, context, false);
+    }
+
+    @Override
+    public GdlSentence askOne(GdlSentence query, Set<GdlSentence> context)
+    {
+        Set<GdlSentence> results = ask(query, context, true);
+        return results.isEmpty() ? null : results.iterator().next();
+    }
+
+    @Override
+    public boolean prove(GdlSentence query, Set<GdlSentence> context)
+    {
+        return askOne(query, context) != null;
+    }
+
+    @Override
+    public synchronized List<Set<GdlSentence>> askAll(List<GdlSentence> queries, Set<GdlSentence> context)
+    {
+        setContext(context);
+        List<Set<GdlSentence>> results = new ArrayList<Set<GdlSentence>>(queries.size());
+        for (GdlSentence sentence : queries)
+        {
+            results.add(answer(sentence, false));
+        }
+        return results;
+    }
+
+    private synchronized Set<GdlSentence> ask(GdlSentence sentence, Set<GdlSentence> context, boolean askOne)
+    {
+        setContext(context);
+        return answer(sentence, askOne);
+    }
+
+    // Starts a query in the given context, which the tables of its subgoals
+    // depend on, so they are kept until the context changes
+    private void setContext(Set<GdlSentence> context)
+    {
+        query.size = 0;
+        queryTables.clear();
+        for (Relation relation : contextRelations)
+        {
+            relation.numContextFacts = 0;
+        }
+        contextRelations.clear();
+        Map<GdlVariable, Integer> variables = new HashMap<GdlVariable, Integer>();
+        for (GdlSentence fact : context)
+        {
+            int position = QUERY | query.size;
+            encodeSentence(fact, variables, query);
+            Relation relation = getRelation(word(position));
+            if (relation.numContextFacts == 0)
+            {
+                contextRelations.add(relation);
+            }
+            relation.addContextFact(position);
+        }
+    }
+
+    private Set<GdlSentence> answer(GdlSentence sentence, boolean askOne)
+    {
+        numRecursive = 0;
+        Map<GdlVariable, Integer> variables = new HashMap<GdlVariable, Integer>();
+        int goal = QUERY | query.size;
+        encodeSentence(sentence, variables, query);
+        numSlots = 0;
+        trailSize = 0;
+        int frame = pushFrame(variables.size());
+        Table table = complete(goal, frame, getRelation(word(goal)), null);
+
+        Set<GdlSentence> results = new HashSet<GdlSentence>();
+        for (int i = 0; i < table.numAnswers && !(askOne && !results.isEmpty()); i++)
+        {
+            results.add(decodeSentence(table.answers[i]));
+        }
+        return results;
+    }
+
+    // ==== Compilation ====
+
+    private int getSymbol(GdlConstant constant)
+    {
+        Integer id = symbolIds.get(constant);
+        if (id == null)
+        {
+            id = symbols.size();
+            symbolIds.put(constant, id);
+            symbols.add(constant);
+        }
+        return id;
+    }
+
+    private Relation getRelation(int header)
+    {
+        Relation relation = relations.get(header);
+        if (relation == null)
+        {
+            GdlConstant name = symbols.get(((header & TAG_MASK) == TAG_FUNCTION) ? header >>> 10 : header >>> 2);
+            relation = new Relation(name == GdlPool.TRUE || name == GdlPool.DOES);
+            relations.put(header, relation);
+        }
+        return relation;
+    }
+
+    private void addRule(GdlRule rule)
+    {
+        Map<GdlVariable, Integer> variables = new HashMap<GdlVariable, Integer>();
+        int head = program.size;
+        encodeSentence(rule.getHead(), variables, program);
+        Literal[] body = new Literal[rule.arity()];
+        for (int i = 0; i < body.length; i++)
+        {
+            body[i] = compileLiteral(rule.get(i), variables);
+        }
+        Relation relation = getRelation(word(head));
+        relation.rules.add(new Rule(head, variables.size(), body));
+        if (body.length > 0)
+        {
+            relation.hasBodies = true;
+        }
+    }
+
+    private Literal compileLiteral(GdlLiteral literal, Map<GdlVariable, Integer> variables)
+    {
+        if (literal instanceof GdlSentence)
+        {
+            int position = program.size;
+            encodeSentence((GdlSentence) literal, variables, program);
+            return new Literal(Literal.SENTENCE, position, 0, getRelation(word(position)), null);
+        }
+        else if (literal instanceof GdlNot)
+        {
+            Literal body = compileLiteral(((GdlNot) literal).getBody(), variables);
+            return new Literal(Literal.NOT, 0, 0, null, new Literal[] {body});
+        }
+        else if (literal instanceof GdlDistinct)
+        {
+            GdlDistinct distinct = (GdlDistinct) literal;
+            int first = program.size;
+            encodeTerm(distinct.getArg1(), variables, program);
+            int second = program.size;
+            encodeTerm(distinct.getArg2(), variables, program);
+            return new Literal(Literal.DISTINCT, first, second, null, null);
+        }
+        else
+        {
+            GdlOr or = (GdlOr) literal;
+            Literal[] disjuncts = new Literal[or.arity()];
+            for (int i = 0; i < disjuncts.length; i++)
+            {
+                disjuncts[i] = compileLiteral(or.get(i), variables);
+            }
+            return new Literal(Literal.OR, 0, 0, null, disjuncts);
+        }
+    }
+
+    private int header(GdlConstant name, int arity)
+    {
+        if (arity > MAX_ARITY)
+        {
+            throw new IllegalArgumentException("Arity " + arity + " of " + name + " is too large");
+        }
+        return (((getSymbol(name) << 8) | arity) << 2) | TAG_FUNCTION;
+    }
+
+    private void encodeSentence(GdlSentence sentence, Map<GdlVariable, Integer> variables, Heap heap)
+    {
+        if (sentence instanceof GdlProposition)
+        {
+            heap.add((getSymbol(sentence.getName()) << 2) | TAG_CONSTANT);
+            return;
+        }
+        int start = heap.size;
+        heap.add(header(sentence.getName(), sentence.arity()));
+        heap.add(0);
+        for (int i = 0; i < sentence.arity(); i++)
+        {
+            encodeTerm(sentence.get(i), variables, heap);
+        }
+        heap.words[start + 1] = heap.size - start;
+    }
+
+    private void encodeTerm(GdlTerm term, Map<GdlVariable, Integer> variables, Heap heap)
+    {
+        if (term instanceof GdlConstant)
+        {
+            heap.add((getSymbol((GdlConstant) term) << 2) | TAG_CONSTANT);
+        }
+        else if (term instanceof GdlVariable)
+        {
+            Integer index = variables.get(term);
+            if (index == null)
+            {
+                index = variables.size();
+                variables.put((GdlVariable) term, index);
+            }
+            heap.add((index << 2) | TAG_VARIABLE);
+        }
+        else
+        {
+            GdlFunction function = (GdlFunction) term;
+            int start = heap.size;
+            heap.add(header(function.getName(), function.arity()));
+            heap.add(0);
+            for (int i = 0; i < function.arity(); i++)
+            {
+                encodeTerm(function.get(i), variables, heap);
+            }
+            heap.words[start + 1] = heap.size - start;
+        }
+    }
+
+    private GdlSentence decodeSentence(int position)
+    {
+        int header = word(position);
+        if ((header & TAG_MASK) == TAG_CONSTANT)
+        {
+            return GdlPool.getProposition(symbols.get(header >>> 2));
+        }
+        return GdlPool.getRelation(symbols.get(header >>> 10), decodeArguments(position, (header >>> 2) & MAX_ARITY));
+    }
+
+    private GdlTerm[] decodeArguments(int position, int arity)
+    {
+        GdlTerm[] arguments = new GdlTerm[arity];
+        int argument = position + 2;
+        for (int i = 0; i < arity; i++)
+        {
+            arguments[i] = decodeTerm(argument);
+            argument += size(argument);
+        }
+        return arguments;
+    }
+
+    private GdlTerm decodeTerm(int position)
+    {
+        int word = word(position);
+        if ((word & TAG_MASK) == TAG_CONSTANT)
+        {
+            return symbols.get(word >>> 2);
+        }
+        if ((word & TAG_MASK) == TAG_ANY)
+        {
+            return GdlPool.getVariable("?_");
+        }
+        return GdlPool.getFunction(symbols.get(word >>> 10), decodeArguments(position, (word >>> 2) & MAX_ARITY));
+    }
+
+    // ==== Terms and bindings ====
+
+    private int word(int position)
+    {
+        return ((position & QUERY) == 0) ? program.words[position] : query.words[position ^ QUERY];
+    }
+
+    private int size(int position)
+    {
+        int word = word(position);
+        return ((word & TAG_MASK) == TAG_FUNCTION) ? word(position + 1) : 1;
+    }
+
+    // Reserves unbound slots for the variables of a rule, and returns the first
+    private int pushFrame(int numVariables)
+    {
+        int frame = numSlots;
+        numSlots += numVariables;
+        if (numSlots > bindingPositions.length)
+        {
+            int length = Math.max(2 * bindingPositions.length, numSlots);
+            bindingPositions = Arrays.copyOf(bindingPositions, length);
+            bindingFrames = Arrays.copyOf(bindingFrames, length);
+        }
+        Arrays.fill(bindingPositions, frame, numSlots, UNBOUND);
+        return frame;
+    }
+
+    private void bind(int slot, int position, int frame)
+    {
+        bindingPositions[slot] = position;
+        bindingFrames[slot] = frame;
+        if (trailSize == trail.length)
+        {
+            trail = Arrays.copyOf(trail, 2 * trailSize);
+        }
+        trail[trailSize++] = slot;
+    }
+
+    private void undo(int mark)
+    {
+        while (trailSize > mark)
+        {
+            bindingPositions[trail[--trailSize]] = UNBOUND;
+        }
+    }
+
+    private boolean unify(int a, int frameA, int b, int frameB)
+    {
+        int wordA = word(a);
+        while ((wordA & TAG_MASK) == TAG_VARIABLE)
+        {
+            int slot = frameA + (wordA >>> 2);
+            if (bindingPositions[slot] == UNBOUND)
+            {
+                break;
+            }
+            a = bindingPositions[slot];
+            frameA = bindingFrames[slot];
+            wordA = word(a);
+        }
+        int wordB = word(b);
+        while ((wordB & TAG_MASK) == TAG_VARIABLE)
+        {
+            int slot = frameB + (wordB >>> 2);
+            if (bindingPositions[slot] == UNBOUND)
+            {
+                break;
+            }
+            b = bindingPositions[slot];
+            frameB = bindingFrames[slot];
+            wordB = word(b);
+        }
+
+        if ((wordA & TAG_MASK) == TAG_ANY || (wordB & TAG_MASK) == TAG_ANY)
+        {
+            return true;
+        }
+        if ((wordA & TAG_MASK) == TAG_VARIABLE)
+        {
+            int slot = frameA + (wordA >>> 2);
+            if ((wordB & TAG_MASK) != TAG_VARIABLE || frameB + (wordB >>> 2) != slot)
+            {
+                bind(slot, b, frameB);
+            }
+            return true;
+        }
+        if ((wordB & TAG_MASK) == TAG_VARIABLE)
+        {
+            bind(frameB + (wordB >>> 2), a, frameA);
+            return true;
+        }
+        if (wordA != wordB)
+        {
+            return false;
+        }
+        if ((wordA & TAG_MASK) == TAG_FUNCTION)
+        {
+            int arity = (wordA >>> 2) & MAX_ARITY;
+            a += 2;
+            b += 2;
+            for (int i = 0; i < arity; i++)
+            {
+                if (!unify(a, frameA, b, frameB))
+                {
+                    return false;
+                }
+                a += size(a);
+                b += size(b);
+            }
+        }
+        return true;
+    }
+
+    // Returns whether the two terms are identical under the current bindings
+    private boolean identical(int a, int frameA, int b, int frameB)
+    {
+        int wordA = word(a);
+        while ((wordA & TAG_MASK) == TAG_VARIABLE && bindingPositions[frameA + (wordA >>> 2)] != UNBOUND)
+        {
+            int slot = frameA + (wordA >>> 2);
+            a = bindingPositions[slot];
+            frameA = bindingFrames[slot];
+            wordA = word(a);
+        }
+        int wordB = word(b);
+        while ((wordB & TAG_MASK) == TAG_VARIABLE && bindingPositions[frameB + (wordB >>> 2)] != UNBOUND)
+        {
+            int slot = frameB + (wordB >>> 2);
+            b = bindingPositions[slot];
+            frameB = bindingFrames[slot];
+            wordB = word(b);
+        }
+        if ((wordA & TAG_MASK) == TAG_ANY || (wordB & TAG_MASK) == TAG_ANY)
+        {
+            return false;
+        }
+        if ((wordA & TAG_MASK) == TAG_VARIABLE || (wordB & TAG_MASK) == TAG_VARIABLE)
+        {
+            return (wordA & TAG_MASK) == (wordB & TAG_MASK) && frameA + (wordA >>> 2) == frameB + (wordB >>> 2);
+        }
+        if (wordA != wordB)
+        {
+            return false;
+        }
+        if ((wordA & TAG_MASK) == TAG_FUNCTION)
+        {
+            int arity = (wordA >>> 2) & MAX_ARITY;
+            a += 2;
+            b += 2;
+            for (int i = 0; i < arity; i++)
+            {
+                if (!identical(a, frameA, b, frameB))
+                {
+                    return false;
+                }
+                a += size(a);
+                b += size(b);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the term with its bindings applied to the end of the heap, and
+     * returns its hash. In a key, unbound variables are numbered in order of
+     * appearance; in an answer, which is ground unless the rules are unsafe,
+     * they match anything.
+     */
+    private int write(int position, int frame, Heap heap, boolean isKey)
+    {
+        int word = word(position);
+        while ((word & TAG_MASK) == TAG_VARIABLE)
+        {
+            int slot = frame + (word >>> 2);
+            if (bindingPositions[slot] == UNBOUND)
+            {
+                if (!isKey)
+                {
+                    heap.add(TAG_ANY);
+                    return TAG_ANY;
+                }
+                int index = 0;
+                while (index < numKeySlots && keySlots[index] != slot)
+                {
+                    index++;
+                }
+                if (index == numKeySlots)
+                {
+                    if (numKeySlots == keySlots.length)
+                    {
+                        keySlots = Arrays.copyOf(keySlots, 2 * numKeySlots);
+                    }
+                    keySlots[numKeySlots++] = slot;
+                }
+                heap.add((index << 2) | TAG_VARIABLE);
+                return 31 * index + TAG_VARIABLE;
+            }
+            position = bindingPositions[slot];
+            frame = bindingFrames[slot];
+            word = word(position);
+        }
+        heap.add(word);
+        if ((word & TAG_MASK) != TAG_FUNCTION)
+        {
+            return word;
+        }
+        int start = heap.size - 1;
+        heap.add(0);
+        int hash = word;
+        int arity = (word >>> 2) & MAX_ARITY;
+        int argument = position + 2;
+        for (int i = 0; i < arity; i++)
+        {
+            hash = 31 * hash + write(argument, frame, heap, isKey);
+            argument += size(argument);
+        }
+        heap.words[start + 1] = heap.size - start;
+        return hash;
+    }
+
+    // ==== Resolution ====
+
+    /**
+     * Returns the table of the given subgoal, computing it if it is new. A
+     * table that is still being computed, because the subgoal depends on
+     * itself, is returned with the answers found so far.
+     */
+    private Table complete(int goal, int goalFrame, Relation relation, Table caller)
+    {
+        Heap keyHeap = query;
+        int keyStart = keyHeap.size;
+        numKeySlots = 0;
+        int hash = write(goal, goalFrame, keyHeap, true);
+        keySize = keyHeap.size - keyStart;
+        if (key.length < keySize)
+        {
+            key = new int[2 * keySize];
+        }
+        System.arraycopy(keyHeap.words, keyStart, key, 0, keySize);
+
+        Table table = persistentTables.get(this, key, keySize, hash);
+        if (table == null)
+        {
+            table = queryTables.get(this, key, keySize, hash);
+        }
+        if (table != null)
+        {
+            // Drop the copy of the key
+            keyHeap.size = keyStart;
+            if (!table.isComplete)
+            {
+                if (!table.isCalledRecursively)
+                {
+                    table.isCalledRecursively = true;
+                    numRecursive++;
+                }
+            }
+            else if (caller != null)
+            {
+                caller.isConstant &= table.isConstant;
+            }
+            return table;
+        }
+
+        table = new Table(QUERY | keyStart, keySize, hash);
+        table.isConstant = !relation.isContext;
+        queryTables.put(this, table);
+        int numAnswers;
+        do
+        {
+            if (table.isCalledRecursively)
+            {
+                table.isCalledRecursively = false;
+                numRecursive--;
+            }
+            numAnswers = table.numAnswers;
+            for (Rule rule : relation.rules)
+            {
+                int mark = trailSize;
+                int savedSlots = numSlots;
+                int frame = pushFrame(rule.numVariables);
+                if (unify(rule.head, frame, goal, goalFrame))
+                {
+                    solve(rule.body, 0, frame, table, goal, goalFrame);
+                }
+                undo(mark);
+                numSlots = savedSlots;
+            }
+            for (int i = 0; i < relation.numContextFacts; i++)
+            {
+                int mark = trailSize;
+                if (unify(relation.contextFacts[i], 0, goal, goalFrame))
+                {
+                    addAnswer(table, goal, goalFrame);
+                }
+                undo(mark);
+            }
+        }
+        while (table.isCalledRecursively && table.numAnswers > numAnswers);
+        if (table.isCalledRecursively)
+        {
+            table.isCalledRecursively = false;
+            numRecursive--;
+        }
+
+        if (caller != null)
+        {
+            caller.isConstant &= table.isConstant;
+        }
+        if (numRecursive == 0)
+        {
+            table.isComplete = true;
+            if (table.isConstant)
+            {
+                persistentTables.put(this, persist(table));
+            }
+        }
+        else
+        {
+            // Its answers may be missing some that the recursion has not found yet
+            table.isStale = true;
+        }
+        return table;
+    }
+
+    // Solves the literals of a body from the i-th on, and records an answer of the table for each solution
+    private void solve(Literal[] body, int i, int frame, Table table, int goal, int goalFrame)
+    {
+        if (i == body.length)
+        {
+            addAnswer(table, goal, goalFrame);
+            return;
+        }
+        solveLiteral(body[i], body, i, frame, table, goal, goalFrame);
+    }
+
+    private void solveLiteral(Literal literal, Literal[] body, int i, int frame, Table table, int goal, int goalFrame)
+    {
+        switch (literal.kind)
+        {
+        case Literal.SENTENCE:
+        {
+            Relation relation = literal.relation;
+            if (!relation.hasBodies)
+            {
+                if (relation.isContext)
+                {
+                    table.isConstant = false;
+                }
+                for (Rule fact : relation.rules)
+                {
+                    int mark = trailSize;
+                    int savedSlots = numSlots;
+                    int factFrame = pushFrame(fact.numVariables);
+                    if (unify(literal.position, frame, fact.head, factFrame))
+                    {
+                        solve(body, i + 1, frame, table, goal, goalFrame);
+                    }
+                    undo(mark);
+                    numSlots = savedSlots;
+                }
+                for (int k = 0; k < relation.numContextFacts; k++)
+                {
+                    int mark = trailSize;
+                    if (unify(literal.position, frame, relation.contextFacts[k], 0))
+                    {
+                        solve(body, i + 1, frame, table, goal, goalFrame);
+                    }
+                    undo(mark);
+                }
+            }
+            else
+            {
+                Table subgoal = complete(literal.position, frame, relation, table);
+                // Answers found meanwhile by a recursive computation are used too
+                for (int k = 0; k < subgoal.numAnswers; k++)
+                {
+                    int mark = trailSize;
+                    if (unify(literal.position, frame, subgoal.answers[k], 0))
+                    {
+                        solve(body, i + 1, frame, table, goal, goalFrame);
+                    }
+                    undo(mark);
+                }
+            }
+            break;
+        }
+        case Literal.NOT:
+            if (!isProvable(literal.disjuncts[0], frame, table))
+            {
+                solve(body, i + 1, frame, table, goal, goalFrame);
+            }
+            break;
+        case Literal.DISTINCT:
+            if (!identical(literal.position, frame, literal.secondPosition, frame))
+            {
+                solve(body, i + 1, frame, table, goal, goalFrame);
+            }
+            break;
+        default:
+            for (Literal disjunct : literal.disjuncts)
+            {
+                solveLiteral(disjunct, body, i, frame, table, goal, goalFrame);
+            }
+            break;
+        }
+    }
+
+    // Returns whether the negated literal has a solution
+    private boolean isProvable(Literal literal, int frame, Table table)
+    {
+        switch (literal.kind)
+        {
+        case Literal.NOT:
+            return !isProvable(literal.disjuncts[0], frame, table);
+        case Literal.DISTINCT:
+            return !identical(literal.position, frame, literal.secondPosition, frame);
+        case Literal.OR:
+            for (Literal disjunct : literal.disjuncts)
+            {
+                if (isProvable(disjunct, frame, table))
+                {
+                    return true;
+                }
+            }
+            return false;
+        default:
+            break;
+        }
+        Relation relation = literal.relation;
+        if (relation.hasBodies)
+        {
+            return complete(literal.position, frame, relation, table).numAnswers > 0;
+        }
+        if (relation.isContext)
+        {
+            table.isConstant = false;
+        }
+        boolean provable = false;
+        for (int k = 0; k < relation.rules.size() && !provable; k++)
+        {
+            Rule fact = relation.rules.get(k);
+            int mark = trailSize;
+            int savedSlots = numSlots;
+            provable = unify(literal.position, frame, fact.head, pushFrame(fact.numVariables));
+            undo(mark);
+            numSlots = savedSlots;
+        }
+        for (int k = 0; k < relation.numContextFacts && !provable; k++)
+        {
+            int mark = trailSize;
+            provable = unify(literal.position, frame, relation.contextFacts[k], 0);
+            undo(mark);
+        }
+        return provable;
+    }
+
+    // Adds the goal with its bindings applied to the answers of the table, unless it is there already
+    private void addAnswer(Table table, int goal, int goalFrame)
+    {
+        int start = query.size;
+        int hash = write(goal, goalFrame, query, false);
+        if (!table.addAnswer(this, QUERY | start, query.size - start, hash))
+        {
+            query.size = start;
+        }
+    }
+
+    // Returns a copy of the table in the program heap
+    private Table persist(Table table)
+    {
+        Table copy = new Table(program.size, table.keySize, table.hash);
+        for (int i = 0; i < table.keySize; i++)
+        {
+            program.add(word(table.key + i));
+        }
+        for (int i = 0; i < table.numAnswers; i++)
+        {
+            int start = program.size;
+            int answer = table.answers[i];
+            int size = size(answer);
+            for (int w = 0; w < size; w++)
+            {
+                program.add(word(answer + w));
+            }
+            copy.addAnswer(this, start, size, table.answerHashes[i]);
+        }
+        copy.isComplete = true;
+        copy.isConstant = true;
+        return copy;
+    }
+
+    private boolean sameWords(int a, int b, int size)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (word(a + i) != word(b + i))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean sameWords(int a, int[] words, int size)
+    {
+        for (int i = 0; i < size; i++)
+        {
+            if (word(a + i) != words[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ==== Data structures ====
+
+    /** A growable array of words. */
+    private static final class Heap
+    {
+        private int[] words = new int[1024];
+        private int size = 0;
+
+        private void add(int word)
+        {
+            if (size == words.length)
+            {
+                words = Arrays.copyOf(words, 2 * size);
+            }
+            words[size++] = word;
+        }
+    }
+
+    private static final class Rule
+    {
+        private final int head;
+        private final int numVariables;
+        private final Literal[] body;
+
+        private Rule(int head, int numVariables, Literal[] body)
+        {
+            this.head = head;
+            this.numVariables = numVariables;
+            this.body = body;
+        }
+    }
+
+    private static final class Literal
+    {
+        private static final int SENTENCE = 0;
+        private static final int NOT = 1;
+        private static final int DISTINCT = 2;
+        private static final int OR = 3;
+
+        private final int kind;
+        // The sentence, or the terms of a distinct
+        private final int position;
+        private final int secondPosition;
+        private final Relation relation;
+        // The disjuncts of an or, or the negated literal of a not
+        private final Literal[] disjuncts;
+
+        private Literal(int kind, int position, int secondPosition, Relation relation, Literal[] disjuncts)
+        {
+            this.kind = kind;
+            this.position = position;
+            this.secondPosition = secondPosition;
+            this.relation = relation;
+            this.disjuncts = disjuncts;
+        }
+    }
+
+    /** The rules and facts of a relation, which is a name and an arity. */
+    private static final class Relation
+    {
+        private final boolean isContext;
+        private final List<Rule> rules = new ArrayList<Rule>();
+        private boolean hasBodies = false;
+        // The true or does sentences of the current query
+        private int[] contextFacts = new int[0];
+        private int numContextFacts = 0;
+
+        private Relation(boolean isContext)
+        {
+            this.isContext = isContext;
+        }
+
+        private void addContextFact(int position)
+        {
+            if (numContextFacts == contextFacts.length)
+            {
+                contextFacts = Arrays.copyOf(contextFacts, Math.max(16, 2 * numContextFacts));
+            }
+            contextFacts[numContextFacts++] = position;
+        }
+    }
+
+    /** The answers of a subgoal, with a hash set to keep them distinct. */
+    private static final class Table
+    {
+        private final int key;
+        private final int keySize;
+        private final int hash;
+        private int[] answers = new int[4];
+        private int[] answerHashes = new int[4];
+        private int numAnswers = 0;
+        // Indices of answers plus one, by hash, or 0
+        private int[] answerSet = new int[8];
+        private boolean isComplete = false;
+        private boolean isConstant = true;
+        private boolean isCalledRecursively = false;
+        // Whether the table was computed during a recursion, and must not be reused
+        private boolean isStale = false;
+
+        private Table(int key, int keySize, int hash)
+        {
+            this.key = key;
+            this.keySize = keySize;
+            this.hash = hash;
+        }
+
+        // Adds the answer at the given position, and returns false if it was there already
+        private boolean addAnswer(TrailProver prover, int position, int size, int hash)
+        {
+            int mask = answerSet.length - 1;
+            for (int i = hash & mask; answerSet[i] != 0; i = (i + 1) & mask)
+            {
+                int other = answerSet[i] - 1;
+                if (answerHashes[other] == hash && prover.size(answers[other]) == size
+                        && prover.sameWords(answers[other], position, size))
+                {
+                    return false;
+                }
+            }
+            if (numAnswers == answers.length)
+            {
+                answers = Arrays.copyOf(answers, 2 * numAnswers);
+                answerHashes = Arrays.copyOf(answerHashes, 2 * numAnswers);
+            }
+            answers[numAnswers] = position;
+            answerHashes[numAnswers] = hash;
+            numAnswers++;
+            if (2 * numAnswers > answerSet.length)
+            {
+                answerSet = new int[2 * answerSet.length];
+                mask = answerSet.length - 1;
+                for (int a = 0; a < numAnswers; a++)
+                {
+                    int i = answerHashes[a] & mask;
+                    while (answerSet[i] != 0)
+                    {
+                        i = (i + 1) & mask;
+                    }
+                    answerSet[i] = a + 1;
+                }
+            }
+            else
+            {
+                int i = hash & mask;
+                while (answerSet[i] != 0)
+                {
+                    i = (i + 1) & mask;
+                }
+                answerSet[i] = numAnswers;
+            }
+            return true;
+        }
+    }
+
+    /** Tables by key, in an open addressing hash table. */
+    private static final class TableMap
+    {
+        private Table[] tables = new Table[64];
+        private int size = 0;
+
+        private void clear()
+        {
+            if (size > 0)
+            {
+                Arrays.fill(tables, null);
+                size = 0;
+            }
+        }
+
+        // Returns the table with the given key, unless it is stale
+        private Table get(TrailProver prover, int[] key, int keySize, int hash)
+        {
+            int mask = tables.length - 1;
+            for (int i = hash & mask; tables[i] != null; i = (i + 1) & mask)
+            {
+                Table table = tables[i];
+                if (table.hash == hash && table.keySize == keySize && prover.sameWords(table.key, key, keySize))
+                {
+                    return table.isStale ? null : table;
+                }
+            }
+            return null;
+        }
+
+        // Adds the table, replacing any table with the same key
+        private void put(TrailProver prover, Table table)
+        {
+            int mask = tables.length - 1;
+            int i = table.hash & mask;
+            for (; tables[i] != null; i = (i + 1) & mask)
+            {
+                Table other = tables[i];
+                if (other.hash == table.hash && other.keySize == table.keySize && prover.sameWords(other.key, table.key, table.keySize))
+                {
+                    tables[i] = table;
+                    return;
+                }
+            }
+            tables[i] = table;
+            size++;
+            if (2 * size > tables.length)
+            {
+                Table[] old = tables;
+                tables = new Table[2 * old.length];
+                mask = tables.length - 1;
+                for (Table t : old)
+                {
+                    if (t != null)
+                    {
+                        int j = t.hash & mask;
+                        while (tables[j] != null)
+                        {
+                            j = (j + 1) & mask;
+                        }
+                        tables[j] = t;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -21,6 +21,10 @@ import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
  * clear that this is helpful, but it's an additional layer of bullet-proofing
  * in case anything goes wrong.
  *
+ * Move ids are those of the backing machine, so ids handed out before a
+ * fall back to the prover mean nothing to it, like states of the failed
+ * machine.
+ *
  * @author Sam Schreiber
  */
 public class FailsafeStateMachine extends StateMachine
@@ -377,6 +381,32 @@ public class FailsafeStateMachine extends StateMachine
         return performDepthCharge(state, theDepth);
     }
 
+    @Override
+    public MachineState performDepthCharge(MachineState state, int[] theDepth, int[] goals) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        if(theBackingMachine == null)
+            return null;
+
+        try {
+            return theBackingMachine.performDepthCharge(state, theDepth, goals);
+        } catch (TransitionDefinitionException te) {
+            throw te;
+        } catch (MoveDefinitionException me) {
+            throw me;
+        } catch (GoalDefinitionException ge) {
+            throw ge;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return performDepthCharge(state, theDepth, goals);
+    }
+
     @Override
     public void getAverageDiscountedScoresFromRepeatedDepthCharges(MachineState state, double[] avgScores, double[] avgDepth, double discountFactor, int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
         if(theBackingMachine == null)
@@ -425,6 +455,111 @@ public class FailsafeStateMachine extends StateMachine
         updateRoot(theState);
     }
 
+    @Override
+    public int[] getGoalBounds(MachineState state, Role role) {
+        if(theBackingMachine == null)
+            return new int[] {0, 100};
+
+        try {
+            return theBackingMachine.getGoalBounds(state, role);
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return getGoalBounds(state, role);
+    }
+
+    @Override
+    public int getMoveId(int role, Move move) {
+        if(theBackingMachine == null)
+            return -1;
+
+        try {
+            return theBackingMachine.getMoveId(role, move);
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return getMoveId(role, move);
+    }
+
+    @Override
+    public Move getMoveFromId(int role, int id) {
+        if(theBackingMachine == null)
+            return null;
+
+        try {
+            return theBackingMachine.getMoveFromId(role, id);
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return getMoveFromId(role, id);
+    }
+
+    @Override
+    public void getLegalMoveIds(MachineState state, JointMoveIds legalMoveIds) throws MoveDefinitionException {
+        if(theBackingMachine == null)
+            return;
+
+        try {
+            theBackingMachine.getLegalMoveIds(state, legalMoveIds);
+            return;
+        } catch(MoveDefinitionException me) {
+            throw me;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        getLegalMoveIds(state, legalMoveIds);
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, int[] jointMove) throws TransitionDefinitionException {
+        if(theBackingMachine == null)
+            return null;
+
+        try {
+            return theBackingMachine.getNextState(state, jointMove);
+        } catch(TransitionDefinitionException te) {
+            throw te;
+        } catch(Exception e) {
+            failGracefully(e, null);
+        } catch(ThreadDeath d) {
+            throw d;
+        } catch(OutOfMemoryError e) {
+            throw e;
+        } catch(Error e) {
+            failGracefully(null, e);
+        }
+
+        return getNextState(state, jointMove);
+    }
+
     public StateMachine getBackingMachine() {
         return theBackingMachine;
     }
@@ -0,0 +1,268 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+
+/**
+ * The HotSwapStateMachine lets a gamer use a state machine that is fast but
+ * slow to initialize, such as a propnet state machine, without paying for
+ * its initialization up front. Like the {@link FailsafeStateMachine}, it
+ * wraps another machine and forwards every query to a backing machine.
+ *
+ * Initialization only sets up a regular prover, which starts answering
+ * queries right away, while the fast machine is initialized on a background
+ * thread. Once it is ready, the fast machine is checked against a prover of
+ * its own for a short while, and if it agrees, it atomically replaces the
+ * prover as the backing machine, in the middle of the match. If the fast
+ * machine fails to initialize or disagrees with the prover, the prover is
+ * kept and the failure is logged.
+ *
+ * States created by the prover before the swap can still be passed to the
+ * fast machine afterwards, so a search tree built during the first moves
+ * keeps working. Such states are compared by contents, so they are equal to
+ * the states the fast machine creates for the same position, although their
+ * hash codes may differ: a hash-based collection that holds states from
+ * before the swap may hold a second copy of a position after it. Move ids
+ * are numbered by this machine rather than the backing one, so they stay
+ * the same across the swap.
+ *
+ * Queries must come from one thread at a time, as for the backing machines.
+ */
+public class HotSwapStateMachine extends StateMachine
+{
+    public static final long DEFAULT_VERIFICATION_TIME = 500;
+
+    private final StateMachine fastMachine;
+    private final long verificationTime;
+    private volatile StateMachine theBackingMachine = null;
+    private Thread builder = null;
+    private CountDownLatch builderDone = new CountDownLatch(0);
+
+    public HotSwapStateMachine(StateMachine fastMachine) {
+        this(fastMachine, DEFAULT_VERIFICATION_TIME);
+    }
+
+    /**
+     * Creates a machine that swaps to fastMachine after checking it against
+     * a prover for verificationTime milliseconds.
+     */
+    public HotSwapStateMachine(StateMachine fastMachine, long verificationTime) {
+        this.fastMachine = fastMachine;
+        this.verificationTime = verificationTime;
+    }
+
+    @Override
+    public String getName() {
+        return "HotSwap(" + fastMachine.getName() + ")";
+    }
+
+    @Override
+    public synchronized void initialize(final List<Gdl> description) {
+        stopBuilder();
+
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(description);
+        theBackingMachine = prover;
+
+        final CountDownLatch done = new CountDownLatch(1);
+        builderDone = done;
+        builder = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    buildFastMachine(description);
+                } finally {
+                    done.countDown();
+                }
+            }
+        }, "HotSwapStateMachine builder");
+        builder.setDaemon(true);
+        builder.start();
+    }
+
+    // The fast machine must not be initialized by two builders at once
+    private void stopBuilder() {
+        if (builder == null)
+            return;
+        builder.interrupt();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                builder.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+        builder = null;
+    }
+
+    private void buildFastMachine(List<Gdl> description) {
+        try {
+            long start = System.currentTimeMillis();
+            fastMachine.initialize(description);
+            long built = System.currentTimeMillis();
+            if (Thread.currentThread().isInterrupted())
+                return;
+
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(description);
+            if (!StateMachineVerifier.checkMachineConsistency(reference, fastMachine, verificationTime)) {
+                GamerLogger.logError("StateMachine", "HotSwap Machine: " + fastMachine.getName() + " disagrees with the prover. Keeping the prover.");
+                return;
+            }
+            // A new initialization interrupts this thread and waits for it
+            // before installing its own prover, so a late swap is undone.
+            if (Thread.currentThread().isInterrupted())
+                return;
+            theBackingMachine = fastMachine;
+            GamerLogger.log("StateMachine", "HotSwap Machine: swapped to " + fastMachine.getName() + " after " + (built - start)
+                    + " ms of initialization and " + (System.currentTimeMillis() - built) + " ms of verification.");
+        } catch (Exception e) {
+            GamerLogger.logStackTrace("StateMachine", e);
+            GamerLogger.logError("StateMachine", "HotSwap Machine: failed to initialize " + fastMachine.getName() + ". Keeping the prover.");
+        } catch (ThreadDeath d) {
+            throw d;
+        } catch (Error e) {
+            GamerLogger.logStackTrace("StateMachine", e);
+            GamerLogger.logError("StateMachine", "HotSwap Machine: failed to initialize " + fastMachine.getName() + ". Keeping the prover.");
+        }
+    }
+
+    /**
+     * Waits for the fast machine to be initialized and verified, for at most
+     * timeout milliseconds, and returns whether queries are now answered by it.
+     */
+    public boolean awaitSwap(long timeout) throws InterruptedException {
+        CountDownLatch done;
+        synchronized (this) {
+            done = builderDone;
+        }
+        done.await(timeout, TimeUnit.MILLISECONDS);
+        return isSwapped();
+    }
+
+    /** Returns whether queries are answered by the fast machine rather than the prover. */
+    public boolean isSwapped() {
+        return theBackingMachine == fastMachine;
+    }
+
+    public StateMachine getBackingMachine() {
+        return theBackingMachine;
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException {
+        return theBackingMachine.getGoal(state, role);
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state) {
+        return theBackingMachine.isTerminal(state);
+    }
+
+    @Override
+    public List<Role> getRoles() {
+        return theBackingMachine.getRoles();
+    }
+
+    @Override
+    public MachineState getInitialState() {
+        return theBackingMachine.getInitialState();
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException {
+        return theBackingMachine.findActions(role);
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException {
+        return theBackingMachine.getLegalMoves(state, role);
+    }
+
+    @Override
+    public List<List<Move>> getAllLegalMoves(MachineState state) throws MoveDefinitionException {
+        return theBackingMachine.getAllLegalMoves(state);
+    }
+
+    @Override
+    public List<Integer> getGoals(MachineState state) throws GoalDefinitionException {
+        return theBackingMachine.getGoals(state);
+    }
+
+    @Override
+    public List<Integer> getGoalsIfTerminal(MachineState state) throws GoalDefinitionException {
+        return theBackingMachine.getGoalsIfTerminal(state);
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException {
+        return theBackingMachine.getNextState(state, moves);
+    }
+
+    @Override
+    public MachineState getNextStateDestructively(MachineState state, List<Move> moves) throws TransitionDefinitionException {
+        return theBackingMachine.getNextStateDestructively(state, moves);
+    }
+
+    @Override
+    public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList) {
+        return theBackingMachine.getMachineStateFromSentenceList(sentenceList);
+    }
+
+    @Override
+    public Role getRoleFromConstant(GdlConstant constant) {
+        return theBackingMachine.getRoleFromConstant(constant);
+    }
+
+    @Override
+    public Move getMoveFromTerm(GdlTerm term) {
+        return theBackingMachine.getMoveFromTerm(term);
+    }
+
+    @Override
+    public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException {
+        return theBackingMachine.performDepthCharge(state, theDepth);
+    }
+
+    @Override
+    public MachineState performDepthCharge(MachineState state, int[] theDepth, int[] goals) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        return theBackingMachine.performDepthCharge(state, theDepth, goals);
+    }
+
+    @Override
+    public void getAverageDiscountedScoresFromRepeatedDepthCharges(MachineState state, double[] avgScores, double[] avgDepth, double discountFactor, int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        theBackingMachine.getAverageDiscountedScoresFromRepeatedDepthCharges(state, avgScores, avgDepth, discountFactor, repetitions);
+    }
+
+    @Override
+    public void doPerMoveWork() {
+        theBackingMachine.doPerMoveWork();
+    }
+
+    @Override
+    public void updateRoot(MachineState theState) {
+        theBackingMachine.updateRoot(theState);
+    }
+
+    @Override
+    public int[] getGoalBounds(MachineState state, Role role) {
+        return theBackingMachine.getGoalBounds(state, role);
+    }
+}
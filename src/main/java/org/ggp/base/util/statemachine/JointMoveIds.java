@@ -0,0 +1,160 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * JointMoveIds holds the legal moves of every role in a state as move ids,
+ * as filled in by {@link StateMachine#getLegalMoveIds(MachineState, JointMoveIds)},
+ * and iterates over their joint moves in place, so that a search can go
+ * through the joint moves of a state without allocating a list per joint
+ * move:
+ *
+ * <pre>
+ *     machine.getLegalMoveIds(state, legal);
+ *     for (legal.reset(); legal.next(); ) {
+ *         MachineState next = machine.getNextState(state, legal.getJointMove());
+ *     }
+ * </pre>
+ *
+ * Joint moves come in the order of {@link StateMachine#getLegalJointMoves(MachineState)},
+ * with the moves of the last role changing fastest. An instance is meant to
+ * be reused from one state to the next: its buffers only ever grow, so once
+ * they are large enough for the game, filling and iterating allocate nothing.
+ */
+public final class JointMoveIds
+{
+    private final int[][] ids;
+    private final int[] counts;
+    // The position of each role's move in its legal moves, and the joint move
+    // they make, during an iteration
+    private final int[] positions;
+    private final int[] jointMove;
+    // The role whose move is fixed during the iteration, or -1
+    private int fixedRole = -1;
+    private boolean started;
+    private boolean done = true;
+
+    public JointMoveIds(int numRoles)
+    {
+        ids = new int[numRoles][8];
+        counts = new int[numRoles];
+        positions = new int[numRoles];
+        jointMove = new int[numRoles];
+    }
+
+    public int getNumRoles()
+    {
+        return counts.length;
+    }
+
+    /** Removes every legal move of the role. */
+    public void clear(int role)
+    {
+        counts[role] = 0;
+    }
+
+    /** Adds a legal move of the role. */
+    public void add(int role, int id)
+    {
+        if (counts[role] == ids[role].length) {
+            ids[role] = Arrays.copyOf(ids[role], 2 * counts[role]);
+        }
+        ids[role][counts[role]++] = id;
+    }
+
+    public int getNumMoves(int role)
+    {
+        return counts[role];
+    }
+
+    /** Returns the id of the i-th legal move of the role. */
+    public int getMoveId(int role, int i)
+    {
+        return ids[role][i];
+    }
+
+    /** Returns the number of joint moves, which is the product of the numbers of legal moves. */
+    public int getNumJointMoves()
+    {
+        int product = 1;
+        for (int count : counts) {
+            product *= count;
+        }
+        return product;
+    }
+
+    /** Starts an iteration over every joint move. */
+    public void reset()
+    {
+        fixedRole = -1;
+        started = false;
+        done = false;
+    }
+
+    /**
+     * Starts an iteration over the joint moves in which the role plays the
+     * given move, which should be one of its legal moves.
+     */
+    public void reset(int role, int id)
+    {
+        reset();
+        fixedRole = role;
+        jointMove[role] = id;
+    }
+
+    /**
+     * Moves on to the next joint move of the iteration, and returns false if
+     * there is none left.
+     */
+    public boolean next()
+    {
+        if (done) {
+            return false;
+        }
+        if (!started) {
+            started = true;
+            for (int r = 0; r < counts.length; r++) {
+                if (r != fixedRole) {
+                    if (counts[r] == 0) {
+                        done = true;
+                        return false;
+                    }
+                    positions[r] = 0;
+                    jointMove[r] = ids[r][0];
+                }
+            }
+            return true;
+        }
+        for (int r = counts.length - 1; r >= 0; r--) {
+            if (r == fixedRole) {
+                continue;
+            }
+            if (++positions[r] < counts[r]) {
+                jointMove[r] = ids[r][positions[r]];
+                return true;
+            }
+            positions[r] = 0;
+            jointMove[r] = ids[r][0];
+        }
+        done = true;
+        return false;
+    }
+
+    /**
+     * Returns the current joint move of the iteration. The array is reused
+     * by the next call to {@link #next()}, and must not be modified.
+     */
+    public int[] getJointMove()
+    {
+        return jointMove;
+    }
+
+    /** Stores a joint move picked uniformly at random into the given array. */
+    public void getRandomJointMove(Random random, int[] jointMove)
+    {
+        for (int r = 0; r < counts.length; r++) {
+            jointMove[r] = ids[r][random.nextInt(counts[r])];
+        }
+    }
+}
@@ -220,6 +220,125 @@ public abstract class StateMachine
         ;
     }
 
+    /** Override this to bound the goal values that a role can still reach from a state,
+     * for instance by analysing which parts of the state can no longer change. Searches
+     * can stop exploring a state once its bounds are equal, since its outcome is decided.
+     * <p>
+     * CONTRACT: Returns {min, max} such that every terminal state reachable from "state"
+     *           gives "role" a goal value between min and max, inclusive.
+     */
+    public int[] getGoalBounds(MachineState state, Role role) {
+        return new int[] {0, 100};
+    }
+
+    // ============================================
+    //              Integer move ids
+    // ============================================
+    //
+    //   Searches that store or go through many joint
+    // moves can name moves by ints instead of Move objects.
+    // The moves of each role are numbered from 0, and a
+    // joint move is an int[] with a move id per role, in
+    // the order of getRoles(). These stubs number the moves
+    // of each role in the order they are first seen, and go
+    // through the Move methods above; machines with a fixed
+    // set of moves can override them to use their own
+    // numbering. Ids only mean something to the machine
+    // that gave them.
+
+    private List<Map<Move, Integer>> moveIds = null;
+    private List<List<Move>> movesById = null;
+
+    /** Returns the id of the given move of the role with the given index.
+     * <p>
+     * CONTRACT: Returns the same id for the same move, and different ids for different
+     *           moves, for as long as the machine is used. Returns -1 for a move that
+     *           can never be legal, if the machine knows it.
+     */
+    public int getMoveId(int role, Move move) {
+        createMoveIds();
+        Integer id = moveIds.get(role).get(move);
+        if (id == null) {
+            id = movesById.get(role).size();
+            moveIds.get(role).put(move, id);
+            movesById.get(role).add(move);
+        }
+        return id;
+    }
+
+    /** Returns the move of the role with the given index that has the given id. */
+    public Move getMoveFromId(int role, int id) {
+        createMoveIds();
+        return movesById.get(role).get(id);
+    }
+
+    private void createMoveIds() {
+        if (moveIds == null) {
+            moveIds = new ArrayList<Map<Move, Integer>>();
+            movesById = new ArrayList<List<Move>>();
+            for (int r = 0; r < getRoles().size(); r++) {
+                moveIds.add(new HashMap<Move, Integer>());
+                movesById.add(new ArrayList<Move>());
+            }
+        }
+    }
+
+    /** Stores the ids of the legal moves of every role in the given state into legalMoveIds,
+     * in the order of {@link #getLegalMoves(MachineState, Role)}.
+     */
+    public void getLegalMoveIds(MachineState state, JointMoveIds legalMoveIds) throws MoveDefinitionException {
+        List<List<Move>> legals = getAllLegalMoves(state);
+        for (int r = 0; r < legals.size(); r++) {
+            legalMoveIds.clear(r);
+            for (Move move : legals.get(r)) {
+                legalMoveIds.add(r, getMoveId(r, move));
+            }
+        }
+    }
+
+    /** Returns the state that follows the given state when every role plays its move in
+     * the given joint move of move ids, like {@link #getNextState(MachineState, List)}.
+     */
+    public MachineState getNextState(MachineState state, int[] jointMove) throws TransitionDefinitionException {
+        List<Move> moves = new ArrayList<Move>(jointMove.length);
+        for (int r = 0; r < jointMove.length; r++) {
+            moves.add(getMoveFromId(r, jointMove[r]));
+        }
+        return getNextState(state, moves);
+    }
+
+    // ============================================
+    //                Batch queries
+    // ============================================
+    //
+    //   Machines that answer a query with a proof can
+    // share the setup of a state among the queries of all
+    // roles. These stubs ask about each role separately;
+    // such machines can override them, and getGoals(), to
+    // answer in one pass. getLegalJointMoves(state) goes
+    // through getAllLegalMoves(), and the depth charges
+    // that return goals through getGoalsIfTerminal().
+
+    /** Returns the legal moves of every role in the given state, in the order of
+     * {@link #getRoles()}, each as {@link #getLegalMoves(MachineState, Role)} would.
+     */
+    public List<List<Move>> getAllLegalMoves(MachineState state) throws MoveDefinitionException {
+        List<List<Move>> legals = new ArrayList<List<Move>>();
+        for (Role role : getRoles()) {
+            legals.add(getLegalMoves(state, role));
+        }
+        return legals;
+    }
+
+    /** Returns the goal values of every role if the given state is terminal, as
+     * {@link #getGoals(MachineState)} would, and null otherwise. A machine may
+     * find the goals along with terminality, so this is meant for states that
+     * are likely to be terminal.
+     */
+    public List<Integer> getGoalsIfTerminal(MachineState state) throws GoalDefinitionException {
+        return isTerminal(state) ? getGoals(state) : null;
+    }
+
     // ============================================
     //   Implementations of convenience methods
     // ============================================
@@ -242,10 +361,7 @@ public abstract class StateMachine
      */
     public List<List<Move>> getLegalJointMoves(MachineState state) throws MoveDefinitionException
     {
-        List<List<Move>> legals = new ArrayList<List<Move>>();
-        for (Role role : getRoles()) {
-            legals.add(getLegalMoves(state, role));
-        }
+        List<List<Move>> legals = getAllLegalMoves(state);
 
         List<List<Move>> crossProduct = new ArrayList<List<Move>>();
         crossProductLegalMoves(legals, crossProduct, new LinkedList<Move>());
@@ -459,19 +575,45 @@ public abstract class StateMachine
         return state;
     }
 
+    /**
+     * Returns a terminal state derived from repeatedly making random joint moves
+     * until reaching the end of the game, as {@link #performDepthCharge(MachineState, int[])}
+     * does, and also stores the goal of every role in that state into goals, in
+     * the order of {@link #getRoles()}, if it is not null. Each state is checked
+     * with {@link #getGoalsIfTerminal(MachineState)}, so that a machine that finds
+     * the goals along with terminality does not query the terminal state twice.
+     */
+    public MachineState performDepthCharge(MachineState state, final int[] theDepth, final int[] goals) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
+        int nDepth = 0;
+        List<Integer> terminalGoals;
+        while((terminalGoals = getGoalsIfTerminal(state)) == null) {
+            nDepth++;
+            state = getNextStateDestructively(state, getRandomJointMove(state));
+        }
+        if(theDepth != null)
+            theDepth[0] = nDepth;
+        if(goals != null) {
+            for (int i = 0; i < goals.length; i++) {
+                goals[i] = terminalGoals.get(i);
+            }
+        }
+        return state;
+    }
+
     public void getAverageDiscountedScoresFromRepeatedDepthCharges(final MachineState state, final double[] avgScores, final double[] avgDepth, final double discountFactor, final int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException {
         avgDepth[0] = 0;
         for (int j = 0; j < avgScores.length; j++) {
             avgScores[j] = 0;
         }
         final int[] depth = new int[1];
+        final int[] goals = new int[getRoles().size()];
         for (int i = 0; i < repetitions; i++) {
             MachineState stateForCharge = state.clone();
-            stateForCharge = performDepthCharge(stateForCharge, depth);
+            performDepthCharge(stateForCharge, depth, goals);
             avgDepth[0] += depth[0];
             final double accumulatedDiscountFactor = Math.pow(discountFactor, depth[0]);
             for (int j = 0; j < avgScores.length; j++) {
-                avgScores[j] += getGoal(stateForCharge, getRoles().get(j)) * accumulatedDiscountFactor;
+                avgScores[j] += goals[j] * accumulatedDiscountFactor;
             }
         }
         avgDepth[0] /= repetitions;
@@ -1,10 +1,12 @@
 package org.ggp.base.util.statemachine.cache;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.JointMoveIds;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -100,6 +102,87 @@ public final class CachedStateMachine extends StateMachine
         }
     }
 
+    @Override
+    public List<List<Move>> getAllLegalMoves(MachineState state) throws MoveDefinitionException
+    {
+        List<Role> roles = getRoles();
+        Entry entry = getEntry(state);
+        synchronized (entry)
+        {
+            if (!entry.moves.keySet().containsAll(roles))
+            {
+                List<List<Move>> legals = backingStateMachine.getAllLegalMoves(state);
+                for (int i = 0; i < roles.size(); i++)
+                {
+                    entry.moves.put(roles.get(i), ImmutableList.copyOf(legals.get(i)));
+                }
+            }
+
+            List<List<Move>> legals = new ArrayList<List<Move>>(roles.size());
+            for (Role role : roles)
+            {
+                legals.add(entry.moves.get(role));
+            }
+            return legals;
+        }
+    }
+
+    @Override
+    public List<Integer> getGoals(MachineState state) throws GoalDefinitionException
+    {
+        List<Role> roles = getRoles();
+        Entry entry = getEntry(state);
+        synchronized (entry)
+        {
+            if (!entry.goals.keySet().containsAll(roles))
+            {
+                putGoals(entry, backingStateMachine.getGoals(state));
+            }
+
+            return getGoals(entry);
+        }
+    }
+
+    @Override
+    public List<Integer> getGoalsIfTerminal(MachineState state) throws GoalDefinitionException
+    {
+        List<Role> roles = getRoles();
+        Entry entry = getEntry(state);
+        synchronized (entry)
+        {
+            if (entry.terminal == null || (entry.terminal && !entry.goals.keySet().containsAll(roles)))
+            {
+                List<Integer> goals = backingStateMachine.getGoalsIfTerminal(state);
+                entry.terminal = (goals != null);
+                if (goals != null)
+                {
+                    putGoals(entry, goals);
+                }
+            }
+
+            return entry.terminal ? getGoals(entry) : null;
+        }
+    }
+
+    private void putGoals(Entry entry, List<Integer> goals)
+    {
+        List<Role> roles = getRoles();
+        for (int i = 0; i < roles.size(); i++)
+        {
+            entry.goals.put(roles.get(i), goals.get(i));
+        }
+    }
+
+    private List<Integer> getGoals(Entry entry)
+    {
+        List<Integer> goals = new ArrayList<Integer>();
+        for (Role role : getRoles())
+        {
+            goals.add(entry.goals.get(role));
+        }
+        return goals;
+    }
+
     @Override
     public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
     {
@@ -134,6 +217,7 @@ public final class CachedStateMachine extends StateMachine
     public void doPerMoveWork()
     {
         prune();
+        backingStateMachine.doPerMoveWork();
     }
 
     public void prune()
@@ -157,4 +241,29 @@ public final class CachedStateMachine extends StateMachine
         // TODO(schreib): Should this be cached as well?
         return backingStateMachine.getInitialState();
     }
+
+    @Override
+    public int[] getGoalBounds(MachineState state, Role role) {
+        return backingStateMachine.getGoalBounds(state, role);
+    }
+
+    @Override
+    public int getMoveId(int role, Move move) {
+        return backingStateMachine.getMoveId(role, move);
+    }
+
+    @Override
+    public Move getMoveFromId(int role, int id) {
+        return backingStateMachine.getMoveFromId(role, id);
+    }
+
+    @Override
+    public void getLegalMoveIds(MachineState state, JointMoveIds legalMoveIds) throws MoveDefinitionException {
+        backingStateMachine.getLegalMoveIds(state, legalMoveIds);
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, int[] jointMove) throws TransitionDefinitionException {
+        return backingStateMachine.getNextState(state, jointMove);
+    }
 }
\ No newline at end of file
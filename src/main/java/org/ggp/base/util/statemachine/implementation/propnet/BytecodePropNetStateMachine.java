@@ -0,0 +1,438 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.compiler.PropNetCompiler;
+import org.ggp.base.util.propnet.compiler.PropNetEvaluator;
+import org.ggp.base.util.statemachine.JointMoveIds;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * The BytecodePropNetStateMachine answers queries with a game-specific class
+ * generated from the compiled propnet by {@link PropNetCompiler}, in which
+ * every query evaluates only the gates it depends on, as straight-line code
+ * over the bitset of the state, instead of interpreting the propnet.
+ *
+ * If the propnet cannot be compiled, for instance because a generated
+ * method would exceed the JVM's limits even after splitting, the machine
+ * logs why and falls back to the interpreted {@link
+ * CompiledPropNetStateMachine} it extends, so it can be used on any game.
+ *
+ * Depth charges, repeated ones included, and the queries by move id run on
+ * the generated code as well. A depth charge keeps the state as a bitset
+ * from ply to ply and picks moves by their legal bit, so it builds no Move
+ * and no MachineState until the terminal state.
+ *
+ * Like its superclass, an instance is not thread-safe.
+ */
+public class BytecodePropNetStateMachine extends CompiledPropNetStateMachine
+{
+    private final int maxCodeLength;
+    private PropNetEvaluator evaluator;
+    private int[] legalOffsets;
+    private int[] goalOffsets;
+    // The input component of each legal move of each role, or -1
+    private int[][] legalInputs;
+    private long[] inputs;
+    private long[] legals;
+    private long[] goals;
+    private final long[] terminal = new long[1];
+    // The states of depth charges, swapped at every ply
+    private long[] playoutState;
+    private long[] playoutNext;
+    private final Random random = new Random();
+
+    /**
+     * Initialize must be called before using the StateMachine
+     */
+    public BytecodePropNetStateMachine()
+    {
+        this(PropNetCompiler.MAX_CODE_LENGTH);
+    }
+
+    /**
+     * Initialize must be called before using the StateMachine. The propnet
+     * is only compiled if no generated method is longer than maxCodeLength.
+     */
+    public BytecodePropNetStateMachine(int maxCodeLength)
+    {
+        this.maxCodeLength = maxCodeLength;
+    }
+
+    /**
+     * Creates a state machine over an already compiled propnet, skipping
+     * propnet construction. Initialize must not be called.
+     */
+    public BytecodePropNetStateMachine(CompiledPropNet net)
+    {
+        super(net);
+        this.maxCodeLength = PropNetCompiler.MAX_CODE_LENGTH;
+        compile();
+    }
+
+    // For tests: uses the given evaluator of the compiled propnet
+    BytecodePropNetStateMachine(CompiledPropNet net, PropNetEvaluator evaluator)
+    {
+        super(net);
+        this.maxCodeLength = PropNetCompiler.MAX_CODE_LENGTH;
+        setUp(evaluator);
+    }
+
+    @Override
+    public void initialize(List<Gdl> description)
+    {
+        super.initialize(description);
+        compile();
+    }
+
+    private void compile()
+    {
+        long start = System.currentTimeMillis();
+        try {
+            setUp(PropNetCompiler.compile(getCompiledPropNet(), maxCodeLength));
+        } catch (IllegalStateException e) {
+            GamerLogger.log("StateMachine", "Falling back to the interpreted propnet: " + e.getMessage());
+            evaluator = null;
+            return;
+        }
+        GamerLogger.log("StateMachine", "Compiled the propnet to bytecode in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private void setUp(PropNetEvaluator evaluator)
+    {
+        CompiledPropNet net = getCompiledPropNet();
+        this.evaluator = evaluator;
+        legalOffsets = offsets(net.getLegals());
+        goalOffsets = offsets(net.getGoals());
+        inputs = new long[PropNetMachineState.getNumWords(net.getNumSources() - net.getNumBases())];
+        legals = new long[PropNetMachineState.getNumWords(legalOffsets[legalOffsets.length - 1])];
+        goals = new long[PropNetMachineState.getNumWords(goalOffsets[goalOffsets.length - 1])];
+        legalInputs = new int[legalOffsets.length - 1][];
+        for (int r = 0; r < legalInputs.length; r++) {
+            Move[] legalMoves = net.getLegalMoves()[r];
+            legalInputs[r] = new int[legalMoves.length];
+            for (int k = 0; k < legalMoves.length; k++) {
+                legalInputs[r][k] = net.getInputIndex(r, legalMoves[k]);
+            }
+        }
+        playoutState = new long[PropNetMachineState.getNumWords(net.getNumBases())];
+        playoutNext = new long[playoutState.length];
+    }
+
+    private static int[] offsets(int[][] componentsByRole)
+    {
+        int[] offsets = new int[componentsByRole.length + 1];
+        for (int r = 0; r < componentsByRole.length; r++) {
+            offsets[r + 1] = offsets[r] + componentsByRole[r].length;
+        }
+        return offsets;
+    }
+
+    /** Returns whether queries run on generated bytecode rather than falling back to interpretation. */
+    public boolean isCompiled()
+    {
+        return evaluator != null;
+    }
+
+    private long[] getBits(MachineState state)
+    {
+        if (state instanceof PropNetMachineState) {
+            PropNetMachineState propNetState = (PropNetMachineState) state;
+            if (propNetState.hasBaseOrdering(getCompiledPropNet().getBaseSentences())) {
+                return propNetState.getBits();
+            }
+        }
+        return ((PropNetMachineState) getMachineStateFromSentenceList(state.getContents())).getBits();
+    }
+
+    private static boolean isSet(long[] bits, int bit)
+    {
+        return (bits[bit >>> 6] & (1L << bit)) != 0;
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        if (evaluator == null) {
+            return super.getGoal(state, role);
+        }
+        int r = getRoleIndices().get(role);
+        Arrays.fill(goals, 0);
+        evaluator.computeGoals(getBits(state), goals);
+        int goal = readGoal(r);
+        if (goal < 0) {
+            throw new GoalDefinitionException(state, role);
+        }
+        return goal;
+    }
+
+    // Returns the goal of the role in the goal bits, or -1 unless it has exactly one
+    private int readGoal(int r)
+    {
+        int goal = -1;
+        for (int i = goalOffsets[r]; i < goalOffsets[r + 1]; i++) {
+            if (isSet(goals, i)) {
+                if (goal >= 0) {
+                    return -1;
+                }
+                goal = getCompiledPropNet().getGoalValues()[r][i - goalOffsets[r]];
+            }
+        }
+        return goal;
+    }
+
+    @Override
+    public List<Integer> getGoalsIfTerminal(MachineState state) throws GoalDefinitionException
+    {
+        if (evaluator == null) {
+            return super.getGoalsIfTerminal(state);
+        }
+        long[] bits = getBits(state);
+        terminal[0] = 0;
+        evaluator.computeTerminal(bits, terminal);
+        if (terminal[0] == 0) {
+            return null;
+        }
+        Arrays.fill(goals, 0);
+        evaluator.computeGoals(bits, goals);
+        List<Integer> goalValues = new ArrayList<Integer>(getRoles().size());
+        for (int r = 0; r < getRoles().size(); r++) {
+            int goal = readGoal(r);
+            if (goal < 0) {
+                throw new GoalDefinitionException(state, getRoles().get(r));
+            }
+            goalValues.add(goal);
+        }
+        return goalValues;
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        if (evaluator == null) {
+            return super.isTerminal(state);
+        }
+        terminal[0] = 0;
+        evaluator.computeTerminal(getBits(state), terminal);
+        return terminal[0] != 0;
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        if (evaluator == null) {
+            return super.getLegalMoves(state, role);
+        }
+        int r = getRoleIndices().get(role);
+        Arrays.fill(legals, 0);
+        evaluator.computeLegals(getBits(state), legals);
+        Move[] legalMoves = getCompiledPropNet().getLegalMoves()[r];
+        List<Move> moves = new ArrayList<Move>();
+        for (int i = legalOffsets[r]; i < legalOffsets[r + 1]; i++) {
+            if (isSet(legals, i)) {
+                moves.add(legalMoves[i - legalOffsets[r]]);
+            }
+        }
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(state, role);
+        }
+        return moves;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        if (evaluator == null) {
+            return super.getNextState(state, moves);
+        }
+        CompiledPropNet net = getCompiledPropNet();
+        Arrays.fill(inputs, 0);
+        for (int r = 0; r < moves.size(); r++) {
+            markInput(net.getInputIndex(r, moves.get(r)));
+        }
+        return computeNextState(state);
+    }
+
+    // Sets the input bit of a move, unless it is -1 for a move without one
+    private void markInput(int input)
+    {
+        if (input >= 0) {
+            int bit = input - getCompiledPropNet().getNumBases();
+            inputs[bit >>> 6] |= 1L << bit;
+        }
+    }
+
+    // Returns the state after the inputs that are marked
+    private MachineState computeNextState(MachineState state)
+    {
+        CompiledPropNet net = getCompiledPropNet();
+        long[] bits = getBits(state);
+        long[] next = new long[bits.length];
+        evaluator.computeNextState(bits, inputs, next);
+
+        long[] zobristKeys = net.getZobristKeys();
+        long hash;
+        if (state instanceof PropNetMachineState && ((PropNetMachineState) state).getBits() == bits) {
+            hash = ((PropNetMachineState) state).getZobristHash();
+        } else {
+            hash = PropNetMachineState.computeZobristHash(zobristKeys, bits);
+        }
+        hash ^= PropNetMachineState.getZobristDelta(zobristKeys, bits, next);
+        return new PropNetMachineState(net.getBaseSentences(), zobristKeys, next, hash);
+    }
+
+    @Override
+    public void getLegalMoveIds(MachineState state, JointMoveIds legalMoveIds) throws MoveDefinitionException
+    {
+        if (evaluator == null) {
+            super.getLegalMoveIds(state, legalMoveIds);
+            return;
+        }
+        Arrays.fill(legals, 0);
+        evaluator.computeLegals(getBits(state), legals);
+        for (int r = 0; r < legalMoveIds.getNumRoles(); r++) {
+            legalMoveIds.clear(r);
+            for (int i = legalOffsets[r]; i < legalOffsets[r + 1]; i++) {
+                if (isSet(legals, i)) {
+                    legalMoveIds.add(r, i - legalOffsets[r]);
+                }
+            }
+            if (legalMoveIds.getNumMoves(r) == 0) {
+                throw new MoveDefinitionException(state, getRoles().get(r));
+            }
+        }
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, int[] jointMove) throws TransitionDefinitionException
+    {
+        if (evaluator == null) {
+            return super.getNextState(state, jointMove);
+        }
+        Arrays.fill(inputs, 0);
+        for (int r = 0; r < jointMove.length; r++) {
+            markInput(legalInputs[r][jointMove[r]]);
+        }
+        return computeNextState(state);
+    }
+
+    @Override
+    public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException
+    {
+        if (evaluator == null) {
+            return super.performDepthCharge(state, theDepth);
+        }
+        int depth = playDepthCharge(state);
+        if (theDepth != null) {
+            theDepth[0] = depth;
+        }
+        return readPlayoutState();
+    }
+
+    @Override
+    public MachineState performDepthCharge(MachineState state, int[] theDepth, int[] goals) throws MoveDefinitionException, GoalDefinitionException
+    {
+        if (evaluator == null) {
+            return super.performDepthCharge(state, theDepth, goals);
+        }
+        int depth = playDepthCharge(state);
+        if (goals != null) {
+            Arrays.fill(this.goals, 0);
+            evaluator.computeGoals(playoutState, this.goals);
+            for (int r = 0; r < goals.length; r++) {
+                goals[r] = readGoal(r);
+                if (goals[r] < 0) {
+                    throw new GoalDefinitionException(readPlayoutState(), getRoles().get(r));
+                }
+            }
+        }
+        if (theDepth != null) {
+            theDepth[0] = depth;
+        }
+        return readPlayoutState();
+    }
+
+    /**
+     * Plays the depth charges one after the other on the generated code,
+     * rather than 64 at a time on the interpreted propnet.
+     */
+    @Override
+    public void getAverageDiscountedScoresFromRepeatedDepthCharges(MachineState state, double[] avgScores, double[] avgDepth, double discountFactor, int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        if (evaluator == null) {
+            super.getAverageDiscountedScoresFromRepeatedDepthCharges(state, avgScores, avgDepth, discountFactor, repetitions);
+            return;
+        }
+        int[] depth = new int[1];
+        int[] goals = new int[getRoles().size()];
+        Arrays.fill(avgScores, 0);
+        avgDepth[0] = 0;
+        for (int i = 0; i < repetitions; i++) {
+            performDepthCharge(state, depth, goals);
+            avgDepth[0] += depth[0];
+            double accumulatedDiscountFactor = Math.pow(discountFactor, depth[0]);
+            for (int r = 0; r < avgScores.length; r++) {
+                avgScores[r] += goals[r] * accumulatedDiscountFactor;
+            }
+        }
+        avgDepth[0] /= repetitions;
+        for (int r = 0; r < avgScores.length; r++) {
+            avgScores[r] /= repetitions;
+        }
+    }
+
+    // Plays random moves from the state until a terminal state, which is
+    // left in playoutState, and returns the number of moves
+    private int playDepthCharge(MachineState state) throws MoveDefinitionException
+    {
+        int numRoles = legalOffsets.length - 1;
+        System.arraycopy(getBits(state), 0, playoutState, 0, playoutState.length);
+        int depth = 0;
+        while (true) {
+            terminal[0] = 0;
+            evaluator.computeTerminal(playoutState, terminal);
+            if (terminal[0] != 0) {
+                return depth;
+            }
+            Arrays.fill(legals, 0);
+            evaluator.computeLegals(playoutState, legals);
+            Arrays.fill(inputs, 0);
+            for (int r = 0; r < numRoles; r++) {
+                int numLegal = 0;
+                int picked = -1;
+                for (int i = legalOffsets[r]; i < legalOffsets[r + 1]; i++) {
+                    if (isSet(legals, i) && random.nextInt(++numLegal) == 0) {
+                        picked = i - legalOffsets[r];
+                    }
+                }
+                if (picked < 0) {
+                    throw new MoveDefinitionException(readPlayoutState(), getRoles().get(r));
+                }
+                markInput(legalInputs[r][picked]);
+            }
+            Arrays.fill(playoutNext, 0);
+            evaluator.computeNextState(playoutState, inputs, playoutNext);
+            long[] swap = playoutState;
+            playoutState = playoutNext;
+            playoutNext = swap;
+            depth++;
+        }
+    }
+
+    private MachineState readPlayoutState()
+    {
+        CompiledPropNet net = getCompiledPropNet();
+        return new PropNetMachineState(net.getBaseSentences(), net.getZobristKeys(), playoutState.clone());
+    }
+}
@@ -0,0 +1,676 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.logging.GamerLogger;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.DifferentialPropagator;
+import org.ggp.base.util.propnet.architecture.LatchAnalysis;
+import org.ggp.base.util.propnet.factory.PropNetCache;
+import org.ggp.base.util.statemachine.JointMoveIds;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.rollout.BitParallelRollouts;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * The CompiledPropNetStateMachine answers every query by marking the sources
+ * of a {@link CompiledPropNet} and running a single linear propagation pass
+ * over its primitive arrays, instead of recursively walking the components
+ * the way {@link SamplePropNetStateMachine} does. States are produced as
+ * {@link PropNetMachineState}s over the compiled propnet's base ordering.
+ *
+ * In {@link PropagationMode#DIFFERENTIAL} mode the marking is kept between
+ * queries and only the components downstream of the bases and inputs that
+ * actually changed are re-evaluated, which pays off when consecutive queries
+ * are about similar states, as they are during a depth charge. The number
+ * of components evaluated per propagation is recorded in both modes, so the
+ * two can be compared on a given game.
+ *
+ * Propnets are built through the default {@link PropNetCache}, so once a
+ * player gives it a directory, a game that was played before is loaded
+ * from disk instead of being built again.
+ *
+ * Goal bounds are computed from a {@link LatchAnalysis} of the propnet,
+ * which is built along with the machine, so that no search pays for it.
+ * Repeated depth charges are played 64 at a time by the machine's
+ * {@link BitParallelRollouts}, which players can also use directly, see
+ * {@link #getBitParallelRollouts()}.
+ *
+ * Single depth charges take a fused path: each ply propagates the bases once
+ * to read the terminal and legal propositions of every role, picks random
+ * moves by index without building Move lists, and then only re-evaluates the
+ * components downstream of the inputs to read the next state. Goals are
+ * only read at the end, see {@link #performDepthCharge(MachineState, int[], int[])}.
+ *
+ * The id of a move is its index in the legal propositions of its role, so
+ * legal move ids are read straight off the marking, and a joint move of ids
+ * marks its inputs without looking up any Move.
+ *
+ * Each instance owns its own marking, so instances are not thread-safe.
+ * Several instances can share one CompiledPropNet by using the
+ * {@link #CompiledPropNetStateMachine(CompiledPropNet)} constructor.
+ */
+public class CompiledPropNetStateMachine extends StateMachine
+{
+    public enum PropagationMode {
+        /** Every query re-evaluates every component of the propnet. */
+        FULL,
+        /** Every query re-evaluates only the components whose inputs changed. */
+        DIFFERENTIAL
+    }
+
+    private final PropagationMode mode;
+    private CompiledPropNet net;
+    private List<Role> roles;
+    private boolean[] values;
+    private boolean[] nextBases;
+    private int[] markedInputs;
+    private DifferentialPropagator propagator;
+    private MachineState initialState;
+    private LatchAnalysis latchAnalysis;
+    private byte[] latchValues;
+    private BitParallelRollouts rollouts;
+    // The marking used by depth charges, apart from the one of the queries,
+    // and the values its non-base sources are reset to at every ply
+    private boolean[] playoutValues;
+    private boolean[] playoutSources;
+    private int[][] legalInputs;
+    // The id of each move of each role, which is the index of its legal proposition
+    private List<Map<Move, Integer>> moveIds;
+    private final Random random = new Random();
+
+    private long numPropagations;
+    private long numTouchedComponents;
+
+    /**
+     * Initialize must be called before using the StateMachine
+     */
+    public CompiledPropNetStateMachine()
+    {
+        this(PropagationMode.FULL);
+    }
+
+    /**
+     * Initialize must be called before using the StateMachine
+     */
+    public CompiledPropNetStateMachine(PropagationMode mode)
+    {
+        this.mode = mode;
+    }
+
+    /**
+     * Creates a state machine over an already compiled propnet, skipping
+     * propnet construction. Initialize must not be called.
+     */
+    public CompiledPropNetStateMachine(CompiledPropNet net)
+    {
+        this(net, PropagationMode.FULL);
+    }
+
+    /**
+     * Creates a state machine over an already compiled propnet, skipping
+     * propnet construction. Initialize must not be called.
+     */
+    public CompiledPropNetStateMachine(CompiledPropNet net, PropagationMode mode)
+    {
+        this.mode = mode;
+        setUp(net);
+    }
+
+    @Override
+    public void initialize(List<Gdl> description)
+    {
+        try {
+            setUp(new CompiledPropNet(PropNetCache.getDefault().create(description)));
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void setUp(CompiledPropNet net)
+    {
+        this.net = net;
+        this.roles = ImmutableList.copyOf(net.getRoles());
+        this.values = net.createValues();
+        this.nextBases = new boolean[net.getNumBases()];
+        this.markedInputs = new int[roles.size()];
+        Arrays.fill(markedInputs, -1);
+        this.propagator = (mode == PropagationMode.DIFFERENTIAL) ? new DifferentialPropagator(net) : null;
+        this.initialState = computeInitialState();
+        this.latchAnalysis = computeLatchAnalysis();
+        this.latchValues = latchAnalysis.createValues();
+        this.rollouts = new BitParallelRollouts(net);
+        this.playoutValues = net.createValues();
+        this.playoutSources = net.createValues();
+        int[][] legals = net.getLegals();
+        this.legalInputs = new int[legals.length][];
+        this.moveIds = new ArrayList<Map<Move, Integer>>(legals.length);
+        for (int r = 0; r < legals.length; r++) {
+            legalInputs[r] = new int[legals[r].length];
+            moveIds.add(new HashMap<Move, Integer>());
+            for (int k = 0; k < legals[r].length; k++) {
+                legalInputs[r][k] = net.getInputIndex(r, net.getLegalMoves()[r][k]);
+                moveIds.get(r).put(net.getLegalMoves()[r][k], k);
+            }
+        }
+    }
+
+    private MachineState computeInitialState()
+    {
+        boolean[] initialBases = net.getInitialBases();
+        long[] bits = new long[PropNetMachineState.getNumWords(initialBases.length)];
+        for (int i = 0; i < initialBases.length; i++) {
+            if (initialBases[i]) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        return new PropNetMachineState(net.getBaseSentences(), net.getZobristKeys(), bits);
+    }
+
+    /** Returns the compiled propnet underlying this state machine. */
+    public CompiledPropNet getCompiledPropNet()
+    {
+        return net;
+    }
+
+    private LatchAnalysis computeLatchAnalysis()
+    {
+        long start = System.currentTimeMillis();
+        LatchAnalysis latchAnalysis = new LatchAnalysis(net);
+        GamerLogger.log("StateMachine", "Found " + latchAnalysis.getNumLatches() + " latches and "
+                + latchAnalysis.getNumConstants() + " constants among " + net.getNumBases() + " bases in "
+                + (System.currentTimeMillis() - start) + " ms");
+        return latchAnalysis;
+    }
+
+    /**
+     * Returns the engine that plays 64 depth charges at once over the
+     * compiled propnet. It shares nothing with the marking of this machine,
+     * but is no more thread-safe than it.
+     */
+    public BitParallelRollouts getBitParallelRollouts()
+    {
+        return rollouts;
+    }
+
+    /** Returns the latch analysis of the compiled propnet. */
+    public LatchAnalysis getLatchAnalysis()
+    {
+        return latchAnalysis;
+    }
+
+    public PropagationMode getPropagationMode()
+    {
+        return mode;
+    }
+
+    /** Returns the number of propagations since the last reset. */
+    public long getNumPropagations()
+    {
+        return numPropagations;
+    }
+
+    /** Returns the number of components evaluated since the last reset. */
+    public long getNumTouchedComponents()
+    {
+        return numTouchedComponents;
+    }
+
+    /**
+     * Returns the average number of components evaluated per propagation
+     * since the last reset.
+     */
+    public double getAverageTouchedComponents()
+    {
+        return (numPropagations == 0) ? 0 : (double) numTouchedComponents / numPropagations;
+    }
+
+    public void resetPropagationStatistics()
+    {
+        numPropagations = 0;
+        numTouchedComponents = 0;
+    }
+
+    /**
+     * Logs how many components were evaluated per propagation during the
+     * last move, and starts counting afresh for the next one.
+     */
+    @Override
+    public void doPerMoveWork()
+    {
+        if (numPropagations > 0) {
+            GamerLogger.log("StateMachine", String.format("%s propagation: %d propagations, %.1f of %d components evaluated per propagation",
+                    mode, numPropagations, getAverageTouchedComponents(), net.getSize() - net.getNumSources()));
+        }
+        resetPropagationStatistics();
+    }
+
+    /**
+     * Produces states in the bitset representation, so that states rebuilt
+     * from the match history compare and hash like the ones this machine
+     * produces itself.
+     */
+    @Override
+    public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+    {
+        long[] bits = new long[PropNetMachineState.getNumWords(net.getNumBases())];
+        for (GdlSentence sentence : sentenceList) {
+            Integer index = net.getBaseIndex(sentence);
+            if (index != null) {
+                bits[index >>> 6] |= 1L << index;
+            }
+        }
+        return new PropNetMachineState(net.getBaseSentences(), net.getZobristKeys(), bits);
+    }
+
+    /**
+     * Returns the given state if it is in this machine's representation, or
+     * an equal state in it otherwise.
+     */
+    public PropNetMachineState toPropNetState(MachineState state)
+    {
+        if (state instanceof PropNetMachineState) {
+            PropNetMachineState propNetState = (PropNetMachineState) state;
+            if (propNetState.hasBaseOrdering(net.getBaseSentences())) {
+                return propNetState;
+            }
+        }
+        return (PropNetMachineState) getMachineStateFromSentenceList(state.getContents());
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        int r = getRoleIndices().get(role);
+        markBases(state);
+        propagate();
+        int[] goals = net.getGoals()[r];
+        int goal = -1;
+        for (int i = 0; i < goals.length; i++) {
+            if (values[goals[i]]) {
+                if (goal >= 0) {
+                    throw new GoalDefinitionException(state, role);
+                }
+                goal = net.getGoalValues()[r][i];
+            }
+        }
+        if (goal < 0) {
+            throw new GoalDefinitionException(state, role);
+        }
+        return goal;
+    }
+
+    @Override
+    public int[] getGoalBounds(MachineState state, Role role)
+    {
+        return latchAnalysis.getGoalBounds(toPropNetState(state).getBits(), getRoleIndices().get(role), latchValues);
+    }
+
+    @Override
+    public MachineState performDepthCharge(MachineState state, int[] theDepth) throws TransitionDefinitionException, MoveDefinitionException
+    {
+        int depth = playDepthCharge(state);
+        if (theDepth != null) {
+            theDepth[0] = depth;
+        }
+        return readPlayoutState();
+    }
+
+    /**
+     * Plays random moves from the given state until a terminal state, as
+     * {@link #performDepthCharge(MachineState, int[])} does, and also stores
+     * the goal of every role in the terminal state into goals, if it is not
+     * null, without propagating that state again. Throws a
+     * GoalDefinitionException if a role does not have exactly one goal
+     * there, as {@link #getGoal(MachineState, Role)} does.
+     */
+    @Override
+    public MachineState performDepthCharge(MachineState state, int[] theDepth, int[] goals) throws MoveDefinitionException, GoalDefinitionException
+    {
+        int depth = playDepthCharge(state);
+        if (goals != null) {
+            for (int r = 0; r < goals.length; r++) {
+                goals[r] = readGoal(playoutValues, r);
+                if (goals[r] < 0) {
+                    throw new GoalDefinitionException(readPlayoutState(), roles.get(r));
+                }
+            }
+        }
+        if (theDepth != null) {
+            theDepth[0] = depth;
+        }
+        return readPlayoutState();
+    }
+
+    // Plays random moves from the state until a terminal state, whose values
+    // are left in playoutValues, and returns the number of moves
+    private int playDepthCharge(MachineState state) throws MoveDefinitionException
+    {
+        boolean[] values = playoutValues;
+        int numBases = net.getNumBases();
+        int numSources = net.getNumSources();
+        boolean[] sources = playoutSources;
+        long[] bits = toPropNetState(state).getBits();
+        for (int i = 0; i < numBases; i++) {
+            values[i] = (bits[i >>> 6] & (1L << i)) != 0;
+        }
+        int[] transitions = net.getTransitions();
+        int[][] legals = net.getLegals();
+        int[] inputCone = net.getInputCone();
+        int depth = 0;
+        while (true) {
+            System.arraycopy(sources, numBases, values, numBases, numSources - numBases);
+            net.propagate(values);
+            if (net.isTerminal(values)) {
+                break;
+            }
+            for (int r = 0; r < legals.length; r++) {
+                int numLegal = 0;
+                int picked = -1;
+                for (int k = 0; k < legals[r].length; k++) {
+                    if (values[legals[r][k]] && random.nextInt(++numLegal) == 0) {
+                        picked = k;
+                    }
+                }
+                if (picked < 0) {
+                    throw new MoveDefinitionException(readPlayoutState(), roles.get(r));
+                }
+                if (legalInputs[r][picked] >= 0) {
+                    values[legalInputs[r][picked]] = true;
+                }
+            }
+            net.propagate(values, inputCone);
+            for (int i = 0; i < numBases; i++) {
+                values[i] = values[transitions[i]];
+            }
+            depth++;
+        }
+        return depth;
+    }
+
+    // Returns the goal of the role in the values, or -1 unless it has exactly one
+    private int readGoal(boolean[] values, int r)
+    {
+        int[] goals = net.getGoals()[r];
+        int goal = -1;
+        for (int i = 0; i < goals.length; i++) {
+            if (values[goals[i]]) {
+                if (goal >= 0) {
+                    return -1;
+                }
+                goal = net.getGoalValues()[r][i];
+            }
+        }
+        return goal;
+    }
+
+    private MachineState readPlayoutState()
+    {
+        long[] bits = new long[PropNetMachineState.getNumWords(net.getNumBases())];
+        for (int i = 0; i < net.getNumBases(); i++) {
+            if (playoutValues[i]) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        return new PropNetMachineState(net.getBaseSentences(), net.getZobristKeys(), bits);
+    }
+
+    /**
+     * Plays the depth charges in batches of 64 lanes, all but the last of
+     * which are used in full.
+     */
+    @Override
+    public void getAverageDiscountedScoresFromRepeatedDepthCharges(MachineState state, double[] avgScores, double[] avgDepth, double discountFactor, int repetitions) throws TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        PropNetMachineState start = toPropNetState(state);
+        int[][] goals = new int[BitParallelRollouts.NUM_LANES][roles.size()];
+        int[] depths = new int[BitParallelRollouts.NUM_LANES];
+        Arrays.fill(avgScores, 0);
+        avgDepth[0] = 0;
+        for (int done = 0; done < repetitions; done += BitParallelRollouts.NUM_LANES) {
+            rollouts.rollout(start, goals, depths);
+            int lanes = Math.min(BitParallelRollouts.NUM_LANES, repetitions - done);
+            for (int l = 0; l < lanes; l++) {
+                avgDepth[0] += depths[l];
+                double accumulatedDiscountFactor = Math.pow(discountFactor, depths[l]);
+                for (int r = 0; r < avgScores.length; r++) {
+                    avgScores[r] += goals[l][r] * accumulatedDiscountFactor;
+                }
+            }
+        }
+        avgDepth[0] /= repetitions;
+        for (int r = 0; r < avgScores.length; r++) {
+            avgScores[r] /= repetitions;
+        }
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        markBases(state);
+        propagate();
+        return net.isTerminal(values);
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return roles;
+    }
+
+    @Override
+    public MachineState getInitialState()
+    {
+        return initialState;
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException
+    {
+        Move[] moves = net.getInputMoves()[getRoleIndices().get(role)];
+        if (moves.length == 0) {
+            throw new MoveDefinitionException(initialState, role);
+        }
+        return Arrays.asList(moves);
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        int r = getRoleIndices().get(role);
+        markBases(state);
+        propagate();
+        int[] legals = net.getLegals()[r];
+        Move[] legalMoves = net.getLegalMoves()[r];
+        List<Move> moves = new ArrayList<Move>();
+        for (int i = 0; i < legals.length; i++) {
+            if (values[legals[i]]) {
+                moves.add(legalMoves[i]);
+            }
+        }
+        if (moves.isEmpty()) {
+            throw new MoveDefinitionException(state, role);
+        }
+        return moves;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        markBases(state);
+        markInputs(moves);
+        propagate();
+        MachineState next = readNextState(state);
+        if (propagator == null) {
+            // In differential mode the inputs stay marked, so that the next
+            // transition only has to propagate the moves that changed. Legal,
+            // goal and terminal propositions cannot depend on inputs.
+            clearInputs();
+        }
+        return next;
+    }
+
+    @Override
+    public int getMoveId(int role, Move move)
+    {
+        Integer id = moveIds.get(role).get(move);
+        return (id == null) ? -1 : id;
+    }
+
+    @Override
+    public Move getMoveFromId(int role, int id)
+    {
+        return net.getLegalMoves()[role][id];
+    }
+
+    @Override
+    public void getLegalMoveIds(MachineState state, JointMoveIds legalMoveIds) throws MoveDefinitionException
+    {
+        markBases(state);
+        propagate();
+        int[][] legals = net.getLegals();
+        for (int r = 0; r < legals.length; r++) {
+            legalMoveIds.clear(r);
+            for (int k = 0; k < legals[r].length; k++) {
+                if (values[legals[r][k]]) {
+                    legalMoveIds.add(r, k);
+                }
+            }
+            if (legalMoveIds.getNumMoves(r) == 0) {
+                throw new MoveDefinitionException(state, roles.get(r));
+            }
+        }
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, int[] jointMove) throws TransitionDefinitionException
+    {
+        markBases(state);
+        for (int r = 0; r < markedInputs.length; r++) {
+            markInput(r, legalInputs[r][jointMove[r]]);
+        }
+        propagate();
+        MachineState next = readNextState(state);
+        if (propagator == null) {
+            clearInputs();
+        }
+        return next;
+    }
+
+    private void propagate()
+    {
+        numPropagations++;
+        if (propagator == null) {
+            net.propagate(values);
+            numTouchedComponents += net.getSize() - net.getNumSources();
+        } else {
+            numTouchedComponents += propagator.propagate(values);
+        }
+    }
+
+    private void setSource(int source, boolean value)
+    {
+        if (propagator == null) {
+            values[source] = value;
+        } else {
+            propagator.setSource(values, source, value);
+        }
+    }
+
+    private void markBases(MachineState state)
+    {
+        int numBases = net.getNumBases();
+        if (state instanceof PropNetMachineState) {
+            PropNetMachineState propNetState = (PropNetMachineState) state;
+            if (propNetState.hasBaseOrdering(net.getBaseSentences())) {
+                long[] bits = propNetState.getBits();
+                for (int i = 0; i < numBases; i++) {
+                    setSource(i, (bits[i >>> 6] & (1L << i)) != 0);
+                }
+                return;
+            }
+        }
+        Arrays.fill(nextBases, false);
+        for (GdlSentence sentence : state.getContents()) {
+            Integer index = net.getBaseIndex(sentence);
+            if (index != null) {
+                nextBases[index] = true;
+            }
+        }
+        for (int i = 0; i < numBases; i++) {
+            setSource(i, nextBases[i]);
+        }
+    }
+
+    private void markInputs(List<Move> moves)
+    {
+        for (int r = 0; r < markedInputs.length; r++) {
+            markInput(r, net.getInputIndex(r, moves.get(r)));
+        }
+    }
+
+    // Marks the input of the role's move, which is -1 for a move without one
+    private void markInput(int r, int input)
+    {
+        if (input != markedInputs[r]) {
+            if (markedInputs[r] >= 0) {
+                setSource(markedInputs[r], false);
+            }
+            if (input >= 0) {
+                setSource(input, true);
+            }
+            markedInputs[r] = input;
+        }
+    }
+
+    private void clearInputs()
+    {
+        for (int r = 0; r < markedInputs.length; r++) {
+            if (markedInputs[r] >= 0) {
+                setSource(markedInputs[r], false);
+                markedInputs[r] = -1;
+            }
+        }
+    }
+
+    /**
+     * Reads the next state off the transitions. When the previous state has
+     * our base ordering, its Zobrist hash is updated with the bases that
+     * flipped instead of being computed from scratch.
+     */
+    private MachineState readNextState(MachineState previous)
+    {
+        int[] transitions = net.getTransitions();
+        long[] bits = new long[PropNetMachineState.getNumWords(transitions.length)];
+        for (int i = 0; i < transitions.length; i++) {
+            if (values[transitions[i]]) {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        long[] zobristKeys = net.getZobristKeys();
+        if (previous instanceof PropNetMachineState) {
+            PropNetMachineState propNetState = (PropNetMachineState) previous;
+            if (propNetState.hasBaseOrdering(net.getBaseSentences())) {
+                long hash = propNetState.getZobristHash()
+                        ^ PropNetMachineState.getZobristDelta(zobristKeys, propNetState.getBits(), bits);
+                return new PropNetMachineState(net.getBaseSentences(), zobristKeys, bits, hash);
+            }
+        }
+        return new PropNetMachineState(net.getBaseSentences(), zobristKeys, bits);
+    }
+}
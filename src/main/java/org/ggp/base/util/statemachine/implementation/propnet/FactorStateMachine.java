@@ -0,0 +1,246 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.PropNetFactorization;
+import org.ggp.base.util.propnet.architecture.PropNetFactorization.Factor;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+
+/**
+ * The FactorStateMachine plays a single factor of a {@link PropNetFactorization}
+ * as if it were a game of its own, so that a search can explore each factor
+ * of a game that is a sum of smaller games separately, with a much smaller
+ * branching factor than the whole game.
+ *
+ * States are full states of the game, in the representation of the
+ * {@link CompiledPropNetStateMachine}. Only the bases of the factor and the
+ * uncontrolled bases change from one state to the next; the bases of the
+ * other factors are frozen. The legal moves of a role are its legal moves
+ * in the factor, plus a single move outside of it, if it has one, which
+ * stands for all of them: every move outside of the factor has the same
+ * effect on it, which is none. Goals are the goals of the game, read off
+ * the state with the other factors frozen. A state is terminal if it is
+ * terminal in the game, or if no role has a legal move in the factor left.
+ *
+ * A factor may not be able to end the game by itself, for instance when
+ * the game only ends once another factor, which is frozen here, does. A
+ * depth charge in such a factor never ends, so searches should bound their
+ * playouts, by depth or by time.
+ *
+ * The states that several factor machines reached from the same state can
+ * be put back together into a state of the whole game with
+ * {@link #combine(MachineState, List, List)}, and the goals and terminality
+ * of that state are the goals and terminality of the game.
+ *
+ * The machines of a factorization are made by {@link #forEachFactor}, and
+ * share its propnet. A machine can also be made for the factor with a given
+ * index, and then initialized with the game like any other state machine;
+ * if the game has no such factor, it plays the whole game.
+ *
+ * Like the CompiledPropNetStateMachine it uses, a FactorStateMachine is not
+ * thread-safe.
+ */
+public class FactorStateMachine extends StateMachine
+{
+    private final int factorIndex;
+    private PropNetFactorization factorization;
+    // Null when the game has no factor of the index, and is played whole
+    private Factor factor;
+    private CompiledPropNetStateMachine machine;
+    // Whether each base changes in this factor: its own and the uncontrolled ones
+    private boolean[] changing;
+
+    /**
+     * Initialize must be called before using the StateMachine. The machine
+     * plays the factor with the given index of the game's factorization.
+     */
+    public FactorStateMachine(int factorIndex)
+    {
+        this.factorIndex = factorIndex;
+    }
+
+    private FactorStateMachine(PropNetFactorization factorization, Factor factor)
+    {
+        this.factorIndex = factor.getIndex();
+        setUp(new CompiledPropNetStateMachine(factorization.getCompiledPropNet()), factorization);
+    }
+
+    private void setUp(CompiledPropNetStateMachine machine, PropNetFactorization factorization)
+    {
+        this.machine = machine;
+        this.factorization = factorization;
+        this.factor = (factorIndex < factorization.getFactors().size()) ? factorization.getFactors().get(factorIndex) : null;
+        this.changing = new boolean[machine.getCompiledPropNet().getNumBases()];
+        for (int b = 0; b < changing.length; b++) {
+            int owner = factorization.getFactorOfBase(b);
+            changing[b] = (factor == null || owner < 0 || owner == factorIndex);
+        }
+    }
+
+    /**
+     * Returns a machine for each factor of the given factorization.
+     */
+    public static List<FactorStateMachine> forEachFactor(PropNetFactorization factorization)
+    {
+        List<FactorStateMachine> machines = new ArrayList<FactorStateMachine>();
+        for (Factor factor : factorization.getFactors()) {
+            machines.add(new FactorStateMachine(factorization, factor));
+        }
+        return machines;
+    }
+
+    /**
+     * Puts together a state of the whole game, taking the bases of each
+     * factor from the state that its machine reached, and the uncontrolled
+     * bases from the first of those states. The bases of factors without
+     * a machine are taken from the given state.
+     */
+    public static MachineState combine(MachineState state, List<FactorStateMachine> machines, List<MachineState> factorStates)
+    {
+        if (machines.isEmpty()) {
+            return state;
+        }
+        CompiledPropNetStateMachine reference = machines.get(0).machine;
+        long[] bits = reference.toPropNetState(state).getBits().clone();
+        boolean first = true;
+        for (int i = 0; i < machines.size(); i++) {
+            FactorStateMachine factorMachine = machines.get(i);
+            long[] factorBits = reference.toPropNetState(factorStates.get(i)).getBits();
+            for (int b = 0; b < factorMachine.changing.length; b++) {
+                if (factorMachine.isInFactor(b) || (first && factorMachine.changing[b])) {
+                    long mask = 1L << b;
+                    bits[b >>> 6] = (bits[b >>> 6] & ~mask) | (factorBits[b >>> 6] & mask);
+                }
+            }
+            first = false;
+        }
+        CompiledPropNet net = reference.getCompiledPropNet();
+        return new PropNetMachineState(net.getBaseSentences(), net.getZobristKeys(), bits);
+    }
+
+    /** Returns the factor played, or null if the whole game is. */
+    public Factor getFactor()
+    {
+        return factor;
+    }
+
+    private boolean isInFactor(int base)
+    {
+        return (factor == null) || factor.containsBase(base);
+    }
+
+    private boolean isInFactor(int role, Move move)
+    {
+        return (factor == null) || factorization.getFactorOfMove(role, move) == factorIndex;
+    }
+
+    @Override
+    public String getName()
+    {
+        return "FactorStateMachine(" + ((factor == null) ? "whole game" : factor) + ")";
+    }
+
+    @Override
+    public void initialize(List<Gdl> description)
+    {
+        CompiledPropNetStateMachine machine = new CompiledPropNetStateMachine();
+        machine.initialize(description);
+        setUp(machine, new PropNetFactorization(machine.getCompiledPropNet()));
+    }
+
+    @Override
+    public int getGoal(MachineState state, Role role) throws GoalDefinitionException
+    {
+        return machine.getGoal(state, role);
+    }
+
+    @Override
+    public boolean isTerminal(MachineState state)
+    {
+        if (machine.isTerminal(state)) {
+            return true;
+        }
+        for (Role role : getRoles()) {
+            try {
+                if (hasMoveInFactor(getRoleIndices().get(role), machine.getLegalMoves(state, role))) {
+                    return false;
+                }
+            } catch (MoveDefinitionException e) {
+                // A role without legal moves has none in the factor either
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public List<Role> getRoles()
+    {
+        return machine.getRoles();
+    }
+
+    @Override
+    public MachineState getInitialState()
+    {
+        return machine.getInitialState();
+    }
+
+    @Override
+    public List<Move> findActions(Role role) throws MoveDefinitionException
+    {
+        return machine.findActions(role);
+    }
+
+    @Override
+    public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
+    {
+        int r = getRoleIndices().get(role);
+        List<Move> moves = new ArrayList<Move>();
+        Move outside = null;
+        for (Move move : machine.getLegalMoves(state, role)) {
+            if (isInFactor(r, move)) {
+                moves.add(move);
+            } else if (outside == null) {
+                outside = move;
+            }
+        }
+        if (outside != null) {
+            moves.add(outside);
+        }
+        return moves;
+    }
+
+    private boolean hasMoveInFactor(int role, List<Move> moves)
+    {
+        for (Move move : moves) {
+            if (isInFactor(role, move)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public MachineState getNextState(MachineState state, List<Move> moves) throws TransitionDefinitionException
+    {
+        PropNetMachineState current = machine.toPropNetState(state);
+        long[] bits = ((PropNetMachineState) machine.getNextState(current, moves)).getBits();
+        long[] currentBits = current.getBits();
+        for (int b = 0; b < changing.length; b++) {
+            if (!changing[b]) {
+                long mask = 1L << b;
+                bits[b >>> 6] = (bits[b >>> 6] & ~mask) | (currentBits[b >>> 6] & mask);
+            }
+        }
+        CompiledPropNet net = machine.getCompiledPropNet();
+        return new PropNetMachineState(net.getBaseSentences(), net.getZobristKeys(), bits);
+    }
+}
@@ -0,0 +1,211 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+
+import com.google.common.collect.ImmutableSet;
+
+/**
+ * A PropNetMachineState stores the truth of each base proposition of a
+ * propnet as one bit of a long[], indexed by the propnet's base ordering.
+ *
+ * Every base proposition of the ordering also has a random 64-bit Zobrist
+ * key, and every state carries the XOR of the keys of its true bases as a
+ * primitive long (see {@link #getZobristHash()}). State machines maintain
+ * this hash incrementally, by XORing in the keys of the bases that flip
+ * during a transition, so that search code can key its tables on it
+ * without touching the state's sentences or even its bitset. The GDL form
+ * of the state is only materialised when {@link #getContents()} is
+ * actually called, e.g. when the state is logged or appended to a match.
+ *
+ * Two PropNetMachineStates sharing the same base ordering (the same array
+ * of base sentences) are compared bit by bit; any other MachineState is
+ * compared by contents, as usual. Since a state may equal one from another
+ * state machine, {@link #hashCode()} agrees with the hash of its contents.
+ * It is the sum of the hashes of the true base sentences, as for any set,
+ * and is read off the bitset the first time it is asked for.
+ */
+public final class PropNetMachineState extends MachineState
+{
+    private final GdlSentence[] baseSentences;
+    private final long[] zobristKeys;
+    private final long[] bits;
+    private final long zobristHash;
+    // The hash of the contents, or 0 if it was not computed yet
+    private int hashCode;
+    private volatile Set<GdlSentence> contents;
+
+    /**
+     * Creates a state over the given base ordering, computing its Zobrist
+     * hash from scratch. The bits array is owned by the new state and must
+     * not be modified afterwards.
+     */
+    public PropNetMachineState(GdlSentence[] baseSentences, long[] zobristKeys, long[] bits)
+    {
+        this(baseSentences, zobristKeys, bits, computeZobristHash(zobristKeys, bits));
+    }
+
+    /**
+     * Creates a state over the given base ordering with a Zobrist hash that
+     * the caller maintained incrementally. The bits array is owned by the
+     * new state and must not be modified afterwards.
+     */
+    public PropNetMachineState(GdlSentence[] baseSentences, long[] zobristKeys, long[] bits, long zobristHash)
+    {
+        this.baseSentences = baseSentences;
+        this.zobristKeys = zobristKeys;
+        this.bits = bits;
+        this.zobristHash = zobristHash;
+    }
+
+    /** Returns the number of longs needed to store the given number of bases. */
+    public static int getNumWords(int numBases)
+    {
+        return (numBases + 63) >>> 6;
+    }
+
+    /** Draws a random Zobrist key for each of the given number of bases. */
+    public static long[] createZobristKeys(int numBases)
+    {
+        Random random = new Random();
+        long[] keys = new long[numBases];
+        for (int i = 0; i < numBases; i++) {
+            keys[i] = random.nextLong();
+        }
+        return keys;
+    }
+
+    /** Returns the XOR of the keys of the bases set in the bitset. */
+    public static long computeZobristHash(long[] zobristKeys, long[] bits)
+    {
+        long hash = 0;
+        for (int w = 0; w < bits.length; w++) {
+            hash ^= getZobristDelta(zobristKeys, w, bits[w]);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the XOR of the keys of the bases set in the given word of a
+     * bitset. Passing the XOR of a word before and after a transition gives
+     * the change to apply to the hash.
+     */
+    public static long getZobristDelta(long[] zobristKeys, int word, long flipped)
+    {
+        long delta = 0;
+        while (flipped != 0) {
+            delta ^= zobristKeys[(word << 6) + Long.numberOfTrailingZeros(flipped)];
+            flipped &= flipped - 1;
+        }
+        return delta;
+    }
+
+    /**
+     * Returns the change to apply to the hash of the bitset before a
+     * transition to get the hash of the bitset after it.
+     */
+    public static long getZobristDelta(long[] zobristKeys, long[] before, long[] after)
+    {
+        long delta = 0;
+        for (int w = 0; w < after.length; w++) {
+            delta ^= getZobristDelta(zobristKeys, w, before[w] ^ after[w]);
+        }
+        return delta;
+    }
+
+    /** Returns the base ordering that the bits of this state refer to. */
+    public GdlSentence[] getBaseSentences()
+    {
+        return baseSentences;
+    }
+
+    /** Returns the Zobrist keys of the base ordering. The array must not be modified. */
+    public long[] getZobristKeys()
+    {
+        return zobristKeys;
+    }
+
+    /** Returns the XOR of the Zobrist keys of the true bases of this state. */
+    public long getZobristHash()
+    {
+        return zobristHash;
+    }
+
+    /** Returns the underlying bitset. The array must not be modified. */
+    public long[] getBits()
+    {
+        return bits;
+    }
+
+    /** Returns whether the base with the given index is true in this state. */
+    public boolean isTrue(int base)
+    {
+        return (bits[base >>> 6] & (1L << base)) != 0;
+    }
+
+    /**
+     * Returns whether this state's bits can be read directly against the
+     * given base ordering.
+     */
+    public boolean hasBaseOrdering(GdlSentence[] baseSentences)
+    {
+        return this.baseSentences == baseSentences;
+    }
+
+    @Override
+    public Set<GdlSentence> getContents()
+    {
+        Set<GdlSentence> contents = this.contents;
+        if (contents == null) {
+            ImmutableSet.Builder<GdlSentence> builder = ImmutableSet.builder();
+            for (int i = 0; i < baseSentences.length; i++) {
+                if (isTrue(i)) {
+                    builder.add(baseSentences[i]);
+                }
+            }
+            contents = builder.build();
+            this.contents = contents;
+        }
+        return contents;
+    }
+
+    @Override
+    public MachineState clone()
+    {
+        return new PropNetMachineState(baseSentences, zobristKeys, bits.clone(), zobristHash);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int hashCode = this.hashCode;
+        if (hashCode == 0) {
+            for (int w = 0; w < bits.length; w++) {
+                for (long word = bits[w]; word != 0; word &= word - 1) {
+                    hashCode += baseSentences[(w << 6) + Long.numberOfTrailingZeros(word)].hashCode();
+                }
+            }
+            this.hashCode = hashCode;
+        }
+        return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object o)
+    {
+        if (o == this) {
+            return true;
+        }
+        if (o instanceof PropNetMachineState) {
+            PropNetMachineState state = (PropNetMachineState) o;
+            if (state.baseSentences == baseSentences) {
+                return state.zobristHash == zobristHash && Arrays.equals(state.bits, bits);
+            }
+        }
+        return super.equals(o);
+    }
+}
@@ -39,6 +39,8 @@ public class SamplePropNetStateMachine extends StateMachine {
     private Proposition[] props; // all propositions
     private Component[] comps; // all components
     private Proposition[] bases; // all base props
+    private GdlSentence[] baseSentences; // names of bases[], the ordering of PropNetMachineState bits
+    private long[] zobristKeys; // random key for each of bases[], for hashing PropNetMachineStates
     private Proposition[] inputs; // all input props
 
     /**
@@ -62,6 +64,12 @@ public class SamplePropNetStateMachine extends StateMachine {
             // set bases[] array
             bases = new Proposition[propNet.getBasePropositions().values().size()];
             propNet.getBasePropositions().values().toArray(bases);
+            // set baseSentences[] array
+            baseSentences = new GdlSentence[bases.length];
+            for (int i = 0; i < bases.length; i++) {
+                baseSentences[i] = bases[i].getName();
+            }
+            zobristKeys = PropNetMachineState.createZobristKeys(bases.length);
             // set inputs[] array
             inputs = new Proposition[propNet.getInputPropositions().values().size()];
             propNet.getInputPropositions().values().toArray(inputs);
@@ -163,6 +171,13 @@ public class SamplePropNetStateMachine extends StateMachine {
     private void markbases(MachineState state)
     {
     	clearpropnet();
+        if (state instanceof PropNetMachineState && ((PropNetMachineState) state).hasBaseOrdering(baseSentences)) {
+            PropNetMachineState propNetState = (PropNetMachineState) state;
+            for (int i = 0; i < bases.length; i++) {
+                if (propNetState.isTrue(i)) bases[i].setValue(true);
+            }
+            return;
+        }
         Set<Proposition> stateProps = getStateBaseProps(state);
         for (Proposition prop : stateProps) {
         	prop.setValue(true);
@@ -270,14 +285,12 @@ public class SamplePropNetStateMachine extends StateMachine {
     {
         markactions(moves);
         markbases(state);
-       	Map<GdlSentence, Proposition> basePropMap = propNet.getBasePropositions();
-        Set<GdlSentence> nextStateContents = new HashSet<GdlSentence>();
-        for (GdlSentence s : basePropMap.keySet()) {
-        	Proposition currProp = basePropMap.get(s);
-        	if (propmarkp(currProp.getSingleInput().getSingleInput())) 
-        		nextStateContents.add(s);
-        } 
-        return new MachineState(nextStateContents);
+        long[] bits = new long[PropNetMachineState.getNumWords(bases.length)];
+        for (int i = 0; i < bases.length; i++) {
+        	if (propmarkp(bases[i].getSingleInput().getSingleInput()))
+        		bits[i >>> 6] |= 1L << i;
+        }
+        return new PropNetMachineState(baseSentences, zobristKeys, bits);
     }
 
     /* propreward (role,state,propnet) 
@@ -388,16 +401,36 @@ public class SamplePropNetStateMachine extends StateMachine {
      */
     public MachineState getStateFromBase()
     {
-        Set<GdlSentence> contents = new HashSet<GdlSentence>();
-        for (Proposition p : bases)
+        long[] bits = new long[PropNetMachineState.getNumWords(bases.length)];
+        for (int i = 0; i < bases.length; i++)
         {
+            Proposition p = bases[i];
             p.setValue(p.getSingleInput().getValue());
             if (p.getValue())
             {
-                contents.add(p.getName());
+                bits[i >>> 6] |= 1L << i;
             }
 
         }
-        return new MachineState(contents);
+        return new PropNetMachineState(baseSentences, zobristKeys, bits);
+    }
+
+    /**
+     * Produces states in the bitset representation, so that states rebuilt
+     * from the match history can be marked without going through the
+     * base proposition map.
+     */
+    @Override
+    public MachineState getMachineStateFromSentenceList(Set<GdlSentence> sentenceList)
+    {
+        long[] bits = new long[PropNetMachineState.getNumWords(bases.length)];
+        for (int i = 0; i < bases.length; i++)
+        {
+            if (sentenceList.contains(baseSentences[i]))
+            {
+                bits[i >>> 6] |= 1L << i;
+            }
+        }
+        return new PropNetMachineState(baseSentences, zobristKeys, bits);
     }
 }
\ No newline at end of file
@@ -1,7 +1,9 @@
 package org.ggp.base.util.statemachine.implementation.prover;
 
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import java.util.Set;
 
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -10,7 +12,7 @@ import org.ggp.base.util.gdl.grammar.GdlRelation;
 import org.ggp.base.util.gdl.grammar.GdlSentence;
 import org.ggp.base.util.logging.GamerLogger;
 import org.ggp.base.util.prover.Prover;
-import org.ggp.base.util.prover.aima.AimaProver;
+import org.ggp.base.util.prover.trail.TrailProver;
 import org.ggp.base.util.statemachine.MachineState;
 import org.ggp.base.util.statemachine.Move;
 import org.ggp.base.util.statemachine.Role;
@@ -41,7 +43,7 @@ public class ProverStateMachine extends StateMachine
     @Override
     public void initialize(List<Gdl> description)
     {
-        prover = new AimaProver(description);
+        prover = new TrailProver(description);
         roles = ImmutableList.copyOf(Role.computeRoles(description));
         initialState = computeInitialState();
     }
@@ -56,7 +58,11 @@ public class ProverStateMachine extends StateMachine
     public int getGoal(MachineState state, Role role) throws GoalDefinitionException
     {
         Set<GdlSentence> results = prover.askAll(ProverQueryBuilder.getGoalQuery(role), ProverQueryBuilder.getContext(state));
+        return toGoal(results, state, role);
+    }
 
+    private int toGoal(Set<GdlSentence> results, MachineState state, Role role) throws GoalDefinitionException
+    {
         if (results.size() != 1)
         {
             GamerLogger.logError("StateMachine", "Got goal results of size: " + results.size() + " when expecting size one.");
@@ -95,6 +101,75 @@ public class ProverStateMachine extends StateMachine
         return new ProverResultParser().toMoves(results);
     }
 
+    @Override
+    public List<Integer> getGoals(MachineState state) throws GoalDefinitionException
+    {
+        List<GdlSentence> queries = new ArrayList<GdlSentence>();
+        for (Role role : roles)
+        {
+            queries.add(ProverQueryBuilder.getGoalQuery(role));
+        }
+        return toGoals(prover.askAll(queries, ProverQueryBuilder.getContext(state)), 0, state);
+    }
+
+    @Override
+    public List<Integer> getGoalsIfTerminal(MachineState state) throws GoalDefinitionException
+    {
+        List<GdlSentence> queries = new ArrayList<GdlSentence>();
+        queries.add(ProverQueryBuilder.getTerminalQuery());
+        for (Role role : roles)
+        {
+            queries.add(ProverQueryBuilder.getGoalQuery(role));
+        }
+        List<Set<GdlSentence>> results = prover.askAll(queries, ProverQueryBuilder.getContext(state));
+        return results.get(0).isEmpty() ? null : toGoals(results, 1, state);
+    }
+
+    // Returns the goals of the roles, from the answers to their goal queries that start at the given index
+    private List<Integer> toGoals(List<Set<GdlSentence>> results, int start, MachineState state) throws GoalDefinitionException
+    {
+        List<Integer> goals = new ArrayList<Integer>(roles.size());
+        for (int i = 0; i < roles.size(); i++)
+        {
+            goals.add(toGoal(results.get(start + i), state, roles.get(i)));
+        }
+        return goals;
+    }
+
+    @Override
+    public List<List<Move>> getAllLegalMoves(MachineState state) throws MoveDefinitionException
+    {
+        List<GdlSentence> queries = new ArrayList<GdlSentence>();
+        for (Role role : roles)
+        {
+            queries.add(ProverQueryBuilder.getLegalQuery(role));
+        }
+        List<Set<GdlSentence>> results = prover.askAll(queries, ProverQueryBuilder.getContext(state));
+
+        List<List<Move>> legals = new ArrayList<List<Move>>(roles.size());
+        for (int i = 0; i < roles.size(); i++)
+        {
+            if (results.get(i).size() == 0)
+            {
+                throw new MoveDefinitionException(state, roles.get(i));
+            }
+            legals.add(new ProverResultParser().toMoves(results.get(i)));
+        }
+        return legals;
+    }
+
+    @Override
+    public List<Move> getRandomJointMove(MachineState state) throws MoveDefinitionException
+    {
+        Random random = new Random();
+        List<Move> jointMove = new ArrayList<Move>(roles.size());
+        for (List<Move> legals : getAllLegalMoves(state))
+        {
+            jointMove.add(legals.get(random.nextInt(legals.size())));
+        }
+        return jointMove;
+    }
+
     @Override
     public List<Move> getLegalMoves(MachineState state, Role role) throws MoveDefinitionException
     {
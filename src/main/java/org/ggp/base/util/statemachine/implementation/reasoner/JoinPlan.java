@@ -0,0 +1,419 @@
+package org.ggp.base.util.statemachine.implementation.reasoner;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.ggp.base.util.gdl.GdlUtils;
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+import org.ggp.base.util.gdl.grammar.GdlDistinct;
+import org.ggp.base.util.gdl.grammar.GdlFunction;
+import org.ggp.base.util.gdl.grammar.GdlLiteral;
+import org.ggp.base.util.gdl.grammar.GdlNot;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.gdl.grammar.GdlVariable;
+import org.ggp.base.util.gdl.model.SentenceForm;
+import org.ggp.base.util.gdl.model.SentenceFormModel;
+
+/**
+ * The join of the body of a rule, planned once. Sentences are read as
+ * tuples of constants, with the functions in them flattened, and a plan
+ * matches the positive literals of the body one after the other, each
+ * through an index of its {@link TupleSet} on the columns that constants
+ * and earlier literals bind. Negations and distincts are checked as soon
+ * as their variables are bound. The terms of a distinct are flattened in
+ * the same way, if their functions have the same shape; otherwise they
+ * can never be equal, and the distinct always holds.
+ *
+ * The next literal is the one with the most bound columns, in the order of
+ * the body among equals, so that lookups are as selective as the body
+ * allows. For the differential passes of recursive strata, a plan can
+ * instead start with a given literal, read from the tuples that the
+ * previous pass found.
+ *
+ * A rule with a variable that no positive literal binds is unsafe, and its
+ * plan derives nothing. A plan keeps its bindings in fields, so it is not
+ * reentrant.
+ */
+final class JoinPlan
+{
+    private static final int POSITIVE = 0;
+    private static final int NEGATIVE = 1;
+    private static final int DISTINCT = 2;
+
+    private final int headForm;
+    // The head tuple, with a constant or the index of a variable per column
+    private final GdlConstant[] headConstants;
+    private final int[] headVariables;
+    private final Step[] steps;
+    // False if the rule is unsafe, or needs a sentence of a form the game lacks
+    private final boolean isSatisfiable;
+
+    private final GdlConstant[] bindings;
+    private final GdlConstant[] head;
+    private TupleSet[] relations;
+    private TupleSet delta;
+    private TupleSet target;
+
+    /**
+     * Plans the join of the rule's body. If deltaLiteral is the index of a
+     * positive literal of the body, the plan starts with it, and reads its
+     * tuples from the delta passed to {@link #run}; it is -1 otherwise.
+     */
+    JoinPlan(GdlRule rule, SentenceFormModel model, Map<SentenceForm, Integer> formIds, int deltaLiteral)
+    {
+        Map<GdlVariable, Integer> variables = new HashMap<GdlVariable, Integer>();
+        for (GdlVariable variable : GdlUtils.getVariables(rule)) {
+            if (!variables.containsKey(variable)) {
+                variables.put(variable, variables.size());
+            }
+        }
+        List<Step> positives = new ArrayList<Step>();
+        List<Step> checks = new ArrayList<Step>();
+        boolean isSatisfiable = true;
+        Step deltaStep = null;
+        for (int i = 0; i < rule.arity(); i++) {
+            GdlLiteral literal = rule.get(i);
+            if (literal instanceof GdlDistinct) {
+                GdlDistinct distinct = (GdlDistinct) literal;
+                if (haveSameShape(distinct.getArg1(), distinct.getArg2())) {
+                    // The flattened terms of the first argument, then those of the second
+                    List<GdlTerm> terms = new ArrayList<GdlTerm>();
+                    flatten(distinct.getArg1(), terms);
+                    flatten(distinct.getArg2(), terms);
+                    checks.add(new Step(DISTINCT, -1, terms.toArray(new GdlTerm[terms.size()]), variables));
+                }
+                continue;
+            }
+            boolean isNegative = literal instanceof GdlNot;
+            if (isNegative) {
+                literal = ((GdlNot) literal).getBody();
+            }
+            if (!(literal instanceof GdlSentence)) {
+                throw new IllegalArgumentException("Unexpected literal " + literal + " in a description without ORs");
+            }
+            GdlSentence sentence = (GdlSentence) literal;
+            Integer form = formIds.get(model.getSentenceForm(sentence));
+            if (form == null) {
+                // No sentence of the form is ever true
+                isSatisfiable &= isNegative;
+                continue;
+            }
+            GdlTerm[] terms = GdlUtils.getTupleFromSentence(sentence).toArray(new GdlTerm[0]);
+            Step step = new Step(isNegative ? NEGATIVE : POSITIVE, form, terms, variables);
+            if (isNegative) {
+                checks.add(step);
+            } else if (i == deltaLiteral) {
+                deltaStep = step;
+            } else {
+                positives.add(step);
+            }
+        }
+
+        // Order the steps, binding the variables as they come
+        boolean[] bound = new boolean[variables.size()];
+        List<Step> ordered = new ArrayList<Step>();
+        if (deltaStep != null) {
+            deltaStep.readsDelta = true;
+            ordered.add(deltaStep.plan(bound));
+        }
+        addChecks(checks, bound, ordered);
+        while (!positives.isEmpty()) {
+            Step best = positives.get(0);
+            for (Step step : positives) {
+                if (step.countBoundColumns(bound) > best.countBoundColumns(bound)) {
+                    best = step;
+                }
+            }
+            positives.remove(best);
+            ordered.add(best.plan(bound));
+            addChecks(checks, bound, ordered);
+        }
+        isSatisfiable &= checks.isEmpty();
+
+        SentenceForm form = model.getSentenceForm(rule.getHead());
+        this.headForm = formIds.get(form);
+        List<GdlTerm> headTerms = GdlUtils.getTupleFromSentence(rule.getHead());
+        this.headConstants = new GdlConstant[headTerms.size()];
+        this.headVariables = new int[headTerms.size()];
+        for (int c = 0; c < headTerms.size(); c++) {
+            GdlTerm term = headTerms.get(c);
+            if (term instanceof GdlConstant) {
+                headConstants[c] = (GdlConstant) term;
+                headVariables[c] = -1;
+            } else {
+                headVariables[c] = variables.get(term);
+                isSatisfiable &= bound[headVariables[c]];
+            }
+        }
+        this.steps = ordered.toArray(new Step[ordered.size()]);
+        this.isSatisfiable = isSatisfiable;
+        this.bindings = new GdlConstant[variables.size()];
+        this.head = new GdlConstant[headTerms.size()];
+    }
+
+    // Whether the terms have the same functions in the same places, which
+    // they need to be equal once their variables are bound to constants
+    private static boolean haveSameShape(GdlTerm term1, GdlTerm term2)
+    {
+        if (!(term1 instanceof GdlFunction) || !(term2 instanceof GdlFunction)) {
+            return !(term1 instanceof GdlFunction) && !(term2 instanceof GdlFunction);
+        }
+        GdlFunction function1 = (GdlFunction) term1;
+        GdlFunction function2 = (GdlFunction) term2;
+        if (function1.getName() != function2.getName() || function1.arity() != function2.arity()) {
+            return false;
+        }
+        for (int i = 0; i < function1.arity(); i++) {
+            if (!haveSameShape(function1.get(i), function2.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void flatten(GdlTerm term, List<GdlTerm> terms)
+    {
+        if (term instanceof GdlFunction) {
+            for (GdlTerm child : ((GdlFunction) term).getBody()) {
+                flatten(child, terms);
+            }
+        } else {
+            terms.add(term);
+        }
+    }
+
+    // Adds the checks whose variables are all bound
+    private static void addChecks(List<Step> checks, boolean[] bound, List<Step> ordered)
+    {
+        for (int i = 0; i < checks.size(); i++) {
+            if (checks.get(i).countBoundColumns(bound) == checks.get(i).constants.length) {
+                ordered.add(checks.remove(i--));
+            }
+        }
+    }
+
+    int getHeadForm()
+    {
+        return headForm;
+    }
+
+    /**
+     * Adds the head of every match of the body over the relations, indexed
+     * by form, to the target. If the target is not the relation of the head,
+     * only the heads that are not in that relation yet are added.
+     */
+    void run(TupleSet[] relations, TupleSet delta, TupleSet target)
+    {
+        if (!isSatisfiable) {
+            return;
+        }
+        this.relations = relations;
+        this.delta = delta;
+        this.target = target;
+        join(0);
+        this.relations = null;
+        this.delta = null;
+        this.target = null;
+    }
+
+    private void join(int s)
+    {
+        if (s == steps.length) {
+            for (int c = 0; c < head.length; c++) {
+                head[c] = (headConstants[c] != null) ? headConstants[c] : bindings[headVariables[c]];
+            }
+            if (target == relations[headForm] || !relations[headForm].contains(head)) {
+                target.addCopy(head);
+            }
+            return;
+        }
+        Step step = steps[s];
+        switch (step.type) {
+        case DISTINCT:
+            if (step.isDistinct(bindings)) {
+                join(s + 1);
+            }
+            return;
+        case NEGATIVE:
+            if (!relations[step.form].contains(step.getKey(bindings))) {
+                join(s + 1);
+            }
+            return;
+        default:
+            TupleSet tuples = step.readsDelta ? delta : relations[step.form];
+            if (step.freeColumns.length == 0) {
+                if (tuples.contains(step.getKey(bindings))) {
+                    join(s + 1);
+                }
+                return;
+            }
+            List<GdlConstant[]> matches = tuples.lookup(step.mask, step.getKey(bindings));
+            for (int i = 0; i < matches.size(); i++) {
+                if (step.bind(matches.get(i), bindings)) {
+                    join(s + 1);
+                }
+            }
+        }
+    }
+
+    /**
+     * A literal of the body. Each column holds a constant, or the index of
+     * a variable; a positive literal also knows which of its columns are
+     * bound before it is matched.
+     */
+    private static final class Step
+    {
+        private final int type;
+        private final int form;
+        private final GdlConstant[] constants;
+        private final int[] variables;
+        private boolean readsDelta = false;
+
+        // The columns that are bound before the step, and their values
+        private int mask;
+        private int[] keyColumns;
+        private GdlConstant[] key;
+        // The other columns, and whether each binds its variable, or must
+        // agree with an earlier column of the same tuple
+        private int[] freeColumns;
+        private boolean[] binds;
+
+        private Step(int type, int form, GdlTerm[] terms, Map<GdlVariable, Integer> variableIds)
+        {
+            this.type = type;
+            this.form = form;
+            this.constants = new GdlConstant[terms.length];
+            this.variables = new int[terms.length];
+            for (int c = 0; c < terms.length; c++) {
+                if (terms[c] instanceof GdlConstant) {
+                    constants[c] = (GdlConstant) terms[c];
+                    variables[c] = -1;
+                } else {
+                    variables[c] = variableIds.get(terms[c]);
+                }
+            }
+            // A check looks up its whole tuple
+            this.keyColumns = new int[terms.length];
+            for (int c = 0; c < terms.length; c++) {
+                keyColumns[c] = c;
+            }
+            this.key = new GdlConstant[terms.length];
+            this.freeColumns = new int[0];
+        }
+
+        private int countBoundColumns(boolean[] bound)
+        {
+            int count = 0;
+            for (int c = 0; c < constants.length; c++) {
+                if (constants[c] != null || bound[variables[c]]) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        // Splits the columns into the bound and free ones, and binds the
+        // variables of the free ones
+        private Step plan(boolean[] bound)
+        {
+            List<Integer> keyColumns = new ArrayList<Integer>();
+            List<Integer> freeColumns = new ArrayList<Integer>();
+            List<Boolean> binds = new ArrayList<Boolean>();
+            boolean[] isBound = new boolean[constants.length];
+            for (int c = 0; c < constants.length; c++) {
+                isBound[c] = constants[c] != null || bound[variables[c]];
+                if (isBound[c]) {
+                    keyColumns.add(c);
+                } else {
+                    freeColumns.add(c);
+                    binds.add(!bindsEarlier(c));
+                }
+            }
+            for (int c : freeColumns) {
+                bound[variables[c]] = true;
+            }
+            this.mask = 0;
+            this.keyColumns = new int[keyColumns.size()];
+            for (int k = 0; k < keyColumns.size(); k++) {
+                this.keyColumns[k] = keyColumns.get(k);
+                mask |= 1 << keyColumns.get(k);
+            }
+            if (constants.length > 31 && !freeColumns.isEmpty()) {
+                // Too wide to index: scan every tuple, and check the bound
+                // columns too, binding each free variable at its first column
+                this.mask = 0;
+                this.keyColumns = new int[0];
+                freeColumns.clear();
+                binds.clear();
+                for (int c = 0; c < constants.length; c++) {
+                    freeColumns.add(c);
+                    binds.add(!isBound[c] && !bindsEarlier(c));
+                }
+            }
+            this.key = new GdlConstant[this.keyColumns.length];
+            this.freeColumns = new int[freeColumns.size()];
+            this.binds = new boolean[freeColumns.size()];
+            for (int k = 0; k < freeColumns.size(); k++) {
+                this.freeColumns[k] = freeColumns.get(k);
+                this.binds[k] = binds.get(k);
+            }
+            return this;
+        }
+
+        // Whether the variable of the column appears in an earlier column
+        private boolean bindsEarlier(int column)
+        {
+            for (int c = 0; c < column; c++) {
+                if (constants[c] == null && variables[c] == variables[column]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private GdlConstant getValue(int column, GdlConstant[] bindings)
+        {
+            return (constants[column] != null) ? constants[column] : bindings[variables[column]];
+        }
+
+        // Whether the first half of the columns differs from the second half,
+        // for a distinct
+        private boolean isDistinct(GdlConstant[] bindings)
+        {
+            int half = constants.length / 2;
+            for (int c = 0; c < half; c++) {
+                if (getValue(c, bindings) != getValue(half + c, bindings)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private GdlConstant[] getKey(GdlConstant[] bindings)
+        {
+            for (int k = 0; k < keyColumns.length; k++) {
+                key[k] = getValue(keyColumns[k], bindings);
+            }
+            return key;
+        }
+
+        // Binds the free variables to the tuple, and returns whether it
+        // agrees with the ones bound in the tuple already
+        private boolean bind(GdlConstant[] tuple, GdlConstant[] bindings)
+        {
+            for (int k = 0; k < freeColumns.length; k++) {
+                int c = freeColumns[k];
+                if (binds[k]) {
+                    bindings[variables[c]] = tuple[c];
+                } else if (getValue(c, bindings) != tuple[c]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
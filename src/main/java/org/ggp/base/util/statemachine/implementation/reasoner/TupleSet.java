@@ -0,0 +1,209 @@
+package org.ggp.base.util.statemachine.implementation.reasoner;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.ggp.base.util.gdl.grammar.GdlConstant;
+
+/**
+ * The true sentences of one sentence form, as tuples of constants, with
+ * hash indexes on the columns that joins look up. An index is built the
+ * first time its columns are looked up, and catches up with the tuples
+ * added since when they are looked up again, so a set can keep growing
+ * while it is joined, as long as tuples are not added to it while the
+ * result of a lookup is iterated over.
+ *
+ * Constants are compared by identity, which is sound since the GdlPool
+ * interns them.
+ */
+final class TupleSet
+{
+    private final List<GdlConstant[]> tuples = new ArrayList<GdlConstant[]>();
+    private final Set<Key> members = new HashSet<Key>();
+    private Index[] indexes = new Index[0];
+    // Reused to look up keys without allocating them
+    private final Key probe = new Key();
+
+    TupleSet()
+    {
+    }
+
+    /** Creates a set with the tuples of the given one. */
+    TupleSet(TupleSet tupleSet)
+    {
+        tuples.addAll(tupleSet.tuples);
+        members.addAll(tupleSet.members);
+    }
+
+    int size()
+    {
+        return tuples.size();
+    }
+
+    boolean isEmpty()
+    {
+        return tuples.isEmpty();
+    }
+
+    /** Returns the tuples of the set, which must not be modified. */
+    List<GdlConstant[]> getTuples()
+    {
+        return tuples;
+    }
+
+    boolean contains(GdlConstant[] tuple)
+    {
+        return members.contains(probe.set(tuple));
+    }
+
+    /**
+     * Adds the tuple, which the set keeps and which must not be modified
+     * afterwards, and returns whether it was new.
+     */
+    boolean add(GdlConstant[] tuple)
+    {
+        if (!members.add(new Key(tuple))) {
+            return false;
+        }
+        tuples.add(tuple);
+        return true;
+    }
+
+    /** Adds a copy of the tuple if it is new, and returns whether it was. */
+    boolean addCopy(GdlConstant[] tuple)
+    {
+        return !contains(tuple) && add(tuple.clone());
+    }
+
+    void addAll(TupleSet tupleSet)
+    {
+        for (GdlConstant[] tuple : tupleSet.tuples) {
+            add(tuple);
+        }
+    }
+
+    /**
+     * Returns the tuples whose columns in the mask have the given values, in
+     * the order of the columns. The result must not be modified.
+     */
+    List<GdlConstant[]> lookup(int mask, GdlConstant[] values)
+    {
+        if (mask == 0) {
+            return tuples;
+        }
+        Index index = getIndex(mask);
+        List<GdlConstant[]> matches = index.tuplesByKey.get(probe.set(values));
+        return (matches == null) ? Collections.<GdlConstant[]>emptyList() : matches;
+    }
+
+    private Index getIndex(int mask)
+    {
+        Index index = null;
+        for (Index candidate : indexes) {
+            if (candidate.mask == mask) {
+                index = candidate;
+                break;
+            }
+        }
+        if (index == null) {
+            index = new Index(mask);
+            indexes = Arrays.copyOf(indexes, indexes.length + 1);
+            indexes[indexes.length - 1] = index;
+        }
+        for (; index.numIndexed < tuples.size(); index.numIndexed++) {
+            GdlConstant[] tuple = tuples.get(index.numIndexed);
+            GdlConstant[] values = new GdlConstant[index.columns.length];
+            for (int k = 0; k < values.length; k++) {
+                values[k] = tuple[index.columns[k]];
+            }
+            Key key = new Key(values);
+            List<GdlConstant[]> matches = index.tuplesByKey.get(key);
+            if (matches == null) {
+                matches = new ArrayList<GdlConstant[]>(2);
+                index.tuplesByKey.put(key, matches);
+            }
+            matches.add(tuple);
+        }
+        return index;
+    }
+
+    private static final class Index
+    {
+        private final int mask;
+        private final int[] columns;
+        private final Map<Key, List<GdlConstant[]>> tuplesByKey = new HashMap<Key, List<GdlConstant[]>>();
+        // The number of tuples of the set in the index so far
+        private int numIndexed = 0;
+
+        private Index(int mask)
+        {
+            this.mask = mask;
+            this.columns = new int[Integer.bitCount(mask)];
+            for (int c = 0, k = 0; k < columns.length; c++) {
+                if ((mask & (1 << c)) != 0) {
+                    columns[k++] = c;
+                }
+            }
+        }
+    }
+
+    /**
+     * A tuple as a hash key. Keys in a set or an index never change; the
+     * probe of a TupleSet is pointed at each tuple it looks up.
+     */
+    static final class Key
+    {
+        private GdlConstant[] values;
+        private int hash;
+
+        private Key()
+        {
+        }
+
+        Key(GdlConstant[] values)
+        {
+            set(values);
+        }
+
+        private Key set(GdlConstant[] values)
+        {
+            this.values = values;
+            int hash = 1;
+            for (GdlConstant value : values) {
+                hash = 31 * hash + System.identityHashCode(value);
+            }
+            this.hash = hash;
+            return this;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            GdlConstant[] other = ((Key) o).values;
+            if (other.length != values.length) {
+                return false;
+            }
+            for (int i = 0; i < values.length; i++) {
+                if (other[i] != values[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,264 @@
+package org.ggp.base.util.statemachine.rollout;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetMachineState;
+
+/**
+ * BitParallelRollouts plays 64 random depth charges at once over a
+ * {@link CompiledPropNet}, by bit-slicing: the marking holds a long per
+ * component instead of a boolean, in which bit l is the value of the
+ * component in lane l, and propagation evaluates AND, OR and NOT gates with
+ * bitwise operations on whole words. A propagation thus costs about as much
+ * as a propagation of the boolean marking, but advances 64 playouts.
+ *
+ * At each step, every role picks a legal move uniformly at random in every
+ * lane that is still playing, independently across lanes. A lane stops as
+ * soon as it reaches a terminal state, at which point its goals and depth
+ * are recorded; the others go on until every lane has stopped. The cost of
+ * a batch is thus that of its longest playout, which makes the engine best
+ * suited to games whose playouts have similar lengths, and whose branching
+ * factor is modest, since picking moves is done lane by lane. A game
+ * without a terminal proposition is never over, so its lanes, like its
+ * sequential depth charges, never stop.
+ *
+ * An instance owns its marking and random generator, so it is not
+ * thread-safe. Several instances can share one CompiledPropNet.
+ */
+public final class BitParallelRollouts
+{
+    /** The number of playouts in a batch. */
+    public static final int NUM_LANES = 64;
+
+    private final CompiledPropNet net;
+    private final Random random;
+    private final long[] values;
+    private final long[] sourceValues;
+    private final long[] bases;
+    // Scratch space for picking moves: the number of legal moves seen so far
+    // in each lane, and the one picked
+    private final int[] numSeen = new int[NUM_LANES];
+    private final int[] picked = new int[NUM_LANES];
+    // The input proposition of each legal move, or -1
+    private final int[][] legalInputs;
+    // Scratch space for the goals and depths of a batch that is accumulated
+    private final int[][] laneGoals;
+    private final int[] laneDepths = new int[NUM_LANES];
+
+    public BitParallelRollouts(CompiledPropNet net)
+    {
+        this(net, new Random());
+    }
+
+    public BitParallelRollouts(CompiledPropNet net, Random random)
+    {
+        this.net = net;
+        this.random = random;
+        this.values = new long[net.getSize()];
+        this.bases = new long[net.getNumBases()];
+        boolean[] sources = net.createValues();
+        this.sourceValues = new long[net.getNumSources()];
+        for (int i = 0; i < sourceValues.length; i++) {
+            sourceValues[i] = sources[i] ? -1L : 0L;
+        }
+        int[][] legals = net.getLegals();
+        this.legalInputs = new int[legals.length][];
+        for (int r = 0; r < legals.length; r++) {
+            legalInputs[r] = new int[legals[r].length];
+            for (int k = 0; k < legals[r].length; k++) {
+                legalInputs[r][k] = net.getInputIndex(r, net.getLegalMoves()[r][k]);
+            }
+        }
+        this.laneGoals = new int[NUM_LANES][net.getRoles().size()];
+    }
+
+    public CompiledPropNet getCompiledPropNet()
+    {
+        return net;
+    }
+
+    /**
+     * Plays a depth charge from the given state in each of the 64 lanes, and
+     * stores the goal of every role in each lane in goals[lane][role], and
+     * the number of moves played in each lane in depths[lane].
+     *
+     * @param state a state with the base ordering of the compiled propnet
+     */
+    public void rollout(PropNetMachineState state, int[][] goals, int[] depths) throws MoveDefinitionException, GoalDefinitionException
+    {
+        long[] bits = state.getBits();
+        for (int b = 0; b < bases.length; b++) {
+            bases[b] = ((bits[b >>> 6] & (1L << b)) != 0) ? -1L : 0L;
+        }
+        int[] transitions = net.getTransitions();
+        int terminal = net.getTerminal();
+        long playing = -1L;
+        for (int depth = 0; playing != 0; depth++) {
+            setSources();
+            propagate();
+
+            long stopped = (terminal >= 0) ? playing & values[terminal] : 0L;
+            if (stopped != 0) {
+                readGoals(stopped, goals);
+                for (long lanes = stopped; lanes != 0; lanes &= lanes - 1) {
+                    depths[Long.numberOfTrailingZeros(lanes)] = depth;
+                }
+                playing &= ~stopped;
+                if (playing == 0) {
+                    break;
+                }
+            }
+
+            pickMoves(playing);
+            propagate();
+            for (int b = 0; b < bases.length; b++) {
+                bases[b] = (values[transitions[b]] & playing) | (bases[b] & ~playing);
+            }
+        }
+    }
+
+    /**
+     * Plays the given number of depth charges from the state, in batches of
+     * 64, and returns their average goals and depth. The last batch is
+     * played in full, but only its first lanes are counted.
+     */
+    public RolloutResult rollout(PropNetMachineState state, int repetitions) throws MoveDefinitionException, GoalDefinitionException
+    {
+        RolloutResult.Accumulator accumulator = new RolloutResult.Accumulator(net.getRoles().size());
+        while (accumulator.numRollouts < repetitions) {
+            rollout(state, (int) Math.min(NUM_LANES, repetitions - accumulator.numRollouts), accumulator);
+        }
+        return accumulator.toResult();
+    }
+
+    /**
+     * Plays a batch of depth charges from the state, and adds the given
+     * number of its lanes, at most 64, to the accumulator.
+     */
+    void rollout(PropNetMachineState state, int lanes, RolloutResult.Accumulator accumulator) throws MoveDefinitionException, GoalDefinitionException
+    {
+        rollout(state, laneGoals, laneDepths);
+        for (int l = 0; l < lanes; l++) {
+            accumulator.numRollouts++;
+            accumulator.totalDepth += laneDepths[l];
+            for (int r = 0; r < accumulator.totalScores.length; r++) {
+                accumulator.totalScores[r] += laneGoals[l][r];
+            }
+        }
+    }
+
+    private void setSources()
+    {
+        System.arraycopy(sourceValues, 0, values, 0, sourceValues.length);
+        System.arraycopy(bases, 0, values, 0, bases.length);
+    }
+
+    /**
+     * Computes every non-source component from its inputs, in all lanes at
+     * once, as {@link CompiledPropNet#propagate(boolean[])} does for one.
+     */
+    private void propagate()
+    {
+        final long[] values = this.values;
+        final byte[] types = net.getTypes();
+        final int[] inputOffsets = net.getInputOffsets();
+        final int[] inputs = net.getInputs();
+        for (int i = net.getNumSources(); i < types.length; i++) {
+            int start = inputOffsets[i];
+            int end = inputOffsets[i + 1];
+            long value;
+            switch (types[i]) {
+            case CompiledPropNet.TYPE_AND:
+                value = -1L;
+                for (int k = start; k < end && value != 0; k++) {
+                    value &= values[inputs[k]];
+                }
+                break;
+            case CompiledPropNet.TYPE_NOT:
+                value = ~values[inputs[start]];
+                break;
+            default:
+                value = 0L;
+                for (int k = start; k < end && value != -1L; k++) {
+                    value |= values[inputs[k]];
+                }
+                break;
+            }
+            values[i] = value;
+        }
+    }
+
+    /**
+     * Picks a legal move uniformly at random for every role in every lane
+     * that is playing, by reservoir sampling over the legal propositions,
+     * and marks their inputs.
+     */
+    private void pickMoves(long playing) throws MoveDefinitionException
+    {
+        int[][] legals = net.getLegals();
+        for (int r = 0; r < legals.length; r++) {
+            Arrays.fill(numSeen, 0);
+            for (int k = 0; k < legals[r].length; k++) {
+                for (long lanes = values[legals[r][k]] & playing; lanes != 0; lanes &= lanes - 1) {
+                    int l = Long.numberOfTrailingZeros(lanes);
+                    if (random.nextInt(++numSeen[l]) == 0) {
+                        picked[l] = k;
+                    }
+                }
+            }
+            for (long lanes = playing; lanes != 0; lanes &= lanes - 1) {
+                int l = Long.numberOfTrailingZeros(lanes);
+                if (numSeen[l] == 0) {
+                    throw new MoveDefinitionException(getLaneState(l), net.getRoles().get(r));
+                }
+                int input = legalInputs[r][picked[l]];
+                if (input >= 0) {
+                    values[input] |= 1L << l;
+                }
+            }
+        }
+    }
+
+    private void readGoals(long stopped, int[][] goals) throws GoalDefinitionException
+    {
+        int[][] goalIndices = net.getGoals();
+        int[][] goalValues = net.getGoalValues();
+        for (int r = 0; r < goalIndices.length; r++) {
+            long found = 0;
+            for (int i = 0; i < goalIndices[r].length; i++) {
+                long lanes = values[goalIndices[r][i]] & stopped;
+                if ((lanes & found) != 0) {
+                    throw new GoalDefinitionException(getLaneState(Long.numberOfTrailingZeros(lanes & found)), getRole(r));
+                }
+                found |= lanes;
+                for (; lanes != 0; lanes &= lanes - 1) {
+                    goals[Long.numberOfTrailingZeros(lanes)][r] = goalValues[r][i];
+                }
+            }
+            if (found != stopped) {
+                throw new GoalDefinitionException(getLaneState(Long.numberOfTrailingZeros(stopped & ~found)), getRole(r));
+            }
+        }
+    }
+
+    private Role getRole(int r)
+    {
+        return net.getRoles().get(r);
+    }
+
+    private PropNetMachineState getLaneState(int lane)
+    {
+        long[] bits = new long[PropNetMachineState.getNumWords(bases.length)];
+        for (int b = 0; b < bases.length; b++) {
+            if ((bases[b] & (1L << lane)) != 0) {
+                bits[b >>> 6] |= 1L << b;
+            }
+        }
+        return new PropNetMachineState(net.getBaseSentences(), net.getZobristKeys(), bits);
+    }
+}
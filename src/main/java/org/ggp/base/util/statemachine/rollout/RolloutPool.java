@@ -0,0 +1,221 @@
+package org.ggp.base.util.statemachine.rollout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.MoveDefinitionException;
+import org.ggp.base.util.statemachine.exceptions.TransitionDefinitionException;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+
+/**
+ * The RolloutPool fans depth charges out over a fixed pool of worker
+ * threads. Each worker runs its depth charges on a state machine of its
+ * own, so the state machines need not be thread-safe; they must however all
+ * be initialized with the same game, and must not be used elsewhere while
+ * the pool is alive. Unlike
+ * {@link StateMachine#getAverageDiscountedScoresFromRepeatedDepthCharges},
+ * the pool does not clone the state before every depth charge, so the state
+ * machines must not override getNextStateDestructively to modify states.
+ *
+ * Requests take a state or a batch of states, a number of depth charges per
+ * state, and optionally a deadline after which no new depth charges are
+ * started. The work for a request is split into one task per worker where
+ * possible, and the caller blocks until all of its tasks are done.
+ *
+ * Several threads may submit requests at once; their tasks simply share
+ * the workers.
+ *
+ * Workers that are {@link CompiledPropNetStateMachine}s play their depth
+ * charges 64 at a time with {@link BitParallelRollouts}; a batch costs
+ * about as much as a couple of single depth charges, so when every worker
+ * is one, the work for a request is not split into tasks of less than a
+ * batch, and a task that needs fewer depth charges still plays a whole
+ * batch but only counts the ones it needs.
+ */
+public final class RolloutPool
+{
+    private final BlockingQueue<StateMachine> idleStateMachines;
+    private final ExecutorService executor;
+    private final int numWorkers;
+    private final int numRoles;
+    // The fewest depth charges worth giving a task of its own
+    private final int minTaskSize;
+
+    /**
+     * Creates a pool with one worker thread for each of the given state
+     * machines.
+     */
+    public RolloutPool(List<? extends StateMachine> stateMachines)
+    {
+        if (stateMachines.isEmpty()) {
+            throw new IllegalArgumentException("A rollout pool needs at least one state machine");
+        }
+        this.numWorkers = stateMachines.size();
+        this.numRoles = stateMachines.get(0).getRoles().size();
+        int minTaskSize = BitParallelRollouts.NUM_LANES;
+        for (StateMachine stateMachine : stateMachines) {
+            if (!(stateMachine instanceof CompiledPropNetStateMachine)) {
+                minTaskSize = 1;
+            }
+        }
+        this.minTaskSize = minTaskSize;
+        this.idleStateMachines = new ArrayBlockingQueue<StateMachine>(numWorkers, false, stateMachines);
+        this.executor = Executors.newFixedThreadPool(numWorkers);
+    }
+
+    public int getNumWorkers()
+    {
+        return numWorkers;
+    }
+
+    /** Runs the given number of depth charges from the state. */
+    public RolloutResult rollout(MachineState state, int repetitions) throws InterruptedException, TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return rollout(state, repetitions, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs up to the given number of depth charges from the state, starting
+     * no new depth charge after the deadline. At least one depth charge is
+     * always run.
+     */
+    public RolloutResult rollout(MachineState state, int repetitions, long deadline) throws InterruptedException, TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return rollout(Collections.singletonList(state), repetitions, deadline).get(0);
+    }
+
+    /** Runs depth charges from the state on every worker until the deadline. */
+    public RolloutResult rolloutUntil(MachineState state, long deadline) throws InterruptedException, TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return rollout(state, Integer.MAX_VALUE, deadline);
+    }
+
+    /**
+     * Runs the given number of depth charges from each state of the batch,
+     * and returns the results in the same order as the states.
+     */
+    public List<RolloutResult> rollout(List<MachineState> states, int repetitions) throws InterruptedException, TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        return rollout(states, repetitions, Long.MAX_VALUE);
+    }
+
+    /**
+     * Runs up to the given number of depth charges from each state of the
+     * batch, starting no new depth charge after the deadline, and returns the
+     * results in the same order as the states. At least one depth charge is
+     * always run from every state.
+     */
+    public List<RolloutResult> rollout(List<MachineState> states, int repetitions, long deadline) throws InterruptedException, TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        if (repetitions < 1) {
+            throw new IllegalArgumentException("At least one depth charge per state is needed, got " + repetitions);
+        }
+        // Split the repetitions for a state over several tasks if there are
+        // fewer states than workers, so that no worker stays idle.
+        int tasksPerState = Math.max(1, Math.min(repetitions / minTaskSize, numWorkers / states.size()));
+        List<Callable<RolloutResult.Accumulator>> tasks = new ArrayList<Callable<RolloutResult.Accumulator>>(states.size() * tasksPerState);
+        for (MachineState state : states) {
+            for (int t = 0; t < tasksPerState; t++) {
+                int share = repetitions / tasksPerState + (t < repetitions % tasksPerState ? 1 : 0);
+                tasks.add(new RolloutTask(state, share, deadline));
+            }
+        }
+
+        List<RolloutResult> results = new ArrayList<RolloutResult>(states.size());
+        try {
+            List<Future<RolloutResult.Accumulator>> futures = executor.invokeAll(tasks);
+            for (int s = 0; s < states.size(); s++) {
+                RolloutResult.Accumulator total = new RolloutResult.Accumulator(numRoles);
+                for (int t = 0; t < tasksPerState; t++) {
+                    total.add(futures.get(s * tasksPerState + t).get());
+                }
+                results.add(total.toResult());
+            }
+        } catch (ExecutionException e) {
+            rethrow(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Stops the worker threads. Requests in progress are interrupted, and
+     * no further requests may be submitted.
+     */
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    private final class RolloutTask implements Callable<RolloutResult.Accumulator>
+    {
+        private final MachineState state;
+        private final int repetitions;
+        private final long deadline;
+
+        RolloutTask(MachineState state, int repetitions, long deadline)
+        {
+            this.state = state;
+            this.repetitions = repetitions;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public RolloutResult.Accumulator call() throws Exception
+        {
+            StateMachine stateMachine = idleStateMachines.take();
+            try {
+                RolloutResult.Accumulator accumulator = new RolloutResult.Accumulator(numRoles);
+                int[] depth = new int[1];
+                int[] goals = new int[numRoles];
+                CompiledPropNetStateMachine compiled = (stateMachine instanceof CompiledPropNetStateMachine)
+                        ? (CompiledPropNetStateMachine) stateMachine : null;
+                do {
+                    if (compiled != null) {
+                        int lanes = (int) Math.min(BitParallelRollouts.NUM_LANES, repetitions - accumulator.numRollouts);
+                        compiled.getBitParallelRollouts().rollout(compiled.toPropNetState(state), lanes, accumulator);
+                    } else {
+                        stateMachine.performDepthCharge(state, depth, goals);
+                        accumulator.numRollouts++;
+                        accumulator.totalDepth += depth[0];
+                        for (int r = 0; r < numRoles; r++) {
+                            accumulator.totalScores[r] += goals[r];
+                        }
+                    }
+                } while (accumulator.numRollouts < repetitions && System.currentTimeMillis() < deadline
+                        && !Thread.currentThread().isInterrupted());
+                return accumulator;
+            } finally {
+                idleStateMachines.put(stateMachine);
+            }
+        }
+    }
+
+    private static void rethrow(Throwable t) throws InterruptedException, TransitionDefinitionException, MoveDefinitionException, GoalDefinitionException
+    {
+        if (t instanceof InterruptedException) {
+            throw (InterruptedException) t;
+        } else if (t instanceof TransitionDefinitionException) {
+            throw (TransitionDefinitionException) t;
+        } else if (t instanceof MoveDefinitionException) {
+            throw (MoveDefinitionException) t;
+        } else if (t instanceof GoalDefinitionException) {
+            throw (GoalDefinitionException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new RuntimeException(t);
+    }
+}
@@ -0,0 +1,79 @@
+package org.ggp.base.util.statemachine.rollout;
+
+/**
+ * The aggregated outcome of a number of depth charges from one state: how
+ * many were run, the average goal value of every role, and the average
+ * number of moves until a terminal state was reached.
+ */
+public final class RolloutResult
+{
+    private final long numRollouts;
+    private final double[] averageScores;
+    private final double averageDepth;
+
+    RolloutResult(long numRollouts, double[] averageScores, double averageDepth)
+    {
+        this.numRollouts = numRollouts;
+        this.averageScores = averageScores;
+        this.averageDepth = averageDepth;
+    }
+
+    public long getNumRollouts()
+    {
+        return numRollouts;
+    }
+
+    /** Returns the average score of the role with the given index. */
+    public double getAverageScore(int role)
+    {
+        return averageScores[role];
+    }
+
+    /** Returns the average scores of all roles, in role order. */
+    public double[] getAverageScores()
+    {
+        return averageScores.clone();
+    }
+
+    public double getAverageDepth()
+    {
+        return averageDepth;
+    }
+
+    /**
+     * Running totals for the depth charges of a single task, which are
+     * merged into a RolloutResult once every task has finished.
+     */
+    static final class Accumulator
+    {
+        long numRollouts;
+        long totalDepth;
+        final long[] totalScores;
+
+        Accumulator(int numRoles)
+        {
+            this.totalScores = new long[numRoles];
+        }
+
+        void add(Accumulator other)
+        {
+            numRollouts += other.numRollouts;
+            totalDepth += other.totalDepth;
+            for (int r = 0; r < totalScores.length; r++) {
+                totalScores[r] += other.totalScores[r];
+            }
+        }
+
+        RolloutResult toResult()
+        {
+            double[] averageScores = new double[totalScores.length];
+            if (numRollouts == 0) {
+                return new RolloutResult(0, averageScores, 0);
+            }
+            for (int r = 0; r < totalScores.length; r++) {
+                averageScores[r] = (double) totalScores[r] / numRollouts;
+            }
+            return new RolloutResult(numRollouts, averageScores, (double) totalDepth / numRollouts);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+import org.ggp.base.player.gamer.Gamer;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.match.Match;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for the FactoredMCSGamer class, to verify that it can play
+ * both a game with several factors and a game with a single one.
+ */
+public class FactoredMCSGamerTest extends Assert {
+    @Test
+    public void testFactoredGame() throws Exception {
+        GdlTerm move = playFirstMove("test_factored_counters", "player");
+        assertTrue(move.toString().equals("inc_a") || move.toString().equals("inc_b"));
+    }
+
+    @Test
+    public void testUnfactoredGame() throws Exception {
+        GdlTerm move = playFirstMove("connectFour", "red");
+        assertTrue(move.toString().startsWith("( drop"));
+    }
+
+    @Test
+    public void testFactorThatCannotEndTheGame() throws Exception {
+        // Flipping a never ends the game, so depth charges in its factor
+        // are cut off
+        Game game = Game.createEphemeralGame(
+                "( ( role player ) ( init ( a off ) ) ( init ( b off ) ) " +
+                "( legal player flip_a ) ( legal player flip_b ) " +
+                "( <= ( next ( a on ) ) ( does player flip_a ) ( true ( a off ) ) ) " +
+                "( <= ( next ( a off ) ) ( does player flip_a ) ( true ( a on ) ) ) " +
+                "( <= ( next ( a ?x ) ) ( not ( does player flip_a ) ) ( true ( a ?x ) ) ) " +
+                "( <= ( next ( b on ) ) ( does player flip_b ) ) " +
+                "( <= ( next ( b off ) ) ( not ( does player flip_b ) ) ( true ( b off ) ) ) " +
+                "( <= terminal ( true ( b on ) ) ) ( goal player 100 ) )");
+        long start = System.currentTimeMillis();
+        GdlTerm move = playFirstMove(game, "player");
+        assertTrue(move.toString().equals("flip_a") || move.toString().equals("flip_b"));
+        assertTrue(System.currentTimeMillis() - start < 5000);
+    }
+
+    @Test
+    public void testRanksMovesOfFactorThatCannotEndTheGame() throws Exception {
+        // The first move of a sticks and decides the goal, but only b can
+        // end the game
+        Game game = Game.createEphemeralGame(
+                "( ( role player ) ( init ( b off ) ) " +
+                "( legal player bad_a ) ( legal player flip_b ) ( legal player good_a ) " +
+                "( <= ( next ( a good ) ) ( does player good_a ) ( not ( true ( a bad ) ) ) ) " +
+                "( <= ( next ( a good ) ) ( true ( a good ) ) ) " +
+                "( <= ( next ( a bad ) ) ( does player bad_a ) ( not ( true ( a good ) ) ) ) " +
+                "( <= ( next ( a bad ) ) ( true ( a bad ) ) ) " +
+                "( <= ( next ( b on ) ) ( does player flip_b ) ) " +
+                "( <= ( next ( b off ) ) ( not ( does player flip_b ) ) ) " +
+                "( <= terminal ( true ( b on ) ) ) " +
+                "( <= ( goal player 100 ) ( true ( a good ) ) ) " +
+                "( <= ( goal player 0 ) ( not ( true ( a good ) ) ) ) )");
+        assertEquals("good_a", playFirstMove(game, "player").toString());
+    }
+
+    private static GdlTerm playFirstMove(String game, String role) throws Exception {
+        return playFirstMove(new TestGameRepository().getGame(game), role);
+    }
+
+    private static GdlTerm playFirstMove(Game game, String role) throws Exception {
+        Gamer g = new FactoredMCSGamer();
+        assertEquals("FactoredMCSGamer", g.getName());
+        Match m = new Match("", -1, 5, 3, game, "");
+        g.setMatch(m);
+        g.setRoleName(GdlPool.getConstant(role));
+        g.metaGame(System.currentTimeMillis() + Gamer.PREFERRED_METAGAME_BUFFER + 500);
+        GdlTerm move = g.selectMove(System.currentTimeMillis() + Gamer.PREFERRED_PLAY_BUFFER + 500);
+        g.abort();
+        return move;
+    }
+}
@@ -0,0 +1,78 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+import org.ggp.base.player.gamer.Gamer;
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.match.Match;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for the MCTSGamer class, to verify that it can search a game
+ * with transpositions and play moves in it.
+ */
+public class MCTSGamerTest extends Assert {
+    @Test
+    public void testMCTSGamer() throws Exception {
+        Gamer g = new MCTSGamer();
+        assertEquals("MCTSGamer", g.getName());
+        playFirstMove(g);
+    }
+
+    @Test
+    public void testPolicies() throws Exception {
+        for (MCTSSelectionPolicy.Type selection : MCTSSelectionPolicy.Type.values()) {
+            for (MCTSPlayoutPolicy.Type playout : MCTSPlayoutPolicy.Type.values()) {
+                MCTSGamer g = new MCTSGamer(selection, playout);
+                assertEquals(selection, g.getSelectionPolicy());
+                assertEquals(playout, g.getPlayoutPolicy());
+                playFirstMove(g);
+            }
+        }
+    }
+
+    @Test
+    public void testRepeatedStates() throws Exception {
+        // Flipping goes back and forth between two states, whose nodes are
+        // shared, so the search graph has a cycle. Whoever stops loses, so
+        // both players keep selecting the flips that close it.
+        Game game = Game.createEphemeralGame(
+                "( ( role x ) ( role o ) ( init ( on a ) ) ( init ( control x ) ) " +
+                "( <= ( legal ?p flip ) ( true ( control ?p ) ) ) " +
+                "( <= ( legal ?p stop ) ( true ( control ?p ) ) ) " +
+                "( <= ( legal x noop ) ( true ( control o ) ) ) " +
+                "( <= ( legal o noop ) ( true ( control x ) ) ) " +
+                "( <= ( next ( control o ) ) ( true ( control x ) ) ) " +
+                "( <= ( next ( control x ) ) ( true ( control o ) ) ) " +
+                "( <= ( next ( on b ) ) ( does ?p flip ) ( true ( on a ) ) ) " +
+                "( <= ( next ( on a ) ) ( does ?p flip ) ( true ( on b ) ) ) " +
+                "( <= ( next ( on ?s ) ) ( does ?p stop ) ( true ( on ?s ) ) ) " +
+                "( <= ( next stopped ) ( does ?p stop ) ) " +
+                "( <= terminal ( true stopped ) ) " +
+                "( <= ( goal x 100 ) ( true ( on b ) ) ) ( <= ( goal x 0 ) ( true ( on a ) ) ) " +
+                "( <= ( goal o 0 ) ( true ( on b ) ) ) ( <= ( goal o 100 ) ( true ( on a ) ) ) )");
+        for (MCTSSelectionPolicy.Type selection : MCTSSelectionPolicy.Type.values()) {
+            long start = System.currentTimeMillis();
+            GdlTerm move = playFirstMove(new MCTSGamer(selection, MCTSPlayoutPolicy.Type.RANDOM), game, "x");
+            assertEquals("flip", move.toString());
+            assertTrue(System.currentTimeMillis() - start < 5000);
+        }
+    }
+
+    private static void playFirstMove(Gamer g) throws Exception {
+        GdlTerm move = playFirstMove(g, new TestGameRepository().getGame("connectFour"), "red");
+        assertTrue(move.toString().startsWith("( drop"));
+    }
+
+    private static GdlTerm playFirstMove(Gamer g, Game game, String role) throws Exception {
+        Match m = new Match("", -1, 5, 3, game, "");
+        g.setMatch(m);
+        g.setRoleName(GdlPool.getConstant(role));
+        g.metaGame(System.currentTimeMillis() + Gamer.PREFERRED_METAGAME_BUFFER + 500);
+        GdlTerm move = g.selectMove(System.currentTimeMillis() + Gamer.PREFERRED_PLAY_BUFFER + 500);
+        g.abort();
+        return move;
+    }
+}
@@ -0,0 +1,139 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+public class MCTSNodePoolTest extends Assert {
+
+    private static MachineState state(int i) {
+        GdlSentence sentence = GdlPool.getRelation(GdlPool.getConstant("step"), new org.ggp.base.util.gdl.grammar.GdlTerm[] { GdlPool.getConstant("s" + i) });
+        return new MachineState(ImmutableSet.of(sentence));
+    }
+
+    @Test
+    public void testAllocateFindAndExpand() {
+        MCTSNodePool pool = new MCTSNodePool(4, 4, 2);
+        int root = pool.allocateNode(state(0), 0L, false, true);
+        assertEquals(root, pool.findNode(state(0), 0L));
+        assertEquals(MCTSNodePool.NONE, pool.findNode(state(1), 1L));
+        // A colliding hash does not find the wrong node.
+        assertEquals(MCTSNodePool.NONE, pool.findNode(state(1), 0L));
+
+        assertTrue(pool.expand(root, Arrays.asList(state(1), state(2), state(3)), new int[] { 0, 1, 0, 2, 0, 3 }));
+        assertFalse(pool.expand(root, Arrays.asList(state(4), state(5)), new int[] { 0, 4, 0, 5 }));
+        assertEquals(3, pool.getNumEdges());
+        // One of four nodes, but three of four edges
+        assertEquals(0.75, pool.getOccupancy(), 0);
+        List<MachineState> childStates = new ArrayList<MachineState>();
+        for (int e = pool.getFirstEdge(root); e != MCTSNodePool.NONE; e = pool.getNextEdge(e)) {
+            childStates.add(pool.getEdgeState(e));
+            assertEquals(MCTSNodePool.NONE, pool.getEdgeChild(e));
+            assertEquals(0, pool.getEdgeMoveId(e, 0));
+            assertEquals(childStates.size(), pool.getEdgeMoveId(e, 1));
+            assertEquals(0, pool.getAmafVisits(e));
+        }
+        assertEquals(Arrays.asList(state(1), state(2), state(3)), childStates);
+
+        pool.update(root, 100);
+        pool.update(root, 50);
+        assertEquals(2, pool.getVisits(root));
+        assertEquals(75, pool.getUtility(root), 0);
+        assertEquals(6250, pool.getSquaredUtility(root), 0);
+
+        int e = pool.getFirstEdge(root);
+        pool.updateAmaf(e, 100);
+        pool.updateAmaf(e, 0);
+        assertEquals(2, pool.getAmafVisits(e));
+        assertEquals(50, pool.getAmafUtility(e), 0);
+    }
+
+    @Test
+    public void testRetainReachable() {
+        MCTSNodePool pool = new MCTSNodePool(8, 8, 1);
+        int root = pool.allocateNode(state(0), 0L, false, true);
+        pool.expand(root, Arrays.asList(state(1), state(2)), new int[] { 1, 2 });
+        int a = pool.allocateNode(state(1), 1L, false, false);
+        int b = pool.allocateNode(state(2), 2L, false, false);
+        pool.setEdgeChild(pool.getFirstEdge(root), a);
+        pool.setEdgeChild(pool.getNextEdge(pool.getFirstEdge(root)), b);
+        pool.expand(a, Arrays.asList(state(2)), new int[] { 2 });
+        pool.setEdgeChild(pool.getFirstEdge(a), b);
+
+        pool.retainReachableFrom(a);
+        assertEquals(2, pool.getNumNodes());
+        assertEquals(1, pool.getNumEdges());
+        assertEquals(1, pool.getNumReclaimed());
+        assertEquals(MCTSNodePool.NONE, pool.findNode(state(0), 0L));
+        assertEquals(a, pool.findNode(state(1), 1L));
+        assertEquals(b, pool.findNode(state(2), 2L));
+    }
+
+    @Test
+    public void testPruneLeaves() {
+        MCTSNodePool pool = new MCTSNodePool(8, 8, 1);
+        int root = pool.allocateNode(state(0), 0L, false, true);
+        pool.expand(root, Arrays.asList(state(1), state(2), state(3)), new int[] { 1, 2, 3 });
+        int e = pool.getFirstEdge(root);
+        for (int i = 1; i <= 3; i++, e = pool.getNextEdge(e)) {
+            int child = pool.allocateNode(state(i), i, false, false);
+            pool.setEdgeChild(e, child);
+            for (int v = 0; v < i; v++) {
+                pool.update(child, 0);
+            }
+        }
+        pool.pruneLeaves(root, 2);
+        assertEquals(2, pool.getNumNodes());
+        assertEquals(2, pool.getNumPruned());
+        assertEquals(MCTSNodePool.NONE, pool.findNode(state(1), 1L));
+        assertEquals(MCTSNodePool.NONE, pool.findNode(state(2), 2L));
+        int survivor = pool.findNode(state(3), 3L);
+        assertEquals(3, pool.getVisits(survivor));
+
+        List<Integer> children = new ArrayList<Integer>();
+        for (e = pool.getFirstEdge(root); e != MCTSNodePool.NONE; e = pool.getNextEdge(e)) {
+            children.add(pool.getEdgeChild(e));
+        }
+        assertEquals(Arrays.asList(MCTSNodePool.NONE, MCTSNodePool.NONE, survivor), children);
+    }
+
+    @Test
+    public void testIndexSurvivesChurn() {
+        int capacity = 64;
+        MCTSNodePool pool = new MCTSNodePool(capacity, 0, 1);
+        Map<Integer, Integer> nodes = new HashMap<Integer, Integer>();
+        Random random = new Random(0);
+        for (int round = 0; round < 200; round++) {
+            // Allocate until full, with few distinct hash values to force collisions.
+            for (int i = 0; nodes.size() < capacity; i++) {
+                int id = random.nextInt(1000);
+                if (!nodes.containsKey(id)) {
+                    nodes.put(id, pool.allocateNode(state(id), id % 7, false, false));
+                }
+            }
+            assertEquals(MCTSNodePool.NONE, pool.allocateNode(state(-1), 0L, false, false));
+            // Keep a random one of them, reclaiming everything else.
+            List<Integer> ids = new ArrayList<Integer>(nodes.keySet());
+            Collections.shuffle(ids, random);
+            int kept = ids.get(0);
+            pool.retainReachableFrom(nodes.get(kept));
+            nodes.keySet().retainAll(Collections.singleton(kept));
+            for (int id : ids) {
+                int expected = nodes.containsKey(id) ? nodes.get(id) : MCTSNodePool.NONE;
+                assertEquals(expected, pool.findNode(state(id), id % 7));
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.ggp.base.player.gamer.statemachine.sample;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.player.gamer.Gamer;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlTerm;
+import org.ggp.base.util.match.Match;
+import org.ggp.base.util.statemachine.Move;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for the ParallelMCTSGamer class, to verify that several workers
+ * can search a shared tree and agree on a sensible move.
+ */
+public class ParallelMCTSGamerTest extends Assert {
+    @Test
+    public void testParallelMCTSGamer() throws Exception {
+        Gamer g = new ParallelMCTSGamer(2);
+        assertEquals("ParallelMCTSGamer", g.getName());
+
+        Match m = new Match("", -1, 5, 3, new TestGameRepository().getGame("ticTacToe"), "");
+        g.setMatch(m);
+        g.setRoleName(GdlPool.getConstant("xplayer"));
+        g.metaGame(System.currentTimeMillis() + Gamer.PREFERRED_METAGAME_BUFFER + 500);
+        GdlTerm move = g.selectMove(System.currentTimeMillis() + Gamer.PREFERRED_PLAY_BUFFER + 500);
+        assertTrue(move.toString().startsWith("( mark"));
+        g.abort();
+    }
+
+    @Test
+    public void testFindsWinningMove() throws Exception {
+        Gamer g = new ParallelMCTSGamer(2);
+        Match m = new Match("", -1, 5, 3, new TestGameRepository().getGame("ticTacToe"), "");
+        g.setMatch(m);
+        g.setRoleName(GdlPool.getConstant("xplayer"));
+        g.metaGame(System.currentTimeMillis() + Gamer.PREFERRED_METAGAME_BUFFER + 300);
+
+        Move noop = Move.create("noop");
+        List<List<Move>> history = Arrays.asList(
+                Arrays.asList(Move.create("( mark 1 1 )"), noop),
+                Arrays.asList(noop, Move.create("( mark 3 3 )")),
+                Arrays.asList(Move.create("( mark 1 2 )"), noop),
+                Arrays.asList(noop, Move.create("( mark 2 2 )")));
+        for (List<Move> jointMove : history) {
+            g.selectMove(System.currentTimeMillis() + Gamer.PREFERRED_PLAY_BUFFER + 100);
+            m.appendMoves2(jointMove);
+        }
+        GdlTerm move = g.selectMove(System.currentTimeMillis() + Gamer.PREFERRED_PLAY_BUFFER + 500);
+        assertEquals(Move.create("( mark 1 3 )").getContents(), move);
+        g.abort();
+    }
+}
@@ -4,6 +4,10 @@ import org.ggp.base.apps.logging.LogSummarizerTest;
 import org.ggp.base.apps.tiltyard.TiltyardRequestFarmTest;
 import org.ggp.base.player.gamer.clojure.ClojureGamerTest;
 import org.ggp.base.player.gamer.python.PythonGamerTest;
+import org.ggp.base.player.gamer.statemachine.sample.FactoredMCSGamerTest;
+import org.ggp.base.player.gamer.statemachine.sample.MCTSGamerTest;
+import org.ggp.base.player.gamer.statemachine.sample.MCTSNodePoolTest;
+import org.ggp.base.player.gamer.statemachine.sample.ParallelMCTSGamerTest;
 import org.ggp.base.util.crypto.BaseCryptographyTest;
 import org.ggp.base.util.crypto.BaseHashingTest;
 import org.ggp.base.util.crypto.CanonicalJSONTest;
@@ -16,32 +20,66 @@ import org.ggp.base.util.gdl.scrambler.GdlScramblerTest;
 import org.ggp.base.util.gdl.transforms.GdlCleanerTest;
 import org.ggp.base.util.http.HttpTest;
 import org.ggp.base.util.presence.InfoResponseTest;
+import org.ggp.base.util.propnet.architecture.LatchAnalysisTest;
+import org.ggp.base.util.propnet.architecture.PropNetFactorizationTest;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactoryTest;
+import org.ggp.base.util.propnet.factory.PropNetCacheTest;
+import org.ggp.base.util.propnet.factory.PropNetOptimizerTest;
+import org.ggp.base.util.prover.aima.AimaProverTest;
+import org.ggp.base.util.prover.aima.knowledge.KnowledgeBaseTest;
+import org.ggp.base.util.prover.trail.TrailProverTest;
+import org.ggp.base.util.statemachine.HotSwapStateMachineTest;
+import org.ggp.base.util.statemachine.JointMoveIdsTest;
+import org.ggp.base.util.statemachine.implementation.propnet.BytecodePropNetStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachineTest;
 import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachineTest;
+import org.ggp.base.util.statemachine.implementation.reasoner.ForwardChainingStateMachineTest;
+import org.ggp.base.util.statemachine.rollout.BitParallelRolloutsTest;
+import org.ggp.base.util.statemachine.rollout.RolloutPoolTest;
 import org.ggp.base.validator.StaticValidationTest;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
+    AimaProverTest.class,
     BaseCryptographyTest.class,
     BaseHashingTest.class,
+    BitParallelRolloutsTest.class,
+    BytecodePropNetStateMachineTest.class,
     CanonicalJSONTest.class,
     ClojureGamerTest.class,
+    CompiledPropNetStateMachineTest.class,
     DependencyGraphsTest.class,
+    FactoredMCSGamerTest.class,
+    ForwardChainingStateMachineTest.class,
     GameParsingTest.class,
     GdlCleanerTest.class,
     GdlRendererTest.class,
     GdlScramblerTest.class,
+    HotSwapStateMachineTest.class,
     HttpTest.class,
     InfoResponseTest.class,
+    JointMoveIdsTest.class,
+    KnowledgeBaseTest.class,
+    LatchAnalysisTest.class,
     LogSummarizerTest.class,
+    MCTSGamerTest.class,
+    MCTSNodePoolTest.class,
     NoTabsInRulesheetsTest.class,
+    OptimizingPropNetFactoryTest.class,
+    ParallelMCTSGamerTest.class,
+    PropNetCacheTest.class,
+    PropNetFactorizationTest.class,
+    PropNetOptimizerTest.class,
     ProverStateMachineTest.class,
     PythonGamerTest.class,
+    RolloutPoolTest.class,
     SignableJSONTest.class,
     SimpleSentenceFormTest.class,
     StaticValidationTest.class,
     TiltyardRequestFarmTest.class,
+    TrailProverTest.class,
 })
 public class AllTests {
 
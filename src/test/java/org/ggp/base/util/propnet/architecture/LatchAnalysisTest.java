@@ -0,0 +1,100 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatchAnalysisTest extends Assert {
+
+    private static final List<String> GAMES = Arrays.asList(
+            "ticTacToe", "connectFour", "simpleMutex", "test_case_2a", "test_case_2b", "test_case_2c",
+            "test_case_3c", "test_case_3d", "test_distinct_beginning_rule");
+
+    private static CompiledPropNetStateMachine createMachine(String game) throws Exception {
+        return new CompiledPropNetStateMachine(new CompiledPropNet(
+                OptimizingPropNetFactory.create(new TestGameRepository().getGame(game).getRules(), false)));
+    }
+
+    @Test
+    public void testTicTacToeCellsAreLatches() throws Exception {
+        CompiledPropNetStateMachine machine = createMachine("ticTacToe");
+        CompiledPropNet net = machine.getCompiledPropNet();
+        LatchAnalysis latches = machine.getLatchAnalysis();
+        for (String cell : new String[] { "( true ( cell 1 1 x ) )", "( true ( cell 3 2 o ) )" }) {
+            int base = net.getBaseIndex(GdlFactory.createTerm(cell).toSentence());
+            assertTrue(cell, latches.isPositiveLatch(base));
+            assertFalse(cell, latches.isConstant(base));
+        }
+        int blank = net.getBaseIndex(GdlFactory.createTerm("( true ( cell 2 2 b ) )").toSentence());
+        assertTrue(latches.isNegativeLatch(blank));
+        assertFalse(latches.isPositiveLatch(blank));
+        int control = net.getBaseIndex(GdlFactory.createTerm("( true ( control xplayer ) )").toSentence());
+        assertFalse(latches.isPositiveLatch(control));
+        assertFalse(latches.isNegativeLatch(control));
+    }
+
+    @Test
+    public void testGoalBoundsHoldAlongPlayouts() throws Exception {
+        for (String game : GAMES) {
+            CompiledPropNetStateMachine machine = createMachine(game);
+            for (int playout = 0; playout < 20; playout++) {
+                List<MachineState> states = new ArrayList<MachineState>();
+                MachineState state = machine.getInitialState();
+                states.add(state);
+                while (!machine.isTerminal(state)) {
+                    state = machine.getRandomNextState(state);
+                    states.add(state);
+                }
+                for (Role role : machine.getRoles()) {
+                    int goal = machine.getGoal(state, role);
+                    for (MachineState visited : states) {
+                        int[] bounds = machine.getGoalBounds(visited, role);
+                        assertTrue(game, bounds[0] <= goal && goal <= bounds[1]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testGoalBoundsWithoutLatches() throws Exception {
+        CompiledPropNetStateMachine machine = new CompiledPropNetStateMachine(new CompiledPropNet(OptimizingPropNetFactory.create(
+                Game.createEphemeralGame("( ( role robot ) ( init ( on ) ) ( legal robot flip ) "
+                        + "( <= ( next ( on ) ) ( not ( true ( on ) ) ) ) ( goal robot 100 ) )").getRules(), false)));
+        assertEquals(0, machine.getLatchAnalysis().getNumLatches());
+        assertArrayEquals(new int[] { 0, 100 }, machine.getGoalBounds(machine.getInitialState(), machine.getRoles().get(0)));
+    }
+
+    @Test
+    public void testTicTacToeWinsAreDecided() throws Exception {
+        CompiledPropNetStateMachine machine = createMachine("ticTacToe");
+        int wins = 0;
+        for (int playout = 0; playout < 50; playout++) {
+            MachineState state = machine.getInitialState();
+            while (!machine.isTerminal(state)) {
+                state = machine.getRandomNextState(state);
+            }
+            // A line of marks is made of positive latches, but a draw is not
+            // decided by latches alone
+            if (machine.getGoal(state, machine.getRoles().get(0)) == 50) {
+                continue;
+            }
+            wins++;
+            for (Role role : machine.getRoles()) {
+                int goal = machine.getGoal(state, role);
+                assertArrayEquals(new int[] { goal, goal }, machine.getGoalBounds(state, role));
+            }
+        }
+        assertTrue(wins > 0);
+    }
+}
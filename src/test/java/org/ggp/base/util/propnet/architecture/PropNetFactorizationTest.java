@@ -0,0 +1,122 @@
+package org.ggp.base.util.propnet.architecture;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.FactorStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropNetFactorizationTest extends Assert {
+
+    private static CompiledPropNet compile(List<Gdl> description) throws Exception {
+        return new CompiledPropNet(OptimizingPropNetFactory.create(description, false));
+    }
+
+    @Test
+    public void testSumOfGamesIsFactored() throws Exception {
+        CompiledPropNet net = compile(new TestGameRepository().getGame("test_factored_counters").getRules());
+        PropNetFactorization factorization = new PropNetFactorization(net);
+        assertTrue(factorization.isFactored());
+        assertEquals(2, factorization.getFactors().size());
+
+        int a = net.getBaseIndex(GdlFactory.createTerm("( true ( a 0 ) )").toSentence());
+        int b = net.getBaseIndex(GdlFactory.createTerm("( true ( b 0 ) )").toSentence());
+        int step = net.getBaseIndex(GdlFactory.createTerm("( true ( step 0 ) )").toSentence());
+        assertTrue(factorization.getFactorOfBase(a) >= 0);
+        assertTrue(factorization.getFactorOfBase(b) >= 0);
+        assertFalse(factorization.getFactorOfBase(a) == factorization.getFactorOfBase(b));
+        assertEquals(-1, factorization.getFactorOfBase(step));
+        assertEquals(factorization.getFactorOfBase(a), factorization.getFactorOfMove(0, moveOf("inc_a")));
+        assertEquals(factorization.getFactorOfBase(b), factorization.getFactorOfMove(0, moveOf("inc_b")));
+    }
+
+    @Test
+    public void testTurnTakingGamesHaveOneFactor() throws Exception {
+        for (String game : Arrays.asList("ticTacToe", "connectFour")) {
+            PropNetFactorization factorization = new PropNetFactorization(
+                    compile(new TestGameRepository().getGame(game).getRules()));
+            assertEquals(game, 1, factorization.getFactors().size());
+        }
+    }
+
+    @Test
+    public void testSingleFactorMachineIsConsistentWithProver() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        PropNetFactorization factorization = new PropNetFactorization(compile(description));
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(description);
+        StateMachine subject = FactorStateMachine.forEachFactor(factorization).get(0);
+        assertTrue(StateMachineVerifier.checkMachineConsistency(reference, subject, 200));
+    }
+
+    @Test
+    public void testInitializedFactorMachines() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("test_factored_counters").getRules();
+        FactorStateMachine factor = new FactorStateMachine(0);
+        factor.initialize(description);
+        assertNotNull(factor.getFactor());
+        assertEquals(0, factor.getFactor().getIndex());
+
+        // A game without such a factor is played whole
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(description);
+        FactorStateMachine whole = new FactorStateMachine(2);
+        whole.initialize(description);
+        assertNull(whole.getFactor());
+        assertTrue(StateMachineVerifier.checkMachineConsistency(reference, whole, 200));
+    }
+
+    @Test
+    public void testFactorsPlayIndependentlyAndCombine() throws Exception {
+        CompiledPropNet net = compile(new TestGameRepository().getGame("test_factored_counters").getRules());
+        PropNetFactorization factorization = new PropNetFactorization(net);
+        CompiledPropNetStateMachine game = new CompiledPropNetStateMachine(net);
+        List<FactorStateMachine> machines = FactorStateMachine.forEachFactor(factorization);
+        Role player = game.getRoles().get(0);
+        FactorStateMachine factorA = machines.get(factorization.getFactorOfMove(0, moveOf("inc_a")));
+        FactorStateMachine factorB = machines.get(factorization.getFactorOfMove(0, moveOf("inc_b")));
+
+        MachineState initial = game.getInitialState();
+        assertEquals(Arrays.asList(moveOf("inc_a"), moveOf("inc_b")), factorA.getLegalMoves(initial, player));
+
+        // Passing in a factor leaves it unchanged, and advances the step counter
+        MachineState passed = factorA.getNextState(initial, Arrays.asList(moveOf("inc_b")));
+        assertTrue(passed.getContents().contains(GdlFactory.createTerm("( true ( a 0 ) )").toSentence()));
+        assertTrue(passed.getContents().contains(GdlFactory.createTerm("( true ( b 0 ) )").toSentence()));
+        assertTrue(passed.getContents().contains(GdlFactory.createTerm("( true ( step 1 ) )").toSentence()));
+
+        // A factor is over once its counter is done, whatever the other one
+        MachineState state = initial;
+        for (int i = 0; i < 3; i++) {
+            assertFalse(factorA.isTerminal(state));
+            state = factorA.getNextState(state, Arrays.asList(moveOf("inc_a")));
+        }
+        assertTrue(factorA.isTerminal(state));
+        assertFalse(game.isTerminal(state));
+        assertEquals(50, factorA.getGoal(state, player));
+
+        MachineState stateB = initial;
+        for (int i = 0; i < 3; i++) {
+            stateB = factorB.getNextState(stateB, Arrays.asList(moveOf("inc_b")));
+        }
+        MachineState combined = FactorStateMachine.combine(initial, Arrays.asList(factorA, factorB), Arrays.asList(state, stateB));
+        assertTrue(game.isTerminal(combined));
+        assertEquals(100, game.getGoal(combined, player));
+    }
+
+    private static Move moveOf(String name) throws Exception {
+        return new Move(GdlFactory.createTerm(name));
+    }
+}
@@ -0,0 +1,43 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.Proposition;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class OptimizingPropNetFactoryTest extends Assert {
+
+    private static final List<String> GAMES = Arrays.asList(
+            "ticTacToe", "connectFour", "simpleMutex", "test_case_2b", "test_case_2c", "test_case_3d");
+
+    @Test
+    public void testParallelBuildMatchesSerialBuild() throws Exception {
+        for (String game : GAMES) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            PropNet serial = OptimizingPropNetFactory.create(description, false, 1);
+            PropNet parallel = OptimizingPropNetFactory.create(description, false, 4);
+            assertEquals(game, serial.getSize(), parallel.getSize());
+            assertEquals(game, serial.getNumLinks(), parallel.getNumLinks());
+            assertEquals(game, serial.getNumAnds(), parallel.getNumAnds());
+            assertEquals(game, serial.getNumOrs(), parallel.getNumOrs());
+            assertEquals(game, serial.getNumNots(), parallel.getNumNots());
+            assertEquals(game, getPropositionNames(serial), getPropositionNames(parallel));
+        }
+    }
+
+    private static List<String> getPropositionNames(PropNet propNet) {
+        List<String> names = new ArrayList<String>();
+        for (Proposition p : propNet.getPropositions()) {
+            names.add(p.getName().toString());
+        }
+        Collections.sort(names);
+        return names;
+    }
+}
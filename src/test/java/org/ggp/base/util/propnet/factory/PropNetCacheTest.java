@@ -0,0 +1,100 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRelation;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PropNetCacheTest extends Assert {
+
+    private static final List<String> GAMES = Arrays.asList(
+            "ticTacToe", "connectFour", "simpleMutex", "test_case_3c", "test_distinct_beginning_rule");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testLoadedPropNetsAreConsistentWithProver() throws Exception {
+        PropNetCache cache = new PropNetCache(folder.getRoot());
+        for (String game : GAMES) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            PropNet built = cache.create(description);
+            File file = new File(folder.getRoot(), PropNetCache.getKey(description) + ".propnet");
+            assertTrue(game, file.isFile());
+
+            PropNet loaded = cache.create(description);
+            assertNotSame(game, built, loaded);
+            assertEquals(game, built.getSize(), loaded.getSize());
+            assertEquals(game, built.getRoles(), loaded.getRoles());
+            assertEquals(game, built.getBasePropositions().keySet(), loaded.getBasePropositions().keySet());
+            assertEquals(game, built.getInputPropositions().keySet(), loaded.getInputPropositions().keySet());
+
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(description);
+            StateMachine subject = new CompiledPropNetStateMachine(new CompiledPropNet(loaded));
+            assertTrue(game, StateMachineVerifier.checkMachineConsistency(reference, subject, 100));
+        }
+    }
+
+    @Test
+    public void testKeyIgnoresRuleOrderButNotRoleOrder() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        List<Gdl> roles = new ArrayList<Gdl>();
+        List<Gdl> rules = new ArrayList<Gdl>();
+        for (Gdl gdl : description) {
+            if (gdl instanceof GdlRelation && ((GdlRelation) gdl).getName().equals(GdlPool.ROLE)) {
+                roles.add(gdl);
+            } else {
+                rules.add(gdl);
+            }
+        }
+        Collections.reverse(rules);
+        List<Gdl> reordered = new ArrayList<Gdl>(rules);
+        reordered.addAll(roles);
+        assertEquals(PropNetCache.getKey(description), PropNetCache.getKey(reordered));
+
+        Collections.reverse(roles);
+        List<Gdl> swapped = new ArrayList<Gdl>(rules);
+        swapped.addAll(roles);
+        assertFalse(PropNetCache.getKey(description).equals(PropNetCache.getKey(swapped)));
+    }
+
+    @Test
+    public void testCacheWithoutDirectoryOnlyBuilds() throws Exception {
+        assertNull(PropNetCache.getDefault().getDirectory());
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        PropNetCache cache = new PropNetCache(null);
+        PropNet first = cache.create(description);
+        PropNet second = cache.create(description);
+        assertNotSame(first, second);
+        assertEquals(first.getSize(), second.getSize());
+    }
+
+    @Test
+    public void testRebuildsCorruptFiles() throws Exception {
+        PropNetCache cache = new PropNetCache(folder.getRoot());
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        File file = new File(folder.getRoot(), PropNetCache.getKey(description) + ".propnet");
+        Files.write(file.toPath(), new byte[] { 1, 2, 3 });
+
+        PropNet propNet = cache.create(description);
+        assertEquals(propNet.getSize(), PropNetCache.read(file).getSize());
+    }
+}
@@ -0,0 +1,79 @@
+package org.ggp.base.util.propnet.factory;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.architecture.Component;
+import org.ggp.base.util.propnet.architecture.PropNet;
+import org.ggp.base.util.propnet.architecture.components.And;
+import org.ggp.base.util.propnet.architecture.components.Not;
+import org.ggp.base.util.propnet.architecture.components.Or;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PropNetOptimizerTest extends Assert {
+
+    private static final List<String> GAMES = Arrays.asList(
+            "ticTacToe", "connectFour", "simpleMutex", "test_case_2a", "test_case_2b", "test_case_2c",
+            "test_case_3c", "test_case_3d", "test_distinct_beginning_rule");
+
+    @Test
+    public void testOptimizedPropNetsAreConsistentWithProver() throws Exception {
+        for (String game : GAMES) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            PropNet propNet = OptimizingPropNetFactory.create(description, false);
+            int size = propNet.getSize();
+            int links = propNet.getNumLinks();
+            PropNetOptimizer.optimize(propNet);
+            assertTrue(game, propNet.getSize() <= size);
+            assertTrue(game, propNet.getNumLinks() <= links);
+
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(description);
+            StateMachine subject = new CompiledPropNetStateMachine(new CompiledPropNet(propNet));
+            assertTrue(game, StateMachineVerifier.checkMachineConsistency(reference, subject, 200));
+        }
+    }
+
+    @Test
+    public void testOptimizesNetsWithoutTerminal() throws Exception {
+        List<Gdl> description = Game.createEphemeralGame("( ( role robot ) ( init ( on ) ) ( legal robot flip ) "
+                + "( <= ( next ( on ) ) ( not ( true ( on ) ) ) ) ( goal robot 100 ) )").getRules();
+        PropNet propNet = OptimizingPropNetFactory.create(description, false);
+        PropNetOptimizer.optimize(propNet);
+        assertNull(propNet.getTerminalProposition());
+        assertEquals(1, propNet.getBasePropositions().size());
+    }
+
+    @Test
+    public void testNoRedundantGatesRemain() throws Exception {
+        for (String game : GAMES) {
+            PropNet propNet = OptimizingPropNetFactory.create(new TestGameRepository().getGame(game).getRules(), false);
+            PropNetOptimizer.optimize(propNet);
+            Set<List<Object>> gates = new HashSet<List<Object>>();
+            for (Component c : propNet.getComponents()) {
+                if (c instanceof And || c instanceof Or) {
+                    assertTrue(game, c.getInputs().size() > 1);
+                    for (Component input : c.getInputs()) {
+                        assertFalse(game, input.getClass() == c.getClass() && input.getOutputs().size() == 1);
+                    }
+                } else if (c instanceof Not) {
+                    assertFalse(game, c.getSingleInput() instanceof Not);
+                } else {
+                    continue;
+                }
+                assertTrue(game, gates.add(Arrays.<Object>asList(c.getClass(), new HashSet<Component>(c.getInputs()))));
+            }
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package org.ggp.base.util.prover.aima;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.query.ProverQueryBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AimaProverTest extends Assert {
+
+    private static void assertSameAnswers(AimaProver expected, AimaProver actual, GdlSentence query, Set<GdlSentence> context) {
+        assertEquals(query.toString(), expected.askAll(query, context), actual.askAll(query, context));
+    }
+
+    // Plays random matches, and checks that the prover gives the same answers
+    // with and without its tables of constant relations
+    private static AimaProver assertSameWithTables(String game) throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame(game).getRules();
+        AimaProver withoutTables = new AimaProver(rules, null);
+        AimaProver withTables = new AimaProver(rules);
+        ProverStateMachine machine = new ProverStateMachine();
+        machine.initialize(rules);
+        Random random = new Random(0);
+
+        assertSameAnswers(withoutTables, withTables, ProverQueryBuilder.getInitQuery(), new HashSet<GdlSentence>());
+        for (int match = 0; match < 3; match++) {
+            MachineState state = machine.getInitialState();
+            while (true) {
+                Set<GdlSentence> context = ProverQueryBuilder.getContext(state);
+                assertSameAnswers(withoutTables, withTables, ProverQueryBuilder.getTerminalQuery(), context);
+                for (Role role : machine.getRoles()) {
+                    assertSameAnswers(withoutTables, withTables, ProverQueryBuilder.getLegalQuery(role), context);
+                    assertSameAnswers(withoutTables, withTables, ProverQueryBuilder.getGoalQuery(role), context);
+                }
+                if (machine.isTerminal(state)) {
+                    break;
+                }
+                List<List<Move>> jointMoves = machine.getLegalJointMoves(state);
+                List<Move> jointMove = jointMoves.get(random.nextInt(jointMoves.size()));
+                assertSameAnswers(withoutTables, withTables, ProverQueryBuilder.getNextQuery(),
+                        ProverQueryBuilder.getContext(state, machine.getRoles(), jointMove));
+                state = machine.getNextState(state, jointMove);
+            }
+        }
+        assertEquals(0, withoutTables.getNumStaticTableHits());
+        return withTables;
+    }
+
+    @Test
+    public void testConstantRelationsAreTabled() throws Exception {
+        AimaProver prover = assertSameWithTables("connectFour");
+        assertTrue(prover.getNumStaticTableHits() > 0);
+        assertTrue(prover.getNumStaticTableHits() <= prover.getNumSentenceQueries());
+    }
+
+    @Test
+    public void testRecursiveConstantRelations() throws Exception {
+        AimaProver prover = assertSameWithTables("test_case_2c");
+        assertTrue(prover.getNumStaticTableHits() > 0);
+    }
+
+    @Test
+    public void testInvalidDescriptionsAreNotTabled() throws Exception {
+        // The goal rules of this game are unsafe
+        AimaProver prover = assertSameWithTables("test_case_3f");
+        assertEquals(0, prover.getNumStaticTableHits());
+    }
+
+    @Test
+    public void testInfiniteDomainsAreNotTabled() throws Exception {
+        AimaProver prover = assertSameWithTables("test_case_5a");
+        assertEquals(0, prover.getNumStaticTableHits());
+    }
+}
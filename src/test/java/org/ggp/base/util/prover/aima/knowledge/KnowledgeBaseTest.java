@@ -0,0 +1,101 @@
+package org.ggp.base.util.prover.aima.knowledge;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.gdl.grammar.GdlRule;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.prover.aima.renamer.VariableRenamer;
+import org.ggp.base.util.prover.aima.unifier.Unifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KnowledgeBaseTest extends Assert {
+
+    private static GdlSentence sentence(String string) throws Exception {
+        return (GdlSentence) GdlFactory.create(string);
+    }
+
+    private static Set<GdlSentence> facts(String... strings) throws Exception {
+        Set<GdlSentence> facts = new HashSet<GdlSentence>();
+        for (String string : strings) {
+            facts.add(sentence(string));
+        }
+        return facts;
+    }
+
+    private static Set<GdlSentence> heads(List<GdlRule> rules) {
+        Set<GdlSentence> heads = new HashSet<GdlSentence>();
+        for (GdlRule rule : rules) {
+            heads.add(rule.getHead());
+        }
+        return heads;
+    }
+
+    @Test
+    public void testFetchesFactsByLeadingArguments() throws Exception {
+        KnowledgeBase kb = new KnowledgeBase(facts(
+                "( true ( cell 1 1 x ) )", "( true ( cell 1 2 o ) )", "( true ( cell 2 1 b ) )",
+                "( true ( control xplayer ) )", "( succ 1 2 )", "( succ 2 3 )"));
+        assertEquals(facts("( true ( cell 1 2 o ) )"), heads(kb.fetch(sentence("( true ( cell 1 2 ?p ) )"))));
+        assertEquals(facts("( true ( cell 1 1 x ) )", "( true ( cell 1 2 o ) )"),
+                heads(kb.fetch(sentence("( true ( cell 1 ?y ?p ) )"))));
+        assertEquals(3, kb.fetch(sentence("( true ( cell ?x ?y ?p ) )")).size());
+        assertEquals(4, kb.fetch(sentence("( true ?x )")).size());
+        assertEquals(facts("( true ( control xplayer ) )"), heads(kb.fetch(sentence("( true ( control ?r ) )"))));
+        assertEquals(facts("( succ 2 3 )"), heads(kb.fetch(sentence("( succ 2 ?y )"))));
+        assertTrue(kb.fetch(sentence("( succ 3 ?y )")).isEmpty());
+        assertTrue(kb.fetch(sentence("( true ( cell 3 3 ?p ) )")).isEmpty());
+        assertTrue(kb.fetch(sentence("( succ 1 2 3 )")).isEmpty());
+        assertTrue(kb.fetch(GdlPool.getProposition(GdlPool.getConstant("terminal"))).isEmpty());
+    }
+
+    @Test
+    public void testVariablesInHeadsMatchEverything() throws Exception {
+        KnowledgeBase kb = new KnowledgeBase(facts(
+                "( line ?p 1 )", "( line x 2 )", "( line o ?n )", "( line x ?n )"));
+        assertEquals(facts("( line ?p 1 )", "( line x 2 )", "( line x ?n )"), heads(kb.fetch(sentence("( line x ?n )"))));
+        assertEquals(facts("( line ?p 1 )", "( line o ?n )"), heads(kb.fetch(sentence("( line o 1 )"))));
+        assertEquals(facts("( line ?p 1 )"), heads(kb.fetch(sentence("( line b 1 )"))));
+    }
+
+    @Test
+    public void testKeepsDescriptionOrder() throws Exception {
+        Set<Gdl> description = new LinkedHashSet<Gdl>();
+        for (String fact : new String[] {"( line ?p 1 )", "( line x 1 )", "( line ?p ?n )", "( line x ?n )", "( line o 1 )"}) {
+            description.add(sentence(fact));
+        }
+        KnowledgeBase kb = new KnowledgeBase(description);
+        List<String> fetched = new ArrayList<String>();
+        for (GdlRule rule : kb.fetch(sentence("( line x 1 )"))) {
+            fetched.add(rule.getHead().toString());
+        }
+        assertEquals(Arrays.asList("( line ?p 1 )", "( line x 1 )", "( line ?p ?n )", "( line x ?n )"), fetched);
+    }
+
+    @Test
+    public void testFetchesEveryRuleThatUnifies() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        KnowledgeBase kb = new KnowledgeBase(new HashSet<Gdl>(description));
+        Set<GdlSentence> queries = facts(
+                "( row 1 x )", "( row ?m ?x )", "( line o )", "( open )", "( legal xplayer ( mark 1 ?n ) )",
+                "( next ( cell 2 2 x ) )", "( next ( control ?r ) )", "( goal ?r 100 )", "( terminal )");
+        for (GdlSentence query : queries) {
+            List<GdlRule> fetched = kb.fetch(query);
+            for (Gdl gdl : description) {
+                GdlSentence head = (gdl instanceof GdlRule) ? ((GdlRule) gdl).getHead() : (gdl instanceof GdlSentence) ? (GdlSentence) gdl : null;
+                if (head != null && Unifier.unify(new VariableRenamer().rename(head), query) != null) {
+                    assertTrue(query + " should fetch " + gdl, heads(fetched).contains(head));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package org.ggp.base.util.prover.trail;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.factory.GdlFactory;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlSentence;
+import org.ggp.base.util.prover.Prover;
+import org.ggp.base.util.prover.aima.AimaProver;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.query.ProverQueryBuilder;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TrailProverTest extends Assert {
+
+    private static GdlSentence sentence(String string) throws Exception {
+        return (GdlSentence) GdlFactory.create(string);
+    }
+
+    private static void assertSameAnswers(Prover expected, Prover actual, GdlSentence query, Set<GdlSentence> context) {
+        assertEquals(query.toString(), expected.askAll(query, context), actual.askAll(query, context));
+        assertEquals(query.toString(), expected.prove(query, context), actual.prove(query, context));
+    }
+
+    // Checks that both provers answer a batch of queries as they answer each one
+    private static void assertSameBatchAnswers(Prover aima, Prover trail, List<GdlSentence> queries, Set<GdlSentence> context) {
+        List<Set<GdlSentence>> expected = new ArrayList<Set<GdlSentence>>();
+        for (GdlSentence query : queries) {
+            expected.add(aima.askAll(query, context));
+        }
+        assertEquals(expected, aima.askAll(queries, context));
+        assertEquals(expected, trail.askAll(queries, context));
+    }
+
+    // Plays random matches, and checks that the provers agree on every query
+    // the state machine makes along the way
+    private static void assertSameAsAimaProver(String game) throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame(game).getRules();
+        Prover aima = new AimaProver(rules);
+        Prover trail = new TrailProver(rules);
+        ProverStateMachine machine = new ProverStateMachine();
+        machine.initialize(rules);
+        Random random = new Random(0);
+
+        assertSameAnswers(aima, trail, ProverQueryBuilder.getInitQuery(), new HashSet<GdlSentence>());
+        for (int match = 0; match < 5; match++) {
+            MachineState state = machine.getInitialState();
+            while (true) {
+                Set<GdlSentence> context = ProverQueryBuilder.getContext(state);
+                List<GdlSentence> batch = new ArrayList<GdlSentence>();
+                batch.add(ProverQueryBuilder.getTerminalQuery());
+                assertSameAnswers(aima, trail, ProverQueryBuilder.getTerminalQuery(), context);
+                for (Role role : machine.getRoles()) {
+                    assertSameAnswers(aima, trail, ProverQueryBuilder.getLegalQuery(role), context);
+                    assertSameAnswers(aima, trail, ProverQueryBuilder.getGoalQuery(role), context);
+                    batch.add(ProverQueryBuilder.getLegalQuery(role));
+                    batch.add(ProverQueryBuilder.getGoalQuery(role));
+                }
+                assertSameBatchAnswers(aima, trail, batch, context);
+                if (machine.isTerminal(state)) {
+                    break;
+                }
+                List<List<Move>> jointMoves = machine.getLegalJointMoves(state);
+                List<Move> jointMove = jointMoves.get(random.nextInt(jointMoves.size()));
+                assertSameAnswers(aima, trail, ProverQueryBuilder.getNextQuery(),
+                        ProverQueryBuilder.getContext(state, machine.getRoles(), jointMove));
+                state = machine.getNextState(state, jointMove);
+            }
+        }
+    }
+
+    @Test
+    public void testTicTacToe() throws Exception {
+        assertSameAsAimaProver("ticTacToe");
+    }
+
+    @Test
+    public void testConnectFour() throws Exception {
+        assertSameAsAimaProver("connectFour");
+    }
+
+    @Test
+    public void testRecursiveRules() throws Exception {
+        assertSameAsAimaProver("test_case_2c");
+    }
+
+    @Test
+    public void testPropositionsAreNotRelations() throws Exception {
+        assertSameAsAimaProver("test_case_3a");
+    }
+
+    @Test
+    public void testNegatedDistinct() throws Exception {
+        assertSameAsAimaProver("test_clean_not_distinct");
+    }
+
+    @Test
+    public void testContextIsForgottenBetweenQueries() throws Exception {
+        List<Gdl> rules = new TestGameRepository().getGame("ticTacToe").getRules();
+        Prover trail = new TrailProver(rules);
+        GdlSentence query = sentence("( true ( cell ?m ?n x ) )");
+        Set<GdlSentence> context = Collections.singleton(sentence("( true ( cell 1 1 x ) )"));
+        assertEquals(context, trail.askAll(query, context));
+        assertTrue(trail.askAll(query, Collections.<GdlSentence>emptySet()).isEmpty());
+        assertFalse(trail.prove(query, Collections.<GdlSentence>emptySet()));
+        assertNull(trail.askOne(query, Collections.<GdlSentence>emptySet()));
+    }
+}
@@ -0,0 +1,64 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HotSwapStateMachineTest extends Assert {
+
+    @Test
+    public void testStatesFromBeforeTheSwapKeepWorking() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("connectFour").getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(description);
+        HotSwapStateMachine subject = new HotSwapStateMachine(new CompiledPropNetStateMachine(), 100);
+        subject.initialize(description);
+
+        // Walk through the game while the propnet may still be building
+        List<MachineState> path = new ArrayList<MachineState>();
+        MachineState state = subject.getInitialState();
+        while (path.size() < 10 && !subject.isTerminal(state)) {
+            path.add(state);
+            state = subject.getNextState(state, subject.getRandomJointMove(state));
+        }
+
+        assertTrue(subject.awaitSwap(60000));
+        assertTrue(subject.getBackingMachine() instanceof CompiledPropNetStateMachine);
+        for (MachineState oldState : path) {
+            MachineState proverState = reference.getMachineStateFromSentenceList(oldState.getContents());
+            for (Role role : reference.getRoles()) {
+                assertEquals(reference.getLegalMoves(proverState, role).size(),
+                        subject.getLegalMoves(oldState, role).size());
+            }
+            List<Move> jointMove = reference.getRandomJointMove(proverState);
+            MachineState next = subject.getNextState(oldState, jointMove);
+            assertEquals(reference.getNextState(proverState, jointMove), next);
+        }
+        assertTrue(StateMachineVerifier.checkMachineConsistency(reference, subject, 200));
+    }
+
+    @Test
+    public void testKeepsTheProverWhenTheFastMachineFails() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(description);
+        HotSwapStateMachine subject = new HotSwapStateMachine(new CompiledPropNetStateMachine() {
+            @Override
+            public void initialize(List<Gdl> description) {
+                throw new IllegalStateException("Cannot build this propnet");
+            }
+        });
+        subject.initialize(description);
+
+        assertFalse(subject.awaitSwap(60000));
+        assertTrue(subject.getBackingMachine() instanceof ProverStateMachine);
+        assertTrue(StateMachineVerifier.checkMachineConsistency(reference, subject, 100));
+    }
+}
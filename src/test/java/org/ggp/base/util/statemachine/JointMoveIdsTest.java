@@ -0,0 +1,70 @@
+package org.ggp.base.util.statemachine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class JointMoveIdsTest extends Assert {
+
+    private static JointMoveIds create(int[]... legalIds) {
+        JointMoveIds legal = new JointMoveIds(legalIds.length);
+        for (int r = 0; r < legalIds.length; r++) {
+            for (int id : legalIds[r]) {
+                legal.add(r, id);
+            }
+        }
+        return legal;
+    }
+
+    private static List<List<Integer>> jointMoves(JointMoveIds legal) {
+        List<List<Integer>> jointMoves = new ArrayList<List<Integer>>();
+        while (legal.next()) {
+            List<Integer> jointMove = new ArrayList<Integer>();
+            for (int id : legal.getJointMove()) {
+                jointMove.add(id);
+            }
+            jointMoves.add(jointMove);
+        }
+        return jointMoves;
+    }
+
+    @Test
+    public void testIteratesLastRoleFastest() {
+        JointMoveIds legal = create(new int[] {3, 5}, new int[] {0}, new int[] {1, 2, 4});
+        assertEquals(6, legal.getNumJointMoves());
+        legal.reset();
+        assertEquals(Arrays.asList(
+                Arrays.asList(3, 0, 1), Arrays.asList(3, 0, 2), Arrays.asList(3, 0, 4),
+                Arrays.asList(5, 0, 1), Arrays.asList(5, 0, 2), Arrays.asList(5, 0, 4)), jointMoves(legal));
+        assertFalse(legal.next());
+    }
+
+    @Test
+    public void testFixedMove() {
+        JointMoveIds legal = create(new int[] {3, 5}, new int[] {0, 1});
+        legal.reset(0, 5);
+        assertEquals(Arrays.asList(Arrays.asList(5, 0), Arrays.asList(5, 1)), jointMoves(legal));
+        legal.reset(1, 0);
+        assertEquals(Arrays.asList(Arrays.asList(3, 0), Arrays.asList(5, 0)), jointMoves(legal));
+        // Resetting without a move goes back to every joint move
+        legal.reset();
+        assertEquals(4, jointMoves(legal).size());
+    }
+
+    @Test
+    public void testReuse() {
+        JointMoveIds legal = create(new int[] {0, 1, 2}, new int[] {0});
+        legal.clear(0);
+        for (int id = 0; id < 20; id++) {
+            legal.add(0, id);
+        }
+        assertEquals(20, legal.getNumMoves(0));
+        assertEquals(19, legal.getMoveId(0, 19));
+        legal.clear(1);
+        legal.reset();
+        assertFalse(legal.next());
+    }
+}
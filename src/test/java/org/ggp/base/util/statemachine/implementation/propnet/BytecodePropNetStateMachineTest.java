@@ -0,0 +1,176 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.List;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.propnet.compiler.PropNetCompiler;
+import org.ggp.base.util.propnet.compiler.PropNetEvaluator;
+import org.ggp.base.util.statemachine.JointMoveIds;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BytecodePropNetStateMachineTest extends Assert {
+
+    @Test
+    public void testConsistencyWithProver() throws Exception {
+        for (String game : CompiledPropNetStateMachineTest.PROPNET_GAMES) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(description);
+            BytecodePropNetStateMachine subject = new BytecodePropNetStateMachine();
+            subject.initialize(description);
+            assertTrue(game, subject.isCompiled());
+            assertTrue(game, StateMachineVerifier.checkMachineConsistency(reference, subject, 300));
+            CompiledPropNetStateMachineTest.assertSameLegalMoves(game, reference, subject, 20);
+        }
+    }
+
+    @Test
+    public void testSameStatesAsInterpreter() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("connectFour").getRules();
+        CompiledPropNetStateMachine interpreted = new CompiledPropNetStateMachine();
+        interpreted.initialize(description);
+        BytecodePropNetStateMachine compiled = new BytecodePropNetStateMachine(interpreted.getCompiledPropNet());
+        assertTrue(compiled.isCompiled());
+        for (int i = 0; i < 10; i++) {
+            MachineState state = interpreted.getInitialState();
+            while (!interpreted.isTerminal(state)) {
+                assertFalse(compiled.isTerminal(state));
+                List<Move> jointMove = interpreted.getRandomJointMove(state);
+                MachineState next = compiled.getNextState(state, jointMove);
+                assertEquals(interpreted.getNextState(state, jointMove), next);
+                PropNetMachineState propNetState = (PropNetMachineState) next;
+                assertEquals(PropNetMachineState.computeZobristHash(propNetState.getZobristKeys(), propNetState.getBits()),
+                        propNetState.getZobristHash());
+                state = next;
+            }
+            assertTrue(compiled.isTerminal(state));
+            assertEquals(interpreted.getGoals(state), compiled.getGoals(state));
+        }
+    }
+
+    @Test
+    public void testDepthChargesRunOnGeneratedCode() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("connectFour").getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(description);
+        CompiledPropNetStateMachine interpreted = new CompiledPropNetStateMachine();
+        interpreted.initialize(description);
+        CountingEvaluator evaluator = new CountingEvaluator(
+                PropNetCompiler.compile(interpreted.getCompiledPropNet(), PropNetCompiler.MAX_CODE_LENGTH));
+        BytecodePropNetStateMachine subject = new BytecodePropNetStateMachine(interpreted.getCompiledPropNet(), evaluator);
+
+        int[] depth = new int[1];
+        int[] goals = new int[2];
+        for (int i = 0; i < 10; i++) {
+            evaluator.numCalls = 0;
+            MachineState terminal = subject.performDepthCharge(subject.getInitialState(), depth, goals);
+            assertTrue(evaluator.numCalls > depth[0]);
+            assertTrue(reference.isTerminal(terminal));
+            assertEquals(reference.getGoals(terminal).get(0).intValue(), goals[0]);
+            assertEquals(reference.getGoals(terminal).get(1).intValue(), goals[1]);
+        }
+
+        evaluator.numCalls = 0;
+        double[] avgScores = new double[2];
+        double[] avgDepth = new double[1];
+        subject.getAverageDiscountedScoresFromRepeatedDepthCharges(subject.getInitialState(), avgScores, avgDepth, 1.0, 10);
+        assertTrue(evaluator.numCalls > 10 * avgDepth[0]);
+        assertEquals(100.0, avgScores[0] + avgScores[1], 1e-9);
+
+        // Moves by id agree with the interpreter
+        JointMoveIds expected = new JointMoveIds(2);
+        JointMoveIds actual = new JointMoveIds(2);
+        MachineState state = subject.getInitialState();
+        while (!interpreted.isTerminal(state)) {
+            interpreted.getLegalMoveIds(state, expected);
+            evaluator.numCalls = 0;
+            subject.getLegalMoveIds(state, actual);
+            assertEquals(1, evaluator.numCalls);
+            int[] jointMove = new int[2];
+            for (int r = 0; r < 2; r++) {
+                assertEquals(expected.getNumMoves(r), actual.getNumMoves(r));
+                for (int k = 0; k < expected.getNumMoves(r); k++) {
+                    assertEquals(expected.getMoveId(r, k), actual.getMoveId(r, k));
+                }
+                jointMove[r] = actual.getMoveId(r, actual.getNumMoves(r) - 1);
+            }
+            MachineState next = subject.getNextState(state, jointMove);
+            assertEquals(interpreted.getNextState(state, jointMove), next);
+            state = next;
+        }
+    }
+
+    // Counts the calls to a generated evaluator
+    private static final class CountingEvaluator extends PropNetEvaluator {
+        private final PropNetEvaluator evaluator;
+        private int numCalls = 0;
+
+        private CountingEvaluator(PropNetEvaluator evaluator) {
+            super(0);
+            this.evaluator = evaluator;
+        }
+
+        @Override
+        public void computeNextState(long[] state, long[] inputs, long[] next) {
+            numCalls++;
+            evaluator.computeNextState(state, inputs, next);
+        }
+
+        @Override
+        public void computeLegals(long[] state, long[] legals) {
+            numCalls++;
+            evaluator.computeLegals(state, legals);
+        }
+
+        @Override
+        public void computeGoals(long[] state, long[] goals) {
+            numCalls++;
+            evaluator.computeGoals(state, goals);
+        }
+
+        @Override
+        public void computeTerminal(long[] state, long[] terminal) {
+            numCalls++;
+            evaluator.computeTerminal(state, terminal);
+        }
+    }
+
+    @Test
+    public void testCompilesDeepNets() throws Exception {
+        // The goal depends on a chain of rules hundreds of gates deep
+        StringBuilder rules = new StringBuilder("( ( role robot ) ( init ( a ) ) ( legal robot flip ) "
+                + "( <= ( next ( a ) ) ( not ( true ( a ) ) ) ) ( <= ( next ( b ) ) ( true ( a ) ) ) "
+                + "( <= ( next ( done ) ) ( true ( b ) ) ) ( <= terminal ( true ( done ) ) ) "
+                + "( <= ( q 0 ) ( true ( a ) ) ) ");
+        for (int i = 1; i <= 300; i++) {
+            rules.append("( <= ( q " + i + " ) ( not ( q " + (i - 1) + " ) ) ( true ( " + (i % 2 == 0 ? "a" : "b") + " ) ) ) ");
+        }
+        rules.append("( <= ( goal robot 100 ) ( q 300 ) ) ( <= ( goal robot 0 ) ( not ( q 300 ) ) ) )");
+        List<Gdl> description = Game.createEphemeralGame(rules.toString()).getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(description);
+        BytecodePropNetStateMachine subject = new BytecodePropNetStateMachine();
+        subject.initialize(description);
+        assertTrue(subject.isCompiled());
+        assertTrue(StateMachineVerifier.checkMachineConsistency(reference, subject, 100));
+    }
+
+    @Test
+    public void testFallsBackWhenMethodsAreTooLong() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(description);
+        BytecodePropNetStateMachine subject = new BytecodePropNetStateMachine(1);
+        subject.initialize(description);
+        assertFalse(subject.isCompiled());
+        assertTrue(StateMachineVerifier.checkMachineConsistency(reference, subject, 100));
+    }
+}
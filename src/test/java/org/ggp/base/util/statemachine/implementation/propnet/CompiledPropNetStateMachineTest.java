@@ -0,0 +1,308 @@
+package org.ggp.base.util.statemachine.implementation.propnet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.gdl.grammar.GdlPool;
+import org.ggp.base.util.propnet.architecture.CompiledPropNet;
+import org.ggp.base.util.propnet.factory.OptimizingPropNetFactory;
+import org.ggp.base.util.statemachine.FailsafeStateMachine;
+import org.ggp.base.util.statemachine.JointMoveIds;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.cache.CachedStateMachine;
+import org.ggp.base.util.statemachine.exceptions.GoalDefinitionException;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+
+public class CompiledPropNetStateMachineTest extends Assert {
+
+    protected final CompiledPropNetStateMachine sm = new CompiledPropNetStateMachine();
+
+    // Test games that OptimizingPropNetFactory is able to build.
+    protected static final List<String> PROPNET_GAMES = Arrays.asList(
+            "ticTacToe", "connectFour", "simpleMutex", "test_case_2a", "test_case_2b", "test_case_2c",
+            "test_case_3c", "test_case_3d", "test_distinct_beginning_rule");
+
+    @Test
+    public void testCompiledPropNetOnTicTacToe() throws Exception {
+        List<Gdl> ticTacToeDesc = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(ticTacToeDesc);
+        MachineState state = sm.getInitialState();
+        assertFalse(sm.isTerminal(state));
+        Role xRole = new Role(GdlPool.getConstant("xplayer"));
+        Role oRole = new Role(GdlPool.getConstant("oplayer"));
+        assertEquals(Arrays.asList(xRole, oRole), sm.getRoles());
+
+        assertEquals(9, sm.getLegalJointMoves(state).size());
+        assertEquals(9, sm.getLegalMoves(state, xRole).size());
+        assertEquals(1, sm.getLegalMoves(state, oRole).size());
+        Move noop = Move.create("noop");
+        assertEquals(noop, sm.getLegalMoves(state, oRole).get(0));
+
+        state = sm.getNextState(state, Arrays.asList(Move.create("( mark 1 1 )"), noop));
+        state = sm.getNextState(state, Arrays.asList(noop, Move.create("( mark 1 3 )")));
+        state = sm.getNextState(state, Arrays.asList(Move.create("( mark 3 1 )"), noop));
+        state = sm.getNextState(state, Arrays.asList(noop, Move.create("( mark 2 2 )")));
+        assertFalse(sm.isTerminal(state));
+        state = sm.getNextState(state, Arrays.asList(Move.create("( mark 2 1 )"), noop));
+        assertTrue(sm.isTerminal(state));
+        assertEquals(Arrays.asList(100, 0), sm.getGoals(state));
+    }
+
+    @Test
+    public void testGameWithoutTerminal() throws Exception {
+        List<Gdl> description = Game.createEphemeralGame("( ( role robot ) ( init ( on ) ) ( legal robot flip ) "
+                + "( <= ( next ( on ) ) ( not ( true ( on ) ) ) ) ( goal robot 100 ) )").getRules();
+        CompiledPropNet net = new CompiledPropNet(OptimizingPropNetFactory.create(description));
+        assertEquals(-1, net.getTerminal());
+        StateMachine sm = new CompiledPropNetStateMachine(net);
+        MachineState state = sm.getInitialState();
+        for (int i = 0; i < 3; i++) {
+            assertFalse(sm.isTerminal(state));
+            state = sm.getNextState(state, Arrays.asList(Move.create("flip")));
+        }
+        assertEquals(Arrays.asList(100), sm.getGoals(state));
+    }
+
+    @Test
+    public void testBitsetStates() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        sm.initialize(description);
+        StateMachine prover = new ProverStateMachine();
+        prover.initialize(description);
+
+        MachineState state = sm.getInitialState();
+        MachineState proverState = prover.getInitialState();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(state instanceof PropNetMachineState);
+            assertEquals(proverState.getContents(), state.getContents());
+            assertEquals(state, proverState);
+            assertEquals(proverState, state);
+            assertEquals(proverState.hashCode(), state.hashCode());
+            MachineState rebuilt = sm.getMachineStateFromSentenceList(proverState.getContents());
+            assertEquals(state, rebuilt);
+            assertEquals(state.hashCode(), rebuilt.hashCode());
+            assertEquals(state, state.clone());
+
+            List<Move> jointMove = prover.getRandomJointMove(proverState);
+            state = sm.getNextState(state, jointMove);
+            proverState = prover.getNextState(proverState, jointMove);
+        }
+        assertFalse(state.equals(sm.getInitialState()));
+    }
+
+    @Test
+    public void testZobristHash() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("connectFour").getRules();
+        sm.initialize(description);
+        for (int i = 0; i < 10; i++) {
+            MachineState state = sm.getInitialState();
+            while (true) {
+                PropNetMachineState propNetState = (PropNetMachineState) state;
+                long expected = PropNetMachineState.computeZobristHash(propNetState.getZobristKeys(), propNetState.getBits());
+                assertEquals(expected, propNetState.getZobristHash());
+                MachineState rebuilt = sm.getMachineStateFromSentenceList(state.getContents());
+                assertEquals(propNetState.getZobristHash(), ((PropNetMachineState) rebuilt).getZobristHash());
+                assertEquals(state.hashCode(), rebuilt.hashCode());
+                if (sm.isTerminal(state)) {
+                    break;
+                }
+                state = sm.getNextState(state, sm.getRandomJointMove(state));
+            }
+        }
+    }
+
+    @Test
+    public void testConsistencyWithProver() throws Exception {
+        for (String game : PROPNET_GAMES) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(description);
+            CompiledPropNetStateMachine subject = new CompiledPropNetStateMachine();
+            subject.initialize(description);
+            assertTrue(game, StateMachineVerifier.checkMachineConsistency(reference, subject, 300));
+            assertSameLegalMoves(game, reference, subject, 20);
+        }
+    }
+
+    @Test
+    public void testDifferentialPropagation() throws Exception {
+        for (String game : PROPNET_GAMES) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(description);
+            CompiledPropNetStateMachine subject = new CompiledPropNetStateMachine(CompiledPropNetStateMachine.PropagationMode.DIFFERENTIAL);
+            subject.initialize(description);
+            assertTrue(game, StateMachineVerifier.checkMachineConsistency(reference, subject, 300));
+            assertSameLegalMoves(game, reference, subject, 20);
+        }
+    }
+
+    @Test
+    public void testDifferentialPropagationTouchesFewerComponents() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("connectFour").getRules();
+        CompiledPropNetStateMachine full = new CompiledPropNetStateMachine();
+        full.initialize(description);
+        CompiledPropNetStateMachine differential = new CompiledPropNetStateMachine(
+                full.getCompiledPropNet(), CompiledPropNetStateMachine.PropagationMode.DIFFERENTIAL);
+        MachineState state = full.getInitialState();
+        while (!full.isTerminal(state)) {
+            assertFalse(differential.isTerminal(state));
+            List<Move> jointMove = full.getRandomJointMove(state);
+            MachineState next = full.getNextState(state, jointMove);
+            assertEquals(next, differential.getNextState(state, jointMove));
+            state = next;
+        }
+        assertEquals(full.getGoals(state), differential.getGoals(state));
+        assertTrue(differential.getNumTouchedComponents() < full.getNumTouchedComponents());
+    }
+
+    @Test
+    public void testFusedDepthCharges() throws Exception {
+        for (String game : PROPNET_GAMES) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            StateMachine reference = new ProverStateMachine();
+            reference.initialize(description);
+            CompiledPropNetStateMachine subject = new CompiledPropNetStateMachine();
+            subject.initialize(description);
+            int[] depth = new int[1];
+            int[] goals = new int[subject.getRoles().size()];
+            for (int i = 0; i < 20; i++) {
+                MachineState terminal = subject.performDepthCharge(subject.getInitialState(), depth, goals);
+                MachineState expected = reference.getMachineStateFromSentenceList(terminal.getContents());
+                assertTrue(game, reference.isTerminal(expected));
+                for (int r = 0; r < goals.length; r++) {
+                    assertEquals(game, reference.getGoal(expected, reference.getRoles().get(r)), goals[r]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFusedDepthChargeFollowsTheGame() throws Exception {
+        // In ticTacToe, a depth charge fills a cell per ply
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        int[] depth = new int[1];
+        for (int i = 0; i < 20; i++) {
+            MachineState terminal = sm.performDepthCharge(sm.getInitialState(), depth);
+            assertTrue(sm.isTerminal(terminal));
+            int marks = 0;
+            for (Object sentence : terminal.getContents()) {
+                if (sentence.toString().startsWith("( true ( cell") && !sentence.toString().endsWith("b ) )")) {
+                    marks++;
+                }
+            }
+            assertEquals(depth[0], marks);
+        }
+    }
+
+    @Test
+    public void testFusedDepthChargeWithoutGoal() throws Exception {
+        // The game ends after a flip, in a state where the robot has no goal
+        sm.initialize(Game.createEphemeralGame("( ( role robot ) ( init ( on ) ) ( legal robot flip ) "
+                + "( <= ( next done ) ( does robot flip ) ) ( <= terminal ( true done ) ) "
+                + "( <= ( goal robot 100 ) ( true ( on ) ) ) )").getRules());
+        int[] depth = new int[1];
+        assertTrue(sm.isTerminal(sm.performDepthCharge(sm.getInitialState(), depth)));
+        assertEquals(1, depth[0]);
+        try {
+            sm.performDepthCharge(sm.getInitialState(), depth, new int[1]);
+            fail("A terminal state without a goal must not get a goal of -1");
+        } catch(GoalDefinitionException e) {
+            //Expected
+        }
+    }
+
+    @Test
+    public void testMoveIds() throws Exception {
+        for (String game : PROPNET_GAMES) {
+            List<Gdl> description = new TestGameRepository().getGame(game).getRules();
+            StateMachine prover = new ProverStateMachine();
+            prover.initialize(description);
+            CompiledPropNetStateMachine subject = new CompiledPropNetStateMachine();
+            subject.initialize(description);
+            // The prover goes through the default implementations
+            assertSameJointMovesById(game, subject);
+            assertSameJointMovesById(game, prover);
+        }
+    }
+
+    @Test
+    public void testWrappersForwardMoveIds() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        CompiledPropNetStateMachine subject = new CompiledPropNetStateMachine();
+        subject.initialize(description);
+        List<StateMachine> wrappers = Arrays.<StateMachine>asList(new CachedStateMachine(subject), new FailsafeStateMachine(subject));
+        for (StateMachine wrapper : wrappers) {
+            // Ids are the backing machine's, even before any move was named
+            assertEquals(subject.getMoveFromId(0, 0), wrapper.getMoveFromId(0, 0));
+            assertSameJointMovesById("ticTacToe", wrapper);
+        }
+    }
+
+    /**
+     * Walks the machine down random playouts, checking that the joint moves
+     * of move ids are the joint moves of the Move API, and lead to the same
+     * states.
+     */
+    private static void assertSameJointMovesById(String game, StateMachine machine) throws Exception {
+        int numRoles = machine.getRoles().size();
+        JointMoveIds legal = new JointMoveIds(numRoles);
+        for (int i = 0; i < 5; i++) {
+            MachineState state = machine.getInitialState();
+            while (!machine.isTerminal(state)) {
+                machine.getLegalMoveIds(state, legal);
+                Set<List<Move>> jointMoves = new HashSet<List<Move>>();
+                for (legal.reset(); legal.next(); ) {
+                    int[] ids = legal.getJointMove();
+                    List<Move> jointMove = new ArrayList<Move>();
+                    for (int r = 0; r < numRoles; r++) {
+                        jointMove.add(machine.getMoveFromId(r, ids[r]));
+                        assertEquals(game, ids[r], machine.getMoveId(r, jointMove.get(r)));
+                    }
+                    jointMoves.add(jointMove);
+                    assertEquals(game, machine.getNextState(state, jointMove), machine.getNextState(state, ids));
+                }
+                assertEquals(game, new HashSet<List<Move>>(machine.getLegalJointMoves(state)), jointMoves);
+                assertEquals(game, jointMoves.size(), legal.getNumJointMoves());
+                state = machine.getRandomNextState(state);
+            }
+        }
+    }
+
+    /**
+     * Walks both machines down the same random playouts, checking that they
+     * agree on the exact sets of legal moves, and not just on their sizes.
+     */
+    protected static void assertSameLegalMoves(String game, StateMachine reference, StateMachine subject, int playouts) throws Exception {
+        for (int i = 0; i < playouts; i++) {
+            MachineState referenceState = reference.getInitialState();
+            MachineState subjectState = subject.getInitialState();
+            while (!reference.isTerminal(referenceState)) {
+                assertFalse(game, subject.isTerminal(subjectState));
+                for (Role role : reference.getRoles()) {
+                    assertEquals(game, ImmutableSet.copyOf(reference.getLegalMoves(referenceState, role)),
+                            ImmutableSet.copyOf(subject.getLegalMoves(subjectState, role)));
+                }
+                List<Move> jointMove = reference.getRandomJointMove(referenceState);
+                referenceState = reference.getNextState(referenceState, jointMove);
+                subjectState = subject.getNextState(subjectState, jointMove);
+            }
+            assertTrue(game, subject.isTerminal(subjectState));
+            assertEquals(game, reference.getGoals(referenceState), subject.getGoals(subjectState));
+        }
+    }
+}
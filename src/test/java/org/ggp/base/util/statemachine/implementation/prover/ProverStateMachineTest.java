@@ -4,6 +4,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 import org.ggp.base.util.game.TestGameRepository;
 import org.ggp.base.util.gdl.grammar.Gdl;
@@ -206,6 +207,72 @@ public class ProverStateMachineTest extends Assert {
         assertEquals(Collections.singletonList(100), sm.getGoals(state));
     }
 
+    @Test
+    public void testBatchQueriesMatchPerRoleQueries() throws Exception {
+        for (String game : Arrays.asList("ticTacToe", "connectFour", "test_case_5e")) {
+            sm.initialize(new TestGameRepository().getGame(game).getRules());
+            Random random = new Random(7);
+            for (int i = 0; i < 5; i++) {
+                MachineState state = sm.getInitialState();
+                while (true) {
+                    List<Integer> goals = sm.getGoalsIfTerminal(state);
+                    assertEquals(game, sm.isTerminal(state), goals != null);
+                    if (goals != null) {
+                        List<Integer> expected = new ArrayList<Integer>();
+                        for (Role role : sm.getRoles()) {
+                            expected.add(sm.getGoal(state, role));
+                        }
+                        assertEquals(game, expected, goals);
+                        assertEquals(game, expected, sm.getGoals(state));
+                        break;
+                    }
+                    List<List<Move>> legals = sm.getAllLegalMoves(state);
+                    List<Role> roles = sm.getRoles();
+                    for (int r = 0; r < roles.size(); r++) {
+                        assertEquals(game, sm.getLegalMoves(state, roles.get(r)), legals.get(r));
+                    }
+                    List<Move> jointMove = new ArrayList<Move>();
+                    for (List<Move> moves : legals) {
+                        jointMove.add(moves.get(random.nextInt(moves.size())));
+                    }
+                    state = sm.getNextState(state, jointMove);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testJointMovesWithAFixedMove() throws Exception {
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        MachineState state = sm.getInitialState();
+        Role xplayer = sm.getRoles().get(0);
+        Role oplayer = sm.getRoles().get(1);
+
+        // The fixed move is not checked against the legal moves of its role
+        List<List<Move>> jointMoves = sm.getLegalJointMoves(state, oplayer, move("mark 1 1"));
+        assertEquals(9, jointMoves.size());
+        for (List<Move> jointMove : jointMoves) {
+            assertEquals(move("mark 1 1"), jointMove.get(1));
+        }
+        assertEquals(1, sm.getLegalJointMoves(state, xplayer, move("mark 2 2")).size());
+        // A role that is not in the game fixes nothing
+        Role nobody = new Role(GdlPool.getConstant("nobody"));
+        assertEquals(sm.getLegalJointMoves(state), sm.getLegalJointMoves(state, nobody, move("noop")));
+    }
+
+    @Test
+    public void testDepthChargeGoals() throws Exception {
+        sm.initialize(new TestGameRepository().getGame("connectFour").getRules());
+        int[] depth = new int[1];
+        int[] goals = new int[2];
+        for (int i = 0; i < 10; i++) {
+            MachineState terminal = sm.performDepthCharge(sm.getInitialState(), depth, goals);
+            assertTrue(sm.isTerminal(terminal));
+            assertTrue(depth[0] > 0);
+            assertEquals(sm.getGoals(terminal), Arrays.asList(goals[0], goals[1]));
+        }
+    }
+
     protected Move move(String description) {
         String[] parts = description.split(" ");
         GdlConstant head = GdlPool.getConstant(parts[0]);
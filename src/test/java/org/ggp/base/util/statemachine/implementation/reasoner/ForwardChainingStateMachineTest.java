@@ -0,0 +1,148 @@
+package org.ggp.base.util.statemachine.implementation.reasoner;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.ggp.base.util.game.Game;
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.gdl.grammar.Gdl;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.ggp.base.util.statemachine.verifier.StateMachineVerifier;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ForwardChainingStateMachineTest extends Assert {
+
+    private static final List<String> GAMES = Arrays.asList(
+            "ticTacToe", "connectFour", "simpleMutex", "test_case_1b", "test_case_2a", "test_case_2b",
+            "test_case_2c", "test_case_3c", "test_case_3d", "test_case_5b", "test_case_5c", "test_case_5e",
+            "test_factored_counters", "test_distinct_beginning_rule");
+
+    @Test
+    public void testConsistencyWithProver() throws Exception {
+        for (String game : GAMES) {
+            assertConsistentWithProver(game, new TestGameRepository().getGame(game).getRules());
+        }
+    }
+
+    @Test
+    public void testWideLiterals() throws Exception {
+        // The data sentences have too many columns to be indexed, and the
+        // rule for legal binds ?z at its first column and checks it at the
+        // others, which rules out the row with n
+        StringBuilder middle = new StringBuilder();
+        StringBuilder variables = new StringBuilder();
+        for (int i = 0; i < 30; i++) {
+            middle.append(i == 0 ? "n " : "m ");
+            variables.append("?z ");
+        }
+        String wideRow = middle.toString().replaceFirst("n", "m");
+        String rules = "( ( role player ) ( init ( sel k1 ) ) "
+                + "( data k1 " + wideRow + "k2 ) ( data k2 " + wideRow + "k3 ) ( data k3 " + wideRow + "k4 ) "
+                + "( data k2 " + middle + "k1 ) "
+                + "( <= ( legal player ( pick ?x ) ) ( true ( sel ?y ) ) ( data ?y " + variables + "?x ) ) "
+                + "( <= ( next ( sel ?x ) ) ( does player ( pick ?x ) ) ) "
+                + "( <= terminal ( true ( sel k4 ) ) ) ( goal player 100 ) )";
+        List<Gdl> description = Game.createEphemeralGame(rules).getRules();
+        assertConsistentWithProver("wide", description);
+
+        StateMachine subject = new ForwardChainingStateMachine();
+        subject.initialize(description);
+        MachineState state = subject.getInitialState();
+        for (String expected : Arrays.asList("k2", "k3", "k4")) {
+            List<Move> moves = subject.getLegalMoves(state, subject.getRoles().get(0));
+            assertEquals(1, moves.size());
+            assertEquals("( pick " + expected + " )", moves.get(0).toString());
+            state = subject.getNextState(state, moves);
+        }
+        assertTrue(subject.isTerminal(state));
+    }
+
+    @Test
+    public void testDistinctFunctions() throws Exception {
+        // Functions of the same shape are compared term by term, and
+        // functions of different shapes are always distinct
+        String rules = "( ( role player ) ( init ( at a ) ) ( cell a ) ( cell b ) "
+                + "( <= ( legal player ( go ?x ) ) ( cell ?x ) ( true ( at ?y ) ) ( distinct ( p ?x ) ( p ?y ) ) ) "
+                + "( <= ( legal player stay ) ( true ( at ?y ) ) ( distinct ( p ?y ) ( q ?y ) ) ) "
+                + "( <= ( legal player never ) ( true ( at ?y ) ) ( distinct ( p ?y ) ( p ?y ) ) ) "
+                + "( <= ( next ( at ?x ) ) ( does player ( go ?x ) ) ) "
+                + "( <= ( next ( at ?y ) ) ( does player stay ) ( true ( at ?y ) ) ) "
+                + "( <= terminal ( true ( at b ) ) ) ( goal player 100 ) )";
+        List<Gdl> description = Game.createEphemeralGame(rules).getRules();
+        assertConsistentWithProver("distinct", description);
+
+        StateMachine subject = new ForwardChainingStateMachine();
+        subject.initialize(description);
+        List<Move> moves = subject.getLegalMoves(subject.getInitialState(), subject.getRoles().get(0));
+        assertEquals(new HashSet<String>(Arrays.asList("( go b )", "stay")), toStrings(moves));
+    }
+
+    private static void assertConsistentWithProver(String game, List<Gdl> description) throws Exception {
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(description);
+        StateMachine subject = new ForwardChainingStateMachine();
+        subject.initialize(description);
+        assertTrue(game, StateMachineVerifier.checkMachineConsistency(reference, subject, 300));
+        assertSameLegalMoves(game, reference, subject, 5);
+    }
+
+    private static Set<String> toStrings(List<Move> moves) {
+        Set<String> strings = new HashSet<String>();
+        for (Move move : moves) {
+            strings.add(move.toString());
+        }
+        return strings;
+    }
+
+    // Plays random matches, and checks that the machines agree on the legal
+    // moves of every role in every state along the way
+    private static void assertSameLegalMoves(String game, StateMachine reference, StateMachine subject, int playouts) throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < playouts; i++) {
+            MachineState state = reference.getInitialState();
+            assertEquals(game, state, subject.getInitialState());
+            while (!reference.isTerminal(state)) {
+                assertFalse(game, subject.isTerminal(state));
+                for (Role role : reference.getRoles()) {
+                    assertEquals(game, new HashSet<Move>(reference.getLegalMoves(state, role)),
+                            new HashSet<Move>(subject.getLegalMoves(state, role)));
+                }
+                List<List<Move>> jointMoves = reference.getLegalJointMoves(state);
+                List<Move> jointMove = jointMoves.get(random.nextInt(jointMoves.size()));
+                MachineState next = reference.getNextState(state, jointMove);
+                assertEquals(game, next, subject.getNextState(state, jointMove));
+                state = next;
+            }
+            assertTrue(game, subject.isTerminal(state));
+            assertEquals(game, reference.getGoals(state), subject.getGoals(state));
+        }
+    }
+
+    @Test
+    public void testJointMovesOfOneState() throws Exception {
+        List<Gdl> description = new TestGameRepository().getGame("ticTacToe").getRules();
+        StateMachine reference = new ProverStateMachine();
+        reference.initialize(description);
+        StateMachine subject = new ForwardChainingStateMachine();
+        subject.initialize(description);
+
+        // The closure of the state is shared by its joint moves, which must
+        // each get their own next state
+        MachineState state = subject.getInitialState();
+        List<List<Move>> jointMoves = subject.getLegalJointMoves(state);
+        assertEquals(9, jointMoves.size());
+        List<MachineState> nextStates = subject.getNextStates(state);
+        assertEquals(9, new HashSet<MachineState>(nextStates).size());
+        for (List<Move> jointMove : jointMoves) {
+            assertEquals(reference.getNextState(state, jointMove), subject.getNextState(state, jointMove));
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package org.ggp.base.util.statemachine.rollout;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.Role;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.PropNetMachineState;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BitParallelRolloutsTest extends Assert {
+
+    private CompiledPropNetStateMachine sm;
+    private BitParallelRollouts rollouts;
+
+    @Before
+    public void setUp() throws Exception {
+        sm = new CompiledPropNetStateMachine();
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        rollouts = new BitParallelRollouts(sm.getCompiledPropNet(), new Random(0));
+    }
+
+    @Test
+    public void testEveryLaneReachesATerminalState() throws Exception {
+        int[][] goals = new int[BitParallelRollouts.NUM_LANES][2];
+        int[] depths = new int[BitParallelRollouts.NUM_LANES];
+        rollouts.rollout((PropNetMachineState) sm.getInitialState(), goals, depths);
+        for (int l = 0; l < BitParallelRollouts.NUM_LANES; l++) {
+            assertTrue(depths[l] >= 5 && depths[l] <= 9);
+            assertEquals(100, goals[l][0] + goals[l][1]);
+            assertTrue(goals[l][0] == 0 || goals[l][0] == 50 || goals[l][0] == 100);
+        }
+    }
+
+    @Test
+    public void testRolloutFromTerminalState() throws Exception {
+        MachineState state = sm.getInitialState();
+        Move noop = Move.create("noop");
+        state = sm.getNextState(state, Arrays.asList(Move.create("( mark 1 1 )"), noop));
+        state = sm.getNextState(state, Arrays.asList(noop, Move.create("( mark 1 3 )")));
+        state = sm.getNextState(state, Arrays.asList(Move.create("( mark 3 1 )"), noop));
+        state = sm.getNextState(state, Arrays.asList(noop, Move.create("( mark 2 2 )")));
+        MachineState won = sm.getNextState(state, Arrays.asList(Move.create("( mark 2 1 )"), noop));
+
+        RolloutResult result = rollouts.rollout((PropNetMachineState) won, 70);
+        assertEquals(70, result.getNumRollouts());
+        assertEquals(0, result.getAverageDepth(), 0);
+        assertEquals(100, result.getAverageScore(0), 0);
+        assertEquals(0, result.getAverageScore(1), 0);
+    }
+
+    @Test
+    public void testScoresMatchScalarDepthCharges() throws Exception {
+        RolloutResult parallel = rollouts.rollout((PropNetMachineState) sm.getInitialState(), 64 * 100);
+
+        Role xplayer = sm.getRoles().get(0);
+        double total = 0;
+        int scalarRollouts = 3000;
+        for (int i = 0; i < scalarRollouts; i++) {
+            total += sm.getGoal(sm.performDepthCharge(sm.getInitialState(), null), xplayer);
+        }
+        assertEquals(total / scalarRollouts, parallel.getAverageScore(0), 4);
+    }
+
+    @Test
+    public void testStateMachineUsesBatches() throws Exception {
+        double[] avgScores = new double[2];
+        double[] avgDepth = new double[1];
+        sm.getAverageDiscountedScoresFromRepeatedDepthCharges(sm.getInitialState(), avgScores, avgDepth, 1.0, 100);
+        assertEquals(100, avgScores[0] + avgScores[1], 1e-9);
+        assertTrue(avgDepth[0] >= 5 && avgDepth[0] <= 9);
+    }
+}
@@ -0,0 +1,94 @@
+package org.ggp.base.util.statemachine.rollout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.ggp.base.util.game.TestGameRepository;
+import org.ggp.base.util.statemachine.MachineState;
+import org.ggp.base.util.statemachine.Move;
+import org.ggp.base.util.statemachine.StateMachine;
+import org.ggp.base.util.statemachine.implementation.propnet.CompiledPropNetStateMachine;
+import org.ggp.base.util.statemachine.implementation.prover.ProverStateMachine;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class RolloutPoolTest extends Assert {
+
+    private CompiledPropNetStateMachine sm;
+    private RolloutPool pool;
+
+    @Before
+    public void setUp() throws Exception {
+        sm = new CompiledPropNetStateMachine();
+        sm.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+        List<StateMachine> workers = new ArrayList<StateMachine>();
+        for (int i = 0; i < 3; i++) {
+            workers.add(new CompiledPropNetStateMachine(sm.getCompiledPropNet()));
+        }
+        pool = new RolloutPool(workers);
+    }
+
+    @After
+    public void tearDown() {
+        pool.shutdown();
+    }
+
+    @Test
+    public void testRolloutCount() throws Exception {
+        RolloutResult result = pool.rollout(sm.getInitialState(), 100);
+        assertEquals(100, result.getNumRollouts());
+        assertTrue(result.getAverageDepth() >= 5 && result.getAverageDepth() <= 9);
+        for (double score : result.getAverageScores()) {
+            assertTrue(score >= 0 && score <= 100);
+        }
+    }
+
+    @Test
+    public void testRolloutFromTerminalState() throws Exception {
+        MachineState state = sm.getInitialState();
+        Move noop = Move.create("noop");
+        state = sm.getNextState(state, Arrays.asList(Move.create("( mark 1 1 )"), noop));
+        state = sm.getNextState(state, Arrays.asList(noop, Move.create("( mark 1 3 )")));
+        state = sm.getNextState(state, Arrays.asList(Move.create("( mark 3 1 )"), noop));
+        state = sm.getNextState(state, Arrays.asList(noop, Move.create("( mark 2 2 )")));
+        MachineState won = sm.getNextState(state, Arrays.asList(Move.create("( mark 2 1 )"), noop));
+
+        List<RolloutResult> results = pool.rollout(Arrays.asList(won, state), 7);
+        assertEquals(2, results.size());
+        assertEquals(7, results.get(0).getNumRollouts());
+        assertEquals(0, results.get(0).getAverageDepth(), 0);
+        assertEquals(100, results.get(0).getAverageScore(0), 0);
+        assertEquals(0, results.get(0).getAverageScore(1), 0);
+        assertEquals(7, results.get(1).getNumRollouts());
+        assertTrue(results.get(1).getAverageDepth() >= 1);
+    }
+
+    @Test
+    public void testWorkersThatAreNotCompiled() throws Exception {
+        List<StateMachine> workers = new ArrayList<StateMachine>();
+        for (int i = 0; i < 2; i++) {
+            StateMachine prover = new ProverStateMachine();
+            prover.initialize(new TestGameRepository().getGame("ticTacToe").getRules());
+            workers.add(prover);
+        }
+        RolloutPool proverPool = new RolloutPool(workers);
+        try {
+            RolloutResult result = proverPool.rollout(workers.get(0).getInitialState(), 5);
+            assertEquals(5, result.getNumRollouts());
+            assertEquals(100, result.getAverageScore(0) + result.getAverageScore(1), 1e-9);
+        } finally {
+            proverPool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRolloutUntilDeadline() throws Exception {
+        long deadline = System.currentTimeMillis() + 200;
+        RolloutResult result = pool.rolloutUntil(sm.getInitialState(), deadline);
+        assertTrue(System.currentTimeMillis() >= deadline);
+        assertTrue(result.getNumRollouts() >= pool.getNumWorkers());
+    }
+}
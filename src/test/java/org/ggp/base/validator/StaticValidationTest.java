@@ -77,6 +77,10 @@ public class StaticValidationTest {
     public void testCleanNotDistinctValidation() throws Exception {
         validate("test_clean_not_distinct");
     }
+    @Test
+    public void testFactoredCountersValidation() throws Exception {
+        validate("test_factored_counters");
+    }
     @Test(expected=ValidatorException.class)
     public void testFunctionAritiesDiffer() throws Exception {
         validate("test_invalid_function_arities_differ");